@@ -15,6 +15,7 @@ function show_help() {
     echo ""
     echo "Commands:"
     echo "  start [profile]      Start the application with optional profile (dev, light, test)"
+    echo "  start-cds [profile]  Package and start the application with a class data sharing archive"
     echo "  build               Build the application"
     echo "  test                Run tests"
     echo "  clean               Clean build artifacts"
@@ -28,6 +29,7 @@ function show_help() {
     echo "  ./run-app.sh start           # Start with default profile"
     echo "  ./run-app.sh start dev       # Start with development profile"
     echo "  ./run-app.sh start light     # Start with light profile"
+    echo "  ./run-app.sh start-cds light # Start with light profile and a CDS archive"
     echo "  ./run-app.sh build           # Build the application"
     echo "  ./run-app.sh test            # Run tests"
     echo "  ./run-app.sh logs            # Show application logs"
@@ -48,6 +50,28 @@ function start_app() {
     fi
 }
 
+function start_cds() {
+    local profile=${1:-""}
+    local app_dir="$PROJECT_ROOT/target/cds"
+    local jar="atkins-0.0.1-SNAPSHOT.jar"
+    local profile_arg=""
+    echo "Starting Atkins application with class data sharing..."
+
+    cd "$PROJECT_ROOT"
+    mvn -q clean package -DskipTests
+    java -Djarmode=tools -jar "target/$jar" extract --destination "$app_dir"
+
+    if [ -n "$profile" ]; then
+        echo "Using profile: $profile"
+        profile_arg="-Dspring.profiles.active=$profile"
+    fi
+
+    # Training run: refresh the context once and archive every class loaded on the way
+    java -XX:ArchiveClassesAtExit="$app_dir/application.jsa" -Dspring.context.exit=onRefresh $profile_arg \
+        -jar "$app_dir/$jar"
+    java -XX:SharedArchiveFile="$app_dir/application.jsa" $profile_arg -jar "$app_dir/$jar"
+}
+
 function build_app() {
     echo "Building Atkins application..."
     cd "$PROJECT_ROOT"
@@ -118,6 +142,9 @@ case "${1:-help}" in
     start)
         start_app "${2:-}"
         ;;
+    start-cds)
+        start_cds "${2:-}"
+        ;;
     build)
         build_app
         ;;
@@ -0,0 +1,110 @@
+package org.enkrip.atkins.config;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.config.ProgrammaticDriverConfigLoaderBuilder;
+import com.datastax.oss.driver.internal.core.specex.ConstantSpeculativeExecutionPolicy;
+import org.enkrip.atkins.shared.scylla.CqlSchema;
+import org.enkrip.atkins.shared.scylla.DriverMetricsBinder;
+import org.enkrip.atkins.shared.scylla.PreparedStatementRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.cassandra.CassandraProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Scylla session built directly on the driver, replacing the excluded Spring Boot auto-configuration.
+ * <p>
+ * Contact points, keyspace, datacenter and the default request settings still come from {@code spring.cassandra}.
+ * The Scylla driver opens one connection per shard and routes every statement with a routing key to the owning
+ * shard of a replica; the default load balancing policy is token aware and avoids replicas that are slow or have
+ * many requests in flight. On top of the defaults, statements pick one of two execution profiles:
+ * <ul>
+ *     <li>{@link #HOT_READ_PROFILE}: low consistency, short timeout and speculative executions, for idempotent
+ *     reads on the request path</li>
+ *     <li>{@link #WRITE_PROFILE}: quorum writes with a longer timeout and no speculative executions</li>
+ * </ul>
+ * The tables of {@code database/init.cql} are created as part of opening the session.
+ */
+@Configuration
+@EnableConfigurationProperties(CassandraProperties.class)
+@ConditionalOnProperty(prefix = "atkins.scylla", name = "enabled", havingValue = "true")
+public class ScyllaConfig {
+    public static final String HOT_READ_PROFILE = "hot-read";
+    public static final String WRITE_PROFILE = "write";
+
+    private static final String SESSION_NAME = "atkins";
+
+    @Bean(destroyMethod = "close")
+    public CqlSession cqlSession(CassandraProperties properties,
+                                 @Value("${atkins.scylla.hot-read.consistency:LOCAL_ONE}") String hotReadConsistency,
+                                 @Value("${atkins.scylla.hot-read.timeout:500ms}") Duration hotReadTimeout,
+                                 @Value("${atkins.scylla.hot-read.speculative-delay:20ms}") Duration speculativeDelay,
+                                 @Value("${atkins.scylla.hot-read.speculative-max:2}") int speculativeMax,
+                                 @Value("${atkins.scylla.write.consistency:LOCAL_QUORUM}") String writeConsistency,
+                                 @Value("${atkins.scylla.write.timeout:2s}") Duration writeTimeout) {
+        ProgrammaticDriverConfigLoaderBuilder config = DriverConfigLoader.programmaticBuilder()
+                .withString(DefaultDriverOption.SESSION_NAME, SESSION_NAME)
+                .withStringList(DefaultDriverOption.CONTACT_POINTS, properties.getContactPoints().stream()
+                        .map(contactPoint -> contactPoint.contains(":")
+                                ? contactPoint
+                                : contactPoint + ":" + properties.getPort())
+                        .toList())
+                .withBoolean(DefaultDriverOption.LOAD_BALANCING_POLICY_SLOW_AVOIDANCE, true)
+                .withStringList(DefaultDriverOption.METRICS_SESSION_ENABLED, List.of(
+                        "connected-nodes", "cql-requests", "cql-client-timeouts", "bytes-sent", "bytes-received"))
+                .withStringList(DefaultDriverOption.METRICS_NODE_ENABLED, List.of(
+                        "pool.open-connections", "pool.in-flight", "cql-messages", "speculative-executions",
+                        "retries.total", "errors.request.unsent", "errors.request.read-timeouts",
+                        "errors.request.write-timeouts", "errors.request.unavailables"));
+        CassandraProperties.Request request = properties.getRequest();
+        if (request.getTimeout() != null) {
+            config.withDuration(DefaultDriverOption.REQUEST_TIMEOUT, request.getTimeout());
+        }
+        if (request.getConsistency() != null) {
+            config.withString(DefaultDriverOption.REQUEST_CONSISTENCY, request.getConsistency().name());
+        }
+        if (properties.getConnection().getInitQueryTimeout() != null) {
+            config.withDuration(DefaultDriverOption.CONNECTION_INIT_QUERY_TIMEOUT,
+                    properties.getConnection().getInitQueryTimeout());
+        }
+
+        config.startProfile(HOT_READ_PROFILE)
+                .withString(DefaultDriverOption.REQUEST_CONSISTENCY, hotReadConsistency)
+                .withDuration(DefaultDriverOption.REQUEST_TIMEOUT, hotReadTimeout)
+                .withClass(DefaultDriverOption.SPECULATIVE_EXECUTION_POLICY_CLASS,
+                        ConstantSpeculativeExecutionPolicy.class)
+                .withInt(DefaultDriverOption.SPECULATIVE_EXECUTION_MAX, speculativeMax)
+                .withDuration(DefaultDriverOption.SPECULATIVE_EXECUTION_DELAY, speculativeDelay)
+                .endProfile();
+        config.startProfile(WRITE_PROFILE)
+                .withString(DefaultDriverOption.REQUEST_CONSISTENCY, writeConsistency)
+                .withDuration(DefaultDriverOption.REQUEST_TIMEOUT, writeTimeout)
+                .endProfile();
+
+        CqlSession session = CqlSession.builder()
+                .withConfigLoader(config.build())
+                .withLocalDatacenter(properties.getLocalDatacenter())
+                .withKeyspace(properties.getKeyspaceName())
+                .build();
+        // before any bean can prepare a statement against the tables
+        CqlSchema.apply(session);
+        return session;
+    }
+
+    @Bean
+    public PreparedStatementRegistry preparedStatementRegistry(CqlSession cqlSession) {
+        return new PreparedStatementRegistry(cqlSession);
+    }
+
+    @Bean
+    public DriverMetricsBinder driverMetricsBinder(CqlSession cqlSession) {
+        return new DriverMetricsBinder(cqlSession, SESSION_NAME);
+    }
+}
@@ -1,27 +1,78 @@
 package org.enkrip.atkins.config;
 
 import org.enkrip.atkins.shared.websocket.ChatWebSocketHandler;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.drain.DrainHandshakeInterceptor;
+import org.enkrip.atkins.shared.websocket.netty.ReactorNettyWebSocketServer;
+import org.enkrip.atkins.shared.websocket.overload.OverloadHandshakeInterceptor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.HandshakeInterceptor;
 import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
+    private static final String CHAT_PATH = "/websocket/chat";
 
     @Autowired
     private ChatWebSocketHandler chatWebSocketHandler;
 
+    @Autowired
+    private DrainHandshakeInterceptor drainHandshakeInterceptor;
+
+    @Autowired
+    private OverloadHandshakeInterceptor overloadHandshakeInterceptor;
+
+    @Autowired
+    private ObjectProvider<FrameCompression> frameCompression;
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(chatWebSocketHandler, CHAT_PATH)
+                .addInterceptors(chatHandshakeInterceptors().toArray(HandshakeInterceptor[]::new))
+                .setAllowedOrigins("*"); // For demo purposes - in production, specify allowed origins
+    }
+
+    /**
+     * The same chat endpoint served on Reactor Netty, on its own port, started and stopped along with the servlet
+     * container.
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "atkins.netty", name = "enabled", havingValue = "true")
+    public ReactorNettyWebSocketServer reactorNettyWebSocketServer(
+            @Value("${atkins.netty.host:0.0.0.0}") String host,
+            @Value("${atkins.netty.port:8081}") int port,
+            @Value("${atkins.netty.event-loop-threads:0}") int eventLoopThreads,
+            @Value("${atkins.netty.handler-threads:64}") int handlerThreads,
+            @Value("${atkins.netty.max-frame-size:1MB}") DataSize maxFrameSize,
+            @Value("${atkins.websocket.send-buffer-size:512KB}") DataSize sendBufferSize) {
+        return new ReactorNettyWebSocketServer(chatWebSocketHandler, chatHandshakeInterceptors(), CHAT_PATH, host,
+                port, eventLoopThreads, handlerThreads, Math.toIntExact(maxFrameSize.toBytes()),
+                Math.toIntExact(sendBufferSize.toBytes()));
+    }
+
+    private List<HandshakeInterceptor> chatHandshakeInterceptors() {
+        // only acts on servlet requests, other transports set the session ID attribute themselves
         HttpSessionHandshakeInterceptor httpSessionHandshakeInterceptor = new HttpSessionHandshakeInterceptor();
         httpSessionHandshakeInterceptor.setCreateSession(true);
 
-        registry.addHandler(chatWebSocketHandler, "/websocket/chat")
-                .addInterceptors(httpSessionHandshakeInterceptor)
-                .setAllowedOrigins("*"); // For demo purposes - in production, specify allowed origins
+        List<HandshakeInterceptor> interceptors = new ArrayList<>();
+        interceptors.add(drainHandshakeInterceptor);
+        interceptors.add(overloadHandshakeInterceptor);
+        interceptors.add(httpSessionHandshakeInterceptor);
+        frameCompression.ifAvailable(interceptors::add);
+        return interceptors;
     }
 }
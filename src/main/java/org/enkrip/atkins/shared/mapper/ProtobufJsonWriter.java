@@ -0,0 +1,186 @@
+package org.enkrip.atkins.shared.mapper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.Timestamp;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes protobuf messages as JSON straight to the response stream, without copying them into DTOs first.
+ * <p>
+ * The JSON keeps the shape the DTOs in {@code shared.websocket.dto} had when they were serialized by Jackson, which
+ * is not the canonical protobuf JSON mapping: every field is written, an unset optional field as {@code null}, 64-bit
+ * integers are numbers rather than strings, timestamps are ISO-8601 instants and enums are written by name.
+ */
+public final class ProtobufJsonWriter {
+    // the container owns the response stream
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private ProtobufJsonWriter() {
+    }
+
+    /**
+     * Stream a single message as a JSON object.
+     */
+    public static StreamingResponseBody object(MessageOrBuilder message) {
+        return outputStream -> {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+                writeMessage(generator, message);
+            }
+        };
+    }
+
+    /**
+     * Stream the messages as a JSON array, one message at a time.
+     */
+    public static StreamingResponseBody array(Iterable<? extends MessageOrBuilder> messages) {
+        return outputStream -> {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+                generator.writeStartArray();
+                for (MessageOrBuilder message : messages) {
+                    writeMessage(generator, message);
+                }
+                generator.writeEndArray();
+            }
+        };
+    }
+
+    private static void writeMessage(JsonGenerator generator, MessageOrBuilder message) throws IOException {
+        // the messages of the conversation and message lists are written without reflection
+        switch (message) {
+            case Timestamp timestamp -> writeTimestamp(generator, timestamp);
+            case Conversation conversation -> writeConversation(generator, conversation);
+            case ChatMessage chatMessage -> writeChatMessage(generator, chatMessage);
+            case ChatUser chatUser -> writeChatUser(generator, chatUser);
+            default -> writeFields(generator, message);
+        }
+    }
+
+    private static void writeConversation(JsonGenerator generator, Conversation conversation) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("conversationId", conversation.getConversationId());
+        generator.writeFieldName("lastMessage");
+        if (conversation.hasLastMessage()) {
+            writeChatMessage(generator, conversation.getLastMessage());
+        } else {
+            generator.writeNull();
+        }
+        generator.writeArrayFieldStart("participants");
+        for (ChatUser participant : conversation.getParticipantsList()) {
+            writeChatUser(generator, participant);
+        }
+        generator.writeEndArray();
+        generator.writeFieldName("lastUpdatedTimestamp");
+        writeTimestampOrNull(generator, conversation.hasLastUpdatedTimestamp(), conversation.getLastUpdatedTimestamp());
+        generator.writeNumberField("version", conversation.getVersion());
+        generator.writeNumberField("unreadCount", conversation.getUnreadCount());
+        generator.writeEndObject();
+    }
+
+    private static void writeChatMessage(JsonGenerator generator, ChatMessage message) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("messageId", message.getMessageId());
+        writeOptionalString(generator, "conversationId", message.hasConversationId(), message.getConversationId());
+        generator.writeFieldName("sender");
+        if (message.hasSender()) {
+            writeChatUser(generator, message.getSender());
+        } else {
+            generator.writeNull();
+        }
+        generator.writeFieldName("timestamp");
+        writeTimestampOrNull(generator, message.hasTimestamp(), message.getTimestamp());
+        generator.writeStringField("messageType", message.getMessageType().name());
+        generator.writeStringField("content", message.getContent());
+        generator.writeBooleanField("myMessage", message.getMyMessage());
+        generator.writeBooleanField("read", message.getRead());
+        generator.writeNumberField("version", message.getVersion());
+        generator.writeFieldName("attachment");
+        if (message.hasAttachment()) {
+            writeFields(generator, message.getAttachment());
+        } else {
+            generator.writeNull();
+        }
+        generator.writeNumberField("sequence", message.getSequence());
+        generator.writeEndObject();
+    }
+
+    private static void writeChatUser(JsonGenerator generator, ChatUser user) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("userId", user.getUserId());
+        generator.writeStringField("username", user.getUsername());
+        writeOptionalString(generator, "displayName", user.hasDisplayName(), user.getDisplayName());
+        writeOptionalString(generator, "avatarUrl", user.hasAvatarUrl(), user.getAvatarUrl());
+        generator.writeEndObject();
+    }
+
+    private static void writeOptionalString(JsonGenerator generator, String name, boolean present, String value)
+            throws IOException {
+        generator.writeFieldName(name);
+        if (present) {
+            generator.writeString(value);
+        } else {
+            generator.writeNull();
+        }
+    }
+
+    private static void writeTimestampOrNull(JsonGenerator generator, boolean present, Timestamp timestamp)
+            throws IOException {
+        if (present) {
+            writeTimestamp(generator, timestamp);
+        } else {
+            generator.writeNull();
+        }
+    }
+
+    private static void writeTimestamp(JsonGenerator generator, Timestamp timestamp) throws IOException {
+        generator.writeString(Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos()).toString());
+    }
+
+    private static void writeFields(JsonGenerator generator, MessageOrBuilder message) throws IOException {
+        generator.writeStartObject();
+        for (FieldDescriptor field : message.getDescriptorForType().getFields()) {
+            generator.writeFieldName(field.getJsonName());
+            if (field.isRepeated()) {
+                generator.writeStartArray();
+                for (Object value : (List<?>) message.getField(field)) {
+                    writeValue(generator, field, value);
+                }
+                generator.writeEndArray();
+            } else if (field.hasPresence() && !message.hasField(field)) {
+                generator.writeNull();
+            } else {
+                writeValue(generator, field, message.getField(field));
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeValue(JsonGenerator generator, FieldDescriptor field, Object value) throws IOException {
+        switch (field.getJavaType()) {
+            case INT -> generator.writeNumber((int) value);
+            case LONG -> generator.writeNumber((long) value);
+            case FLOAT -> generator.writeNumber((float) value);
+            case DOUBLE -> generator.writeNumber((double) value);
+            case BOOLEAN -> generator.writeBoolean((boolean) value);
+            case STRING -> generator.writeString((String) value);
+            case BYTE_STRING -> generator.writeBinary(((ByteString) value).toByteArray());
+            case ENUM -> generator.writeString(((EnumValueDescriptor) value).getName());
+            case MESSAGE -> writeMessage(generator, (MessageOrBuilder) value);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.enkrip.atkins.shared.scylla;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Maps the string IDs used by the chat protocol to the UUID columns of the Scylla tables.
+ */
+public final class CqlIds {
+
+    private CqlIds() {
+    }
+
+    /**
+     * @return a stable UUID derived from a user ID, user IDs are usernames
+     */
+    public static UUID userUuid(String userId) {
+        return UUID.nameUUIDFromBytes(userId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the ID itself if it is a UUID, otherwise a stable UUID derived from it
+     */
+    public static UUID toUuid(String id) {
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
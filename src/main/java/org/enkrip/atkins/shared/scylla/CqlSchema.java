@@ -0,0 +1,91 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Applies the tables of {@code database/init.cql} to the keyspace of a session. Every statement of the script is
+ * safe to run again, so it is applied each time a session is opened, before anything prepares a statement against
+ * the tables.
+ * <p>
+ * CQL has no {@code ADD IF NOT EXISTS} for columns, so the columns added to a table after it was first released are
+ * listed here as well, and only added to a table that {@code system_schema.columns} shows without them.
+ */
+public final class CqlSchema {
+    private static final Logger logger = LoggerFactory.getLogger(CqlSchema.class);
+    private static final String SCRIPT = "database/init.cql";
+    private static final String SELECT_COLUMNS =
+            "SELECT column_name FROM system_schema.columns WHERE keyspace_name = ? AND table_name = ?";
+    private static final List<AddedColumn> ADDED_COLUMNS = List.of(
+            new AddedColumn("messages_by_room_time", "sender_name", "TEXT"),
+            new AddedColumn("messages_by_room_time", "message_version", "BIGINT"),
+            new AddedColumn("messages_by_room_time", "message_sequence", "BIGINT"),
+            new AddedColumn("messages_by_room_time", "attachment", "BLOB"),
+            new AddedColumn("room_time_buckets", "message_rate", "DOUBLE"),
+            new AddedColumn("user_timeline", "message_time_nanos", "INT"),
+            new AddedColumn("user_timeline", "sender", "BLOB"));
+
+    private CqlSchema() {
+    }
+
+    public static void apply(CqlSession session) {
+        logger.info("Applying {} to keyspace {}", SCRIPT, session.getKeyspace().map(Object::toString).orElse("-"));
+        for (String statement : readStatements()) {
+            try {
+                logger.debug("Executing CQL: {}", statement);
+                session.execute(statement);
+            } catch (RuntimeException e) {
+                // the other tables are still usable, the repositories of this one report their own failures
+                logger.warn("Failed to execute statement {}: {}", statement, e.getMessage());
+            }
+        }
+        session.getKeyspace().ifPresent(keyspace -> addMissingColumns(session, keyspace));
+    }
+
+    private static void addMissingColumns(CqlSession session, CqlIdentifier keyspace) {
+        for (AddedColumn column : ADDED_COLUMNS) {
+            String statement = "ALTER TABLE " + column.table() + " ADD " + column.name() + " " + column.type();
+            try {
+                Set<String> existing = session.execute(SELECT_COLUMNS, keyspace.asInternal(), column.table())
+                        .all().stream()
+                        .map(row -> row.getString("column_name"))
+                        .collect(Collectors.toSet());
+                // a table that failed to be created has no columns at all, and was already reported
+                if (!existing.isEmpty() && !existing.contains(column.name())) {
+                    logger.info("Executing CQL: {}", statement);
+                    session.execute(statement);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Failed to execute statement {}: {}", statement, e.getMessage());
+            }
+        }
+    }
+
+    static List<String> readStatements() {
+        try {
+            String script = new ClassPathResource(SCRIPT).getContentAsString(StandardCharsets.UTF_8);
+            // strip comments first, they may contain anything
+            String withoutComments = script.replaceAll("--[^\\n]*", "");
+            return Arrays.stream(withoutComments.split(";"))
+                    .map(String::strip)
+                    .filter(statement -> !statement.isEmpty())
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + SCRIPT, e);
+        }
+    }
+
+    private record AddedColumn(String table, String name, String type) {
+    }
+}
@@ -0,0 +1,163 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.datastax.oss.driver.api.core.CqlSession;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the driver's Dropwizard metrics to Micrometer as {@code atkins.scylla.*} meters, tagged with the node for
+ * per-node metrics. A registry listener follows the driver as it adds and removes node metrics over time.
+ */
+public class DriverMetricsBinder implements MeterBinder {
+    private static final String PREFIX = "atkins.scylla.";
+    private static final String NODES = "nodes.";
+
+    private final CqlSession session;
+    private final String sessionName;
+
+    public DriverMetricsBinder(CqlSession session, String sessionName) {
+        this.session = session;
+        this.sessionName = sessionName;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        session.getMetrics().ifPresent(metrics -> metrics.getRegistry().addListener(new Listener(registry)));
+    }
+
+    private final class Listener implements MetricRegistryListener {
+        private final MeterRegistry registry;
+        private final Map<String, List<io.micrometer.core.instrument.Meter>> meters = new ConcurrentHashMap<>();
+
+        private Listener(MeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            MeterId id = meterId(name);
+            register(name, io.micrometer.core.instrument.Gauge.builder(id.name(), gauge, DriverMetricsBinder::value)
+                    .tags(id.tags())
+                    .register(registry));
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            // driver counters track current values such as in-flight requests, they can go down
+            MeterId id = meterId(name);
+            register(name, io.micrometer.core.instrument.Gauge.builder(id.name(), counter, Counter::getCount)
+                    .tags(id.tags())
+                    .register(registry));
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            MeterId id = meterId(name);
+            register(name,
+                    FunctionCounter.builder(id.name() + ".count", histogram, Histogram::getCount)
+                            .tags(id.tags())
+                            .register(registry),
+                    io.micrometer.core.instrument.Gauge.builder(id.name() + ".p99", histogram,
+                                    h -> h.getSnapshot().get99thPercentile())
+                            .tags(id.tags())
+                            .register(registry));
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            MeterId id = meterId(name);
+            register(name, FunctionCounter.builder(id.name(), meter, Meter::getCount)
+                    .tags(id.tags())
+                    .register(registry));
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            MeterId id = meterId(name);
+            register(name,
+                    FunctionTimer.builder(id.name(), timer, Timer::getCount,
+                                    t -> t.getSnapshot().getMean() * t.getCount(), TimeUnit.NANOSECONDS)
+                            .tags(id.tags())
+                            .register(registry),
+                    io.micrometer.core.instrument.Gauge.builder(id.name() + ".p99", timer,
+                                    t -> t.getSnapshot().get99thPercentile() / TimeUnit.MILLISECONDS.toNanos(1))
+                            .tags(id.tags())
+                            .baseUnit("milliseconds")
+                            .register(registry));
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+
+        private void register(String name, io.micrometer.core.instrument.Meter... registered) {
+            meters.put(name, List.of(registered));
+        }
+
+        private void remove(String name) {
+            List<io.micrometer.core.instrument.Meter> removed = meters.remove(name);
+            if (removed != null) {
+                removed.forEach(registry::remove);
+            }
+        }
+    }
+
+    /**
+     * Session metrics are named {@code <session>.<metric>}, node metrics {@code <session>.nodes.<node>.<metric>}.
+     */
+    MeterId meterId(String dropwizardName) {
+        String name = dropwizardName.startsWith(sessionName + ".")
+                ? dropwizardName.substring(sessionName.length() + 1)
+                : dropwizardName;
+        if (name.startsWith(NODES)) {
+            int nodeEnd = name.indexOf('.', NODES.length());
+            if (nodeEnd > 0) {
+                return new MeterId(PREFIX + name.substring(nodeEnd + 1),
+                        Tags.of("node", name.substring(NODES.length(), nodeEnd)));
+            }
+        }
+        return new MeterId(PREFIX + name, Tags.empty());
+    }
+
+    private static double value(Gauge<?> gauge) {
+        return gauge.getValue() instanceof Number number ? number.doubleValue() : Double.NaN;
+    }
+
+    record MeterId(String name, Tags tags) {
+    }
+}
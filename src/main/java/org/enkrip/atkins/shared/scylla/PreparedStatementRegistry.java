@@ -0,0 +1,48 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prepares every CQL query once per session and hands out the cached {@link PreparedStatement}. Concurrent callers
+ * share the same in-flight preparation; a failed preparation is forgotten so the next caller retries it.
+ */
+public class PreparedStatementRegistry {
+    private final CqlSession session;
+    private final Map<String, CompletableFuture<PreparedStatement>> statements = new ConcurrentHashMap<>();
+
+    public PreparedStatementRegistry(CqlSession session) {
+        this.session = session;
+    }
+
+    public CqlSession getSession() {
+        return session;
+    }
+
+    public CompletionStage<PreparedStatement> prepareAsync(String query) {
+        CompletableFuture<PreparedStatement> statement = statements.computeIfAbsent(query,
+                q -> session.prepareAsync(q).toCompletableFuture());
+        statement.whenComplete((prepared, error) -> {
+            if (error != null) {
+                statements.remove(query, statement);
+            }
+        });
+        return statement;
+    }
+
+    /**
+     * Blocking variant of {@link #prepareAsync(String)}, for callers that are about to execute synchronously anyway.
+     */
+    public PreparedStatement prepare(String query) {
+        return prepareAsync(query).toCompletableFuture().join();
+    }
+
+    public int size() {
+        return statements.size();
+    }
+}
@@ -0,0 +1,293 @@
+package org.enkrip.atkins.shared.websocket;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.enkrip.atkins.proto.AttachmentRef;
+import org.enkrip.atkins.proto.AttachmentUploadStatus;
+import org.enkrip.atkins.shared.mapper.ProtobufJsonWriter;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@RestController
+@Tag(name = "Attachments", description = "Resumable attachment uploads and downloads for IMAGE and FILE messages")
+public class AttachmentController {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    // blobs are addressed by their content, so a cached copy never goes stale
+    private static final CacheControl BLOB_CACHE_CONTROL = CacheControl.maxAge(Duration.ofDays(365))
+            .cachePrivate()
+            .immutable();
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final WebSocketSessionService sessionService;
+    private final AttachmentStore attachmentStore;
+
+    public AttachmentController(WebSocketSessionService sessionService, AttachmentStore attachmentStore) {
+        this.sessionService = sessionService;
+        this.attachmentStore = attachmentStore;
+    }
+
+    @Operation(
+            summary = "Start an attachment upload",
+            description = "Creates a resumable upload of the given size. Upload the content with PUT requests to "
+                    + "/api/attachments/uploads/{uploadId}, the status of the last chunk contains the attachment "
+                    + "reference to send with the message"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Upload created",
+                    content = {
+                            @Content(mediaType = "application/json"),
+                            @Content(mediaType = ChatRestController.PROTOBUF_VALUE)
+                    }),
+            @ApiResponse(responseCode = "413", description = "The attachment is too large")
+    })
+    @PostMapping("/api/attachments/uploads")
+    public ResponseEntity<StreamingResponseBody> createUpload(
+            @Parameter(description = "Name of the file as shown to the recipients", required = true)
+            @RequestParam("fileName") String fileName,
+            @Parameter(description = "Media type of the content", required = true)
+            @RequestParam("contentType") String contentType,
+            @Parameter(description = "Total size of the content in bytes", required = true)
+            @RequestParam("size") long size,
+            HttpServletRequest request) {
+        String currentUser = sessionService.getCurrentUsername(request);
+        try {
+            AttachmentUploadStatus upload = attachmentStore.createUpload(currentUser, fileName,
+                    MediaType.parseMediaType(contentType).toString(), size);
+            return uploadStatus(HttpStatus.CREATED, upload, request);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+    }
+
+    @Operation(
+            summary = "Get upload progress",
+            description = "Returns the number of bytes received so far, a client resumes an interrupted upload there"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Upload progress retrieved successfully"),
+            @ApiResponse(responseCode = "404", description = "Upload not found, expired or already completed")
+    })
+    @GetMapping("/api/attachments/uploads/{uploadId}")
+    public ResponseEntity<StreamingResponseBody> getUpload(
+            @PathVariable("uploadId") String uploadId,
+            HttpServletRequest request) {
+        AttachmentUploadStatus upload = attachmentStore.getUpload(uploadId,
+                sessionService.getCurrentUsername(request));
+        if (upload == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return uploadStatus(HttpStatus.OK, upload, request);
+    }
+
+    @Operation(
+            summary = "Upload a chunk",
+            description = "Appends the request body at the position given by 'Content-Range: bytes start-end/size', "
+                    + "which must match the current upload offset. Without Content-Range the body is the whole "
+                    + "content. A chunk cut short is kept up to the last received byte"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Chunk stored, the status carries the new offset"),
+            @ApiResponse(responseCode = "404", description = "Upload not found, expired or already completed"),
+            @ApiResponse(responseCode = "409", description = "The chunk does not start at the current offset"),
+            @ApiResponse(responseCode = "416", description = "The chunk does not fit the upload")
+    })
+    @PutMapping("/api/attachments/uploads/{uploadId}")
+    public ResponseEntity<StreamingResponseBody> uploadChunk(
+            @PathVariable("uploadId") String uploadId,
+            @RequestHeader(name = HttpHeaders.CONTENT_RANGE, required = false) String contentRange,
+            HttpServletRequest request) throws IOException {
+        String currentUser = sessionService.getCurrentUsername(request);
+        long offset = 0;
+        long length = request.getContentLengthLong();
+        if (contentRange != null) {
+            Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+            if (!matcher.matches()) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).build();
+            }
+            offset = Long.parseLong(matcher.group(1));
+            length = Long.parseLong(matcher.group(2)) - offset + 1;
+        }
+
+        try {
+            AttachmentUploadStatus upload = attachmentStore.append(uploadId, currentUser, offset, length,
+                    request.getInputStream());
+            if (upload == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return uploadStatus(HttpStatus.OK, upload, request);
+        } catch (IllegalStateException e) {
+            AttachmentUploadStatus upload = attachmentStore.getUpload(uploadId, currentUser);
+            if (upload == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return uploadStatus(HttpStatus.CONFLICT, upload, request);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).build();
+        }
+    }
+
+    @Operation(
+            summary = "Download an attachment",
+            description = "Serves the attachment content, supports single byte ranges. PNG, JPEG, GIF and WebP "
+                    + "images are served inline, anything else as a download"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Attachment content"),
+            @ApiResponse(responseCode = "206", description = "Requested range of the attachment content"),
+            @ApiResponse(responseCode = "404", description = "Attachment not found")
+    })
+    @GetMapping("/api/attachments/{attachmentId}")
+    public void download(
+            @PathVariable("attachmentId") String attachmentId,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AttachmentRef attachment = attachmentStore.describe(attachmentId);
+        if (attachment == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        // an SVG, HTML or mislabelled upload rendered inline would run in the origin of the application
+        boolean inline = attachmentStore.isRasterImage(attachmentId, attachment.getContentType());
+        serve(attachmentStore.blobPath(attachmentId), attachment.getContentType(), inline,
+                "\"" + attachmentId + "\"", request, response);
+    }
+
+    @Operation(
+            summary = "Download an image thumbnail",
+            description = "Serves a JPEG thumbnail of an image attachment whose reference has hasThumbnail set"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Thumbnail content"),
+            @ApiResponse(responseCode = "404", description = "Attachment not found or it has no thumbnail")
+    })
+    @GetMapping("/api/attachments/{attachmentId}/thumbnail")
+    public void downloadThumbnail(
+            @PathVariable("attachmentId") String attachmentId,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AttachmentRef attachment = attachmentStore.describe(attachmentId);
+        Path thumbnail = attachment == null ? null : attachmentStore.thumbnailPath(attachmentId);
+        if (thumbnail == null || !Files.exists(thumbnail)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        serve(thumbnail, MediaType.IMAGE_JPEG_VALUE, true, "\"" + attachmentId + "-thumbnail\"", request,
+                response);
+    }
+
+    /**
+     * Serve a file or a single range of it, with sendfile when the container supports it and otherwise by
+     * transferring from the file channel to the response.
+     *
+     * @param inline whether the browser may render the file rather than download it
+     */
+    private static void serve(Path file, String contentType, boolean inline, String etag,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, BLOB_CACHE_CONTROL.getHeaderValue());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+
+        long length = Files.size(file);
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(range);
+                // several ranges are answered with the whole content, which is allowed
+                if (ranges.size() == 1) {
+                    start = ranges.getFirst().getRangeStart(length);
+                    end = ranges.getFirst().getRangeEnd(length);
+                    if (start >= length) {
+                        throw new IllegalArgumentException("Range starts after the end of the content");
+                    }
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                }
+            } catch (IllegalArgumentException e) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                (inline ? ContentDisposition.inline() : ContentDisposition.attachment()).build().toString());
+        response.setHeader("X-Content-Type-Options", "nosniff");
+        response.setContentType(contentType);
+        response.setContentLengthLong(end - start + 1);
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                long transferred = channel.transferTo(position, end - position + 1, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static ResponseEntity<StreamingResponseBody> uploadStatus(HttpStatus status,
+                                                                      AttachmentUploadStatus upload,
+                                                                      HttpServletRequest request) {
+        if (ChatRestController.acceptsProtobuf(request)) {
+            return ResponseEntity.status(status)
+                    .contentType(ChatRestController.PROTOBUF)
+                    .contentLength(upload.getSerializedSize())
+                    .body(upload::writeTo);
+        }
+        return ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ProtobufJsonWriter.object(upload));
+    }
+}
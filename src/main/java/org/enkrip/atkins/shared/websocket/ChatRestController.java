@@ -8,30 +8,62 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.Timestamps;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.enkrip.atkins.proto.ChatMessage;
 import org.enkrip.atkins.proto.Conversation;
-import org.enkrip.atkins.shared.mapper.ProtobufMapper;
+import org.enkrip.atkins.proto.GetConversationMessagesResponse;
+import org.enkrip.atkins.proto.GetListOfConversationsResponse;
+import org.enkrip.atkins.proto.GetTimelineRequest;
+import org.enkrip.atkins.proto.GetTimelineResponse;
+import org.enkrip.atkins.proto.SearchMessagesRequest;
+import org.enkrip.atkins.proto.SearchMessagesResponse;
+import org.enkrip.atkins.shared.mapper.ProtobufJsonWriter;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
 import org.enkrip.atkins.shared.websocket.dto.ChatMessageDto;
 import org.enkrip.atkins.shared.websocket.dto.ConversationDto;
+import org.enkrip.atkins.shared.websocket.history.MessageHistoryService;
+import org.enkrip.atkins.shared.websocket.search.MessageSearchService;
+import org.enkrip.atkins.shared.websocket.timeline.TimelineService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @RestController
 @Tag(name = "Chat", description = "Chat endpoints for conversations and messaging")
 public class ChatRestController {
+    static final String PROTOBUF_VALUE = "application/x-protobuf";
+    static final MediaType PROTOBUF = MediaType.parseMediaType(PROTOBUF_VALUE);
+    // cached copies must always be revalidated, which is cheap thanks to the ETags
+    private static final CacheControl CACHE_CONTROL = CacheControl.noCache().cachePrivate();
+
     private final WebSocketSessionService sessionService;
     private final ConversationService conversationService;
-    private final ProtobufMapper protobufMapper = ProtobufMapper.INSTANCE;
+    private final MessageSearchService messageSearchService;
+    private final TimelineService timelineService;
+    private final MessageHistoryService messageHistoryService;
 
-    public ChatRestController(WebSocketSessionService sessionService, ConversationService conversationService) {
+    public ChatRestController(WebSocketSessionService sessionService, ConversationService conversationService,
+                              MessageSearchService messageSearchService, TimelineService timelineService,
+                              MessageHistoryService messageHistoryService) {
         this.sessionService = sessionService;
         this.conversationService = conversationService;
+        this.messageSearchService = messageSearchService;
+        this.timelineService = timelineService;
+        this.messageHistoryService = messageHistoryService;
     }
 
     @Operation(
@@ -50,44 +82,264 @@ public class ChatRestController {
 
     @Operation(
             summary = "Get user conversations",
-            description = "Retrieves all conversations that the current user is participating in"
+            description = "Retrieves all conversations that the current user is participating in. Send "
+                    + "'Accept: application/x-protobuf' to receive a binary GetListOfConversationsResponse. "
+                    + "Responses carry an ETag derived from the user's conversation version, so polling clients "
+                    + "should revalidate with If-None-Match"
     )
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Conversations retrieved successfully",
-                    content = @Content(mediaType = "application/json",
-                            array = @ArraySchema(schema = @Schema(implementation = ConversationDto.class))))
+                    content = {
+                            @Content(mediaType = "application/json",
+                                    array = @ArraySchema(schema = @Schema(implementation = ConversationDto.class))),
+                            @Content(mediaType = PROTOBUF_VALUE)
+                    }),
+            @ApiResponse(responseCode = "304", description = "Nothing changed since the version in If-None-Match")
     })
     @GetMapping("/api/chat/conversations")
-    public Set<ConversationDto> conversations(HttpServletRequest request) {
+    public ResponseEntity<StreamingResponseBody> conversations(
+            @Parameter(description = "Only return conversations started or updated after this version")
+            @RequestParam(name = "sinceVersion", required = false) Long sinceVersion,
+            HttpServletRequest request, ServletWebRequest webRequest) {
         String currentUser = sessionService.getCurrentUsername(request);
-        Set<Conversation> protobufConversations = conversationService.getUserConversations(currentUser);
-        
-        return protobufConversations.stream()
-                .map(protobufMapper::toDto)
-                .collect(Collectors.toSet());
+        boolean protobuf = acceptsProtobuf(request);
+        // read the version before the conversations: a change moves the version on only after it is in the list, so
+        // a response may be newer than its ETag but never older
+        if (notModified(webRequest, conversationService.getUserVersion(currentUser), protobuf)) {
+            return null;
+        }
+
+        if (sinceVersion == null) {
+            byte[] body = conversationService.getConversationList(currentUser, protobuf
+                    ? ConversationListCache.Format.PROTOBUF : ConversationListCache.Format.JSON);
+            return ResponseEntity.ok()
+                    .contentType(protobuf ? PROTOBUF : MediaType.APPLICATION_JSON)
+                    .contentLength(body.length)
+                    .body(outputStream -> outputStream.write(body));
+        }
+
+        Set<Conversation> conversations = conversationService.getUserConversationsSince(currentUser, sinceVersion);
+        if (protobuf) {
+            GetListOfConversationsResponse response = GetListOfConversationsResponse.newBuilder()
+                    .addAllConversations(conversations)
+                    .build();
+            return protobuf(response);
+        }
+        return json(conversations);
     }
 
     @Operation(
             summary = "Get messages by conversation ID",
-            description = "Retrieves all messages from a specific conversation that the current user has access to"
+            description = "Retrieves all messages from a specific conversation that the current user has access to. "
+                    + "Send 'Accept: application/x-protobuf' to receive a binary GetConversationMessagesResponse. "
+                    + "Responses carry an ETag derived from the conversation version, so polling clients should "
+                    + "revalidate with If-None-Match. Clients catching up pass the sequence of the last message they "
+                    + "have as 'afterSequence'"
     )
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Messages retrieved successfully",
-                    content = @Content(mediaType = "application/json",
-                            array = @ArraySchema(schema = @Schema(implementation = ChatMessageDto.class)))),
+                    content = {
+                            @Content(mediaType = "application/json",
+                                    array = @ArraySchema(schema = @Schema(implementation = ChatMessageDto.class))),
+                            @Content(mediaType = PROTOBUF_VALUE)
+                    }),
+            @ApiResponse(responseCode = "304", description = "Nothing changed since the version in If-None-Match"),
             @ApiResponse(responseCode = "403", description = "User does not have access to this conversation"),
             @ApiResponse(responseCode = "404", description = "Conversation not found")
     })
     @GetMapping("/api/chat/conversations/{conversationId}/messages")
-    public List<ChatMessageDto> getMessagesByConversationId(
+    public ResponseEntity<StreamingResponseBody> getMessagesByConversationId(
             @Parameter(description = "Unique identifier of the conversation", required = true)
-            @PathVariable("conversationId") String conversationId, 
+            @PathVariable("conversationId") String conversationId,
+            @Parameter(description = "Only return messages sent after this conversation version")
+            @RequestParam(name = "sinceVersion", required = false) Long sinceVersion,
+            @Parameter(description = "Only return messages following this sequence")
+            @RequestParam(name = "afterSequence", required = false) Long afterSequence,
+            @Parameter(description = "Maximum number of messages to return with afterSequence, 0 for all")
+            @RequestParam(name = "limit", required = false, defaultValue = "0") int limit,
+            HttpServletRequest request, ServletWebRequest webRequest) {
+        String currentUser = sessionService.getCurrentUsername(request);
+        boolean protobuf = acceptsProtobuf(request);
+        Conversation conversation = conversationService.getUserConversation(conversationId, currentUser);
+        if (conversation != null && notModified(webRequest, conversation.getVersion(), protobuf)) {
+            return null;
+        }
+
+        boolean hasMore = false;
+        List<ChatMessage> messages;
+        if (afterSequence != null) {
+            // one extra message tells whether there is more to catch up on
+            messages = conversationService.getConversationMessagesAfter(conversationId, currentUser, afterSequence,
+                    limit > 0 ? limit + 1 : Integer.MAX_VALUE);
+            hasMore = limit > 0 && messages.size() > limit;
+            messages = hasMore ? messages.subList(0, limit) : messages;
+        } else if (sinceVersion != null) {
+            messages = conversationService.getConversationMessagesSince(conversationId, currentUser, sinceVersion);
+        } else {
+            messages = conversationService.getConversationMessages(conversationId, currentUser);
+        }
+        if (protobuf) {
+            GetConversationMessagesResponse response = GetConversationMessagesResponse.newBuilder()
+                    .addAllMessages(messages)
+                    .setHasMore(hasMore)
+                    .build();
+            return protobuf(response);
+        }
+        return json(messages);
+    }
+
+    @Operation(
+            summary = "Get message history",
+            description = "Pages backwards through the messages of a conversation the current user has access to. "
+                    + "Pass the sequence of the oldest returned message as 'beforeSequence', or its timestamp as "
+                    + "'before', to fetch the previous page. Send 'Accept: application/x-protobuf' to receive a binary "
+                    + "GetConversationMessagesResponse"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Messages retrieved successfully",
+                    content = {
+                            @Content(mediaType = "application/json"),
+                            @Content(mediaType = PROTOBUF_VALUE)
+                    })
+    })
+    @GetMapping("/api/chat/conversations/{conversationId}/history")
+    public ResponseEntity<StreamingResponseBody> getMessageHistory(
+            @Parameter(description = "Unique identifier of the conversation", required = true)
+            @PathVariable("conversationId") String conversationId,
+            @Parameter(description = "Only return messages sent before this instant, in epoch milliseconds")
+            @RequestParam(name = "before", required = false) Long before,
+            @Parameter(description = "Only return messages preceding this sequence, takes precedence over 'before'")
+            @RequestParam(name = "beforeSequence", required = false) Long beforeSequence,
+            @Parameter(description = "Maximum number of messages to return")
+            @RequestParam(name = "limit", required = false, defaultValue = "0") int limit,
+            HttpServletRequest request) {
+        String currentUser = sessionService.getCurrentUsername(request);
+        GetConversationMessagesResponse response = beforeSequence != null
+                ? messageHistoryService.getHistoryBefore(currentUser, conversationId, beforeSequence, limit)
+                : messageHistoryService.getHistory(currentUser, conversationId,
+                        before == null ? null : Instant.ofEpochMilli(before), limit);
+
+        if (acceptsProtobuf(request)) {
+            return protobuf(response);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ProtobufJsonWriter.object(response));
+    }
+
+    @Operation(
+            summary = "Search messages",
+            description = "Finds messages containing all words of the query in the conversations of the current user, "
+                    + "most recent first. Pass next_cursor of a response as 'before' to fetch the next page. Send "
+                    + "'Accept: application/x-protobuf' to receive a binary SearchMessagesResponse"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Search completed successfully",
+                    content = {
+                            @Content(mediaType = "application/json"),
+                            @Content(mediaType = PROTOBUF_VALUE)
+                    })
+    })
+    @GetMapping("/api/chat/search")
+    public ResponseEntity<StreamingResponseBody> searchMessages(
+            @Parameter(description = "Words that must all appear in the message", required = true)
+            @RequestParam("q") String query,
+            @Parameter(description = "Restrict the search to a single conversation")
+            @RequestParam(name = "conversationId", required = false) String conversationId,
+            @Parameter(description = "Maximum number of messages to return")
+            @RequestParam(name = "limit", required = false, defaultValue = "0") int limit,
+            @Parameter(description = "Cursor returned by the previous page")
+            @RequestParam(name = "before", required = false) Long before,
             HttpServletRequest request) {
         String currentUser = sessionService.getCurrentUsername(request);
-        Set<ChatMessage> messages = conversationService.getConversationMessages(conversationId, currentUser);
-        
-        return messages.stream()
-                .map(protobufMapper::toDto)
-                .collect(Collectors.toList());
+        SearchMessagesRequest.Builder searchRequest = SearchMessagesRequest.newBuilder()
+                .setQuery(query)
+                .setLimit(limit);
+        if (conversationId != null) {
+            searchRequest.setConversationId(conversationId);
+        }
+        if (before != null) {
+            searchRequest.setBeforeCursor(before);
+        }
+        SearchMessagesResponse response = messageSearchService.search(currentUser, searchRequest.build());
+
+        if (acceptsProtobuf(request)) {
+            return protobuf(response);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ProtobufJsonWriter.object(response));
+    }
+
+    @Operation(
+            summary = "Get recent activity",
+            description = "Retrieves previews of the most recent messages across all conversations of the current "
+                    + "user. Send 'Accept: application/x-protobuf' to receive a binary GetTimelineResponse"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Timeline retrieved successfully",
+                    content = {
+                            @Content(mediaType = "application/json"),
+                            @Content(mediaType = PROTOBUF_VALUE)
+                    })
+    })
+    @GetMapping("/api/chat/timeline")
+    public ResponseEntity<StreamingResponseBody> timeline(
+            @Parameter(description = "Only return entries older than this instant, in epoch milliseconds")
+            @RequestParam(name = "before", required = false) Long before,
+            @Parameter(description = "Maximum number of entries to return")
+            @RequestParam(name = "limit", required = false, defaultValue = "0") int limit,
+            HttpServletRequest request) {
+        String currentUser = sessionService.getCurrentUsername(request);
+        GetTimelineRequest.Builder timelineRequest = GetTimelineRequest.newBuilder().setLimit(limit);
+        if (before != null) {
+            timelineRequest.setBefore(Timestamps.fromMillis(before));
+        }
+        GetTimelineResponse response = timelineService.getTimeline(currentUser, timelineRequest.build());
+
+        if (acceptsProtobuf(request)) {
+            return protobuf(response);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ProtobufJsonWriter.object(response));
+    }
+
+    /**
+     * Protobuf is only served to clients that explicitly ask for it, anything else keeps getting JSON.
+     */
+    static boolean acceptsProtobuf(HttpServletRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (accept == null) {
+            return false;
+        }
+        return MediaType.parseMediaTypes(accept).stream()
+                .anyMatch(mediaType -> PROTOBUF.equalsTypeAndSubtype(mediaType) && mediaType.getQualityValue() > 0);
+    }
+
+    /**
+     * Set the caching headers and answer the request with 304 if the client already has this version.
+     * The ETag is strong: the same version always serializes to the same bytes for a given representation.
+     *
+     * @return true if the response was completed as not modified
+     */
+    private static boolean notModified(ServletWebRequest webRequest, long version, boolean protobuf) {
+        HttpServletResponse response = webRequest.getResponse();
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL.getHeaderValue());
+        return webRequest.checkNotModified("\"" + version + (protobuf ? "-pb" : "-json") + "\"");
+    }
+
+    static ResponseEntity<StreamingResponseBody> protobuf(Message message) {
+        return ResponseEntity.ok()
+                .contentType(PROTOBUF)
+                .contentLength(message.getSerializedSize())
+                .body(message::writeTo);
+    }
+
+    private static ResponseEntity<StreamingResponseBody> json(Iterable<? extends Message> messages) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ProtobufJsonWriter.array(messages));
     }
 }
@@ -2,11 +2,18 @@ package org.enkrip.atkins.shared.websocket;
 
 import org.enkrip.atkins.proto.MessageType;
 import org.enkrip.atkins.proto.RPCRequestEnvelope;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.shared.websocket.heartbeat.IdleSessionReaper;
+import org.enkrip.atkins.shared.websocket.overload.OverloadController;
+import org.enkrip.atkins.shared.websocket.search.MessageSearchService;
+import org.enkrip.atkins.shared.websocket.timeline.TimelineService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.BinaryWebSocketHandler;
 
@@ -27,34 +34,75 @@ import java.io.IOException;
  */
 @Service
 public class ChatWebSocketHandler extends BinaryWebSocketHandler {
+    static final String OVERLOADED = "OVERLOADED";
 
     private final Logger logger = LoggerFactory.getLogger(ChatWebSocketHandler.class);
 
     private final WebSocketSessionService sessionService;
     private final ConversationService conversationService;
+    private final MessageSearchService messageSearchService;
+    private final TimelineService timelineService;
+    private final OverloadController overloadController;
+    private final IdleSessionReaper idleSessionReaper;
 
-    public ChatWebSocketHandler(WebSocketSessionService sessionService, ConversationService conversationService) {
+    public ChatWebSocketHandler(WebSocketSessionService sessionService, ConversationService conversationService,
+                                MessageSearchService messageSearchService, TimelineService timelineService,
+                                OverloadController overloadController,
+                                ObjectProvider<IdleSessionReaper> idleSessionReaper) {
         this.sessionService = sessionService;
         this.conversationService = conversationService;
+        this.messageSearchService = messageSearchService;
+        this.timelineService = timelineService;
+        this.overloadController = overloadController;
+        this.idleSessionReaper = idleSessionReaper.getIfAvailable();
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws IOException {
         sessionService.afterConnectionEstablished(session);
+        if (idleSessionReaper != null) {
+            idleSessionReaper.register(session);
+        }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+        if (idleSessionReaper != null) {
+            idleSessionReaper.unregister(session);
+        }
         sessionService.afterConnectionClosed(session, status);
     }
 
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        if (idleSessionReaper != null) {
+            idleSessionReaper.touch(session);
+        }
+    }
+
     @Override
     protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
-        RPCRequestEnvelope request = RPCRequestEnvelope.parseFrom(message.getPayload());
+        if (idleSessionReaper != null) {
+            idleSessionReaper.touch(session);
+        }
+        RPCRequestEnvelope request = RPCRequestEnvelope.parseFrom(sessionService.decodePayload(session, message));
         if (!MessageType.REQUEST.equals(request.getMessageType())) {
             session.close();
         }
 
+        if (!overloadController.admit(request.getOperationType())) {
+            rejectOverloaded(session, request);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            handleRequest(session, request);
+        } finally {
+            overloadController.complete(start);
+        }
+    }
+
+    private void handleRequest(WebSocketSession session, RPCRequestEnvelope request) {
         switch (request.getOperationType()) {
             case GET_LIST_OF_CONVERSATIONS -> {
                 conversationService.getListOfConversations(session, request);
@@ -65,9 +113,32 @@ public class ChatWebSocketHandler extends BinaryWebSocketHandler {
             case SEND_CONVERSATION_MESSAGE -> {
                 conversationService.sendConversationMessage(session, request);
             }
+            case GET_CONVERSATION_MESSAGES -> {
+                conversationService.getConversationMessages(session, request);
+            }
+            case SEARCH_MESSAGES -> {
+                messageSearchService.searchMessages(session, request);
+            }
+            case GET_TIMELINE -> {
+                timelineService.getTimeline(session, request);
+            }
             default -> {
                 logger.info("Unknown operation type: {}", request.getOperationType());
             }
         }
     }
+
+    private void rejectOverloaded(WebSocketSession session, RPCRequestEnvelope request) {
+        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setMessageType(MessageType.RESPONSE)
+                .setOperationType(request.getOperationType())
+                .setSuccess(false)
+                .setErrorCode(OVERLOADED)
+                .setErrorMessage("Server is overloaded, retry in "
+                        + overloadController.getRetryAfter().toSeconds() + " seconds")
+                .build();
+        sessionService.sendMessage(sessionService.getCurrentUsername(session),
+                new BinaryMessage(response.toByteArray()));
+    }
 }
@@ -0,0 +1,74 @@
+package org.enkrip.atkins.shared.websocket;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.enkrip.atkins.shared.websocket.compression.CompressionDictionaries;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.Duration;
+
+@RestController
+@Tag(name = "Compression", description = "Dictionaries for zstd compressed WebSocket frames")
+public class CompressionController {
+    private static final String DICTIONARY_ID_HEADER = "X-Atkins-Dictionary-Id";
+    // a dictionary ID always names the same content
+    private static final CacheControl DICTIONARY_CACHE_CONTROL = CacheControl.maxAge(Duration.ofDays(365))
+            .cachePublic()
+            .immutable();
+
+    private final CompressionDictionaries dictionaries;
+
+    public CompressionController(ObjectProvider<CompressionDictionaries> dictionaries) {
+        this.dictionaries = dictionaries.getIfAvailable();
+    }
+
+    @Operation(
+            summary = "Get the latest dictionary",
+            description = "Returns the dictionary offered to new sessions, its ID is in the X-Atkins-Dictionary-Id header"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Dictionary retrieved successfully"),
+            @ApiResponse(responseCode = "404", description = "Compression is disabled or no dictionary was trained yet")
+    })
+    @GetMapping("/api/compression/dictionaries/latest")
+    public ResponseEntity<byte[]> getLatestDictionary() {
+        CompressionDictionaries.Dictionary dictionary = dictionaries == null ? null : dictionaries.current();
+        if (dictionary == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .header(DICTIONARY_ID_HEADER, String.valueOf(dictionary.id()))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(dictionary.content());
+    }
+
+    @Operation(
+            summary = "Get a dictionary",
+            description = "Returns the dictionary with the given ID, to offer at the next WebSocket handshake"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Dictionary retrieved successfully"),
+            @ApiResponse(responseCode = "404", description = "Dictionary not found")
+    })
+    @GetMapping("/api/compression/dictionaries/{dictionaryId:\\d+}")
+    public ResponseEntity<byte[]> getDictionary(@PathVariable("dictionaryId") long dictionaryId) {
+        CompressionDictionaries.Dictionary dictionary = dictionaries == null ? null : dictionaries.get(dictionaryId);
+        if (dictionary == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .cacheControl(DICTIONARY_CACHE_CONTROL)
+                .header(DICTIONARY_ID_HEADER, String.valueOf(dictionary.id()))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(dictionary.content());
+    }
+}
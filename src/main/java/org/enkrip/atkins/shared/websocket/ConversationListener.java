@@ -0,0 +1,38 @@
+package org.enkrip.atkins.shared.websocket;
+
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+
+/**
+ * Callback for components that need to follow conversation mutations made by {@link ConversationService}.
+ * <p>
+ * Listeners are invoked synchronously on the thread that performed the mutation, after the in-memory indexes were
+ * updated, and are also invoked while state is being restored at startup. They are invoked while the conversation is
+ * locked, so the mutations of a conversation are seen in the order they were applied; listeners must therefore not
+ * mutate conversations themselves.
+ */
+public interface ConversationListener {
+
+    /**
+     * Called once when a conversation is registered for the first time.
+     */
+    default void onConversationStarted(Conversation conversation) {
+    }
+
+    /**
+     * Called after a message was stored and its conversation updated.
+     *
+     * @param conversation the conversation including the new message as its last message
+     * @param message      the stored message
+     */
+    default void onMessageAppended(Conversation conversation, ChatMessage message) {
+    }
+
+    /**
+     * Called on the thread of a mutation once its conversation is unlocked again, before the mutation is
+     * acknowledged. Slow work that must complete first, such as waiting for durability, belongs here rather than in
+     * the callbacks above, where it would hold up every other mutation of the conversation.
+     */
+    default void onConversationUnlocked() {
+    }
+}
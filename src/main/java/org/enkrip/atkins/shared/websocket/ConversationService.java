@@ -4,17 +4,35 @@
  */
 package org.enkrip.atkins.shared.websocket;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.util.Timestamps;
 import org.enkrip.atkins.proto.*;
+import org.enkrip.atkins.shared.mapper.ProtobufJsonWriter;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
+import org.enkrip.atkins.shared.websocket.engine.ConversationEngine;
+import org.enkrip.atkins.shared.websocket.idempotency.IdempotencyCache;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -24,7 +42,16 @@ import java.util.stream.Stream;
  */
 @Service
 public class ConversationService {
+    private static final int DEFAULT_MESSAGES_LIMIT = 50;
+    private static final int MAX_MESSAGES_LIMIT = 200;
+
     private final WebSocketSessionService webSocketSessionService;
+    private final CompactMessageStore messageStore;
+    private final AttachmentStore attachmentStore;
+    private final IdempotencyCache idempotencyCache;
+    private final ConversationEngine conversationEngine;
+    private final ConversationListCache conversationListCache;
+    private final List<ConversationListener> conversationListeners;
 
     // Maps conversationId to Conversation
     private final Map<String, Conversation> conversationIdConversation = new ConcurrentHashMap<>();
@@ -33,16 +60,32 @@ public class ConversationService {
     private final Map<String, Set<Conversation>> userConversations = new ConcurrentHashMap<>();
     private final Map<String, Set<String>> userConversationIds = new ConcurrentHashMap<>();
 
-    // Maps conversationId to its messages
-    private final Map<String, Set<ChatMessage>> conversationMessages = new ConcurrentHashMap<>();
-
-    private final Comparator<Conversation> conversationDateComparator = (o1, o2) ->
-            Timestamps.compare(o1.getLastUpdatedTimestamp(), o2.getLastUpdatedTimestamp());
-    private final Comparator<ChatMessage> messageDateComparator = (o1, o2) ->
-            Timestamps.compare(o1.getTimestamp(), o2.getTimestamp());
-
-    public ConversationService(WebSocketSessionService webSocketSessionService) {
+    // held shared while a conversation is registered: it is announced to the listeners before it is visible in
+    // conversationIdConversation, see withoutPendingRegistrations
+    private final ReadWriteLock registrationLock = new ReentrantReadWriteLock();
+
+    // Every mutation takes the next value of a single clock, so a conversation version is also newer than the
+    // versions of all conversations changed before it. A user version moves on with every change to one of their
+    // conversations once the change is in their list, see advanceUserVersion
+    private final AtomicLong versionClock = new AtomicLong();
+    private final Map<String, AtomicLong> userVersions = new ConcurrentHashMap<>();
+
+    // ties are broken by ID, otherwise conversations updated at the same instant would replace each other
+    private final Comparator<Conversation> conversationDateComparator = Comparator
+            .<Conversation, Timestamp>comparing(Conversation::getLastUpdatedTimestamp, Timestamps::compare)
+            .thenComparing(Conversation::getConversationId);
+
+    public ConversationService(WebSocketSessionService webSocketSessionService, CompactMessageStore messageStore,
+                               AttachmentStore attachmentStore, IdempotencyCache idempotencyCache,
+                               ConversationEngine conversationEngine, ConversationListCache conversationListCache,
+                               ObjectProvider<ConversationListener> conversationListeners) {
         this.webSocketSessionService = webSocketSessionService;
+        this.messageStore = messageStore;
+        this.attachmentStore = attachmentStore;
+        this.idempotencyCache = idempotencyCache;
+        this.conversationEngine = conversationEngine;
+        this.conversationListCache = conversationListCache;
+        this.conversationListeners = conversationListeners.orderedStream().toList();
     }
 
     public void startConversation(WebSocketSession session, RPCRequestEnvelope request) {
@@ -92,45 +135,105 @@ public class ConversationService {
                 .addParticipants(ChatUser.newBuilder().setUserId(participant).setDisplayName(participant))
                 .build();
 
-        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
-                .setMessageType(MessageType.RESPONSE)
-                .setOperationType(MessageOperationType.START_CONVERSATION)
-                .setSuccess(true)
-                .setStartConversationResponse(
-                        StartConversationResponse.newBuilder().setConversation(conversation)
-                )
-                .build();
+        conversationEngine.execute(conversationId, () -> registerConversation(conversation))
+                .handle((registered, error) -> {
+                    RPCResponseEnvelope.Builder response = RPCResponseEnvelope.newBuilder()
+                            .setMessageType(MessageType.RESPONSE)
+                            .setOperationType(MessageOperationType.START_CONVERSATION)
+                            .setSuccess(error == null);
+                    if (error == null) {
+                        response.setStartConversationResponse(
+                                StartConversationResponse.newBuilder().setConversation(registered)
+                        );
+                    } else {
+                        response.setErrorMessage("Conversation could not be started");
+                    }
+                    return webSocketSessionService.sendMessage(currentUser,
+                            new BinaryMessage(response.build().toByteArray()));
+                });
+    }
 
-        conversationIdConversation.put(conversationId, conversation);
-        Stream.of(currentUser, participant).forEach(user -> {
-            boolean unique = userConversationIds.computeIfAbsent(user, u -> new HashSet<>())
-                    .add(conversation.getConversationId());
-            if (!unique) {
-                return; // Conversation already exists for user
-            }
-            userConversations
-                    .computeIfAbsent(user, k -> new TreeSet<>(conversationDateComparator))
-                    .add(conversation);
-        });
-        conversationMessages.putIfAbsent(conversationId, new TreeSet<>(messageDateComparator));
+    /**
+     * Register a conversation and index it for its participants.
+     *
+     * @return the registered conversation, or the already existing one with the same ID
+     */
+    private Conversation registerConversation(Conversation conversation) {
+        if (conversation.getVersion() == 0) {
+            return registerConversation(conversation.toBuilder().setVersion(versionClock.incrementAndGet()).build(),
+                    false);
+        }
+        versionClock.accumulateAndGet(conversation.getVersion(), Math::max);
+        return registerConversation(conversation, true);
+    }
+
+    /**
+     * @param registered the conversation with its version
+     * @param restored   whether the version is one clients may have seen before, rather than a new one
+     */
+    private Conversation registerConversation(Conversation registered, boolean restored) {
+        Lock registration = registrationLock.readLock();
+        registration.lock();
+        Conversation current;
+        try {
+            current = putConversation(registered, restored);
+        } finally {
+            registration.unlock();
+        }
+        afterConversationUnlocked();
+        return current;
+    }
 
-        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
+    private Conversation putConversation(Conversation registered, boolean restored) {
+        // indexed and announced while the conversation is locked, so no message of it can be journaled first
+        Conversation current = conversationIdConversation.computeIfAbsent(registered.getConversationId(), id -> {
+            registered.getParticipantsList().forEach(participant -> {
+                String user = participant.getUserId();
+                boolean unique = userConversationIds.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet())
+                        .add(registered.getConversationId());
+                if (!unique) {
+                    return; // Conversation already exists for user
+                }
+                Set<Conversation> conversations = userConversations
+                        .computeIfAbsent(user, k -> new TreeSet<>(conversationDateComparator));
+                synchronized (conversations) {
+                    conversations.add(registered);
+                }
+                advanceUserVersion(user, registered.getVersion(), restored);
+            });
+            conversationListeners.forEach(listener -> listener.onConversationStarted(registered));
+            return registered;
+        });
+        return current;
     }
 
     public void sendConversationMessage(WebSocketSession session, RPCRequestEnvelope request) {
         final String currentUser = webSocketSessionService.getCurrentUsername(session);
 
+        // a retried request gets the original response, the message is neither stored nor fanned out again
+        idempotencyCache.execute(currentUser, request.getRequestId(),
+                        () -> sendConversationMessage(currentUser, request)
+                                .thenApply(RPCResponseEnvelope::toByteArray))
+                // failures complete exceptionally and are not remembered, so a retry is validated and sent again
+                .exceptionally(error -> sendConversationMessageFailure(request,
+                        unwrap(error) instanceof RejectedMessageException rejected
+                                ? rejected.getMessage()
+                                : "Message could not be sent")
+                        .toByteArray())
+                .thenAccept(response -> webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response)));
+    }
+
+    /**
+     * Validate a message on the calling thread and hand the mutation over to the {@link ConversationEngine}.
+     *
+     * @return the response, or a future failed with a {@link RejectedMessageException} if the message is invalid
+     */
+    private CompletableFuture<RPCResponseEnvelope> sendConversationMessage(String currentUser,
+                                                                        RPCRequestEnvelope request) {
         SendConversationMessageRequest sendRequest = request.getSendConversationMessageRequest();
 
         if (!conversationIdConversation.containsKey(sendRequest.getConversationId())) {
-            RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
-                    .setMessageType(MessageType.RESPONSE)
-                    .setOperationType(MessageOperationType.SEND_CONVERSATION_MESSAGE)
-                    .setSuccess(false)
-                    .setErrorMessage("Conversation does not exist")
-                    .build();
-            webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
-            return;
+            return CompletableFuture.failedFuture(new RejectedMessageException("Conversation does not exist"));
         }
 
         Conversation conversation = conversationIdConversation.get(sendRequest.getConversationId());
@@ -139,20 +242,22 @@ public class ConversationService {
                 .map(ChatUser::getUserId)
                 .anyMatch(currentUser::equals);
         if (!userInConversation) {
-            RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
-                    .setMessageType(MessageType.RESPONSE)
-                    .setOperationType(MessageOperationType.SEND_CONVERSATION_MESSAGE)
-                    .setSuccess(false)
-                    .setErrorMessage("You are not part of this conversation")
-                    .build();
-            webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
-            return;
+            return CompletableFuture.failedFuture(
+                    new RejectedMessageException("You are not part of this conversation"));
+        }
+
+        // only the blob ID and file name come from the client, the rest is what was actually uploaded
+        AttachmentRef attachment = null;
+        if (sendRequest.hasAttachment()) {
+            attachment = attachmentStore.resolve(sendRequest.getAttachment());
+            if (attachment == null) {
+                return CompletableFuture.failedFuture(new RejectedMessageException("Attachment does not exist"));
+            }
         }
 
         Instant now = Instant.now();
 
-        // send to target user if online
-        ChatMessage.Builder chatMessageBuilder = ChatMessage.newBuilder()
+        ChatMessage.Builder chatMessage = ChatMessage.newBuilder()
                 .setMessageId(UUID.randomUUID().toString())
                 .setMessageType(sendRequest.getMessageType())
                 .setSender(ChatUser.newBuilder().setUserId(currentUser).setDisplayName(currentUser))
@@ -162,6 +267,18 @@ public class ConversationService {
                         .setSeconds(now.getEpochSecond())
                         .setNanos(now.getNano())
                 );
+        if (attachment != null) {
+            chatMessage.setAttachment(attachment);
+        }
+
+        return conversationEngine.execute(conversation.getConversationId(),
+                () -> appendConversationMessage(currentUser, request, conversation, chatMessage.build()));
+    }
+
+    private RPCResponseEnvelope appendConversationMessage(String currentUser, RPCRequestEnvelope request,
+                                                          Conversation conversation, ChatMessage chatMessage) {
+        // store before fan-out so that listeners (e.g. the journal) have seen the message once it is acknowledged
+        ChatMessage storedMessage = updateConversation(conversation.getConversationId(), chatMessage);
 
         // send notification to recipient if online
         String recipient = conversation.getParticipantsList().stream()
@@ -173,71 +290,348 @@ public class ConversationService {
                 .setMessageType(MessageType.NOTIFICATION)
                 .setOperationType(MessageOperationType.RECEIVE_CONVERSATION_MESSAGE)
                 .setReceiveConversationMessageNotification(ReceiveConversationMessageNotification.newBuilder()
-                        .setMessage(chatMessageBuilder.setMyMessage(false))
+                        .setMessage(storedMessage.toBuilder().setMyMessage(false))
                 )
                 .build();
         int result = webSocketSessionService.sendMessage(recipient, new BinaryMessage(notification.toByteArray()));
 
-        // send response to sender
-        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
+        // response to sender
+        return RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
                 .setMessageType(MessageType.RESPONSE)
                 .setOperationType(MessageOperationType.SEND_CONVERSATION_MESSAGE)
                 .setSuccess(result > 0)
                 .setSendConversationMessageResponse(SendConversationMessageResponse.newBuilder()
-                        .setMessage(chatMessageBuilder.setMyMessage(true))
+                        .setMessage(storedMessage.toBuilder().setMyMessage(true))
                 )
                 .build();
-        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
+    }
 
-        updateConversation(conversation.getConversationId(), chatMessageBuilder.build());
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 
-    private void updateConversation(String conversationId, ChatMessage chatMessage) {
-        Conversation oldConversation = conversationIdConversation.get(conversationId);
-        Conversation updatedConversation = Conversation.newBuilder(oldConversation)
-                .setLastUpdatedTimestamp(chatMessage.getTimestamp())
-                .setLastMessage(chatMessage)
+    private static RPCResponseEnvelope sendConversationMessageFailure(RPCRequestEnvelope request,
+                                                                      String errorMessage) {
+        return RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setMessageType(MessageType.RESPONSE)
+                .setOperationType(MessageOperationType.SEND_CONVERSATION_MESSAGE)
+                .setSuccess(false)
+                .setErrorMessage(errorMessage)
                 .build();
-        conversationIdConversation.put(conversationId, updatedConversation);
-        conversationMessages.computeIfAbsent(conversationId, k -> new TreeSet<>(messageDateComparator)).add(chatMessage);
+    }
+
+    /**
+     * Store a message and bump the version of its conversation. A new message is stamped with the next version, one
+     * restored from durable storage keeps the version it was stored with, so replaying it changes nothing a client
+     * already saw.
+     *
+     * @return the stored message
+     */
+    private ChatMessage updateConversation(String conversationId, ChatMessage chatMessage) {
+        // applied while the conversation is locked, so the user indexes and the listeners, e.g. the journal, see the
+        // updates of a conversation in the same order as the message store
+        Conversation updatedConversation = conversationIdConversation.computeIfPresent(conversationId,
+                (id, oldConversation) -> {
+                    long version;
+                    boolean restored = chatMessage.getVersion() > 0;
+                    if (restored) {
+                        version = chatMessage.getVersion();
+                        versionClock.accumulateAndGet(version, Math::max);
+                    } else {
+                        version = versionClock.incrementAndGet();
+                    }
+                    ChatMessage.Builder versioned = chatMessage.toBuilder().setVersion(version);
+                    long sequence = messageStore.append(versioned.build());
+                    ChatMessage versionedMessage = versioned.setSequence(sequence).build();
+                    Conversation conversation = Conversation.newBuilder(oldConversation)
+                            .setVersion(Math.max(version, oldConversation.getVersion()))
+                            .setLastUpdatedTimestamp(versionedMessage.getTimestamp())
+                            .setLastMessage(versionedMessage)
+                            .build();
+
+                    updateUserConversations(conversation, restored);
+                    conversationListeners.forEach(listener -> listener.onMessageAppended(conversation,
+                            versionedMessage));
+                    return conversation;
+                });
+        afterConversationUnlocked();
+        return updatedConversation.getLastMessage();
+    }
 
-        updatedConversation.getParticipantsList().forEach(participant -> {
+    /**
+     * Replace a changed conversation in the lists of its participants, only called while it is locked.
+     */
+    private void updateUserConversations(Conversation conversation, boolean restored) {
+        conversation.getParticipantsList().forEach(participant -> {
             String userId = participant.getUserId();
             Set<Conversation> conversations = userConversations.get(userId);
             if (conversations != null) {
-                conversations.removeIf(c -> c.getConversationId().equals(conversationId));
-                conversations.add(updatedConversation); // Move to top
+                synchronized (conversations) {
+                    conversations.removeIf(c -> c.getConversationId().equals(conversation.getConversationId()));
+                    conversations.add(conversation); // Move to top
+                }
             }
+            advanceUserVersion(userId, conversation.getVersion(), restored);
         });
     }
 
-    public void getListOfConversations(WebSocketSession session, RPCRequestEnvelope request) {
-        final String currentUser = webSocketSessionService.getCurrentUsername(session);
+    private void afterConversationUnlocked() {
+        conversationListeners.forEach(ConversationListener::onConversationUnlocked);
+    }
 
-        GetListOfConversationsRequest getRequest = request.getGetListOfConversationsRequest();
-        Set<Conversation> userConversations = getUserConversations(currentUser);
+    /**
+     * Move the version of a user on, once a change to one of their conversations is in their list.
+     * <p>
+     * A new change always increments it: a change may take its clock value before a concurrent one and still reach
+     * the list after it, and keeping the newest conversation version would then leave the user version, and every
+     * list cached or tagged with it, unchanged. The version is raised to at least the conversation version, and the
+     * clock to at least the user version, so later conversation versions are still newer than it. A change restored
+     * from durable storage was already seen at its version, so restoring keeps the newest version seen instead,
+     * which rebuilds the version of a user as it was.
+     */
+    private void advanceUserVersion(String userId, long conversationVersion, boolean restored) {
+        AtomicLong userVersion = userVersions.computeIfAbsent(userId, u -> new AtomicLong());
+        if (restored) {
+            userVersion.accumulateAndGet(conversationVersion, Math::max);
+        } else {
+            long version = userVersion.updateAndGet(current -> Math.max(current + 1, conversationVersion));
+            versionClock.accumulateAndGet(version, Math::max);
+        }
+        conversationListCache.invalidate(userId);
+    }
 
-        GetListOfConversationsResponse getResponse = GetListOfConversationsResponse.newBuilder()
-                .addAllConversations(userConversations)
-                .setHasMore(false) // For simplicity, we'll assume no pagination for now
-                .build();
+    /**
+     * Version of everything a user can list: it changes whenever one of their conversations is started or updated.
+     *
+     * @return the version of the user's conversation list, or 0 if they have none
+     */
+    public long getUserVersion(String username) {
+        if (username == null) {
+            return 0;
+        }
+        AtomicLong version = userVersions.get(username);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Re-register a conversation recovered from durable storage. Existing conversations are left untouched.
+     */
+    public void restoreConversation(Conversation conversation) {
+        registerConversation(conversation);
+    }
+
+    /**
+     * Register a conversation imported from another node, with a new version. Its version there may be older than
+     * what the participants already saw here, or taken by a conversation of this node, so it is newer than the
+     * versions of its messages and of every conversation of this node instead. Its messages are then added with
+     * {@link #restoreStoredMessage(ChatMessage)}, as the imported conversation already reflects them, followed by
+     * {@link #completeImport(String)}.
+     *
+     * @return false if a conversation with the same ID exists, which is left untouched
+     */
+    public boolean importConversation(Conversation conversation) {
+        versionClock.accumulateAndGet(conversation.getVersion(), Math::max);
+        Conversation imported = conversation.toBuilder().setVersion(versionClock.incrementAndGet()).build();
+        return registerConversation(imported, false) == imported;
+    }
+
+    /**
+     * Give an imported conversation, and the lists of its participants, a new version once its messages were added.
+     * The conversation is visible while they are being added, so clients may have read it with only some of them.
+     */
+    public void completeImport(String conversationId) {
+        conversationIdConversation.computeIfPresent(conversationId, (id, current) -> {
+            Conversation conversation = current.toBuilder().setVersion(versionClock.incrementAndGet()).build();
+            updateUserConversations(conversation, false);
+            return conversation;
+        });
+    }
+
+    /**
+     * Re-apply a message recovered from durable storage.
+     *
+     * @return false if the message belongs to an unknown conversation and was skipped
+     */
+    public boolean restoreMessage(ChatMessage chatMessage) {
+        if (!conversationIdConversation.containsKey(chatMessage.getConversationId())) {
+            return false;
+        }
+        if (messageStore.containsRecent(chatMessage)) {
+            return true; // already covered by a snapshot taken while the message was being journaled
+        }
+        updateConversation(chatMessage.getConversationId(), chatMessage);
+        return true;
+    }
+
+    /**
+     * Re-insert a message from a snapshot. Unlike {@link #restoreMessage(ChatMessage)} the conversation is not
+     * updated, since the restored conversation already reflects all of its snapshotted messages.
+     *
+     * @return false if the message belongs to an unknown conversation and was skipped
+     */
+    public boolean restoreStoredMessage(ChatMessage chatMessage) {
+        // locked like an update, so the message is stored and announced in order with the conversation's others
+        Conversation conversation = conversationIdConversation.computeIfPresent(chatMessage.getConversationId(),
+                (id, current) -> {
+                    messageStore.append(chatMessage);
+                    conversationListeners.forEach(listener -> listener.onMessageAppended(current, chatMessage));
+                    return current;
+                });
+        if (conversation == null) {
+            return false;
+        }
+        afterConversationUnlocked();
+        return true;
+    }
+
+    public Conversation getConversation(String conversationId) {
+        return conversationIdConversation.get(conversationId);
+    }
+
+    /**
+     * Get a conversation on behalf of a user.
+     *
+     * @return the conversation, or null if it doesn't exist or the user is not one of its participants
+     */
+    public Conversation getUserConversation(String conversationId, String currentUser) {
+        if (conversationId == null || currentUser == null) {
+            return null;
+        }
+        Conversation conversation = conversationIdConversation.get(conversationId);
+        if (conversation == null) {
+            return null;
+        }
+        boolean userInConversation = conversation.getParticipantsList()
+                .stream()
+                .map(ChatUser::getUserId)
+                .anyMatch(currentUser::equals);
+        return userInConversation ? conversation : null;
+    }
 
-        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
+    /**
+     * Run an action while no conversation is being registered. A conversation is announced to the listeners, e.g.
+     * journaled, before it becomes visible in {@link #getConversations()}, so whatever the listeners recorded before
+     * the action is also visible once it ran, such as the journal position a snapshot covers.
+     */
+    public <T> T withoutPendingRegistrations(Supplier<T> action) {
+        Lock exclusive = registrationLock.writeLock();
+        exclusive.lock();
+        try {
+            return action.get();
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    /**
+     * Live view of all known conversations.
+     */
+    public Collection<Conversation> getConversations() {
+        return Collections.unmodifiableCollection(conversationIdConversation.values());
+    }
+
+    public void getListOfConversations(WebSocketSession session, RPCRequestEnvelope request) {
+        final String currentUser = webSocketSessionService.getCurrentUsername(session);
+
+        byte[] getResponse = getConversationList(currentUser, ConversationListCache.Format.PROTOBUF);
+        RPCResponseEnvelope header = RPCResponseEnvelope.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMessageType(MessageType.RESPONSE)
                 .setOperationType(MessageOperationType.GET_LIST_OF_CONVERSATIONS)
                 .setSuccess(true)
-                .setGetListOfConversationsResponse(getResponse)
                 .build();
 
-        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
+        // the cached list is appended as the serialized payload field, instead of being parsed into the envelope
+        int payloadField = RPCResponseEnvelope.GET_LIST_OF_CONVERSATIONS_RESPONSE_FIELD_NUMBER;
+        byte[] response = new byte[header.getSerializedSize()
+                + CodedOutputStream.computeByteArraySize(payloadField, getResponse)];
+        CodedOutputStream output = CodedOutputStream.newInstance(response);
+        try {
+            header.writeTo(output);
+            output.writeByteArray(payloadField, getResponse);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response));
+    }
+
+    /**
+     * Get the serialized conversation list of a user, a {@link GetListOfConversationsResponse} or a JSON array of
+     * conversations, from the {@link ConversationListCache} while the user's conversations did not change.
+     */
+    public byte[] getConversationList(String username, ConversationListCache.Format format) {
+        // read the version before the conversations: a change moves the version on only after it is in the list, so
+        // a cached list may be newer than its version but never older
+        long version = getUserVersion(username);
+        return conversationListCache.get(username, format, version, () -> {
+            Set<Conversation> conversations = getUserConversations(username);
+            if (format == ConversationListCache.Format.PROTOBUF) {
+                return GetListOfConversationsResponse.newBuilder()
+                        .addAllConversations(conversations)
+                        .setHasMore(false) // For simplicity, we'll assume no pagination for now
+                        .build()
+                        .toByteArray();
+            }
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            try {
+                ProtobufJsonWriter.array(conversations).writeTo(json);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return json.toByteArray();
+        });
+    }
+
+    public void getConversationMessages(WebSocketSession session, RPCRequestEnvelope request) {
+        final String currentUser = webSocketSessionService.getCurrentUsername(session);
+
+        GetConversationMessagesRequest getRequest = request.getGetConversationMessagesRequest();
+        int limit = getRequest.getLimit() > 0 ? Math.min(getRequest.getLimit(), MAX_MESSAGES_LIMIT)
+                : DEFAULT_MESSAGES_LIMIT;
+        RPCResponseEnvelope.Builder response = RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setMessageType(MessageType.RESPONSE)
+                .setOperationType(MessageOperationType.GET_CONVERSATION_MESSAGES);
+
+        if (getUserConversation(getRequest.getConversationId(), currentUser) == null) {
+            response.setSuccess(false).setErrorMessage("Conversation does not exist");
+        } else {
+            // one extra message tells whether the client has caught up
+            List<ChatMessage> messages = getConversationMessagesAfter(getRequest.getConversationId(), currentUser,
+                    getRequest.getAfterSequence(), limit + 1);
+            response.setSuccess(true)
+                    .setGetConversationMessagesResponse(GetConversationMessagesResponse.newBuilder()
+                            .addAllMessages(messages.size() > limit ? messages.subList(0, limit) : messages)
+                            .setHasMore(messages.size() > limit));
+        }
+
+        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.build().toByteArray()));
     }
 
     public Set<Conversation> getUserConversations(String username) {
         if (username == null) {
             return Set.of();
         }
-        return userConversations.getOrDefault(username, Set.of());
+        Set<Conversation> conversations = userConversations.get(username);
+        if (conversations == null) {
+            return Set.of();
+        }
+        synchronized (conversations) {
+            return new LinkedHashSet<>(conversations);
+        }
+    }
+
+    /**
+     * Get the conversations of a user that were started or updated after the given version.
+     */
+    public Set<Conversation> getUserConversationsSince(String username, long sinceVersion) {
+        return getUserConversations(username).stream()
+                .filter(conversation -> conversation.getVersion() > sinceVersion)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
     }
 
     /**
@@ -245,39 +639,80 @@ public class ConversationService {
      *
      * @param conversationId the conversation ID
      * @param currentUser    the current user requesting the messages
-     * @return set of messages in the conversation, or empty set if conversation doesn't exist or user doesn't have access
+     * @return messages in the conversation in the order they were sent, or empty list if conversation doesn't exist
+     * or user doesn't have access
      */
-    public Set<ChatMessage> getConversationMessages(String conversationId, String currentUser) {
-        if (conversationId == null || currentUser == null) {
-            return Set.of();
+    public List<ChatMessage> getConversationMessages(String conversationId, String currentUser) {
+        if (getUserConversation(conversationId, currentUser) == null) {
+            return List.of();
         }
+        return messageStore.getMessages(conversationId, currentUser);
+    }
 
-        // Check if conversation exists
-        Conversation conversation = conversationIdConversation.get(conversationId);
-        if (conversation == null) {
-            return Set.of();
+    /**
+     * Get the messages of a conversation that were sent after the given conversation version.
+     *
+     * @return the newer messages in the order they were sent, or empty list if conversation doesn't exist or user
+     * doesn't have access
+     */
+    public List<ChatMessage> getConversationMessagesSince(String conversationId, String currentUser,
+                                                          long sinceVersion) {
+        if (getUserConversation(conversationId, currentUser) == null) {
+            return List.of();
         }
+        return messageStore.getMessagesSince(conversationId, currentUser, sinceVersion);
+    }
 
-        // Check if user is part of the conversation
-        boolean userInConversation = conversation.getParticipantsList()
-                .stream()
-                .map(ChatUser::getUserId)
-                .anyMatch(currentUser::equals);
+    /**
+     * Get the messages of a conversation following the given sequence.
+     *
+     * @param afterSequence sequence of the last message the user already has, 0 for the first messages
+     * @return up to limit messages in sequence order, or empty list if conversation doesn't exist or user doesn't
+     * have access
+     */
+    public List<ChatMessage> getConversationMessagesAfter(String conversationId, String currentUser,
+                                                          long afterSequence, int limit) {
+        if (getUserConversation(conversationId, currentUser) == null) {
+            return List.of();
+        }
+        return messageStore.getMessagesAfter(conversationId, currentUser, afterSequence, limit);
+    }
 
-        if (!userInConversation) {
-            return Set.of();
+    /**
+     * Get the messages of a conversation preceding the given sequence.
+     *
+     * @return up to limit messages in sequence order, or empty list if conversation doesn't exist or user doesn't
+     * have access
+     */
+    public List<ChatMessage> getConversationMessagesBefore(String conversationId, String currentUser,
+                                                           long beforeSequence, int limit) {
+        if (getUserConversation(conversationId, currentUser) == null) {
+            return List.of();
         }
+        return messageStore.getMessagesBefore(conversationId, currentUser, beforeSequence, limit);
+    }
 
-        return conversationMessages.getOrDefault(conversationId, Set.of())
-                .stream()
-                .map(chatMessage -> {
-                    if (chatMessage.getSender().getUserId().equals(currentUser)) {
-                        return ChatMessage.newBuilder(chatMessage).setMyMessage(true).build();
-                    } else {
-                        return ChatMessage.newBuilder(chatMessage).setMyMessage(false).build();
-                    }
-                })
-                .collect(Collectors.toSet());
+    /**
+     * Get the messages of a conversation sent before the given instant.
+     *
+     * @param beforeEpochNanos exclusive upper bound, {@link Long#MAX_VALUE} for the most recent messages
+     * @return up to limit messages in sequence order, or empty list if conversation doesn't exist or user doesn't
+     * have access
+     */
+    public List<ChatMessage> getConversationMessagesSentBefore(String conversationId, String currentUser,
+                                                               long beforeEpochNanos, int limit) {
+        if (getUserConversation(conversationId, currentUser) == null) {
+            return List.of();
+        }
+        return messageStore.getMessagesSentBefore(conversationId, currentUser, beforeEpochNanos, limit);
     }
 
+    /**
+     * A message the client sent is invalid, the error message is returned to it.
+     */
+    private static final class RejectedMessageException extends RuntimeException {
+        private RejectedMessageException(String message) {
+            super(message, null, false, false);
+        }
+    }
 }
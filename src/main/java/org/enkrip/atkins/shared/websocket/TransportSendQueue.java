@@ -0,0 +1,13 @@
+package org.enkrip.atkins.shared.websocket;
+
+/**
+ * A {@link org.springframework.web.socket.WebSocketSession} that queues sent frames in the transport itself, below
+ * the send decorator, whose buffer therefore stays empty while the connection falls behind.
+ */
+public interface TransportSendQueue {
+
+    /**
+     * @return the payload bytes sent but not yet handed to the connection
+     */
+    long getQueuedBytes();
+}
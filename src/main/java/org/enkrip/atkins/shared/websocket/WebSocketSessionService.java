@@ -7,14 +7,26 @@ package org.enkrip.atkins.shared.websocket;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import org.apache.commons.lang3.StringUtils;
+import org.enkrip.atkins.shared.websocket.compression.CompressingWebSocketSession;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompressor;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -29,20 +41,67 @@ public class WebSocketSessionService {
     private final Map<String, String> usernameSessionId = new ConcurrentHashMap<>();
     private final Map<String, String> sessionIdUsername = new ConcurrentHashMap<>();
     private final Map<String, Set<WebSocketSession>> httpSessionMap = new ConcurrentHashMap<>();
+    // every open session by its ID, wrapped so that concurrent senders queue up instead of failing
+    private final Map<String, ConcurrentWebSocketSessionDecorator> openSessions = new ConcurrentHashMap<>();
+    private final Map<String, FrameCompressor> frameCompressors = new ConcurrentHashMap<>();
+
+    private final int sendTimeLimit;
+    private final int sendBufferSize;
+    private final FrameCompression frameCompression;
+    private final HotspotTracker hotspotTracker;
+
+    public WebSocketSessionService(@Value("${atkins.websocket.send-time-limit:10s}") Duration sendTimeLimit,
+                                   @Value("${atkins.websocket.send-buffer-size:512KB}") DataSize sendBufferSize,
+                                   ObjectProvider<FrameCompression> frameCompression,
+                                   ObjectProvider<HotspotTracker> hotspotTracker) {
+        this.sendTimeLimit = Math.toIntExact(sendTimeLimit.toMillis());
+        this.sendBufferSize = Math.toIntExact(sendBufferSize.toBytes());
+        this.frameCompression = frameCompression.getIfAvailable();
+        this.hotspotTracker = hotspotTracker.getIfAvailable();
+    }
 
     public String afterConnectionEstablished(WebSocketSession session) throws IOException {
         String httpSessionId = getOrCreateSession(session.getAttributes(), session.getHandshakeHeaders());
 
-        httpSessionMap.computeIfAbsent(httpSessionId, s -> new HashSet<>()).add(session);
+        WebSocketSession target = session;
+        FrameCompressor compressor = frameCompression == null ? null
+                : frameCompression.newCompressor(session.getAttributes());
+        if (compressor != null) {
+            frameCompressors.put(session.getId(), compressor);
+            target = new CompressingWebSocketSession(session, compressor);
+        }
+        ConcurrentWebSocketSessionDecorator decorated = new ConcurrentWebSocketSessionDecorator(target,
+                sendTimeLimit, sendBufferSize);
+        openSessions.put(session.getId(), decorated);
+        httpSessionMap.compute(httpSessionId, (id, sessions) -> {
+            Set<WebSocketSession> updated = sessions == null ? ConcurrentHashMap.newKeySet() : sessions;
+            updated.add(decorated);
+            return updated;
+        });
 
         return httpSessionId;
     }
 
+    /**
+     * Remove a session from every registry, has no effect if it was already removed, such as a reaped session that
+     * the container reports closed later.
+     */
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         String sessionId = getHttpSessionId(session.getAttributes());
-        Set<WebSocketSession> webSocketSessions = httpSessionMap.get(sessionId);
 
-        Optional.ofNullable(webSocketSessions).ifPresent(s -> s.remove(session));
+        WebSocketSession decorated = openSessions.remove(session.getId());
+        if (decorated == null) {
+            return;
+        }
+        // the set goes away with the last session of the HTTP session, under the same lock as adding to it
+        httpSessionMap.computeIfPresent(sessionId, (id, sessions) -> {
+            sessions.remove(decorated);
+            return sessions.isEmpty() ? null : sessions;
+        });
+        FrameCompressor compressor = frameCompressors.remove(session.getId());
+        if (compressor != null) {
+            compressor.close();
+        }
         String username = sessionIdUsername.remove(sessionId);
         Optional.ofNullable(username).ifPresent(usernameSessionId::remove);
     }
@@ -51,6 +110,10 @@ public class WebSocketSessionService {
         String sessionId = usernameSessionId.getOrDefault(username, "");
         Set<WebSocketSession> webSocketSessions = httpSessionMap.getOrDefault(sessionId, Set.of());
 
+        if (frameCompression != null && message instanceof BinaryMessage binaryMessage) {
+            frameCompression.sample(binaryMessage.getPayload());
+        }
+
         AtomicInteger atomicInteger = new AtomicInteger();
         webSocketSessions.stream().filter(WebSocketSession::isOpen).forEach(webSocketSession -> {
             try {
@@ -60,9 +123,49 @@ public class WebSocketSessionService {
                 // throw new RuntimeException(e);
             }
         });
+        if (hotspotTracker != null && atomicInteger.get() > 0) {
+            hotspotTracker.recordDelivery(username, (long) message.getPayloadLength() * atomicInteger.get());
+        }
         return atomicInteger.get();
     }
 
+    /**
+     * @return the payload of an inbound frame, decompressed if the session negotiated compression
+     */
+    public ByteBuffer decodePayload(WebSocketSession session, BinaryMessage message) {
+        FrameCompressor compressor = frameCompressors.get(session.getId());
+        return compressor == null ? message.getPayload() : compressor.decode(message.getPayload());
+    }
+
+    /**
+     * @return a snapshot of the open sessions, as used for sending
+     */
+    public List<ConcurrentWebSocketSessionDecorator> getOpenSessions() {
+        return List.copyOf(openSessions.values());
+    }
+
+    /**
+     * @return the open session with this ID as used for sending, or null once it is closed
+     */
+    public ConcurrentWebSocketSessionDecorator getOpenSession(String sessionId) {
+        return openSessions.get(sessionId);
+    }
+
+    /**
+     * @return the bytes sent to a session but not yet written, in its send buffer or queued by the transport
+     */
+    public static long getQueuedBytes(ConcurrentWebSocketSessionDecorator session) {
+        long queuedBytes = session.getBufferSize();
+        if (WebSocketSessionDecorator.unwrap(session) instanceof TransportSendQueue transport) {
+            queuedBytes += transport.getQueuedBytes();
+        }
+        return queuedBytes;
+    }
+
+    public int getOpenSessionCount() {
+        return openSessions.size();
+    }
+
     public Set<String> getAllActiveUsernames() {
         return new TreeSet<>(usernameSessionId.keySet());
     }
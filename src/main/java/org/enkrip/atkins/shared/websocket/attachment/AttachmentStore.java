@@ -0,0 +1,536 @@
+package org.enkrip.atkins.shared.websocket.attachment;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.enkrip.atkins.proto.AttachmentRef;
+import org.enkrip.atkins.proto.AttachmentUploadStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Local content-addressed store for message attachments.
+ * <p>
+ * Uploads are resumable: an upload is created with its total size and the content is appended in chunks, each
+ * streamed straight to a temporary file while it is hashed. Once complete the file is moved to
+ * {@code blobs/<first two hex digits>/<sha-256>}, or discarded if a blob with the same content already exists. The
+ * blob metadata is kept next to it. Images get a thumbnail before the upload completes, on a single background
+ * thread that bounds the decoding work, and are only described as having one once it was written. Messages only
+ * carry the resulting {@link AttachmentRef}.
+ * <p>
+ * Uploads only live in memory, so the temporary files left by a previous run are deleted on startup, and uploads
+ * idle for {@code upload-expiry} are discarded periodically.
+ */
+@Component
+public class AttachmentStore implements DisposableBean {
+    private static final Pattern ATTACHMENT_ID = Pattern.compile("[0-9a-f]{64}");
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String THUMBNAIL_SUFFIX = ".thumb.jpg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String IMAGE_CONTENT_TYPE_PREFIX = "image/";
+    // leading bytes of the raster formats browsers render without running anything embedded in them
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] JPEG_SIGNATURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+    private static final byte[] GIF87_SIGNATURE = {'G', 'I', 'F', '8', '7', 'a'};
+    private static final byte[] GIF89_SIGNATURE = {'G', 'I', 'F', '8', '9', 'a'};
+    private static final byte[] RIFF_SIGNATURE = {'R', 'I', 'F', 'F'};
+    private static final byte[] WEBP_SIGNATURE = {'W', 'E', 'B', 'P'};
+    private static final int SIGNATURE_LENGTH = 12;
+
+    private final Logger logger = LoggerFactory.getLogger(AttachmentStore.class);
+
+    private final Path blobDirectory;
+    private final Path uploadDirectory;
+    private final long maxSize;
+    private final long uploadExpiryMillis;
+    private final int thumbnailSize;
+    private final long maxImagePixels;
+
+    private final Counter uploadedBytes;
+    private final Counter storedBlobs;
+    private final Counter deduplicatedBlobs;
+    private final Timer thumbnailTimer;
+    private final ExecutorService thumbnailer;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, AttachmentRef> blobMetadata = new ConcurrentHashMap<>();
+
+    public AttachmentStore(@Value("${atkins.attachment.directory:data/attachments}") Path directory,
+                           @Value("${atkins.attachment.max-size:100MB}") DataSize maxSize,
+                           @Value("${atkins.attachment.upload-expiry:24h}") Duration uploadExpiry,
+                           @Value("${atkins.attachment.thumbnail-size:256}") int thumbnailSize,
+                           @Value("${atkins.attachment.max-image-pixels:50000000}") long maxImagePixels,
+                           MeterRegistry meterRegistry) throws IOException {
+        this.blobDirectory = Files.createDirectories(directory.resolve("blobs"));
+        this.uploadDirectory = Files.createDirectories(directory.resolve("uploads"));
+        this.maxSize = maxSize.toBytes();
+        this.uploadExpiryMillis = uploadExpiry.toMillis();
+        this.thumbnailSize = thumbnailSize;
+        this.maxImagePixels = maxImagePixels;
+
+        this.uploadedBytes = meterRegistry.counter("atkins.attachment.uploaded.bytes");
+        this.storedBlobs = meterRegistry.counter("atkins.attachment.blobs", "result", "stored");
+        this.deduplicatedBlobs = meterRegistry.counter("atkins.attachment.blobs", "result", "deduplicated");
+        this.thumbnailTimer = meterRegistry.timer("atkins.attachment.thumbnail");
+        this.thumbnailer = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+                .name("attachment-thumbnailer")
+                .daemon()
+                .factory());
+
+        deleteAbandonedUploads();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("attachment-sweeper")
+                .daemon()
+                .factory());
+        long sweepMillis = Math.max(1, uploadExpiryMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start an upload of the given number of bytes.
+     *
+     * @throws IllegalArgumentException if the size is not positive or exceeds {@code max-size}
+     */
+    public AttachmentUploadStatus createUpload(String owner, String fileName, String contentType, long size) {
+        if (size <= 0 || size > maxSize) {
+            throw new IllegalArgumentException("Attachment size must be between 1 and " + maxSize + " bytes");
+        }
+        removeExpiredUploads();
+
+        String uploadId = UUID.randomUUID().toString();
+        Upload upload = new Upload(uploadId, owner, fileName, contentType, size,
+                uploadDirectory.resolve(uploadId + TEMPORARY_SUFFIX));
+        uploads.put(uploadId, upload);
+        synchronized (upload) {
+            return upload.status(null);
+        }
+    }
+
+    /**
+     * @return the progress of an upload, or null if it does not exist or belongs to another user
+     */
+    public AttachmentUploadStatus getUpload(String uploadId, String owner) {
+        Upload upload = findUpload(uploadId, owner);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            return upload.status(null);
+        }
+    }
+
+    /**
+     * Append a chunk to an upload. A chunk cut short by the client is kept up to the last received byte, so the
+     * client can resume from the offset returned here.
+     *
+     * @param offset must match the number of bytes received so far
+     * @return the upload progress, including the attachment once the last byte was received; null if the upload
+     * does not exist or belongs to another user
+     * @throws IllegalStateException    if the offset does not match the progress of the upload
+     * @throws IllegalArgumentException if the chunk extends beyond the announced size
+     */
+    public AttachmentUploadStatus append(String uploadId, String owner, long offset, long length, InputStream body)
+            throws IOException {
+        Upload upload = findUpload(uploadId, owner);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            if (offset != upload.offset) {
+                throw new IllegalStateException("Upload " + uploadId + " continues at offset " + upload.offset);
+            }
+            if (length < 0 || offset + length > upload.size) {
+                throw new IllegalArgumentException("Chunk exceeds the upload size of " + upload.size + " bytes");
+            }
+
+            long written = 0;
+            MessageDigest chunkStart = cloneDigest(upload.digest);
+            try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                ReadableByteChannel source = Channels.newChannel(new DigestInputStream(body, upload.digest));
+                while (written < length) {
+                    long transferred = channel.transferFrom(source, offset + written, length - written);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    written += transferred;
+                }
+            } catch (IOException e) {
+                // the digest may have seen bytes that never reached the file
+                upload.digest = chunkStart;
+                rehash(upload.digest, upload.file, offset, written);
+                logger.debug("Upload {} interrupted after {} bytes: {}", uploadId, written, e.getMessage());
+            }
+            upload.offset += written;
+            upload.lastActivityMillis = System.currentTimeMillis();
+            uploadedBytes.increment(written);
+
+            if (upload.offset < upload.size) {
+                return upload.status(null);
+            }
+            // a failed completion keeps the upload, an empty chunk at the final offset completes it again
+            AttachmentRef attachment = complete(upload);
+            uploads.remove(uploadId);
+            return upload.status(attachment);
+        }
+    }
+
+    private AttachmentRef complete(Upload upload) throws IOException {
+        // the digest is left untouched in case the completion is retried
+        String attachmentId = HexFormat.of().formatHex(cloneDigest(upload.digest).digest());
+        Path blob = blobPath(attachmentId);
+        AttachmentRef metadata = AttachmentRef.newBuilder()
+                .setAttachmentId(attachmentId)
+                .setContentType(upload.contentType)
+                .setSize(upload.size)
+                .build();
+
+        if (Files.exists(blob)) {
+            Files.deleteIfExists(upload.file);
+            deduplicatedBlobs.increment();
+        } else {
+            Files.createDirectories(blob.getParent());
+            // the metadata is in place before the blob, so every blob can be described
+            writeMetadata(metadata);
+            Files.move(upload.file, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            storedBlobs.increment();
+            if (upload.contentType.startsWith(IMAGE_CONTENT_TYPE_PREFIX) && awaitThumbnail(attachmentId)) {
+                writeMetadata(metadata.toBuilder().setHasThumbnail(true).build());
+            }
+        }
+
+        return describe(attachmentId).toBuilder()
+                .setFileName(upload.fileName)
+                .build();
+    }
+
+    private void writeMetadata(AttachmentRef metadata) throws IOException {
+        String attachmentId = metadata.getAttachmentId();
+        Path temporary = metadataPath(attachmentId).resolveSibling(attachmentId + METADATA_SUFFIX
+                + TEMPORARY_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            metadata.writeTo(out);
+        }
+        Files.move(temporary, metadataPath(attachmentId), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        blobMetadata.put(attachmentId, metadata);
+    }
+
+    /**
+     * @return whether a thumbnail of the blob was written
+     */
+    private boolean awaitThumbnail(String attachmentId) {
+        try {
+            return thumbnailer.submit(() -> createThumbnail(attachmentId)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the metadata of a stored blob without file name, or null if there is no such blob
+     */
+    public AttachmentRef describe(String attachmentId) {
+        if (attachmentId == null || !ATTACHMENT_ID.matcher(attachmentId).matches()) {
+            return null;
+        }
+        AttachmentRef metadata = blobMetadata.get(attachmentId);
+        if (metadata != null) {
+            return metadata;
+        }
+        Path path = metadataPath(attachmentId);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            metadata = AttachmentRef.parseFrom(in);
+        } catch (IOException e) {
+            logger.warn("Failed to read metadata of attachment {}", attachmentId, e);
+            return null;
+        }
+        blobMetadata.put(attachmentId, metadata);
+        return metadata;
+    }
+
+    /**
+     * Resolve an attachment reference sent by a client against the stored blob, only the ID and the file name are
+     * taken from the client.
+     *
+     * @return the reference to attach to a message, or null if there is no such blob
+     */
+    public AttachmentRef resolve(AttachmentRef requested) {
+        AttachmentRef metadata = describe(requested.getAttachmentId());
+        if (metadata == null) {
+            return null;
+        }
+        return metadata.toBuilder()
+                .setFileName(requested.getFileName())
+                .build();
+    }
+
+    /**
+     * Check the leading bytes of a blob against its content type. Only PNG, JPEG, GIF and WebP images pass, a browser
+     * renders those without running anything embedded in them, unlike an SVG image for example.
+     *
+     * @return whether the blob may be rendered inline, only valid for IDs that {@link #describe(String)} knows
+     */
+    public boolean isRasterImage(String attachmentId, String contentType) {
+        if (!contentType.startsWith(IMAGE_CONTENT_TYPE_PREFIX)) {
+            return false;
+        }
+        byte[] header;
+        try (InputStream in = Files.newInputStream(blobPath(attachmentId))) {
+            header = in.readNBytes(SIGNATURE_LENGTH);
+        } catch (IOException e) {
+            logger.warn("Failed to read attachment {}: {}", attachmentId, e.getMessage());
+            return false;
+        }
+        return switch (contentType) {
+            case "image/png" -> hasBytesAt(header, 0, PNG_SIGNATURE);
+            case "image/jpeg" -> hasBytesAt(header, 0, JPEG_SIGNATURE);
+            case "image/gif" -> hasBytesAt(header, 0, GIF87_SIGNATURE) || hasBytesAt(header, 0, GIF89_SIGNATURE);
+            // the container size sits between the two
+            case "image/webp" -> hasBytesAt(header, 0, RIFF_SIGNATURE) && hasBytesAt(header, 8, WEBP_SIGNATURE);
+            default -> false;
+        };
+    }
+
+    private static boolean hasBytesAt(byte[] header, int offset, byte[] expected) {
+        return header.length >= offset + expected.length
+                && Arrays.equals(header, offset, offset + expected.length, expected, 0, expected.length);
+    }
+
+    /**
+     * @return the content of a blob, only valid for IDs that {@link #describe(String)} knows
+     */
+    public Path blobPath(String attachmentId) {
+        return blobDirectory.resolve(attachmentId.substring(0, 2)).resolve(attachmentId);
+    }
+
+    /**
+     * @return the thumbnail of an image blob, which may not have been generated yet
+     */
+    public Path thumbnailPath(String attachmentId) {
+        return blobPath(attachmentId).resolveSibling(attachmentId + THUMBNAIL_SUFFIX);
+    }
+
+    private Path metadataPath(String attachmentId) {
+        return blobPath(attachmentId).resolveSibling(attachmentId + METADATA_SUFFIX);
+    }
+
+    private boolean createThumbnail(String attachmentId) {
+        long start = System.nanoTime();
+        Path blob = blobPath(attachmentId);
+        try {
+            BufferedImage image = readImage(blob);
+            if (image == null) {
+                return false;
+            }
+            double scale = Math.min(1.0, (double) thumbnailSize / Math.max(image.getWidth(), image.getHeight()));
+            int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(image, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            Path temporary = thumbnailPath(attachmentId).resolveSibling(attachmentId + THUMBNAIL_SUFFIX
+                    + TEMPORARY_SUFFIX);
+            ImageIO.write(thumbnail, "jpg", temporary.toFile());
+            Files.move(temporary, thumbnailPath(attachmentId), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to create thumbnail of attachment {}: {}", attachmentId, e.getMessage());
+            return false;
+        } finally {
+            thumbnailTimer.record(Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @return the decoded image, or null if the format is unknown or the image is too large to decode
+     */
+    private BufferedImage readImage(Path blob) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(blob.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // the header is checked first, a small file can still decode to a huge bitmap
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > maxImagePixels) {
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private Upload findUpload(String uploadId, String owner) {
+        Upload upload = uploads.get(uploadId);
+        return upload == null || !upload.owner.equals(owner) ? null : upload;
+    }
+
+    /**
+     * Discard the uploads idle for longer than {@code upload-expiry}, with their temporary files.
+     */
+    void sweep() {
+        removeExpiredUploads();
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to sweep expired attachment uploads", e);
+        }
+    }
+
+    // no upload survives a restart, so none of the temporary files can be resumed
+    private void deleteAbandonedUploads() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(uploadDirectory, "*" + TEMPORARY_SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void removeExpiredUploads() {
+        long expiredBefore = System.currentTimeMillis() - uploadExpiryMillis;
+        uploads.values().removeIf(upload -> {
+            synchronized (upload) {
+                if (upload.lastActivityMillis >= expiredBefore) {
+                    return false;
+                }
+                try {
+                    Files.deleteIfExists(upload.file);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete expired upload {}", upload.uploadId, e);
+                }
+                return true;
+            }
+        });
+    }
+
+    private static void rehash(MessageDigest digest, Path file, long offset, long length) throws IOException {
+        try (InputStream in = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)
+                .position(offset))) {
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+        thumbnailer.shutdownNow();
+    }
+
+    private static final class Upload {
+        private final String uploadId;
+        private final String owner;
+        private final String fileName;
+        private final String contentType;
+        private final long size;
+        private final Path file;
+
+        // guarded by this
+        private MessageDigest digest;
+        private long offset;
+        private long lastActivityMillis = System.currentTimeMillis();
+
+        private Upload(String uploadId, String owner, String fileName, String contentType, long size, Path file) {
+            this.uploadId = uploadId;
+            this.owner = owner;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.file = file;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private AttachmentUploadStatus status(AttachmentRef attachment) {
+            AttachmentUploadStatus.Builder status = AttachmentUploadStatus.newBuilder()
+                    .setUploadId(uploadId)
+                    .setOffset(offset)
+                    .setSize(size);
+            if (attachment != null) {
+                status.setAttachment(attachment);
+            }
+            return status.build();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.enkrip.atkins.shared.websocket.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Serialized conversation list responses per user and format, so that repeated list requests, such as the burst of
+ * app opens after an outage, are answered without rebuilding and serializing the list.
+ * <p>
+ * Every entry is tagged with the user version it was built for and only served for that version. Since any change
+ * to a conversation of the user advances their version, a stale entry is never served; {@link #invalidate(String)}
+ * additionally frees it as soon as the change happens. The serialized bodies are bounded by {@code max-size}, beyond
+ * which the least recently used entries are evicted, and entries not read for {@code idle-timeout} are dropped.
+ */
+@Component
+public class ConversationListCache implements DisposableBean {
+    private final Logger logger = LoggerFactory.getLogger(ConversationListCache.class);
+
+    private final long maxBytes;
+    private final long idleTimeoutNanos;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+    private final Counter sizeEvictions;
+    private final Counter idleEvictions;
+
+    public ConversationListCache(@Value("${atkins.list-cache.max-size:64MB}") DataSize maxSize,
+                                 @Value("${atkins.list-cache.idle-timeout:10m}") Duration idleTimeout,
+                                 MeterRegistry meterRegistry) {
+        this.maxBytes = maxSize.toBytes();
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+
+        this.hits = meterRegistry.counter("atkins.list.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("atkins.list.cache.requests", "result", "miss");
+        this.invalidations = meterRegistry.counter("atkins.list.cache.invalidations");
+        this.sizeEvictions = meterRegistry.counter("atkins.list.cache.evictions", "cause", "size");
+        this.idleEvictions = meterRegistry.counter("atkins.list.cache.evictions", "cause", "idle");
+        Gauge.builder("atkins.list.cache.bytes", cachedBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("atkins.list.cache.entries", entries, Map::size)
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("list-cache-sweeper")
+                .daemon()
+                .factory());
+        long sweepMillis = Math.max(1, idleTimeout.toMillis() / 2);
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the serialized list of a user, building it on a miss.
+     *
+     * @param version the current version of the user, read before the list is built by {@code loader}
+     */
+    public byte[] get(String user, Format format, long version, Supplier<byte[]> loader) {
+        Key key = new Key(user, format);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version == version) {
+            entry.lastAccessNanos = System.nanoTime();
+            hits.increment();
+            return entry.body;
+        }
+
+        misses.increment();
+        byte[] body = loader.get();
+        Entry loaded = new Entry(version, body);
+        // a concurrent request may have stored the list of a newer version meanwhile, which is kept
+        entries.compute(key, (k, current) -> {
+            if (current != null && current.version > version) {
+                return current;
+            }
+            cachedBytes.addAndGet(body.length - (current == null ? 0 : current.body.length));
+            return loaded;
+        });
+        if (cachedBytes.get() > maxBytes) {
+            evictLeastRecentlyUsed();
+        }
+        return body;
+    }
+
+    /**
+     * Drop the lists of a user whose conversations changed.
+     */
+    public void invalidate(String user) {
+        for (Format format : Format.values()) {
+            if (remove(new Key(user, format))) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    private boolean remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed == null) {
+            return false;
+        }
+        cachedBytes.addAndGet(-removed.body.length);
+        return true;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        // one thread evicts for everyone, the others carry on above the limit for a moment
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<Key, Entry>> candidates = entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(candidate -> candidate.getValue().lastAccessNanos))
+                    .toList();
+            // evict down to 90% of the limit, so the next miss does not sort all entries again
+            long target = maxBytes - maxBytes / 10;
+            for (Map.Entry<Key, Entry> candidate : candidates) {
+                if (cachedBytes.get() <= target) {
+                    break;
+                }
+                if (entries.remove(candidate.getKey(), candidate.getValue())) {
+                    cachedBytes.addAndGet(-candidate.getValue().body.length);
+                    sizeEvictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void sweep() {
+        long now = System.nanoTime();
+        entries.forEach((key, entry) -> {
+            if (now - entry.lastAccessNanos >= idleTimeoutNanos && entries.remove(key, entry)) {
+                cachedBytes.addAndGet(-entry.body.length);
+                idleEvictions.increment();
+            }
+        });
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to sweep the conversation list cache", e);
+        }
+    }
+
+    long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    public enum Format {
+        PROTOBUF,
+        JSON
+    }
+
+    private record Key(String user, Format format) {
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final byte[] body;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        private Entry(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+
+/**
+ * Encodes outbound binary frames with the session's {@link FrameCompressor}. Meant to sit below the
+ * concurrent send decorator, so frames are compressed by the thread flushing the queue.
+ */
+public class CompressingWebSocketSession extends WebSocketSessionDecorator {
+    private final FrameCompressor compressor;
+
+    public CompressingWebSocketSession(WebSocketSession delegate, FrameCompressor compressor) {
+        super(delegate);
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (message instanceof BinaryMessage binaryMessage) {
+            super.sendMessage(new BinaryMessage(compressor.encode(binaryMessage.getPayload()), message.isLast()));
+        } else {
+            super.sendMessage(message);
+        }
+    }
+}
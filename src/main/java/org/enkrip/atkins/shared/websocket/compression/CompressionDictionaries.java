@@ -0,0 +1,173 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Zstandard dictionaries trained on the chat protocol, shared by all compressing sessions.
+ * <p>
+ * Outbound frames carry the same field tags, enums and UUID layouts over and over, which a dictionary captures but a
+ * compressor working on a single small frame cannot. Without a stored dictionary the first {@code training-size}
+ * bytes of outbound frames are sampled and a dictionary is trained from them in the background. Frames are redacted by
+ * {@link TrainingSamples} before they are sampled, a dictionary is public and must not leak the traffic it was trained
+ * on. Dictionaries are kept in {@code directory} under their zstd dictionary ID and never change, so a client can
+ * cache them and offer the ID it has at the next handshake. The newest one is used for new sessions.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.compression", name = "enabled", havingValue = "true")
+public class CompressionDictionaries implements DisposableBean {
+    private static final String DICTIONARY_PREFIX = "redacted-dictionary-";
+    // dictionaries trained on unredacted frames hold message text
+    private static final String UNREDACTED_DICTIONARY_PREFIX = "dictionary-";
+    private static final String DICTIONARY_SUFFIX = ".zdict";
+
+    private final Logger logger = LoggerFactory.getLogger(CompressionDictionaries.class);
+
+    private final Path directory;
+    private final int level;
+    private final ExecutorService trainerExecutor;
+
+    private final Map<Long, Dictionary> dictionaries = new ConcurrentHashMap<>();
+    private volatile Dictionary current;
+    // null once enough samples were collected, or when a dictionary was already stored
+    private volatile ZstdDictTrainer trainer;
+
+    public CompressionDictionaries(@Value("${atkins.compression.directory:data/compression}") Path directory,
+                                   @Value("${atkins.compression.level:3}") int level,
+                                   @Value("${atkins.compression.dictionary-size:16KB}") DataSize dictionarySize,
+                                   @Value("${atkins.compression.training-size:1MB}") DataSize trainingSize)
+            throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.level = level;
+        this.trainerExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+                .name("compression-dictionary-trainer")
+                .daemon()
+                .factory());
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(file -> file.getFileName().toString()
+                    .startsWith(UNREDACTED_DICTIONARY_PREFIX)).toList()) {
+                Files.delete(file);
+                logger.info("Deleted compression dictionary {} trained on unredacted frames", file.getFileName());
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> stored = files
+                    .filter(file -> file.getFileName().toString().startsWith(DICTIONARY_PREFIX))
+                    .filter(file -> file.getFileName().toString().endsWith(DICTIONARY_SUFFIX))
+                    .sorted(Comparator.comparing(CompressionDictionaries::lastModified))
+                    .toList();
+            for (Path file : stored) {
+                current = register(Files.readAllBytes(file));
+            }
+        }
+        if (current == null) {
+            trainer = new ZstdDictTrainer(Math.toIntExact(trainingSize.toBytes()),
+                    Math.toIntExact(dictionarySize.toBytes()));
+        } else {
+            logger.info("Loaded {} compression dictionaries, using {}", dictionaries.size(), current.id());
+        }
+    }
+
+    /**
+     * @return the dictionary for new sessions, or null while none was trained yet
+     */
+    public Dictionary current() {
+        return current;
+    }
+
+    /**
+     * @return the dictionary with the given ID, or null if it is unknown
+     */
+    public Dictionary get(long id) {
+        return dictionaries.get(id);
+    }
+
+    /**
+     * Offer an outbound frame as a training sample, ignored once enough samples were collected. Only the redacted
+     * frame is kept.
+     */
+    public void sample(ByteBuffer payload) {
+        ZstdDictTrainer collecting = trainer;
+        if (collecting == null) {
+            return;
+        }
+        byte[] sample = TrainingSamples.redact(payload);
+        if (sample == null) {
+            return;
+        }
+        synchronized (this) {
+            if (trainer == collecting && !collecting.addSample(sample)) {
+                trainer = null;
+                trainerExecutor.execute(() -> train(collecting));
+            }
+        }
+    }
+
+    private void train(ZstdDictTrainer samples) {
+        try {
+            long start = System.nanoTime();
+            byte[] content = samples.trainSamples();
+            Dictionary dictionary = register(content);
+            Path temporary = directory.resolve(DICTIONARY_PREFIX + dictionary.id() + DICTIONARY_SUFFIX + ".tmp");
+            Files.write(temporary, content);
+            Files.move(temporary, directory.resolve(DICTIONARY_PREFIX + dictionary.id() + DICTIONARY_SUFFIX),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            current = dictionary;
+            logger.info("Trained compression dictionary {} of {} bytes in {} ms", dictionary.id(), content.length,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (ZstdException | IOException e) {
+            logger.warn("Failed to train a compression dictionary, frames are compressed without one", e);
+        }
+    }
+
+    private Dictionary register(byte[] content) {
+        long id = Zstd.getDictIdFromDict(content);
+        Dictionary dictionary = new Dictionary(id, content, new ZstdDictCompress(content, level),
+                new ZstdDictDecompress(content));
+        dictionaries.put(id, dictionary);
+        return dictionary;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        trainerExecutor.shutdownNow();
+    }
+
+    /**
+     * A dictionary and its digested forms, which are immutable and shared by the sessions using it.
+     */
+    public record Dictionary(long id, byte[] content, ZstdDictCompress compress, ZstdDictDecompress decompress) {
+    }
+}
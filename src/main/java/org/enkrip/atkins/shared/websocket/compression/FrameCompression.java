@@ -0,0 +1,129 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Negotiates frame compression during the WebSocket handshake and creates the compressor of each session.
+ * <p>
+ * Clients opt in with {@code X-Atkins-Compression: zstd; dictionary=<id>}, or the {@code compression} and
+ * {@code dictionary} query parameters where headers cannot be set. The dictionary is only used when the client
+ * offers one this node knows, otherwise frames are compressed without a dictionary. The answer names the dictionary
+ * in use and, when a newer one exists, the {@code latest} one to fetch from
+ * {@code /api/compression/dictionaries/{id}} before the next connection.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.compression", name = "enabled", havingValue = "true")
+public class FrameCompression implements HandshakeInterceptor {
+    public static final String HEADER = "X-Atkins-Compression";
+    public static final String ZSTD = "zstd";
+    static final String DICTIONARY_ATTRIBUTE = FrameCompression.class.getName() + ".dictionary";
+
+    private final CompressionDictionaries dictionaries;
+    private final int level;
+    private final int minSize;
+    private final int maxFrameSize;
+    private final MeterRegistry meterRegistry;
+
+    public FrameCompression(CompressionDictionaries dictionaries,
+                            @Value("${atkins.compression.level:3}") int level,
+                            @Value("${atkins.compression.min-size:64B}") DataSize minSize,
+                            @Value("${atkins.compression.max-frame-size:1MB}") DataSize maxFrameSize,
+                            MeterRegistry meterRegistry) {
+        this.dictionaries = dictionaries;
+        this.level = level;
+        this.minSize = Math.toIntExact(minSize.toBytes());
+        this.maxFrameSize = Math.toIntExact(maxFrameSize.toBytes());
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) {
+        Long offeredDictionary = parseOffer(request);
+        if (offeredDictionary == null) {
+            return true;
+        }
+
+        CompressionDictionaries.Dictionary dictionary = dictionaries.get(offeredDictionary);
+        long dictionaryId = dictionary == null ? 0 : dictionary.id();
+        attributes.put(DICTIONARY_ATTRIBUTE, dictionaryId);
+
+        StringBuilder answer = new StringBuilder(ZSTD).append("; dictionary=").append(dictionaryId);
+        CompressionDictionaries.Dictionary latest = dictionaries.current();
+        if (latest != null && latest.id() != dictionaryId) {
+            answer.append("; latest=").append(latest.id());
+        }
+        response.getHeaders().set(HEADER, answer.toString());
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                               Exception exception) {
+    }
+
+    /**
+     * @return the dictionary ID offered by the client, 0 for none, or null if it did not ask for compression
+     */
+    private static Long parseOffer(ServerHttpRequest request) {
+        String offer = request.getHeaders().getFirst(HEADER);
+        if (offer == null) {
+            MultiValueMap<String, String> query = UriComponentsBuilder.fromUri(request.getURI()).build()
+                    .getQueryParams();
+            if (!ZSTD.equalsIgnoreCase(query.getFirst("compression"))) {
+                return null;
+            }
+            return parseId(query.getFirst("dictionary"));
+        }
+
+        String[] parts = offer.split(";");
+        if (!ZSTD.equalsIgnoreCase(parts[0].trim())) {
+            return null;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            String[] parameter = parts[i].trim().split("=", 2);
+            if (parameter.length == 2 && parameter[0].trim().equalsIgnoreCase("dictionary")) {
+                return parseId(parameter[1].trim());
+            }
+        }
+        return 0L;
+    }
+
+    private static long parseId(String id) {
+        try {
+            return id == null ? 0 : Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the compressor negotiated for the session, or null if its frames are not compressed
+     */
+    public FrameCompressor newCompressor(Map<String, Object> sessionAttributes) {
+        if (!(sessionAttributes.get(DICTIONARY_ATTRIBUTE) instanceof Long dictionaryId)) {
+            return null;
+        }
+        return new FrameCompressor(dictionaries.get(dictionaryId), level, minSize, maxFrameSize, meterRegistry);
+    }
+
+    /**
+     * Offer an outbound payload for dictionary training.
+     */
+    public void sample(ByteBuffer payload) {
+        dictionaries.sample(payload);
+    }
+}
@@ -0,0 +1,153 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the binary frames of one WebSocket session, reusing its zstd contexts for every frame.
+ * <p>
+ * Every frame starts with a flag byte, {@link #UNCOMPRESSED} followed by the protobuf payload or {@link #ZSTD}
+ * followed by a magicless zstd frame without checksum or dictionary ID, which saves 8 bytes per frame over a plain
+ * zstd frame. Frames below {@code minSize} and frames that compression would not shrink are sent uncompressed.
+ * <p>
+ * The native contexts are not thread safe, calls are serialized on this instance. Outbound frames already come from a
+ * single thread at a time through the session's send queue.
+ */
+public class FrameCompressor implements AutoCloseable {
+    static final byte UNCOMPRESSED = 0;
+    static final byte ZSTD = 1;
+
+    private final long dictionaryId;
+    private final int minSize;
+    private final int maxFrameSize;
+    private final ZstdCompressCtx compressCtx;
+    private final ZstdDecompressCtx decompressCtx;
+
+    private final Counter rawBytes;
+    private final Counter sentBytes;
+    private final Counter compressedFrames;
+    private final Counter uncompressedFrames;
+    private final Timer compressTimer;
+
+    private boolean closed;
+
+    /**
+     * @param dictionary   the dictionary shared with the client, null to compress without one
+     * @param maxFrameSize inbound frames decompressing to more than this are rejected
+     */
+    public FrameCompressor(CompressionDictionaries.Dictionary dictionary, int level, int minSize, int maxFrameSize,
+                           MeterRegistry meterRegistry) {
+        this.dictionaryId = dictionary == null ? 0 : dictionary.id();
+        this.minSize = minSize;
+        this.maxFrameSize = maxFrameSize;
+
+        this.compressCtx = new ZstdCompressCtx()
+                .setLevel(level)
+                .setMagicless(true)
+                .setChecksum(false)
+                .setDictID(false)
+                .setContentSize(true);
+        this.decompressCtx = new ZstdDecompressCtx().setMagicless(true);
+        if (dictionary != null) {
+            compressCtx.loadDict(dictionary.compress());
+            decompressCtx.loadDict(dictionary.decompress());
+        }
+
+        this.rawBytes = meterRegistry.counter("atkins.compression.bytes", "stage", "raw");
+        this.sentBytes = meterRegistry.counter("atkins.compression.bytes", "stage", "sent");
+        this.compressedFrames = meterRegistry.counter("atkins.compression.frames", "result", "compressed");
+        this.uncompressedFrames = meterRegistry.counter("atkins.compression.frames", "result", "uncompressed");
+        this.compressTimer = meterRegistry.timer("atkins.compression.time");
+    }
+
+    public long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * @return the flag byte and the payload, compressed when that is worth it
+     */
+    public synchronized ByteBuffer encode(ByteBuffer payload) {
+        int length = payload.remaining();
+        rawBytes.increment(length);
+        if (closed || length < minSize) {
+            return uncompressed(payload);
+        }
+
+        byte[] source = new byte[length];
+        payload.duplicate().get(source);
+        byte[] frame = new byte[1 + (int) Zstd.compressBound(length)];
+        long start = System.nanoTime();
+        int compressed = compressCtx.compressByteArray(frame, 1, frame.length - 1, source, 0, length);
+        compressTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (compressed >= length) {
+            return uncompressed(payload);
+        }
+
+        frame[0] = ZSTD;
+        compressedFrames.increment();
+        sentBytes.increment(1 + compressed);
+        return ByteBuffer.wrap(frame, 0, 1 + compressed);
+    }
+
+    /**
+     * @return the payload of an inbound frame
+     * @throws IllegalArgumentException if the frame is malformed or decompresses beyond the maximum frame size
+     */
+    public synchronized ByteBuffer decode(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            throw new IllegalArgumentException("Empty frame");
+        }
+        ByteBuffer body = frame.duplicate();
+        byte flag = body.get();
+        if (flag == UNCOMPRESSED) {
+            return body.slice();
+        }
+        if (flag != ZSTD || closed) {
+            throw new IllegalArgumentException("Unsupported frame encoding " + flag);
+        }
+
+        byte[] source = new byte[body.remaining()];
+        body.get(source);
+        long size = Zstd.getFrameContentSize(source, 0, source.length, true);
+        if (size < 0 || size > maxFrameSize) {
+            throw new IllegalArgumentException("Invalid compressed frame size " + size);
+        }
+        byte[] payload = new byte[(int) size];
+        try {
+            int decompressed = decompressCtx.decompressByteArray(payload, 0, payload.length, source, 0,
+                    source.length);
+            return ByteBuffer.wrap(payload, 0, decompressed);
+        } catch (ZstdException e) {
+            throw new IllegalArgumentException("Malformed compressed frame: " + e.getMessage(), e);
+        }
+    }
+
+    private ByteBuffer uncompressed(ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(1 + payload.remaining());
+        frame.put(UNCOMPRESSED).put(payload.duplicate()).flip();
+        uncompressedFrames.increment();
+        sentBytes.increment(frame.remaining());
+        return frame;
+    }
+
+    /**
+     * Release the native contexts, frames encoded afterward are sent uncompressed.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            compressCtx.close();
+            decompressCtx.close();
+        }
+    }
+}
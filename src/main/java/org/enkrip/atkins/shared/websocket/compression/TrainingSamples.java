@@ -0,0 +1,67 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnknownFieldSet;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Turns outbound frames into dictionary training samples that carry no user data.
+ * <p>
+ * A dictionary is served to any client, so it must not contain message text, names or IDs seen in the traffic. A
+ * sample keeps the structure of the envelope: every field tag, enum, number and timestamp. Every string is replaced by
+ * a placeholder, UUIDs by the nil UUID so their layout is still learned, and every byte string by a single byte.
+ */
+final class TrainingSamples {
+    private static final Pattern UUID = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final String NIL_UUID = "00000000-0000-0000-0000-000000000000";
+    private static final String PLACEHOLDER = "x";
+    private static final ByteString PLACEHOLDER_BYTES = ByteString.copyFrom(new byte[1]);
+
+    private TrainingSamples() {
+    }
+
+    /**
+     * @return the redacted envelope, or null if the payload is not a response envelope
+     */
+    static byte[] redact(ByteBuffer payload) {
+        try {
+            return redact(RPCResponseEnvelope.parseFrom(payload.duplicate())).toByteArray();
+        } catch (InvalidProtocolBufferException e) {
+            return null;
+        }
+    }
+
+    static Message redact(Message message) {
+        Message.Builder builder = message.toBuilder().setUnknownFields(UnknownFieldSet.getDefaultInstance());
+        for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+            FieldDescriptor descriptor = field.getKey();
+            if (descriptor.isRepeated()) {
+                builder.clearField(descriptor);
+                for (Object value : (List<?>) field.getValue()) {
+                    builder.addRepeatedField(descriptor, redact(descriptor, value));
+                }
+            } else {
+                builder.setField(descriptor, redact(descriptor, field.getValue()));
+            }
+        }
+        return builder.build();
+    }
+
+    private static Object redact(FieldDescriptor descriptor, Object value) {
+        return switch (descriptor.getJavaType()) {
+            case STRING -> UUID.matcher((String) value).matches() ? NIL_UUID : PLACEHOLDER;
+            case BYTE_STRING -> PLACEHOLDER_BYTES;
+            case MESSAGE -> redact((Message) value);
+            default -> value;
+        };
+    }
+}
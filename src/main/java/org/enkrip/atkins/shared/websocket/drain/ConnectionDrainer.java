@@ -0,0 +1,172 @@
+package org.enkrip.atkins.shared.websocket.drain;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.MessageType;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.proto.ReconnectNotification;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the WebSocket sessions of this node ahead of a restart, so that a rolling deploy does not make every client
+ * reconnect at the same instant.
+ * <p>
+ * Once draining, the node reports itself as refusing traffic and {@link DrainHandshakeInterceptor} rejects new
+ * handshakes. The open sessions are then closed in random order at {@code close-rate} sessions per second: each one
+ * receives a {@link ReconnectNotification} with a jittered retry delay, queued behind the messages still waiting to
+ * be sent, and is closed with {@link CloseStatus#SERVICE_RESTARTED} once its outbound queue is flushed.
+ */
+@Component
+public class ConnectionDrainer implements DisposableBean {
+    private static final String DRAIN_REASON = "Server is restarting";
+
+    private final Logger logger = LoggerFactory.getLogger(ConnectionDrainer.class);
+
+    private final WebSocketSessionService sessionService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final double closeRate;
+    private final long flushTimeoutNanos;
+    private final long retryAfterMinMillis;
+    private final long retryAfterMaxMillis;
+
+    private final Counter closedSessions;
+
+    private volatile Instant drainStartedAt;
+    private Thread drainThread;
+
+    public ConnectionDrainer(@Value("${atkins.drain.close-rate:50}") double closeRate,
+                             @Value("${atkins.drain.flush-timeout:5s}") Duration flushTimeout,
+                             @Value("${atkins.drain.retry-after-min:1s}") Duration retryAfterMin,
+                             @Value("${atkins.drain.retry-after-max:30s}") Duration retryAfterMax,
+                             WebSocketSessionService sessionService, ApplicationEventPublisher eventPublisher,
+                             MeterRegistry meterRegistry) {
+        this.sessionService = sessionService;
+        this.eventPublisher = eventPublisher;
+        this.closeRate = closeRate;
+        this.flushTimeoutNanos = flushTimeout.toNanos();
+        this.retryAfterMinMillis = retryAfterMin.toMillis();
+        this.retryAfterMaxMillis = Math.max(retryAfterMinMillis, retryAfterMax.toMillis());
+
+        this.closedSessions = meterRegistry.counter("atkins.drain.closed");
+        Gauge.builder("atkins.drain.active", this, drainer -> drainer.isDraining() ? 1 : 0)
+                .register(meterRegistry);
+    }
+
+    public boolean isDraining() {
+        return drainStartedAt != null;
+    }
+
+    /**
+     * Start draining, has no effect if the node is already draining.
+     */
+    public synchronized DrainStatus drain() {
+        if (drainStartedAt == null) {
+            drainStartedAt = Instant.now();
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+            logger.info("Draining {} WebSocket sessions at {} per second", sessionService.getOpenSessionCount(),
+                    closeRate);
+            drainThread = Thread.ofPlatform()
+                    .name("connection-drainer")
+                    .daemon()
+                    .start(this::closeSessions);
+        }
+        return getStatus();
+    }
+
+    public DrainStatus getStatus() {
+        return new DrainStatus(isDraining(), drainStartedAt, sessionService.getOpenSessionCount(),
+                (long) closedSessions.count());
+    }
+
+    /**
+     * @return a random delay between {@code retry-after-min} and {@code retry-after-max}
+     */
+    public long nextRetryAfterMillis() {
+        return ThreadLocalRandom.current().nextLong(retryAfterMinMillis, retryAfterMaxMillis + 1);
+    }
+
+    private void closeSessions() {
+        List<ConcurrentWebSocketSessionDecorator> sessions = new ArrayList<>(sessionService.getOpenSessions());
+        // users of the same room are spread over the whole drain instead of reconnecting together
+        Collections.shuffle(sessions);
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / closeRate);
+        long next = System.nanoTime();
+        try {
+            for (ConcurrentWebSocketSessionDecorator session : sessions) {
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                next += intervalNanos;
+                close(session);
+            }
+            logger.info("Drained all WebSocket sessions");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void close(ConcurrentWebSocketSessionDecorator session) throws InterruptedException {
+        if (!session.isOpen()) {
+            return;
+        }
+        RPCResponseEnvelope notification = RPCResponseEnvelope.newBuilder()
+                .setRequestId(UUID.randomUUID().toString())
+                .setMessageType(MessageType.NOTIFICATION)
+                .setOperationType(MessageOperationType.RECONNECT)
+                .setSuccess(true)
+                .setReconnectNotification(ReconnectNotification.newBuilder()
+                        .setRetryAfterMillis(Math.toIntExact(nextRetryAfterMillis()))
+                        .setReason(DRAIN_REASON))
+                .build();
+        try {
+            session.sendMessage(new BinaryMessage(notification.toByteArray()));
+            // another thread may still be flushing the queue the notification was added to
+            long deadline = System.nanoTime() + flushTimeoutNanos;
+            while (WebSocketSessionService.getQueuedBytes(session) > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            session.close(CloseStatus.SERVICE_RESTARTED);
+            closedSessions.increment();
+        } catch (IOException | IllegalStateException e) {
+            logger.debug("Failed to drain session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (drainThread != null) {
+            drainThread.interrupt();
+        }
+    }
+
+    /**
+     * @param startedAt null when the node is not draining
+     */
+    public record DrainStatus(boolean draining, Instant startedAt, int openSessions, long closedSessions) {
+    }
+}
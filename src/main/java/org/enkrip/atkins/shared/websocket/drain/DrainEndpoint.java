@@ -0,0 +1,30 @@
+package org.enkrip.atkins.shared.websocket.drain;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code /actuator/drain}: GET reports the drain progress, POST starts draining the node. Like every actuator
+ * endpoint it is only served on the management port.
+ */
+@Component
+@Endpoint(id = "drain")
+public class DrainEndpoint {
+    private final ConnectionDrainer connectionDrainer;
+
+    public DrainEndpoint(ConnectionDrainer connectionDrainer) {
+        this.connectionDrainer = connectionDrainer;
+    }
+
+    @ReadOperation
+    public ConnectionDrainer.DrainStatus status() {
+        return connectionDrainer.getStatus();
+    }
+
+    @WriteOperation
+    public ConnectionDrainer.DrainStatus drain() {
+        return connectionDrainer.drain();
+    }
+}
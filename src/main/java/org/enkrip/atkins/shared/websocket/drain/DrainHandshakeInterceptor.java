@@ -0,0 +1,41 @@
+package org.enkrip.atkins.shared.websocket.drain;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rejects WebSocket handshakes with 503 and a jittered Retry-After while the node is draining.
+ */
+@Component
+public class DrainHandshakeInterceptor implements HandshakeInterceptor {
+    private final ConnectionDrainer connectionDrainer;
+
+    public DrainHandshakeInterceptor(ConnectionDrainer connectionDrainer) {
+        this.connectionDrainer = connectionDrainer;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) {
+        if (!connectionDrainer.isDraining()) {
+            return true;
+        }
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        long retryAfterSeconds = TimeUnit.MILLISECONDS.toSeconds(connectionDrainer.nextRetryAfterMillis());
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, retryAfterSeconds)));
+        return false;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                               Exception exception) {
+    }
+}
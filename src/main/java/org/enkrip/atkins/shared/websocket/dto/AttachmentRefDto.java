@@ -0,0 +1,53 @@
+package org.enkrip.atkins.shared.websocket.dto;
+
+/**
+ * DTO for AttachmentRef data, documents the JSON written for a message attachment
+ */
+public class AttachmentRefDto {
+    private String attachmentId;
+    private String fileName;
+    private String contentType;
+    private long size;
+    private boolean hasThumbnail;
+
+    // Getters and Setters
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public boolean isHasThumbnail() {
+        return hasThumbnail;
+    }
+
+    public void setHasThumbnail(boolean hasThumbnail) {
+        this.hasThumbnail = hasThumbnail;
+    }
+}
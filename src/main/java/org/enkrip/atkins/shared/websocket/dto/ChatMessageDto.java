@@ -5,7 +5,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import java.time.Instant;
 
 /**
- * DTO for ChatMessage data that can be serialized to JSON
+ * DTO for ChatMessage data that can be serialized to JSON. Messages are written by
+ * {@link org.enkrip.atkins.shared.mapper.ProtobufJsonWriter}, which keeps this shape; the DTO documents it.
  */
 public class ChatMessageDto {
     private String messageId;
@@ -16,7 +17,9 @@ public class ChatMessageDto {
     private String content;
     private boolean myMessage;
     private boolean read;
-    private int version;
+    private long version;
+    private AttachmentRefDto attachment;
+    private long sequence;
 
     // Getters and Setters
     public String getMessageId() {
@@ -83,11 +86,27 @@ public class ChatMessageDto {
         this.read = read;
     }
 
-    public int getVersion() {
+    public long getVersion() {
         return version;
     }
 
-    public void setVersion(int version) {
+    public void setVersion(long version) {
         this.version = version;
     }
+
+    public AttachmentRefDto getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(AttachmentRefDto attachment) {
+        this.attachment = attachment;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
 }
@@ -3,7 +3,8 @@ package org.enkrip.atkins.shared.websocket.dto;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
- * DTO for ChatUser data that can be serialized to JSON
+ * DTO for ChatUser data that can be serialized to JSON. ChatUsers are written by
+ * {@link org.enkrip.atkins.shared.mapper.ProtobufJsonWriter}, which keeps this shape; the DTO documents it.
  */
 public class ChatUserDto {
     private String userId;
@@ -4,14 +4,15 @@ import java.time.Instant;
 import java.util.List;
 
 /**
- * DTO for Conversation data that can be serialized to JSON
+ * DTO for Conversation data that can be serialized to JSON. Conversations are written by
+ * {@link org.enkrip.atkins.shared.mapper.ProtobufJsonWriter}, which keeps this shape; the DTO documents it.
  */
 public class ConversationDto {
     private String conversationId;
     private ChatMessageDto lastMessage;
     private List<ChatUserDto> participants;
     private Instant lastUpdatedTimestamp;
-    private int version;
+    private long version;
     private int unreadCount;
 
     // Getters and Setters
@@ -47,11 +48,11 @@ public class ConversationDto {
         this.lastUpdatedTimestamp = lastUpdatedTimestamp;
     }
 
-    public int getVersion() {
+    public long getVersion() {
         return version;
     }
 
-    public void setVersion(int version) {
+    public void setVersion(long version) {
         this.version = version;
     }
 
@@ -0,0 +1,99 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, on a preallocated ring of slots.
+ * <p>
+ * Every slot carries a sequence: a producer claims position {@code p} by moving the tail from {@code p} to
+ * {@code p + 1} once the slot sequence equals {@code p}, writes the element and publishes it by setting the sequence
+ * to {@code p + 1}. The consumer takes the element at its head when the sequence says it was published, and hands the
+ * slot back by setting the sequence one lap ahead. Producers only contend on the tail, and the consumer never writes
+ * anything a producer writes.
+ */
+final class CommandRing<E> {
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final PaddedSequence tail = new PaddedSequence();
+    private final PaddedSequence head = new PaddedSequence();
+
+    CommandRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[slot] = element;
+                    // publishes the element written above to the consumer
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // another producer claimed the position, retry with the new tail
+        }
+    }
+
+    /**
+     * Move up to {@code batch.length} published elements into {@code batch}, only called by the consumer.
+     *
+     * @return the number of elements moved
+     */
+    @SuppressWarnings("unchecked")
+    int drain(E[] batch) {
+        long position = head.getPlain();
+        int count = 0;
+        while (count < batch.length) {
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1) {
+                break;
+            }
+            batch[count++] = (E) elements[slot];
+            elements[slot] = null;
+            sequences.set(slot, position + elements.length);
+            position++;
+        }
+        head.setRelease(position);
+        return count;
+    }
+
+    boolean isEmpty() {
+        long position = head.getAcquire();
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.getAcquire());
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Keeps the producers' tail and the consumer's head on separate cache lines.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedSequence extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
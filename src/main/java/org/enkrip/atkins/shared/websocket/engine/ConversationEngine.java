@@ -0,0 +1,17 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs the commands that mutate a conversation. Commands of the same conversation run one at a time and in
+ * submission order, commands of different conversations may run concurrently.
+ */
+public interface ConversationEngine {
+
+    /**
+     * @param conversationId the conversation the command mutates, which decides where it runs
+     * @return the result of the command, completed on the thread that ran it
+     */
+    <T> CompletableFuture<T> execute(String conversationId, Supplier<T> command);
+}
@@ -0,0 +1,24 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs commands on the calling thread, which relies on the conversation maps for concurrent updates.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.engine", name = "type", havingValue = "direct", matchIfMissing = true)
+public class DirectConversationEngine implements ConversationEngine {
+
+    @Override
+    public <T> CompletableFuture<T> execute(String conversationId, Supplier<T> command) {
+        try {
+            return CompletableFuture.completedFuture(command.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
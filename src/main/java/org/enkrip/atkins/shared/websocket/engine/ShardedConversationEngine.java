@@ -0,0 +1,234 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Runs commands on a fixed set of single-writer shards, every conversation belonging to the shard its ID hashes to.
+ * <p>
+ * Each shard owns one thread fed by a preallocated {@link CommandRing}. Callers claim a slot without locking and
+ * return right away, the shard thread drains up to {@code batch-size} commands at a time, runs them in order and
+ * then completes their futures, so the callbacks of a batch run together after its mutations and never in between.
+ * As a conversation is only ever mutated by its shard thread, its updates no longer contend with each other.
+ * <p>
+ * An idle shard spins for {@code spin-iterations} before parking until the next command, trading a little CPU for
+ * wake-up latency under steady load. A caller finding the ring full backs off until the shard made room, which
+ * pushes back on the WebSocket threads instead of buffering without bound.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.engine", name = "type", havingValue = "sharded")
+public class ShardedConversationEngine implements ConversationEngine, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedConversationEngine.class);
+
+    private final Shard[] shards;
+    private final int spinIterations;
+    private final DistributionSummary batchSizes;
+    private final Timer queueTime;
+
+    private volatile boolean running = true;
+
+    public ShardedConversationEngine(@Value("${atkins.engine.shards:0}") int shards,
+                                     @Value("${atkins.engine.ring-size:4096}") int ringSize,
+                                     @Value("${atkins.engine.batch-size:64}") int batchSize,
+                                     @Value("${atkins.engine.spin-iterations:1000}") int spinIterations,
+                                     MeterRegistry meterRegistry) {
+        int shardCount = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+        this.shards = new Shard[shardCount];
+        this.spinIterations = spinIterations;
+        this.batchSizes = DistributionSummary.builder("atkins.engine.batch.size")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.queueTime = Timer.builder("atkins.engine.queue.time")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("atkins.engine.queued", this, ShardedConversationEngine::queued)
+                .register(meterRegistry);
+
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(i, ringSize, batchSize);
+        }
+        for (Shard shard : this.shards) {
+            shard.thread.start();
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> execute(String conversationId, Supplier<T> command) {
+        if (!running) {
+            return CompletableFuture.failedFuture(shutDown());
+        }
+        Shard shard = shards[Math.floorMod(conversationId.hashCode(), shards.length)];
+        Command<T> entry = new Command<>(command, System.nanoTime());
+        int attempts = 0;
+        while (!shard.ring.offer(entry)) {
+            if (!running) {
+                return CompletableFuture.failedFuture(shutDown());
+            }
+            shard.wakeUp();
+            if (++attempts < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+        if (running) {
+            shard.wakeUp();
+        } else {
+            // the shard may have stopped before it saw the command, which would then never complete
+            shard.rejectQueued();
+        }
+        return entry.result;
+    }
+
+    private static RejectedExecutionException shutDown() {
+        return new RejectedExecutionException("Engine is shut down");
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    private double queued() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.ring.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            shard.thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private final class Shard {
+        private final CommandRing<Command<?>> ring;
+        private final Command<?>[] batch;
+        private final Thread thread;
+        private volatile boolean sleeping;
+
+        private Shard(int index, int ringSize, int batchSize) {
+            this.ring = new CommandRing<>(ringSize);
+            this.batch = new Command<?>[batchSize];
+            this.thread = Thread.ofPlatform()
+                    .name("conversation-shard-" + index)
+                    .daemon()
+                    .unstarted(this::run);
+        }
+
+        private void wakeUp() {
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Once the shard thread stopped, fail the commands left in its ring.
+         */
+        private void rejectQueued() {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // the ring has a single consumer, which is now whichever caller holds the lock
+            synchronized (this) {
+                int count;
+                while ((count = ring.drain(batch)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].result.completeExceptionally(shutDown());
+                        batch[i] = null;
+                    }
+                }
+            }
+        }
+
+        private void run() {
+            int idle = 0;
+            // commands submitted before the shutdown are still run
+            while (running || !ring.isEmpty()) {
+                int count = ring.drain(batch);
+                if (count == 0) {
+                    if (++idle < spinIterations) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    sleeping = true;
+                    // a command published before the flag was set would not have unparked this thread
+                    if (ring.isEmpty() && running) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                idle = 0;
+                long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    queueTime.record(now - batch[i].submittedNanos, TimeUnit.NANOSECONDS);
+                    batch[i].run();
+                }
+                for (int i = 0; i < count; i++) {
+                    batch[i].complete();
+                    batch[i] = null;
+                }
+                batchSizes.record(count);
+            }
+        }
+    }
+
+    private static final class Command<T> {
+        private final Supplier<T> task;
+        private final long submittedNanos;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private T value;
+        private Throwable error;
+
+        private Command(Supplier<T> task, long submittedNanos) {
+            this.task = task;
+            this.submittedNanos = submittedNanos;
+        }
+
+        private void run() {
+            try {
+                value = task.get();
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        private void complete() {
+            try {
+                if (error == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            } catch (RuntimeException e) {
+                // a failing callback must not stop the shard
+                logger.warn("Conversation command callback failed", e);
+            }
+        }
+    }
+}
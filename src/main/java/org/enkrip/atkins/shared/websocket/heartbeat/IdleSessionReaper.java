@@ -0,0 +1,202 @@
+package org.enkrip.atkins.shared.websocket.heartbeat;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pings quiet WebSocket sessions and reaps the ones that stopped answering, such as the half-open connections left
+ * behind by mobile clients losing their network, which would otherwise stay registered and be sent to forever.
+ * <p>
+ * Any inbound frame, pongs included, counts as activity; outbound frames do not, as a half-open connection accepts
+ * them until the socket buffers fill up. A session quiet for {@code interval} is pinged, and a session quiet for
+ * {@code idle-timeout} is closed and removed from the session registries right away, without waiting for the
+ * container to notice the broken connection.
+ * <p>
+ * The checks are scheduled on a single {@link HashedWheelTimer} of {@code tick} resolution, so a tick only visits the
+ * sessions due in its slot instead of every connection having a scheduled task of its own. Pings and closes may
+ * block on a broken connection and run on {@code threads} workers instead of the timer thread.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.heartbeat", name = "enabled", havingValue = "true")
+public class IdleSessionReaper implements DisposableBean {
+    private static final CloseStatus IDLE = CloseStatus.SESSION_NOT_RELIABLE.withReason("No heartbeat");
+    private static final PingMessage PING = new PingMessage();
+
+    private final Logger logger = LoggerFactory.getLogger(IdleSessionReaper.class);
+
+    private final WebSocketSessionService sessionService;
+    private final long intervalNanos;
+    private final long idleTimeoutNanos;
+    private final Map<String, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer;
+    private final ExecutorService workers;
+
+    private final Counter pings;
+    private final Counter idleReaped;
+    private final Counter failedReaped;
+
+    public IdleSessionReaper(@Value("${atkins.heartbeat.interval:30s}") Duration interval,
+                             @Value("${atkins.heartbeat.idle-timeout:90s}") Duration idleTimeout,
+                             @Value("${atkins.heartbeat.tick:1s}") Duration tick,
+                             @Value("${atkins.heartbeat.wheel-size:512}") int wheelSize,
+                             @Value("${atkins.heartbeat.threads:2}") int threads,
+                             WebSocketSessionService sessionService, MeterRegistry meterRegistry) {
+        if (idleTimeout.compareTo(interval) <= 0) {
+            throw new IllegalArgumentException("Heartbeat idle timeout " + idleTimeout
+                    + " must be longer than the interval " + interval);
+        }
+        this.sessionService = sessionService;
+        this.intervalNanos = interval.toNanos();
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+
+        this.pings = meterRegistry.counter("atkins.heartbeat.pings");
+        this.idleReaped = meterRegistry.counter("atkins.heartbeat.reaped", "cause", "idle");
+        this.failedReaped = meterRegistry.counter("atkins.heartbeat.reaped", "cause", "ping-failed");
+        Gauge.builder("atkins.heartbeat.sessions", heartbeats, Map::size)
+                .register(meterRegistry);
+
+        this.timer = new HashedWheelTimer(Thread.ofPlatform()
+                .name("session-heartbeat-timer")
+                .daemon()
+                .factory(), tick.toNanos(), TimeUnit.NANOSECONDS, wheelSize);
+        this.workers = Executors.newFixedThreadPool(threads, Thread.ofPlatform()
+                .name("session-heartbeat-", 0)
+                .daemon()
+                .factory());
+    }
+
+    /**
+     * Start watching a session once it is registered with the {@link WebSocketSessionService}.
+     */
+    public void register(WebSocketSession session) {
+        Heartbeat heartbeat = new Heartbeat(session);
+        heartbeats.put(session.getId(), heartbeat);
+        schedule(heartbeat, intervalNanos);
+    }
+
+    /**
+     * Record an inbound frame of a session.
+     */
+    public void touch(WebSocketSession session) {
+        Heartbeat heartbeat = heartbeats.get(session.getId());
+        if (heartbeat != null) {
+            heartbeat.lastActivityNanos = System.nanoTime();
+        }
+    }
+
+    public void unregister(WebSocketSession session) {
+        Heartbeat heartbeat = heartbeats.remove(session.getId());
+        if (heartbeat != null && heartbeat.timeout != null) {
+            heartbeat.timeout.cancel();
+        }
+    }
+
+    public int getWatchedSessionCount() {
+        return heartbeats.size();
+    }
+
+    private void schedule(Heartbeat heartbeat, long delayNanos) {
+        try {
+            heartbeat.timeout = timer.newTimeout(timeout -> check(heartbeat), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {
+            // the timer was stopped on shutdown
+        }
+    }
+
+    private void check(Heartbeat heartbeat) {
+        if (heartbeats.get(heartbeat.session.getId()) != heartbeat) {
+            return;
+        }
+        long idleNanos = System.nanoTime() - heartbeat.lastActivityNanos;
+        if (idleNanos >= idleTimeoutNanos) {
+            submit(() -> reap(heartbeat, idleReaped));
+            return;
+        }
+        if (idleNanos >= intervalNanos) {
+            submit(() -> ping(heartbeat));
+            // check again after another interval of silence, or when the session would be idle for too long
+            schedule(heartbeat, Math.min(intervalNanos, idleTimeoutNanos - idleNanos));
+        } else {
+            schedule(heartbeat, intervalNanos - idleNanos);
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the workers were stopped on shutdown
+        }
+    }
+
+    private void ping(Heartbeat heartbeat) {
+        WebSocketSession session = sessionService.getOpenSession(heartbeat.session.getId());
+        if (session == null) {
+            return;
+        }
+        try {
+            // queued behind the messages being sent, like any other frame
+            session.sendMessage(PING);
+            pings.increment();
+        } catch (IOException | IllegalStateException | SessionLimitExceededException e) {
+            // a send buffer over its limit or a send over its time limit means the session is not keeping up
+            logger.debug("Failed to ping session {}: {}", session.getId(), e.getMessage());
+            reap(heartbeat, failedReaped);
+        }
+    }
+
+    private void reap(Heartbeat heartbeat, Counter cause) {
+        if (!heartbeats.remove(heartbeat.session.getId(), heartbeat)) {
+            return;
+        }
+        WebSocketSession session = heartbeat.session;
+        logger.debug("Reaping WebSocket session {} of {}", session.getId(), session.getRemoteAddress());
+        // evicted first, so nothing is sent to it while the close may hang on the broken connection
+        sessionService.afterConnectionClosed(session, IDLE);
+        try {
+            session.close(IDLE);
+        } catch (IOException | IllegalStateException e) {
+            logger.debug("Failed to close session {}: {}", session.getId(), e.getMessage());
+        }
+        cause.increment();
+    }
+
+    @Override
+    public void destroy() {
+        timer.stop();
+        workers.shutdownNow();
+    }
+
+    private static final class Heartbeat {
+        private final WebSocketSession session;
+        private volatile long lastActivityNanos = System.nanoTime();
+        private volatile Timeout timeout;
+
+        private Heartbeat(WebSocketSession session) {
+            this.session = session;
+        }
+    }
+}
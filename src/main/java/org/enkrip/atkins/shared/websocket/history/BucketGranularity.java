@@ -0,0 +1,39 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import java.time.Duration;
+
+/**
+ * Time span covered by a single {@code messages_by_room_time} partition, from the finest to the coarsest.
+ */
+public enum BucketGranularity {
+    TEN_MINUTES(Duration.ofMinutes(10)),
+    HOUR(Duration.ofHours(1)),
+    SIX_HOURS(Duration.ofHours(6)),
+    DAY(Duration.ofDays(1)),
+    WEEK(Duration.ofDays(7)),
+    MONTH(Duration.ofDays(30));
+
+    private final Duration duration;
+
+    BucketGranularity(Duration duration) {
+        this.duration = duration;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * The coarsest granularity whose buckets are expected to hold at most the target number of messages at the given
+     * rate, or the finest one if even that would hold more.
+     */
+    public static BucketGranularity forRate(double messagesPerSecond, int targetMessages) {
+        BucketGranularity[] granularities = values();
+        for (int i = granularities.length - 1; i > 0; i--) {
+            if (messagesPerSecond * granularities[i].duration.toSeconds() <= targetMessages) {
+                return granularities[i];
+            }
+        }
+        return granularities[0];
+    }
+}
@@ -0,0 +1,362 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.enkrip.atkins.config.ScyllaConfig;
+import org.enkrip.atkins.proto.AttachmentRef;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.shared.scylla.CqlIds;
+import org.enkrip.atkins.shared.scylla.PreparedStatementRegistry;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message history in the {@code messages_by_room_time} table, partitioned by conversation and adaptive time bucket.
+ * <p>
+ * The {@link TimeBucketAllocator} picks the bucket of every message and each bucket is recorded once in the
+ * {@code room_time_buckets} directory, newest first. A history read lists the buckets older than the requested
+ * instant from the directory and reads up to {@code read-parallelism} of them concurrently, newest first, until the
+ * page is full; the buckets still in flight at that point are abandoned. Only used when a {@link CqlSession} is
+ * available.
+ * <p>
+ * The directory also records the rate each bucket was opened with. The first message of a conversation after a
+ * restart waits for its latest bucket to be read back, so the allocator continues that bucket with the learned rate
+ * instead of starting over; later messages of the conversation queue behind it to keep their order.
+ */
+@Component
+public class MessageHistoryRepository implements ConversationListener {
+    private static final String INSERT_BUCKET = "INSERT INTO room_time_buckets "
+            + "(room_id, bucket_start, time_bucket, granularity, message_rate) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT_LATEST_BUCKET = "SELECT bucket_start, granularity, message_rate "
+            + "FROM room_time_buckets WHERE room_id = ? LIMIT 1";
+    private static final String INSERT_MESSAGE = "INSERT INTO messages_by_room_time "
+            + "(room_id, time_bucket, message_time, message_id, user_id, sender_name, message_text, message_type, "
+            + "message_version, message_sequence, attachment) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_BUCKETS_BEFORE = "SELECT time_bucket FROM room_time_buckets "
+            + "WHERE room_id = ? AND bucket_start < ? LIMIT ?";
+    private static final String SELECT_MESSAGES_BEFORE = "SELECT message_time, message_id, sender_name, "
+            + "message_text, message_type, message_version, message_sequence, attachment FROM messages_by_room_time "
+            + "WHERE room_id = ? AND time_bucket = ? AND message_time < ? LIMIT ?";
+    private static final String SELECT_MESSAGES_AT = "SELECT message_time, message_id, sender_name, "
+            + "message_text, message_type, message_version, message_sequence, attachment FROM messages_by_room_time "
+            + "WHERE room_id = ? AND time_bucket = ? AND message_time = ?";
+
+    private final Logger logger = LoggerFactory.getLogger(MessageHistoryRepository.class);
+
+    private final ObjectProvider<PreparedStatementRegistry> preparedStatements;
+    private final TimeBucketAllocator bucketAllocator;
+    private final int readParallelism;
+    private final int maxBucketsPerRead;
+
+    private final Counter openedBuckets;
+    private final Counter writeFailures;
+    private final Timer readTimer;
+    private final DistributionSummary bucketsPerRead;
+
+    // directory write of the current bucket of each conversation, messages of a bucket are written once it is done
+    private final Map<String, CompletableFuture<?>> bucketRegistrations = new ConcurrentHashMap<>();
+    // messages waiting for the latest bucket of their conversation to be restored, chained in order
+    private final Map<String, CompletableFuture<?>> pendingRestores = new ConcurrentHashMap<>();
+
+    // messages replayed at startup were persisted when they were first sent
+    private volatile boolean persisting;
+
+    public MessageHistoryRepository(@Value("${atkins.history.target-bucket-messages:10000}") int targetBucketMessages,
+                                    @Value("${atkins.history.max-bucket-messages:50000}") int maxBucketMessages,
+                                    @Value("${atkins.history.initial-granularity:HOUR}")
+                                    BucketGranularity initialGranularity,
+                                    @Value("${atkins.history.read-parallelism:4}") int readParallelism,
+                                    @Value("${atkins.history.max-buckets-per-read:64}") int maxBucketsPerRead,
+                                    ObjectProvider<PreparedStatementRegistry> preparedStatements,
+                                    MeterRegistry meterRegistry) {
+        this.preparedStatements = preparedStatements;
+        this.bucketAllocator = new TimeBucketAllocator(targetBucketMessages, maxBucketMessages, initialGranularity);
+        this.readParallelism = readParallelism;
+        this.maxBucketsPerRead = maxBucketsPerRead;
+
+        this.openedBuckets = meterRegistry.counter("atkins.history.buckets.opened");
+        this.writeFailures = meterRegistry.counter("atkins.history.write.failures");
+        this.readTimer = meterRegistry.timer("atkins.history.read");
+        this.bucketsPerRead = DistributionSummary.builder("atkins.history.read.buckets")
+                .description("Buckets read to serve a history page")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPersisting() {
+        persisting = true;
+    }
+
+    public boolean isAvailable() {
+        return preparedStatements.getIfAvailable() != null;
+    }
+
+    @Override
+    public void onMessageAppended(Conversation conversation, ChatMessage message) {
+        PreparedStatementRegistry statements = preparedStatements.getIfAvailable();
+        if (!persisting || statements == null) {
+            return;
+        }
+
+        String conversationId = message.getConversationId();
+        if (bucketAllocator.isKnown(conversationId) && !pendingRestores.containsKey(conversationId)) {
+            persist(statements, message);
+            return;
+        }
+        // listeners of a conversation are called one at a time, so this only races with the chain completing
+        pendingRestores.compute(conversationId, (id, tail) -> {
+            if (tail == null && bucketAllocator.isKnown(id) || tail != null && tail.isDone()) {
+                persist(statements, message);
+                return null;
+            }
+            CompletableFuture<?> ready = tail != null ? tail : restoreLatestBucket(statements, id);
+            return ready.handle((ignored, error) -> null).thenRun(() -> persist(statements, message));
+        });
+    }
+
+    private void persist(PreparedStatementRegistry statements, ChatMessage message) {
+        String conversationId = message.getConversationId();
+        Instant messageTime = toInstant(message.getTimestamp());
+        TimeBucketAllocator.Assignment assignment = bucketAllocator.assign(conversationId,
+                messageTime.toEpochMilli());
+        TimeBucket bucket = assignment.bucket();
+        CompletableFuture<?> registration = bucketRegistrations.compute(conversationId, (id, current) ->
+                assignment.opened() || current == null || current.isCompletedExceptionally()
+                        ? registerBucket(statements, conversationId, bucket, assignment.rate())
+                        : current);
+
+        CqlSession session = statements.getSession();
+        registration
+                // a failed directory write was already counted, the message is still written
+                .handle((ignored, error) -> null)
+                .thenCompose(ignored -> statements.prepareAsync(INSERT_MESSAGE))
+                .thenCompose(statement -> session.executeAsync(statement.bind(
+                                CqlIds.toUuid(conversationId),
+                                bucket.key(),
+                                messageTime,
+                                CqlIds.toUuid(message.getMessageId()),
+                                CqlIds.userUuid(message.getSender().getUserId()),
+                                message.getSender().getUserId(),
+                                message.getContent(),
+                                message.getMessageTypeValue(),
+                                message.getVersion(),
+                                message.getSequence(),
+                                message.hasAttachment() ? ByteBuffer.wrap(message.getAttachment().toByteArray()) : null)
+                        .setExecutionProfileName(ScyllaConfig.WRITE_PROFILE)
+                        .setIdempotent(true)))
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        writeFailures.increment();
+                        logger.warn("Failed to persist message {} of {}: {}", message.getMessageId(),
+                                conversationId, error.getMessage());
+                    }
+                });
+    }
+
+    private CompletableFuture<?> restoreLatestBucket(PreparedStatementRegistry statements, String conversationId) {
+        CqlSession session = statements.getSession();
+        return statements.prepareAsync(SELECT_LATEST_BUCKET)
+                .thenCompose(statement -> session.executeAsync(statement.bind(CqlIds.toUuid(conversationId))
+                        .setExecutionProfileName(ScyllaConfig.HOT_READ_PROFILE)
+                        .setIdempotent(true)))
+                .thenAccept(result -> {
+                    Row row = result.one();
+                    if (row != null) {
+                        TimeBucket latest = new TimeBucket(row.getInstant("bucket_start").toEpochMilli(),
+                                BucketGranularity.valueOf(row.getString("granularity")));
+                        bucketAllocator.restore(conversationId, latest,
+                                row.isNull("message_rate") ? -1 : row.getDouble("message_rate"));
+                    }
+                })
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        // the conversation starts over with a new bucket
+                        logger.warn("Failed to restore the time bucket of {}: {}", conversationId,
+                                error.getMessage());
+                    }
+                })
+                .toCompletableFuture();
+    }
+
+    private CompletableFuture<?> registerBucket(PreparedStatementRegistry statements, String conversationId,
+                                                TimeBucket bucket, double rate) {
+        openedBuckets.increment();
+        CqlSession session = statements.getSession();
+        return statements.prepareAsync(INSERT_BUCKET)
+                .thenCompose(statement -> session.executeAsync(statement.bind(
+                                CqlIds.toUuid(conversationId),
+                                Instant.ofEpochMilli(bucket.startMillis()),
+                                bucket.key(),
+                                bucket.granularity().name(),
+                                rate < 0 ? null : rate)
+                        .setExecutionProfileName(ScyllaConfig.WRITE_PROFILE)
+                        .setIdempotent(true)))
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        writeFailures.increment();
+                        logger.warn("Failed to register time bucket {} of {}: {}", bucket.key(), conversationId,
+                                error.getMessage());
+                    }
+                })
+                .toCompletableFuture();
+    }
+
+    /**
+     * Read the messages of a conversation sent before the given instant.
+     *
+     * @param viewer used to flag the messages of the viewer as their own
+     * @param before exclusive upper bound, null for the most recent messages
+     *
+     * @return up to limit messages, most recent first, or more if the oldest millisecond of the page holds more;
+     * empty if the read failed
+     */
+    public HistoryPage findBefore(String conversationId, String viewer, Instant before, int limit) {
+        PreparedStatementRegistry statements = preparedStatements.getIfAvailable();
+        if (statements == null || limit <= 0) {
+            return HistoryPage.EMPTY;
+        }
+        try {
+            return readTimer.record(() -> read(statements, conversationId, viewer, before, limit));
+        } catch (DriverException | CompletionException e) {
+            logger.warn("Failed to read history of {}: {}", conversationId, e.getMessage());
+            return HistoryPage.EMPTY;
+        }
+    }
+
+    private HistoryPage read(PreparedStatementRegistry statements, String conversationId, String viewer,
+                             Instant before, int limit) {
+        CqlSession session = statements.getSession();
+        Instant upperBound = before == null ? Instant.ofEpochMilli(Long.MAX_VALUE) : before;
+        List<String> buckets = new ArrayList<>();
+        for (Row row : session.execute(statements.prepare(SELECT_BUCKETS_BEFORE)
+                .bind(CqlIds.toUuid(conversationId), upperBound, maxBucketsPerRead)
+                .setExecutionProfileName(ScyllaConfig.HOT_READ_PROFILE)
+                .setIdempotent(true))) {
+            buckets.add(row.getString("time_bucket"));
+        }
+
+        // one extra message tells whether there is another page
+        List<ChatMessage> messages = new ArrayList<>(limit + 1);
+        String lastBucket = null;
+        Deque<CompletableFuture<AsyncResultSet>> window = new ArrayDeque<>();
+        int next = 0;
+        int consumed = 0;
+        try {
+            while (messages.size() <= limit && (next < buckets.size() || !window.isEmpty())) {
+                while (next < buckets.size() && window.size() < readParallelism) {
+                    window.add(readBucket(statements, conversationId, buckets.get(next++), upperBound,
+                            limit + 1 - messages.size()));
+                }
+                // buckets are consumed newest first, so the page stays ordered whichever read completes first
+                String bucket = buckets.get(consumed++);
+                for (Row row : window.poll().join().currentPage()) {
+                    messages.add(toMessage(row, conversationId, viewer));
+                    if (messages.size() == limit) {
+                        lastBucket = bucket;
+                    }
+                }
+            }
+        } finally {
+            window.forEach(read -> read.cancel(false));
+            bucketsPerRead.record(next);
+        }
+
+        boolean hasMore = messages.size() > limit || buckets.size() == maxBucketsPerRead && next == buckets.size();
+        if (messages.size() <= limit) {
+            return new HistoryPage(messages, hasMore);
+        }
+        List<ChatMessage> page = new ArrayList<>(messages.subList(0, limit));
+        long lastMillis = Timestamps.toMillis(page.getLast().getTimestamp());
+        if (Timestamps.toMillis(messages.get(limit).getTimestamp()) == lastMillis) {
+            // the next page starts below the millisecond of the oldest message, the only precision stored, so a
+            // millisecond cut by the limit is returned whole
+            page.removeIf(message -> Timestamps.toMillis(message.getTimestamp()) == lastMillis);
+            for (Row row : session.execute(statements.prepare(SELECT_MESSAGES_AT)
+                    .bind(CqlIds.toUuid(conversationId), lastBucket, Instant.ofEpochMilli(lastMillis))
+                    .setExecutionProfileName(ScyllaConfig.HOT_READ_PROFILE)
+                    .setIdempotent(true))) {
+                page.add(toMessage(row, conversationId, viewer));
+            }
+        }
+        return new HistoryPage(page, hasMore);
+    }
+
+    private static CompletableFuture<AsyncResultSet> readBucket(PreparedStatementRegistry statements,
+                                                                String conversationId, String bucket,
+                                                                Instant before, int limit) {
+        CqlSession session = statements.getSession();
+        return statements.prepareAsync(SELECT_MESSAGES_BEFORE)
+                .thenCompose(statement -> session.executeAsync(statement
+                        .bind(CqlIds.toUuid(conversationId), bucket, before, limit)
+                        .setExecutionProfileName(ScyllaConfig.HOT_READ_PROFILE)
+                        .setIdempotent(true)))
+                .toCompletableFuture();
+    }
+
+    private static ChatMessage toMessage(Row row, String conversationId, String viewer) {
+        Instant messageTime = row.getInstant("message_time");
+        String sender = String.valueOf(row.getString("sender_name"));
+        ChatMessage.Builder message = ChatMessage.newBuilder()
+                .setMessageId(String.valueOf(row.getUuid("message_id")))
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId(sender).setDisplayName(sender))
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(messageTime.getEpochSecond())
+                        .setNanos(messageTime.getNano()))
+                .setMessageTypeValue(row.getInt("message_type"))
+                .setContent(String.valueOf(row.getString("message_text")))
+                .setMyMessage(sender.equals(viewer))
+                .setVersion(row.getLong("message_version"))
+                // 0 for messages persisted before they had a sequence
+                .setSequence(row.getLong("message_sequence"));
+        ByteBuffer attachment = row.getByteBuffer("attachment");
+        if (attachment != null) {
+            try {
+                message.setAttachment(AttachmentRef.parseFrom(attachment));
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Corrupt attachment reference in message " + message.getMessageId(), e);
+            }
+        }
+        return message.build();
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos());
+    }
+
+    /**
+     * @param messages most recent first
+     * @param hasMore  whether there are older messages
+     */
+    public record HistoryPage(List<ChatMessage> messages, boolean hasMore) {
+        static final HistoryPage EMPTY = new HistoryPage(List.of(), false);
+    }
+}
@@ -0,0 +1,83 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.GetConversationMessagesResponse;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Pages backwards through the messages of a conversation, from {@link MessageHistoryRepository} when a Scylla session
+ * is available and from the in-memory store otherwise.
+ */
+@Service
+public class MessageHistoryService {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 200;
+
+    private final ConversationService conversationService;
+    private final MessageHistoryRepository historyRepository;
+
+    public MessageHistoryService(ConversationService conversationService,
+                                 MessageHistoryRepository historyRepository) {
+        this.conversationService = conversationService;
+        this.historyRepository = historyRepository;
+    }
+
+    /**
+     * @param before only messages sent before this instant are returned, null for the most recent ones
+     *
+     * @return a page of messages, oldest first; empty if the user has no access to the conversation
+     */
+    public GetConversationMessagesResponse getHistory(String currentUser, String conversationId, Instant before,
+                                                      int requestedLimit) {
+        if (conversationService.getUserConversation(conversationId, currentUser) == null) {
+            return GetConversationMessagesResponse.getDefaultInstance();
+        }
+        int limit = requestedLimit > 0 ? Math.min(requestedLimit, MAX_LIMIT) : DEFAULT_LIMIT;
+
+        if (historyRepository.isAvailable()) {
+            MessageHistoryRepository.HistoryPage page = historyRepository.findBefore(conversationId, currentUser,
+                    before, limit);
+            return GetConversationMessagesResponse.newBuilder()
+                    .addAllMessages(page.messages().reversed())
+                    .setHasMore(page.hasMore())
+                    .build();
+        }
+
+        long beforeEpochNanos = before == null
+                ? Long.MAX_VALUE
+                : before.getEpochSecond() * 1_000_000_000L + before.getNano();
+        // one extra message tells whether there is another page
+        List<ChatMessage> messages = conversationService.getConversationMessagesSentBefore(conversationId,
+                currentUser, beforeEpochNanos, limit + 1);
+        boolean hasMore = messages.size() > limit;
+        return GetConversationMessagesResponse.newBuilder()
+                .addAllMessages(hasMore ? messages.subList(1, messages.size()) : messages)
+                .setHasMore(hasMore)
+                .build();
+    }
+
+    /**
+     * Page backwards by sequence, which unlike timestamps never ties. Always served from the in-memory store, the
+     * history table is clustered by time.
+     *
+     * @param beforeSequence only messages preceding this sequence are returned
+     *
+     * @return a page of messages, oldest first; empty if the user has no access to the conversation
+     */
+    public GetConversationMessagesResponse getHistoryBefore(String currentUser, String conversationId,
+                                                            long beforeSequence, int requestedLimit) {
+        int limit = requestedLimit > 0 ? Math.min(requestedLimit, MAX_LIMIT) : DEFAULT_LIMIT;
+        // one extra message tells whether there is another page
+        List<ChatMessage> messages = conversationService.getConversationMessagesBefore(conversationId, currentUser,
+                beforeSequence, limit + 1);
+        boolean hasMore = messages.size() > limit;
+        return GetConversationMessagesResponse.newBuilder()
+                .addAllMessages(hasMore ? messages.subList(1, messages.size()) : messages)
+                .setHasMore(hasMore)
+                .build();
+    }
+}
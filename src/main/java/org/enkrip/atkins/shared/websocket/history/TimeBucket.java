@@ -0,0 +1,21 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import java.time.Instant;
+
+/**
+ * A {@code messages_by_room_time} partition of a conversation, covering messages from its start until the start of
+ * the next bucket, at most one granularity later.
+ */
+public record TimeBucket(long startMillis, BucketGranularity granularity) {
+
+    public long endMillis() {
+        return startMillis + granularity.getDuration().toMillis();
+    }
+
+    /**
+     * @return the {@code time_bucket} partition key, e.g. {@code 2025-09-16T22:00:00Z/PT1H}
+     */
+    public String key() {
+        return Instant.ofEpochMilli(startMillis) + "/" + granularity.getDuration();
+    }
+}
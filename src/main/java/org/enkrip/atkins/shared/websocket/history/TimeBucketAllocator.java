@@ -0,0 +1,119 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns messages to the time buckets of their conversation, adapting the bucket granularity to the message rate.
+ * <p>
+ * A bucket is closed once a message falls after its end or it holds {@code maxMessages}, which bounds the partition
+ * size of even the busiest conversation. The rate observed over the closed bucket, including any silence after it,
+ * is smoothed into the conversation rate, and the next bucket gets the coarsest granularity expected to hold at most
+ * {@code targetMessages}. Quiet conversations thereby end up with a few wide buckets that a history page reads in one
+ * go, busy ones with many narrow buckets.
+ * <p>
+ * A bucket holds the messages from its start until the start of the next one, which is what a history read relies
+ * on. Concurrent senders stamp their messages before they are appended, so a message may arrive after the bucket
+ * covering its time was closed; it goes to that bucket rather than the current one, as long as it is one of the last
+ * {@value #RECENT_BUCKETS} buckets of the conversation.
+ */
+class TimeBucketAllocator {
+    private static final double RATE_SMOOTHING = 0.5;
+    private static final int RECENT_BUCKETS = 16;
+
+    private final int targetMessages;
+    private final int maxMessages;
+    private final BucketGranularity initialGranularity;
+
+    private final Map<String, ConversationBuckets> conversations = new ConcurrentHashMap<>();
+
+    TimeBucketAllocator(int targetMessages, int maxMessages, BucketGranularity initialGranularity) {
+        this.targetMessages = targetMessages;
+        this.maxMessages = maxMessages;
+        this.initialGranularity = initialGranularity;
+    }
+
+    /**
+     * @return whether messages of the conversation were assigned or its latest bucket restored since the start
+     */
+    boolean isKnown(String conversationId) {
+        return conversations.containsKey(conversationId);
+    }
+
+    /**
+     * Continue the latest bucket of a conversation recorded before a restart, with the rate it was opened with. Its
+     * message count is not recorded, it is counted from zero. Ignored if messages were assigned in the meantime.
+     *
+     * @param rate messages per second, negative if none was measured yet
+     */
+    void restore(String conversationId, TimeBucket latest, double rate) {
+        conversations.computeIfAbsent(conversationId, id -> {
+            ConversationBuckets buckets = new ConversationBuckets();
+            buckets.open(latest);
+            buckets.count = 0;
+            buckets.rate = rate;
+            return buckets;
+        });
+    }
+
+    Assignment assign(String conversationId, long epochMillis) {
+        ConversationBuckets buckets = conversations.computeIfAbsent(conversationId, id -> new ConversationBuckets());
+        synchronized (buckets) {
+            TimeBucket current = buckets.current;
+            if (current != null && epochMillis <= current.startMillis()) {
+                // a bucket opened after the time of a late message must not hold it, reads would skip it
+                Map.Entry<Long, TimeBucket> covering = buckets.recent.floorEntry(epochMillis);
+                TimeBucket bucket = covering != null ? covering.getValue() : buckets.recent.firstEntry().getValue();
+                if (bucket == current) {
+                    buckets.count++;
+                }
+                return new Assignment(bucket, false, buckets.rate);
+            }
+            if (current != null && epochMillis < current.endMillis() && buckets.count < maxMessages) {
+                buckets.count++;
+                return new Assignment(current, false, buckets.rate);
+            }
+
+            TimeBucket opened;
+            if (current == null) {
+                opened = new TimeBucket(epochMillis, initialGranularity);
+            } else {
+                double elapsedSeconds = Math.max(1.0, (epochMillis - current.startMillis()) / 1000.0);
+                double observedRate = buckets.count / elapsedSeconds;
+                buckets.rate = buckets.rate < 0
+                        ? observedRate
+                        : RATE_SMOOTHING * observedRate + (1 - RATE_SMOOTHING) * buckets.rate;
+                opened = new TimeBucket(epochMillis, BucketGranularity.forRate(buckets.rate, targetMessages));
+            }
+            buckets.open(opened);
+            return new Assignment(opened, true, buckets.rate);
+        }
+    }
+
+    /**
+     * @param opened whether the bucket was opened by this message and still has to be added to the directory
+     * @param rate   messages per second of the conversation, negative until the first bucket was closed
+     */
+    record Assignment(TimeBucket bucket, boolean opened, double rate) {
+    }
+
+    private static final class ConversationBuckets {
+        private TimeBucket current;
+        private int count;
+        // messages per second, negative until the first bucket was closed
+        private double rate = -1;
+        // the latest buckets by start, for messages that arrive late
+        private final NavigableMap<Long, TimeBucket> recent = new TreeMap<>();
+
+        private void open(TimeBucket bucket) {
+            current = bucket;
+            count = 1;
+            recent.put(bucket.startMillis(), bucket);
+            if (recent.size() > RECENT_BUCKETS) {
+                recent.pollFirstEntry();
+            }
+        }
+    }
+}
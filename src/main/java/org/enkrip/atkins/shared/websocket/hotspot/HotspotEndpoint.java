@@ -0,0 +1,32 @@
+package org.enkrip.atkins.shared.websocket.hotspot;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * {@code /actuator/hotspots}: the conversations and users dominating the load of the node, by signal of
+ * {@link HotspotTracker}.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.hotspots", name = "enabled", havingValue = "true")
+@Endpoint(id = "hotspots")
+public class HotspotEndpoint {
+    private final HotspotTracker hotspotTracker;
+    private final int limit;
+
+    public HotspotEndpoint(HotspotTracker hotspotTracker,
+                           @Value("${atkins.hotspots.endpoint-top:20}") int limit) {
+        this.hotspotTracker = hotspotTracker;
+        this.limit = limit;
+    }
+
+    @ReadOperation
+    public Map<String, HotspotTracker.Hotspots> hotspots() {
+        return hotspotTracker.getHotspots(limit);
+    }
+}
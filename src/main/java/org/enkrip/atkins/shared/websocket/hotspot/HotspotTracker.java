@@ -0,0 +1,194 @@
+package org.enkrip.atkins.shared.websocket.hotspot;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which conversations and users dominate the load of the node, each signal in a {@link SpaceSavingCounter}
+ * of {@code capacity} keys, so the memory stays constant however many conversations there are:
+ * <ul>
+ *     <li>{@value #CONVERSATION_MESSAGES}: messages appended per conversation</li>
+ *     <li>{@value #USER_SENDS}: messages sent per user</li>
+ *     <li>{@value #USER_DELIVERED_BYTES}: bytes sent to the sessions of each user, which shows fan-out spikes</li>
+ *     <li>{@value #CONVERSATION_BYTES}: content bytes retained per conversation</li>
+ * </ul>
+ * The rates decay with a {@code half-life}, so they follow recent load; retained bytes never decay, as the message
+ * store never shrinks, and also count the messages restored at startup. Every {@code interval} the {@code gauge-top}
+ * keys of each signal are published as gauges tagged with the key.
+ * <p>
+ * Messages are recorded while their conversation is locked, so a signal is recorded into one of several stripes
+ * picked by the recording thread, and the stripes are merged into the signal on every tick and before it is read.
+ * Stripes are counters of the same capacity, a merged count therefore still never underestimates a key.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.hotspots", name = "enabled", havingValue = "true")
+public class HotspotTracker implements ConversationListener, DisposableBean {
+    public static final String CONVERSATION_MESSAGES = "conversation-messages";
+    public static final String USER_SENDS = "user-sends";
+    public static final String USER_DELIVERED_BYTES = "user-delivered-bytes";
+    public static final String CONVERSATION_BYTES = "conversation-bytes";
+
+    private final Logger logger = LoggerFactory.getLogger(HotspotTracker.class);
+
+    private final Signal conversationMessages;
+    private final Signal userSends;
+    private final Signal userDeliveredBytes;
+    private final Signal conversationBytes;
+    private final Map<String, Signal> signals = new LinkedHashMap<>();
+    private final Map<String, MultiGauge> gauges = new LinkedHashMap<>();
+    private final double decayFactor;
+    private final int gaugeTop;
+    private final ScheduledExecutorService scheduler;
+
+    // messages replayed at startup were already counted when they were first sent
+    private volatile boolean tracking;
+
+    public HotspotTracker(@Value("${atkins.hotspots.capacity:1000}") int capacity,
+                          @Value("${atkins.hotspots.half-life:5m}") Duration halfLife,
+                          @Value("${atkins.hotspots.interval:10s}") Duration interval,
+                          @Value("${atkins.hotspots.gauge-top:10}") int gaugeTop,
+                          MeterRegistry meterRegistry) {
+        int stripes = Runtime.getRuntime().availableProcessors();
+        this.conversationMessages = new Signal(capacity, stripes);
+        this.userSends = new Signal(capacity, stripes);
+        this.userDeliveredBytes = new Signal(capacity, stripes);
+        this.conversationBytes = new Signal(capacity, stripes);
+        signals.put(CONVERSATION_MESSAGES, conversationMessages);
+        signals.put(USER_SENDS, userSends);
+        signals.put(USER_DELIVERED_BYTES, userDeliveredBytes);
+        signals.put(CONVERSATION_BYTES, conversationBytes);
+        this.decayFactor = Math.pow(0.5, (double) interval.toMillis() / halfLife.toMillis());
+        this.gaugeTop = gaugeTop;
+
+        signals.keySet().forEach(name -> gauges.put(name, MultiGauge.builder("atkins.hotspots." + name)
+                .description("Heavy hitters of " + name + ", tagged with their key")
+                .register(meterRegistry)));
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("hotspot-tracker")
+                .daemon()
+                .factory());
+        long intervalMillis = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::tickQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startTracking() {
+        tracking = true;
+    }
+
+    @Override
+    public void onMessageAppended(Conversation conversation, ChatMessage message) {
+        long bytes = message.getContentBytes().size()
+                + (message.hasAttachment() ? message.getAttachment().getSerializedSize() : 0);
+        conversationBytes.add(message.getConversationId(), bytes);
+        if (tracking) {
+            conversationMessages.add(message.getConversationId(), 1);
+            userSends.add(message.getSender().getUserId(), 1);
+        }
+    }
+
+    /**
+     * Record a message sent to the sessions of a user.
+     *
+     * @param bytes payload size times the number of sessions it was sent to
+     */
+    public void recordDelivery(String username, long bytes) {
+        userDeliveredBytes.add(username, bytes);
+    }
+
+    /**
+     * @return the top keys of every signal, highest first
+     */
+    public Map<String, Hotspots> getHotspots(int limit) {
+        Map<String, Hotspots> hotspots = new LinkedHashMap<>();
+        signals.forEach((name, signal) -> {
+            SpaceSavingCounter counter = signal.merge();
+            hotspots.put(name, new Hotspots(counter.total(), counter.top(limit)));
+        });
+        return hotspots;
+    }
+
+    void tick() {
+        signals.forEach((name, signal) -> {
+            SpaceSavingCounter counter = signal.merge();
+            if (signal != conversationBytes) {
+                counter.decay(decayFactor);
+            }
+            List<MultiGauge.Row<?>> rows = counter.top(gaugeTop).stream()
+                    .<MultiGauge.Row<?>>map(hitter -> MultiGauge.Row.of(Tags.of("key", hitter.key()), hitter.count()))
+                    .toList();
+            // keys that left the top are removed, so the gauges never exceed gauge-top series per signal
+            gauges.get(name).register(rows, true);
+        });
+    }
+
+    private void tickQuietly() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to update hotspots", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * One signal: the counter read and decayed on ticks, and the stripes that record into it in between.
+     */
+    private static final class Signal {
+        private final SpaceSavingCounter merged;
+        private final SpaceSavingCounter[] stripes;
+
+        private Signal(int capacity, int stripes) {
+            this.merged = new SpaceSavingCounter(capacity);
+            this.stripes = new SpaceSavingCounter[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new SpaceSavingCounter(capacity);
+            }
+        }
+
+        private void add(String key, long weight) {
+            stripes[(int) (Thread.currentThread().threadId() % stripes.length)].add(key, weight);
+        }
+
+        /**
+         * @return the signal with everything recorded so far
+         */
+        private SpaceSavingCounter merge() {
+            for (SpaceSavingCounter stripe : stripes) {
+                stripe.drain().forEach(hitter -> merged.add(hitter.key(), hitter.count()));
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * @param total weight of all keys, including the ones not among the top
+     */
+    public record Hotspots(long total, List<SpaceSavingCounter.HeavyHitter> top) {
+    }
+}
@@ -0,0 +1,179 @@
+package org.enkrip.atkins.shared.websocket.hotspot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate top-K of a weighted stream of keys in constant memory, using the space-saving algorithm.
+ * <p>
+ * At most {@code capacity} keys are counted. A key that is not counted while all counters are taken replaces the key
+ * with the lowest count and inherits that count as its error, so a count never underestimates the real weight and
+ * overestimates it by at most its error. Any key whose weight exceeds the total weight divided by the capacity is
+ * guaranteed to be counted. The counters sit in a min-heap indexed by key, so every update is O(log capacity).
+ * <p>
+ * Counts can be decayed by a factor to follow recent load rather than the total since startup; keys whose count
+ * decays to zero are dropped.
+ */
+public final class SpaceSavingCounter {
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final Counter[] heap;
+    private int size;
+    private long total;
+
+    SpaceSavingCounter(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    synchronized void add(String key, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        total += weight;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count += weight;
+            siftDown(counter.position);
+            return;
+        }
+
+        if (size < capacity) {
+            counter = new Counter();
+            counter.key = key;
+            counter.count = weight;
+            counter.position = size;
+            heap[size++] = counter;
+            siftUp(counter.position);
+        } else {
+            // the least counted key makes room, its count becomes the error bound of the new key
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.key = key;
+            counter.error = counter.count;
+            counter.count += weight;
+            siftDown(0);
+        }
+        counters.put(key, counter);
+    }
+
+    /**
+     * Multiply every count by a factor between 0 and 1.
+     */
+    synchronized void decay(double factor) {
+        total = (long) (total * factor);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Counter counter = heap[i];
+            counter.count = (long) (counter.count * factor);
+            counter.error = (long) (counter.error * factor);
+            if (counter.count > 0) {
+                counter.position = kept;
+                heap[kept++] = counter;
+            } else {
+                counters.remove(counter.key);
+            }
+        }
+        Arrays.fill(heap, kept, size, null);
+        size = kept;
+        // dropping keys may break the heap shape, rebuild it bottom up
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * @return up to {@code limit} keys with the highest counts, highest first
+     */
+    synchronized List<HeavyHitter> top(int limit) {
+        List<HeavyHitter> hitters = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            hitters.add(new HeavyHitter(heap[i].key, heap[i].count, heap[i].error));
+        }
+        hitters.sort(Comparator.comparingLong(HeavyHitter::count).reversed());
+        return hitters.size() > limit ? List.copyOf(hitters.subList(0, limit)) : hitters;
+    }
+
+    /**
+     * Remove every key, e.g. to add them to another counter. The counts add up to the total weight, since a key
+     * that replaced another one inherited its count.
+     *
+     * @return the keys that were counted
+     */
+    synchronized List<HeavyHitter> drain() {
+        List<HeavyHitter> hitters = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            hitters.add(new HeavyHitter(heap[i].key, heap[i].count, heap[i].error));
+        }
+        counters.clear();
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+        total = 0;
+        return hitters;
+    }
+
+    /**
+     * @return the weight of all keys added, counted or not, after decay
+     */
+    synchronized long total() {
+        return total;
+    }
+
+    private void siftUp(int position) {
+        Counter counter = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(counter, position);
+    }
+
+    private void siftDown(int position) {
+        Counter counter = heap[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(counter, position);
+    }
+
+    private void place(Counter counter, int position) {
+        heap[position] = counter;
+        counter.position = position;
+    }
+
+    /**
+     * @param count upper bound of the weight of the key
+     * @param error how much of the count may belong to keys the counter replaced
+     */
+    public record HeavyHitter(String key, long count, long error) {
+    }
+
+    private static final class Counter {
+        private String key;
+        private long count;
+        private long error;
+        private int position;
+    }
+}
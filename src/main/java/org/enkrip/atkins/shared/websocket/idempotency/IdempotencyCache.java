@@ -0,0 +1,146 @@
+package org.enkrip.atkins.shared.websocket.idempotency;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the serialized response of recent requests by user and request ID, so that a client retrying a request
+ * after a timeout gets the original response instead of running it again.
+ * <p>
+ * Entries are kept in two generations. New entries go to the current one, lookups check both, and every
+ * {@code window} the previous generation is dropped as a whole and the current one takes its place, so a request is
+ * remembered for one to two windows without tracking the age of single entries. A generation is also rotated early
+ * once it holds half of {@code max-entries}, which bounds the memory at the cost of a shorter window under load.
+ * <p>
+ * Keys are the first 128 bits of the SHA-256 of the user and request ID, whatever their length, and a request
+ * still running is represented by its pending future, so a retry arriving meanwhile waits for the same response.
+ */
+@Component
+public class IdempotencyCache {
+    private final long windowNanos;
+    private final int generationCapacity;
+
+    private final Counter replayed;
+    private final Counter windowRotations;
+    private final Counter capacityRotations;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    public IdempotencyCache(@Value("${atkins.idempotency.window:10m}") Duration window,
+                            @Value("${atkins.idempotency.max-entries:100000}") int maxEntries,
+                            MeterRegistry meterRegistry) {
+        this.windowNanos = window.toNanos();
+        this.generationCapacity = Math.max(1, maxEntries / 2);
+        this.current = new Generation(System.nanoTime());
+        this.previous = new Generation(System.nanoTime());
+
+        this.replayed = meterRegistry.counter("atkins.idempotency.replayed");
+        this.windowRotations = meterRegistry.counter("atkins.idempotency.rotations", "cause", "window");
+        this.capacityRotations = meterRegistry.counter("atkins.idempotency.rotations", "cause", "capacity");
+        Gauge.builder("atkins.idempotency.entries", this,
+                        cache -> cache.current.size.get() + cache.previous.size.get())
+                .register(meterRegistry);
+    }
+
+    /**
+     * Run a request once per user and request ID.
+     *
+     * @param operation starts the request and returns its serialized response, only called for the first attempt
+     * @return the response of the first attempt, which may still be running
+     */
+    public CompletableFuture<byte[]> execute(String user, String requestId,
+                                             Supplier<CompletableFuture<byte[]>> operation) {
+        if (requestId == null || requestId.isEmpty()) {
+            return operation.get();
+        }
+
+        Key key = Key.of(user, requestId);
+        Generation generation = currentGeneration();
+        CompletableFuture<byte[]> existing = previous.entries.get(key);
+        if (existing == null) {
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            existing = generation.entries.putIfAbsent(key, response);
+            if (existing == null) {
+                generation.size.incrementAndGet();
+                CompletableFuture<byte[]> attempt;
+                try {
+                    attempt = operation.get();
+                } catch (RuntimeException e) {
+                    attempt = CompletableFuture.failedFuture(e);
+                }
+                attempt.whenComplete((bytes, error) -> {
+                    if (error == null) {
+                        response.complete(bytes);
+                        return;
+                    }
+                    // a failed attempt is not remembered, the retry runs the request again
+                    if (generation.entries.remove(key, response)) {
+                        generation.size.decrementAndGet();
+                    }
+                    response.completeExceptionally(error);
+                });
+                return response;
+            }
+        }
+        replayed.increment();
+        return existing;
+    }
+
+    private Generation currentGeneration() {
+        Generation generation = current;
+        long now = System.nanoTime();
+        boolean expired = now - generation.startNanos >= windowNanos;
+        if (!expired && generation.size.get() < generationCapacity) {
+            return generation;
+        }
+        synchronized (this) {
+            if (current == generation) {
+                (expired ? windowRotations : capacityRotations).increment();
+                // after two windows without a rotation both generations are stale
+                previous = now - generation.startNanos >= 2 * windowNanos ? new Generation(now) : generation;
+                current = new Generation(now);
+            }
+            return current;
+        }
+    }
+
+    private static final class Generation {
+        private final long startNanos;
+        private final Map<Key, CompletableFuture<byte[]>> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Generation(long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+
+    private record Key(long high, long low) {
+        static Key of(String user, String requestId) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            digest.update(user.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest(requestId.getBytes(StandardCharsets.UTF_8)));
+            return new Key(hash.getLong(), hash.getLong());
+        }
+    }
+}
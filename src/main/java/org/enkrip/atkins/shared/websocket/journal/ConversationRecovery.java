@@ -0,0 +1,95 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.enkrip.atkins.proto.JournalRecord;
+import org.enkrip.atkins.proto.SnapshotManifest;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the in-memory conversation state at startup: the latest {@link ConversationSnapshots snapshot} first,
+ * then the {@link MessageJournal} records written after it. Recovery runs once all singletons are created, which is
+ * before the web server starts, so the node only accepts connections and reports readiness once it completed.
+ */
+@Component
+public class ConversationRecovery implements SmartInitializingSingleton {
+
+    private final Logger logger = LoggerFactory.getLogger(ConversationRecovery.class);
+
+    private final ObjectProvider<ConversationSnapshots> conversationSnapshots;
+    private final ObjectProvider<MessageJournal> messageJournal;
+    private final ConversationService conversationService;
+    private final MeterRegistry meterRegistry;
+
+    public ConversationRecovery(ObjectProvider<ConversationSnapshots> conversationSnapshots,
+                                ObjectProvider<MessageJournal> messageJournal,
+                                ConversationService conversationService,
+                                MeterRegistry meterRegistry) {
+        this.conversationSnapshots = conversationSnapshots;
+        this.messageJournal = messageJournal;
+        this.conversationService = conversationService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        ConversationSnapshots snapshots = conversationSnapshots.getIfAvailable();
+        MessageJournal journal = messageJournal.getIfAvailable();
+        if (snapshots == null && journal == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (snapshots != null) {
+                Optional<SnapshotManifest> manifest = snapshots.load();
+                logger.info("Snapshot loaded in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                manifest.ifPresent(m -> logger.debug("Snapshot covers the journal up to position {}",
+                        m.getJournalPosition()));
+            }
+            if (journal != null) {
+                replayJournal(journal);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        TimeGauge.builder("atkins.recovery.duration", () -> elapsedNanos, TimeUnit.NANOSECONDS)
+                .description("Time spent rebuilding the conversation state at startup")
+                .register(meterRegistry);
+        logger.info("Conversation state recovered in {} ms", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    }
+
+    private void replayJournal(MessageJournal journal) throws IOException {
+        long start = System.nanoTime();
+        AtomicLong skipped = new AtomicLong();
+
+        long replayed = journal.replay(record -> {
+            if (record.getRecordCase() == JournalRecord.RecordCase.CONVERSATION) {
+                conversationService.restoreConversation(record.getConversation());
+            } else if (record.getRecordCase() == JournalRecord.RecordCase.MESSAGE
+                    && !conversationService.restoreMessage(record.getMessage())) {
+                skipped.incrementAndGet();
+            }
+        });
+
+        long elapsedNanos = System.nanoTime() - start;
+        TimeGauge.builder("atkins.journal.replay.duration", () -> elapsedNanos, TimeUnit.NANOSECONDS)
+                .description("Time spent replaying the journal at startup")
+                .register(meterRegistry);
+        logger.info("Replayed {} journal records in {} ms ({} orphaned messages skipped)",
+                replayed, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), skipped.get());
+    }
+}
@@ -0,0 +1,324 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.JournalRecord;
+import org.enkrip.atkins.proto.SnapshotManifest;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Periodic binary snapshots of the conversation state.
+ * <p>
+ * A snapshot is a directory of shard files holding length-delimited {@link JournalRecord}s: each conversation
+ * followed by its messages. Conversations are spread over the shards by ID, so shards are written and loaded in
+ * parallel and the per-user indexes are rebuilt from the conversation participants while loading. When the
+ * {@link MessageJournal} is enabled, the snapshot remembers the journal position it covers and the journal is
+ * checkpointed there, so a restart only replays the journal tail.
+ * <p>
+ * The final snapshot is written when the context stops, in a phase after the servlet web server stopped taking
+ * messages. Lifecycle beans are all stopped before any bean is destroyed, so the journal is still open to be
+ * checkpointed.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.snapshot", name = "enabled", havingValue = "true")
+public class ConversationSnapshots implements SmartLifecycle, DisposableBean {
+    // below the phase of the web server, which stops at SmartLifecycle.DEFAULT_PHASE - 2048
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String MANIFEST_FILE = "manifest";
+    private static final int RETAINED_SNAPSHOTS = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Logger logger = LoggerFactory.getLogger(ConversationSnapshots.class);
+
+    private final Path directory;
+    private final int shardCount;
+    private final ConversationService conversationService;
+    private final CompactMessageStore messageStore;
+    private final ObjectProvider<MessageJournal> messageJournal;
+    private final Timer writeTimer;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean loaded;
+    private volatile boolean running;
+
+    public ConversationSnapshots(@Value("${atkins.snapshot.directory:data/snapshot}") Path directory,
+                                 @Value("${atkins.snapshot.interval:5m}") Duration interval,
+                                 @Value("${atkins.snapshot.shards:0}") int shardCount,
+                                 ConversationService conversationService,
+                                 CompactMessageStore messageStore,
+                                 ObjectProvider<MessageJournal> messageJournal,
+                                 MeterRegistry meterRegistry) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.shardCount = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        this.conversationService = conversationService;
+        this.messageStore = messageStore;
+        this.messageJournal = messageJournal;
+        this.writeTimer = meterRegistry.timer("atkins.snapshot.write");
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("conversation-snapshot")
+                .daemon()
+                .factory());
+        long intervalMillis = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::writeQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Load the latest complete snapshot, shards in parallel. Snapshots are only written after this was called, so
+     * an empty state can never overwrite a previous snapshot.
+     *
+     * @return the manifest of the loaded snapshot, or empty if there was none
+     */
+    public Optional<SnapshotManifest> load() throws IOException {
+        try {
+            Optional<Path> latest = listSnapshots().stream().reduce((first, second) -> second);
+            if (latest.isEmpty()) {
+                return Optional.empty();
+            }
+
+            Path snapshot = latest.get();
+            SnapshotManifest manifest;
+            try (InputStream in = Files.newInputStream(snapshot.resolve(MANIFEST_FILE))) {
+                manifest = SnapshotManifest.parseFrom(in);
+            }
+
+            AtomicLong skipped = new AtomicLong();
+            runShards(manifest.getShardCount(), shard -> {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot.resolve(shardFile(shard))),
+                        BUFFER_SIZE)) {
+                    JournalRecord record;
+                    while ((record = JournalRecord.parseDelimitedFrom(in)) != null) {
+                        if (record.getRecordCase() == JournalRecord.RecordCase.CONVERSATION) {
+                            conversationService.restoreConversation(record.getConversation());
+                        } else if (record.getRecordCase() == JournalRecord.RecordCase.MESSAGE
+                                && !conversationService.restoreStoredMessage(record.getMessage())) {
+                            skipped.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            if (skipped.get() > 0) {
+                logger.warn("Skipped {} snapshot messages of unknown conversations", skipped.get());
+            }
+            logger.info("Loaded snapshot {} with {} conversations and {} messages", snapshot.getFileName(),
+                    manifest.getConversationCount(), manifest.getMessageCount());
+            return Optional.of(manifest);
+        } finally {
+            loaded = true;
+        }
+    }
+
+    /**
+     * Write a new snapshot and checkpoint the journal at the position it covers.
+     */
+    public synchronized void write() throws IOException {
+        if (!loaded) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        MessageJournal journal = messageJournal.getIfAvailable();
+        // everything journaled before this position is guaranteed to be part of the state written below; a
+        // conversation is journaled before it is listed, so the position is taken once no registration is pending
+        long journalPosition = journal == null ? 0
+                : conversationService.withoutPendingRegistrations(journal::currentPosition);
+        long createdAt = System.currentTimeMillis();
+
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + createdAt + TEMPORARY_SUFFIX);
+        Files.createDirectories(temporary);
+
+        List<String> conversationIds = conversationService.getConversations().stream()
+                .map(Conversation::getConversationId)
+                .toList();
+        AtomicLong conversationCount = new AtomicLong();
+        AtomicLong messageCount = new AtomicLong();
+        runShards(shardCount, shard -> {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary.resolve(shardFile(shard))),
+                    BUFFER_SIZE)) {
+                for (String conversationId : conversationIds) {
+                    if (shardOf(conversationId) != shard) {
+                        continue;
+                    }
+                    // count the messages before reading the conversation, so the conversation is never older
+                    // than the messages written with it; newer messages are replayed from the journal
+                    int messages = messageStore.getMessageCount(conversationId);
+                    Conversation conversation = conversationService.getConversation(conversationId);
+                    JournalRecord.newBuilder().setConversation(conversation).build().writeDelimitedTo(out);
+                    writeMessages(out, conversationId, messages);
+                    conversationCount.incrementAndGet();
+                    messageCount.addAndGet(messages);
+                }
+            }
+        });
+
+        try (OutputStream out = Files.newOutputStream(temporary.resolve(MANIFEST_FILE))) {
+            SnapshotManifest.newBuilder()
+                    .setCreatedAtMillis(createdAt)
+                    .setJournalPosition(journalPosition)
+                    .setShardCount(shardCount)
+                    .setConversationCount(conversationCount.get())
+                    .setMessageCount(messageCount.get())
+                    .build()
+                    .writeTo(out);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_PREFIX + createdAt), StandardCopyOption.ATOMIC_MOVE);
+
+        if (journal != null) {
+            journal.checkpoint(journalPosition);
+        }
+        deleteOldSnapshots();
+        writeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void writeMessages(OutputStream out, String conversationId, int count) throws IOException {
+        try {
+            messageStore.forEachMessage(conversationId, null, 0, count, message -> {
+                try {
+                    JournalRecord.newBuilder().setMessage(message).build().writeDelimitedTo(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (Exception e) {
+            logger.error("Failed to write conversation snapshot", e);
+        }
+    }
+
+    private void runShards(int shards, ShardTask task) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(shards, Thread.ofPlatform()
+                .name("conversation-snapshot-shard-", 0)
+                .factory());
+        try {
+            List<Future<?>> futures = new ArrayList<>(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                int current = shard;
+                futures.add(executor.submit(() -> {
+                    task.run(current);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing snapshot shards", e);
+        } catch (Exception e) {
+            throw new IOException("Failed to process snapshot shards", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SNAPSHOT_PREFIX))
+                    .filter(file -> Files.exists(file.resolve(MANIFEST_FILE)))
+                    .filter(file -> !file.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+                    .sorted(Comparator.comparingLong(ConversationSnapshots::createdAt))
+                    .toList();
+        }
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        for (int i = 0; i < snapshots.size() - RETAINED_SNAPSHOTS; i++) {
+            FileSystemUtils.deleteRecursively(snapshots.get(i));
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path leftover : files.filter(file -> file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)).toList()) {
+                FileSystemUtils.deleteRecursively(leftover);
+            }
+        }
+    }
+
+    private int shardOf(String conversationId) {
+        return Math.floorMod(conversationId.hashCode(), shardCount);
+    }
+
+    private static String shardFile(int shard) {
+        return String.format("shard-%03d", shard);
+    }
+
+    private static long createdAt(Path snapshot) {
+        return Long.parseLong(snapshot.getFileName().toString().substring(SNAPSHOT_PREFIX.length()));
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        // a final snapshot on shutdown makes the next start a warm restart
+        writeQuietly();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    @Override
+    public void destroy() {
+        // only stops the schedule when the context failed to start, a stopped context already wrote the snapshot
+        scheduler.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface ShardTask {
+        void run(int shard) throws IOException;
+    }
+}
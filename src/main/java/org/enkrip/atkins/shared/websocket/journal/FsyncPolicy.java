@@ -0,0 +1,20 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+/**
+ * Controls when appended journal records are forced to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every mutation waits until its records are durable, once its conversation is unlocked and before it is
+     * acknowledged. Concurrent mutations share a single fsync (group commit).
+     */
+    GROUP,
+    /**
+     * Records are forced in the background at a fixed interval; a crash may lose the last interval of writes.
+     */
+    INTERVAL,
+    /**
+     * Records are never forced explicitly and reach the disk whenever the OS writes back the mapped pages.
+     */
+    NONE
+}
@@ -0,0 +1,190 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.enkrip.atkins.proto.JournalRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A memory-mapped journal segment file.
+ * <p>
+ * Records are stored as {@code [int length][int crc32c][payload]}. The file is pre-sized to its capacity, so the
+ * first zero length marks the end of the written data. Segment files are named after the journal position of their
+ * first byte, which makes positions global across segments.
+ */
+final class JournalSegment implements Closeable {
+    static final String FILE_SUFFIX = ".journal";
+    static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final Path path;
+    private final long basePosition;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writeOffset;
+
+    private JournalSegment(Path path, long basePosition, FileChannel channel, MappedByteBuffer buffer, int writeOffset) {
+        this.path = path;
+        this.basePosition = basePosition;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.writeOffset = writeOffset;
+    }
+
+    static JournalSegment create(Path directory, long basePosition, int capacity) throws IOException {
+        return open(directory.resolve(fileName(basePosition)), capacity, 0);
+    }
+
+    /**
+     * Open an existing segment for appending after its last valid record. Anything past that point, such as a
+     * record torn by a crash, is zeroed so it can never be mistaken for data later.
+     */
+    static JournalSegment reopen(Path path, int validEnd) throws IOException {
+        JournalSegment segment = open(path, Math.toIntExact(Files.size(path)), validEnd);
+        segment.zero(validEnd, segment.dataEnd(validEnd));
+        return segment;
+    }
+
+    /**
+     * @return the offset right after the last non-zero byte at or past {@code from}. Only reading the tail leaves its
+     * pages clean, so the usual all zero tail of a segment is not written back.
+     */
+    private int dataEnd(int from) {
+        int end = buffer.capacity();
+        while (end - Long.BYTES >= from && buffer.getLong(end - Long.BYTES) == 0) {
+            end -= Long.BYTES;
+        }
+        while (end > from && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private void zero(int from, int to) {
+        for (int offset = from; offset < to; offset += ZEROS.length) {
+            buffer.put(offset, ZEROS, 0, Math.min(ZEROS.length, to - offset));
+        }
+    }
+
+    private static JournalSegment open(Path path, int capacity, int writeOffset) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return new JournalSegment(path, basePosition(path), channel, buffer, writeOffset);
+    }
+
+    boolean hasRoom(int payloadLength) {
+        return writeOffset + HEADER_BYTES + payloadLength <= buffer.capacity();
+    }
+
+    /**
+     * @return the journal position right after the appended record
+     */
+    long append(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+
+        buffer.putInt(writeOffset + Integer.BYTES, (int) crc.getValue());
+        buffer.put(writeOffset + HEADER_BYTES, payload);
+        buffer.putInt(writeOffset, payload.length);
+        writeOffset += HEADER_BYTES + payload.length;
+        return endPosition();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    long getBasePosition() {
+        return basePosition;
+    }
+
+    long endPosition() {
+        return basePosition + writeOffset;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Decode the valid records of a segment file, starting at the given journal position.
+     */
+    static ReadResult read(Path path, long fromPosition) throws IOException {
+        long base = basePosition(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<JournalRecord> records = new ArrayList<>();
+            int offset = (int) Math.max(0, fromPosition - base);
+            boolean torn = false;
+
+            while (offset + HEADER_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+                    torn = true;
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice(offset + HEADER_BYTES, length);
+                CRC32C crc = new CRC32C();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                    torn = true;
+                    break;
+                }
+                try {
+                    records.add(JournalRecord.parseFrom(payload));
+                } catch (InvalidProtocolBufferException e) {
+                    torn = true;
+                    break;
+                }
+                offset += HEADER_BYTES + length;
+            }
+            return new ReadResult(path, records, offset, torn);
+        }
+    }
+
+    static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(FILE_SUFFIX))
+                    .sorted(Comparator.comparingLong(JournalSegment::basePosition))
+                    .toList();
+        }
+    }
+
+    static long basePosition(Path path) {
+        String fileName = path.getFileName().toString();
+        return Long.parseLong(fileName.substring(0, fileName.length() - FILE_SUFFIX.length()));
+    }
+
+    private static String fileName(long basePosition) {
+        return String.format("%020d%s", basePosition, FILE_SUFFIX);
+    }
+
+    /**
+     * @param validEnd offset right after the last valid record
+     * @param torn     whether decoding stopped on a damaged record rather than on the end of the data
+     */
+    record ReadResult(Path path, List<JournalRecord> records, int validEnd, boolean torn) {
+    }
+}
@@ -0,0 +1,298 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.JournalRecord;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Append-only local journal of conversation mutations, stored in memory-mapped segment files.
+ * <p>
+ * Every started conversation and every stored message is appended as a length-prefixed {@link JournalRecord}.
+ * Segments roll over once they are full, and records are forced to disk according to the configured
+ * {@link FsyncPolicy}. At startup {@link #replay(Consumer)} decodes the segments after the last checkpoint in
+ * parallel and hands the records back in their original order, which lets single-node deployments rebuild their
+ * state without a database.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.journal", name = "enabled", havingValue = "true")
+public class MessageJournal implements ConversationListener, DisposableBean {
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Logger logger = LoggerFactory.getLogger(MessageJournal.class);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final int replayParallelism;
+
+    private final Counter appendedRecords;
+    private final Timer fsyncTimer;
+
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    private volatile JournalSegment activeSegment;
+    private volatile long durablePosition;
+    private volatile long appendedPosition;
+    private volatile boolean recovering = true;
+
+    public MessageJournal(@Value("${atkins.journal.directory:data/journal}") Path directory,
+                          @Value("${atkins.journal.segment-size:64MB}") DataSize segmentSize,
+                          @Value("${atkins.journal.fsync-policy:INTERVAL}") FsyncPolicy fsyncPolicy,
+                          @Value("${atkins.journal.fsync-interval:100ms}") Duration fsyncInterval,
+                          @Value("${atkins.journal.replay-parallelism:0}") int replayParallelism,
+                          MeterRegistry meterRegistry) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = Math.toIntExact(segmentSize.toBytes());
+        this.fsyncPolicy = fsyncPolicy;
+        this.replayParallelism = replayParallelism > 0 ? replayParallelism : Runtime.getRuntime().availableProcessors();
+
+        this.appendedRecords = meterRegistry.counter("atkins.journal.records");
+        this.fsyncTimer = meterRegistry.timer("atkins.journal.fsync");
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("journal-flusher")
+                    .daemon()
+                    .factory());
+            long intervalNanos = fsyncInterval.toNanos();
+            flusher.scheduleWithFixedDelay(this::flush, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    @Override
+    public void onConversationStarted(Conversation conversation) {
+        write(JournalRecord.newBuilder().setConversation(conversation).build());
+    }
+
+    @Override
+    public void onMessageAppended(Conversation conversation, ChatMessage message) {
+        write(JournalRecord.newBuilder().setMessage(message).build());
+    }
+
+    /**
+     * With the {@link FsyncPolicy#GROUP} policy, waits until the records of the mutation are durable. Waiting once
+     * the conversation is unlocked lets its next mutations be appended meanwhile and share the same fsync.
+     */
+    @Override
+    public void onConversationUnlocked() {
+        if (fsyncPolicy == FsyncPolicy.GROUP && !recovering) {
+            // everything appended so far, which includes the records of the mutation on this thread
+            awaitDurable(appendedPosition);
+        }
+    }
+
+    /**
+     * Append a record, blocking until it is durable when the {@link FsyncPolicy#GROUP} policy is used.
+     * Records produced while the journal is being replayed are ignored, they are already journaled.
+     */
+    public void append(JournalRecord record) {
+        long position = write(record);
+        if (position > 0 && fsyncPolicy == FsyncPolicy.GROUP) {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * @return the journal position right after the record, or 0 if it was ignored
+     */
+    private long write(JournalRecord record) {
+        if (recovering) {
+            return 0;
+        }
+
+        byte[] payload = record.toByteArray();
+        long position;
+        synchronized (this) {
+            JournalSegment segment = activeSegment;
+            if (!segment.hasRoom(payload.length)) {
+                segment = roll(segment, payload.length);
+            }
+            position = segment.append(payload);
+            appendedPosition = position;
+        }
+        appendedRecords.increment();
+        return position;
+    }
+
+    /**
+     * @return the journal position right after the last appended record
+     */
+    public synchronized long currentPosition() {
+        return activeSegment.endPosition();
+    }
+
+    /**
+     * Replay every record written after the last checkpoint, then open the journal for appending.
+     *
+     * @param consumer receives the records in the order they were appended
+     * @return the number of replayed records
+     */
+    public synchronized long replay(Consumer<JournalRecord> consumer) throws IOException {
+        long checkpoint = readCheckpoint();
+        List<Path> segments = JournalSegment.list(directory);
+
+        long replayed = 0;
+        JournalSegment.ReadResult last = null;
+        ExecutorService decoders = Executors.newFixedThreadPool(replayParallelism, Thread.ofPlatform()
+                .name("journal-replay-", 0)
+                .factory());
+        try {
+            // decode up to replayParallelism segments ahead while applying the oldest one in order
+            Deque<Future<JournalSegment.ReadResult>> window = new ArrayDeque<>();
+            int next = segmentContaining(segments, checkpoint);
+            while (next < segments.size() || !window.isEmpty()) {
+                while (next < segments.size() && window.size() < replayParallelism) {
+                    Path segment = segments.get(next++);
+                    window.add(decoders.submit(() -> JournalSegment.read(segment, checkpoint)));
+                }
+
+                last = window.poll().get();
+                if (last.torn()) {
+                    logger.warn("Journal segment {} is damaged after offset {}, ignoring the rest of it",
+                            last.path(), last.validEnd());
+                }
+                last.records().forEach(consumer);
+                replayed += last.records().size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying the journal", e);
+        } catch (Exception e) {
+            throw new IOException("Failed to replay the journal", e);
+        } finally {
+            decoders.shutdownNow();
+        }
+
+        if (last != null) {
+            activeSegment = JournalSegment.reopen(last.path(), last.validEnd());
+        } else {
+            activeSegment = JournalSegment.create(directory, checkpoint, segmentSize);
+        }
+        durablePosition = activeSegment.endPosition();
+        recovering = false;
+        return replayed;
+    }
+
+    /**
+     * Record that everything before the given position is covered elsewhere, e.g. by a snapshot. Future replays
+     * start at this position and segments that end before it are deleted.
+     */
+    public void checkpoint(long position) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(temporary, ByteBuffer.allocate(Long.BYTES).putLong(position).array());
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        List<Path> segments = JournalSegment.list(directory);
+        Path active = activeSegment == null ? null : activeSegment.getPath();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            Path segment = segments.get(i);
+            if (!segment.equals(active) && JournalSegment.basePosition(segments.get(i + 1)) <= position) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    /**
+     * Force all appended records to disk.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            JournalSegment segment;
+            long target;
+            synchronized (this) {
+                segment = activeSegment;
+                if (segment == null) {
+                    return;
+                }
+                target = segment.endPosition();
+            }
+            if (durablePosition >= target) {
+                return;
+            }
+            fsyncTimer.record(segment::force);
+            durablePosition = target;
+        }
+    }
+
+    private void awaitDurable(long position) {
+        // whoever enters first forces everything appended so far, the others find their record already durable
+        while (durablePosition < position) {
+            flush();
+        }
+    }
+
+    private JournalSegment roll(JournalSegment current, int payloadLength) {
+        try {
+            // sealed segments are forced right away so only the active segment needs background flushing
+            current.force();
+            current.close();
+            int capacity = Math.max(segmentSize, JournalSegment.HEADER_BYTES + payloadLength);
+            JournalSegment segment = JournalSegment.create(directory, current.endPosition(), capacity);
+            activeSegment = segment;
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll journal segment", e);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong();
+    }
+
+    private static int segmentContaining(List<Path> segments, long position) {
+        int first = 0;
+        while (first + 1 < segments.size() && JournalSegment.basePosition(segments.get(first + 1)) <= position) {
+            first++;
+        }
+        return first;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        flush();
+        synchronized (this) {
+            if (activeSegment != null) {
+                activeSegment.close();
+            }
+        }
+    }
+}
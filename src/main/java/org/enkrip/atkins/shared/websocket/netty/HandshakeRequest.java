@@ -0,0 +1,77 @@
+package org.enkrip.atkins.shared.websocket.netty;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.server.ServerHttpAsyncRequestControl;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The upgrade request of a Reactor Netty connection, as passed to the handshake interceptors.
+ */
+class HandshakeRequest implements ServerHttpRequest {
+    private final URI uri;
+    private final HttpHeaders headers;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    HandshakeRequest(URI uri, HttpHeaders headers, InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
+        this.uri = uri;
+        this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return HttpMethod.GET;
+    }
+
+    @Override
+    public URI getURI() {
+        return uri;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public InputStream getBody() {
+        return InputStream.nullInputStream();
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public ServerHttpAsyncRequestControl getAsyncRequestControl(ServerHttpResponse response) {
+        throw new UnsupportedOperationException("Asynchronous handshakes are not supported");
+    }
+}
@@ -0,0 +1,42 @@
+package org.enkrip.atkins.shared.websocket.netty;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.ServerHttpResponse;
+
+import java.io.OutputStream;
+
+/**
+ * Collects the status and headers the handshake interceptors set, applied to the Netty response afterward.
+ */
+class HandshakeResponse implements ServerHttpResponse {
+    private final HttpHeaders headers = new HttpHeaders();
+    private HttpStatusCode statusCode;
+
+    HttpStatusCode getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public void setStatusCode(HttpStatusCode status) {
+        this.statusCode = status;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public OutputStream getBody() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,280 @@
+package org.enkrip.atkins.shared.websocket.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.server.WebsocketServerSpec;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+import reactor.netty.resources.LoopResources;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves a Spring {@link WebSocketHandler} on Reactor Netty, next to the servlet container, holding connections on
+ * a fixed number of event loop threads: an idle connection costs a channel and a few buffers rather than a servlet
+ * request and an HTTP session.
+ * <p>
+ * The event loops only do I/O. Inbound frames are copied out of their pooled buffers and handed to the handler on
+ * {@code handler-threads} workers, in order per connection, as the handlers may block on storage. The handshake runs
+ * the same {@link HandshakeInterceptor}s as the servlet endpoint. There is no servlet session, so the HTTP session ID
+ * attribute is the {@code JSESSIONID} cookie a client got from the REST API, or a fresh ID.
+ */
+public class ReactorNettyWebSocketServer implements SmartLifecycle {
+    // the phase of the servlet container: started once the state is recovered, stopped before the final snapshot
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 2048;
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final Logger logger = LoggerFactory.getLogger(ReactorNettyWebSocketServer.class);
+
+    private final WebSocketHandler handler;
+    private final List<HandshakeInterceptor> interceptors;
+    private final String path;
+    private final String host;
+    private final int port;
+    private final int eventLoopThreads;
+    private final int handlerThreads;
+    private final int maxFrameSize;
+    private final int sendBufferSize;
+
+    private LoopResources loopResources;
+    private Scheduler handlerScheduler;
+    private DisposableServer server;
+
+    /**
+     * @param port             0 for an ephemeral port, see {@link #getPort()}
+     * @param eventLoopThreads 0 for one per core
+     */
+    public ReactorNettyWebSocketServer(WebSocketHandler handler, List<HandshakeInterceptor> interceptors, String path,
+                                       String host, int port, int eventLoopThreads, int handlerThreads,
+                                       int maxFrameSize, int sendBufferSize) {
+        this.handler = handler;
+        this.interceptors = List.copyOf(interceptors);
+        this.path = path;
+        this.host = host;
+        this.port = port;
+        this.eventLoopThreads = eventLoopThreads > 0 ? eventLoopThreads : Runtime.getRuntime().availableProcessors();
+        this.handlerThreads = handlerThreads;
+        this.maxFrameSize = maxFrameSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    @Override
+    public synchronized void start() {
+        loopResources = LoopResources.create("netty-websocket", 1, eventLoopThreads, true);
+        handlerScheduler = Schedulers.newBoundedElastic(handlerThreads, Integer.MAX_VALUE, "netty-websocket-handler");
+        server = HttpServer.create()
+                .host(host)
+                .port(port)
+                .runOn(loopResources)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .route(routes -> routes.get(path, this::handshake))
+                .bindNow();
+        logger.info("Reactor Netty WebSocket transport listening on port {}", server.port());
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (server != null) {
+            server.disposeNow(Duration.ofSeconds(10));
+            handlerScheduler.dispose();
+            loopResources.dispose();
+            server = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return server != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    public synchronized int getPort() {
+        return server == null ? port : server.port();
+    }
+
+    private Publisher<Void> handshake(HttpServerRequest request, HttpServerResponse response) {
+        if (!"websocket".equalsIgnoreCase(request.requestHeaders().get(HttpHeaderNames.UPGRADE))) {
+            return response.status(HttpResponseStatus.BAD_REQUEST).send();
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        request.requestHeaders().forEach(header -> headers.add(header.getKey(), header.getValue()));
+        String scheme = "https".equals(request.scheme()) ? "wss" : "ws";
+        URI uri = URI.create(scheme + "://" + request.hostName() + ":" + request.hostPort() + request.uri());
+        HandshakeRequest handshakeRequest = new HandshakeRequest(uri, headers, request.hostAddress(),
+                request.remoteAddress());
+        HandshakeResponse handshakeResponse = new HandshakeResponse();
+
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        attributes.put(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME, httpSessionId(request));
+        boolean accepted = true;
+        int applied = 0;
+        try {
+            for (HandshakeInterceptor interceptor : interceptors) {
+                if (!interceptor.beforeHandshake(handshakeRequest, handshakeResponse, handler, attributes)) {
+                    accepted = false;
+                    break;
+                }
+                applied++;
+            }
+        } catch (Exception e) {
+            logger.error("Handshake interceptor failed", e);
+            return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send();
+        } finally {
+            for (int i = applied - 1; i >= 0; i--) {
+                interceptors.get(i).afterHandshake(handshakeRequest, handshakeResponse, handler, null);
+            }
+        }
+
+        handshakeResponse.getHeaders().forEach((name, values) -> values.forEach(value -> response.addHeader(name,
+                value)));
+        if (!accepted) {
+            int status = handshakeResponse.getStatusCode() == null ? HttpResponseStatus.FORBIDDEN.code()
+                    : handshakeResponse.getStatusCode().value();
+            return response.status(status).send();
+        }
+
+        WebsocketServerSpec spec = WebsocketServerSpec.builder()
+                .maxFramePayloadLength(maxFrameSize)
+                .build();
+        return response.sendWebsocket((inbound, outbound) -> serve(inbound, outbound, uri, headers, attributes,
+                handshakeRequest), spec);
+    }
+
+    private static String httpSessionId(HttpServerRequest request) {
+        Set<Cookie> cookies = request.cookies().get(SESSION_COOKIE);
+        if (cookies != null && !cookies.isEmpty()) {
+            return cookies.iterator().next().value();
+        }
+        return UUID.randomUUID().toString();
+    }
+
+    private Publisher<Void> serve(WebsocketInbound inbound, WebsocketOutbound outbound, URI uri, HttpHeaders headers,
+                                  Map<String, Object> attributes, HandshakeRequest handshakeRequest) {
+        ReactorNettyWebSocketSession session = new ReactorNettyWebSocketSession(UUID.randomUUID().toString(), uri,
+                headers, attributes, handshakeRequest.getLocalAddress(), handshakeRequest.getRemoteAddress(),
+                maxFrameSize, sendBufferSize);
+        AtomicBoolean closed = new AtomicBoolean();
+        try {
+            handler.afterConnectionEstablished(session);
+        } catch (Exception e) {
+            logger.error("Failed to establish WebSocket session {}", session.getId(), e);
+            return outbound.sendClose(CloseStatus.SERVER_ERROR.getCode(), CloseStatus.SERVER_ERROR.getReason());
+        }
+
+        inbound.receiveCloseStatus()
+                .subscribe(status -> session.closedByPeer(new CloseStatus(status.code(), status.reasonText())));
+
+        Mono<Void> receive = inbound.aggregateFrames(maxFrameSize)
+                .receiveFrames()
+                .mapNotNull(ReactorNettyWebSocketServer::toMessage)
+                .publishOn(handlerScheduler)
+                .doOnNext(message -> handleMessage(session, message))
+                .then()
+                .onErrorResume(e -> {
+                    handleTransportError(session, e);
+                    return Mono.empty();
+                })
+                .doFinally(signal -> session.closedByPeer(CloseStatus.NO_CLOSE_FRAME));
+
+        Mono<Void> send = outbound.sendObject(session.outboundFrames(outbound.alloc()))
+                .then()
+                .onErrorComplete()
+                .doFinally(signal -> session.sendClose(outbound));
+
+        return Mono.when(receive, send)
+                .doFinally(signal -> {
+                    if (closed.compareAndSet(false, true)) {
+                        afterConnectionClosed(session);
+                    }
+                });
+    }
+
+    private static WebSocketMessage<?> toMessage(WebSocketFrame frame) {
+        // the frame is released once this returns, the handler works on a copy
+        ByteBuf content = frame.content();
+        byte[] payload = new byte[content.readableBytes()];
+        content.readBytes(payload);
+        if (frame instanceof BinaryWebSocketFrame) {
+            return new BinaryMessage(payload);
+        }
+        if (frame instanceof TextWebSocketFrame) {
+            return new TextMessage(new String(payload, StandardCharsets.UTF_8));
+        }
+        // pings are answered by Reactor Netty, pongs reach the handler as they show the connection is alive
+        if (frame instanceof PongWebSocketFrame) {
+            return new PongMessage(ByteBuffer.wrap(payload));
+        }
+        return null;
+    }
+
+    private void handleMessage(ReactorNettyWebSocketSession session, WebSocketMessage<?> message) {
+        if (!session.isOpen()) {
+            return;
+        }
+        try {
+            handler.handleMessage(session, message);
+        } catch (Exception e) {
+            logger.error("Failed to handle a message of WebSocket session {}, closing it", session.getId(), e);
+            session.close(CloseStatus.SERVER_ERROR);
+        }
+    }
+
+    private void handleTransportError(ReactorNettyWebSocketSession session, Throwable error) {
+        try {
+            handler.handleTransportError(session, error);
+        } catch (Exception e) {
+            logger.warn("Failed to handle a transport error of WebSocket session {}", session.getId(), e);
+        }
+    }
+
+    private void afterConnectionClosed(ReactorNettyWebSocketSession session) {
+        try {
+            handler.afterConnectionClosed(session, session.getCloseStatus());
+        } catch (Exception e) {
+            logger.warn("Failed to close WebSocket session {}", session.getId(), e);
+        }
+    }
+}
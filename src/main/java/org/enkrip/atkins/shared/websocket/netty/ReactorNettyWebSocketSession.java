@@ -0,0 +1,241 @@
+package org.enkrip.atkins.shared.websocket.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.enkrip.atkins.shared.websocket.TransportSendQueue;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.websocket.WebsocketOutbound;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactor Netty WebSocket connection seen as a Spring {@link WebSocketSession}, so the handlers written for the
+ * servlet transport serve it unchanged.
+ * <p>
+ * Sending never blocks: frames are queued and written by the event loop as the channel becomes writable, each into a
+ * pooled direct buffer allocated only at that point. Like the servlet transport's send decorator, a session whose
+ * queue grows beyond {@code sendBufferSize} is closed as not reliable. The queue is reported as a
+ * {@link TransportSendQueue}, as the send decorator above it never has anything buffered.
+ */
+class ReactorNettyWebSocketSession implements WebSocketSession, TransportSendQueue {
+    private final String id;
+    private final URI uri;
+    private final HttpHeaders handshakeHeaders;
+    private final Map<String, Object> attributes;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final int sendBufferSize;
+
+    private final Sinks.Many<WebSocketMessage<?>> outboundMessages = Sinks.many().unicast().onBackpressureBuffer();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private int textMessageSizeLimit;
+    private int binaryMessageSizeLimit;
+
+    // guarded by this
+    private CloseStatus closeStatus;
+    private boolean closedLocally;
+
+    ReactorNettyWebSocketSession(String id, URI uri, HttpHeaders handshakeHeaders, Map<String, Object> attributes,
+                                 InetSocketAddress localAddress, InetSocketAddress remoteAddress,
+                                 int maxFrameSize, int sendBufferSize) {
+        this.id = id;
+        this.uri = uri;
+        this.handshakeHeaders = HttpHeaders.readOnlyHttpHeaders(handshakeHeaders);
+        this.attributes = attributes;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.sendBufferSize = sendBufferSize;
+        this.textMessageSizeLimit = maxFrameSize;
+        this.binaryMessageSizeLimit = maxFrameSize;
+    }
+
+    /**
+     * @return the frames to write, completing once the session is closed
+     */
+    Flux<WebSocketFrame> outboundFrames(ByteBufAllocator allocator) {
+        return outboundMessages.asFlux().map(message -> {
+            ByteBuffer payload = message instanceof TextMessage text
+                    ? StandardCharsets.UTF_8.encode(text.getPayload())
+                    : ((ByteBuffer) message.getPayload()).duplicate();
+            queuedBytes.addAndGet(-message.getPayloadLength());
+            ByteBuf content = allocator.directBuffer(payload.remaining()).writeBytes(payload);
+            if (message instanceof PingMessage) {
+                return new PingWebSocketFrame(content);
+            }
+            return message instanceof TextMessage
+                    ? new TextWebSocketFrame(message.isLast(), 0, content)
+                    : new BinaryWebSocketFrame(message.isLast(), 0, content);
+        });
+    }
+
+    /**
+     * Send the close frame once the queued frames were written, unless the peer closed the connection first.
+     */
+    void sendClose(WebsocketOutbound outbound) {
+        CloseStatus status;
+        synchronized (this) {
+            if (!closedLocally) {
+                return;
+            }
+            status = closeStatus;
+        }
+        // these codes only report a missing or broken close frame, they are never sent
+        Mono<Void> close = switch (status.getCode()) {
+            case 1005, 1006, 1015 -> outbound.sendClose();
+            default -> outbound.sendClose(status.getCode(), status.getReason());
+        };
+        close.onErrorComplete().subscribe();
+    }
+
+    /**
+     * Mark the session closed by the peer or by a transport error, without sending a close frame of its own.
+     */
+    synchronized void closedByPeer(CloseStatus status) {
+        if (closeStatus == null) {
+            closeStatus = status;
+            outboundMessages.tryEmitComplete();
+        }
+    }
+
+    synchronized CloseStatus getCloseStatus() {
+        return closeStatus == null ? CloseStatus.NO_STATUS_CODE : closeStatus;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (!(message instanceof BinaryMessage) && !(message instanceof TextMessage)
+                && !(message instanceof PingMessage)) {
+            throw new IllegalArgumentException("Unsupported message type " + message.getClass().getSimpleName());
+        }
+        synchronized (this) {
+            if (closeStatus != null) {
+                throw new IOException("WebSocket session " + id + " is closed");
+            }
+            if (queuedBytes.addAndGet(message.getPayloadLength()) > sendBufferSize) {
+                close(CloseStatus.SESSION_NOT_RELIABLE);
+                throw new SessionLimitExceededException("Send buffer of session " + id + " exceeded "
+                        + sendBufferSize + " bytes", CloseStatus.SESSION_NOT_RELIABLE);
+            }
+            outboundMessages.tryEmitNext(message);
+        }
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return closeStatus == null;
+    }
+
+    @Override
+    public void close() {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public synchronized void close(CloseStatus status) {
+        if (closeStatus == null) {
+            closeStatus = status;
+            closedLocally = true;
+            // completes the outbound frames, after which the close frame is sent
+            outboundMessages.tryEmitComplete();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public URI getUri() {
+        return uri;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return handshakeHeaders;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return null;
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+        this.textMessageSizeLimit = messageSizeLimit;
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return textMessageSizeLimit;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        this.binaryMessageSizeLimit = messageSizeLimit;
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return binaryMessageSizeLimit;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return List.of();
+    }
+
+    @Override
+    public String toString() {
+        return "ReactorNettyWebSocketSession[id=" + id + ", uri=" + uri + "]";
+    }
+}
@@ -0,0 +1,30 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+import org.enkrip.atkins.proto.MessageOperationType;
+
+/**
+ * How long an operation is kept running while the node is overloaded, the lowest priority is shed first.
+ */
+public enum OperationPriority {
+    /**
+     * Refreshes a client can repeat or do without, such as listing conversations and typing indicators.
+     */
+    BACKGROUND,
+    /**
+     * Reads and changes a user waits for, shed once the node is critically overloaded.
+     */
+    INTERACTIVE,
+    /**
+     * Sending and deleting messages, never shed.
+     */
+    ESSENTIAL;
+
+    public static OperationPriority of(MessageOperationType operationType) {
+        return switch (operationType) {
+            case SEND_CONVERSATION_MESSAGE, DELETE_CONVERSATION_MESSAGE -> ESSENTIAL;
+            case GET_CONVERSATION, START_CONVERSATION, DELETE_CONVERSATION, MARK_CONVERSATION_AS_READ,
+                 SEARCH_MESSAGES, GET_TIMELINE, GET_CONVERSATION_MESSAGES -> INTERACTIVE;
+            default -> BACKGROUND;
+        };
+    }
+}
@@ -0,0 +1,241 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for WebSocket handshakes and RPCs, so that a traffic spike degrades the node gradually instead
+ * of letting every request slow down until memory or threads run out.
+ * <p>
+ * Every {@code interval} the live signals are turned into a pressure, the highest of their ratios to their limits:
+ * the smoothed handler latency against {@code latency-target}, the RPCs in flight against {@code max-in-flight}, the
+ * bytes queued for sending against {@code max-queued-bytes} and the heap left in use after the last collection
+ * against {@code heap-threshold}. At a pressure of 1 the node starts {@link OverloadLevel#SHEDDING}, at
+ * {@code critical-pressure} it turns {@link OverloadLevel#CRITICAL}. It only steps down once the pressure fell below
+ * {@code recovery} times the threshold of the current level, so the level does not flap around a limit.
+ * <p>
+ * The in-flight limit is also enforced on admission, where every operation but {@link OperationPriority#ESSENTIAL}
+ * ones is rejected above it.
+ */
+@Component
+public class OverloadController implements DisposableBean {
+    private final Logger logger = LoggerFactory.getLogger(OverloadController.class);
+
+    private final boolean enabled;
+    private final long latencyTargetNanos;
+    private final int maxInFlight;
+    private final long maxQueuedBytes;
+    private final double heapThreshold;
+    private final double criticalPressure;
+    private final double recovery;
+    private final double smoothing;
+    private final Duration retryAfter;
+    private final WebSocketSessionService sessionService;
+    private final List<MemoryPoolMXBean> tenuredPools;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder completedNanos = new LongAdder();
+    private final Map<OperationPriority, Counter> shedOperations = new EnumMap<>(OperationPriority.class);
+    private final Counter rejectedHandshakes;
+    private final ScheduledExecutorService scheduler;
+
+    // written by the evaluating thread only
+    private volatile OverloadStatus status;
+
+    public OverloadController(@Value("${atkins.overload.enabled:true}") boolean enabled,
+                              @Value("${atkins.overload.latency-target:250ms}") Duration latencyTarget,
+                              @Value("${atkins.overload.max-in-flight:512}") int maxInFlight,
+                              @Value("${atkins.overload.max-queued-bytes:256MB}") DataSize maxQueuedBytes,
+                              @Value("${atkins.overload.heap-threshold:0.85}") double heapThreshold,
+                              @Value("${atkins.overload.critical-pressure:1.5}") double criticalPressure,
+                              @Value("${atkins.overload.recovery:0.8}") double recovery,
+                              @Value("${atkins.overload.smoothing:0.3}") double smoothing,
+                              @Value("${atkins.overload.interval:250ms}") Duration interval,
+                              @Value("${atkins.overload.retry-after:5s}") Duration retryAfter,
+                              WebSocketSessionService sessionService,
+                              MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.maxInFlight = maxInFlight;
+        this.maxQueuedBytes = maxQueuedBytes.toBytes();
+        this.heapThreshold = heapThreshold;
+        this.criticalPressure = criticalPressure;
+        this.recovery = recovery;
+        this.smoothing = smoothing;
+        this.retryAfter = retryAfter;
+        this.sessionService = sessionService;
+        this.tenuredPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported())
+                .toList();
+        this.status = new OverloadStatus(OverloadLevel.NORMAL, 0, 0, 0, 0, 0);
+
+        for (OperationPriority priority : OperationPriority.values()) {
+            shedOperations.put(priority, meterRegistry.counter("atkins.overload.shed", "priority",
+                    priority.name().toLowerCase()));
+        }
+        this.rejectedHandshakes = meterRegistry.counter("atkins.overload.rejected.handshakes");
+        Gauge.builder("atkins.overload.level", this, controller -> controller.status.level().ordinal())
+                .description("0 normal, 1 shedding, 2 critical")
+                .register(meterRegistry);
+        Gauge.builder("atkins.overload.pressure", this, controller -> controller.status.pressure())
+                .register(meterRegistry);
+        Gauge.builder("atkins.overload.in.flight", inFlight, AtomicInteger::get)
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("overload-controller")
+                .daemon()
+                .factory());
+        if (enabled) {
+            long intervalMillis = interval.toMillis();
+            scheduler.scheduleWithFixedDelay(this::evaluateQuietly, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Admit an RPC, which must be followed by {@link #complete(long)} once handled.
+     *
+     * @return false if the operation is shed
+     */
+    public boolean admit(MessageOperationType operationType) {
+        OperationPriority priority = OperationPriority.of(operationType);
+        int running = inFlight.incrementAndGet();
+        if (enabled && priority != OperationPriority.ESSENTIAL
+                && (running > maxInFlight || priority.ordinal() < status.level().ordinal())) {
+            inFlight.decrementAndGet();
+            shedOperations.get(priority).increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Complete an admitted RPC.
+     *
+     * @param startNanos the {@link System#nanoTime()} at which it was admitted
+     */
+    public void complete(long startNanos) {
+        inFlight.decrementAndGet();
+        completedNanos.add(System.nanoTime() - startNanos);
+        completedCount.increment();
+    }
+
+    /**
+     * @return whether a new WebSocket session may be opened
+     */
+    public boolean admitHandshake() {
+        if (enabled && status.level() != OverloadLevel.NORMAL) {
+            rejectedHandshakes.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    public OverloadStatus getStatus() {
+        return status;
+    }
+
+    private void evaluateQuietly() {
+        try {
+            evaluate();
+        } catch (RuntimeException e) {
+            logger.error("Failed to evaluate the overload signals", e);
+        }
+    }
+
+    void evaluate() {
+        OverloadStatus previous = status;
+
+        long count = completedCount.sumThenReset();
+        long nanos = completedNanos.sumThenReset();
+        // an idle interval lets the latency decay rather than keeping the last spike forever
+        double intervalLatency = count == 0 ? 0 : (double) nanos / count;
+        double latencyNanos = previous.latencyMillis() * 1_000_000 * (1 - smoothing) + intervalLatency * smoothing;
+
+        long queuedBytes = 0;
+        for (ConcurrentWebSocketSessionDecorator session : sessionService.getOpenSessions()) {
+            queuedBytes += WebSocketSessionService.getQueuedBytes(session);
+        }
+        double heapUsage = heapUsage();
+        int running = inFlight.get();
+
+        double pressure = Math.max(
+                Math.max(latencyNanos / latencyTargetNanos, (double) running / maxInFlight),
+                Math.max((double) queuedBytes / maxQueuedBytes, heapUsage / heapThreshold));
+
+        OverloadLevel level = pressure >= criticalPressure ? OverloadLevel.CRITICAL
+                : pressure >= 1 ? OverloadLevel.SHEDDING
+                : OverloadLevel.NORMAL;
+        if (level.ordinal() < previous.level().ordinal() && pressure >= threshold(previous.level()) * recovery) {
+            level = previous.level();
+        }
+
+        status = new OverloadStatus(level, pressure, latencyNanos / 1_000_000, running, queuedBytes, heapUsage);
+        if (level != previous.level()) {
+            logger.warn("Overload level changed from {} to {} at pressure {}", previous.level(), level,
+                    String.format("%.2f", pressure));
+        }
+    }
+
+    private double threshold(OverloadLevel level) {
+        return level == OverloadLevel.CRITICAL ? criticalPressure : 1;
+    }
+
+    /**
+     * @return the heap in use after the last collection, relative to its maximum, as live data is what exhausts it
+     */
+    private double heapUsage() {
+        double usage = 0;
+        for (MemoryPoolMXBean pool : tenuredPools) {
+            MemoryUsage collected = pool.getCollectionUsage();
+            if (collected != null && collected.getMax() > 0) {
+                usage = Math.max(usage, (double) collected.getUsed() / collected.getMax());
+            }
+        }
+        return usage;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param latencyMillis smoothed handler latency
+     * @param queuedBytes   outbound bytes waiting in the session send queues
+     * @param heapUsage     heap in use after the last collection, as a fraction of its maximum
+     */
+    public record OverloadStatus(OverloadLevel level, double pressure, double latencyMillis, int inFlight,
+                                 long queuedBytes, double heapUsage) {
+    }
+}
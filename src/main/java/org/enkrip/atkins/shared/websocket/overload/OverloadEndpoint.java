@@ -0,0 +1,23 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code /actuator/overload}: the current overload level and the signals it was derived from.
+ */
+@Component
+@Endpoint(id = "overload")
+public class OverloadEndpoint {
+    private final OverloadController overloadController;
+
+    public OverloadEndpoint(OverloadController overloadController) {
+        this.overloadController = overloadController;
+    }
+
+    @ReadOperation
+    public OverloadController.OverloadStatus status() {
+        return overloadController.getStatus();
+    }
+}
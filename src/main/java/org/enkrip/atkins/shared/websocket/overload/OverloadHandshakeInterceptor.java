@@ -0,0 +1,40 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+/**
+ * Rejects WebSocket handshakes with 503 and Retry-After while the node is overloaded, open sessions keep being served.
+ */
+@Component
+public class OverloadHandshakeInterceptor implements HandshakeInterceptor {
+    private final OverloadController overloadController;
+
+    public OverloadHandshakeInterceptor(OverloadController overloadController) {
+        this.overloadController = overloadController;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) {
+        if (overloadController.admitHandshake()) {
+            return true;
+        }
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER,
+                String.valueOf(Math.max(1, overloadController.getRetryAfter().toSeconds())));
+        return false;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                               Exception exception) {
+    }
+}
@@ -0,0 +1,16 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+public enum OverloadLevel {
+    /**
+     * Everything is admitted.
+     */
+    NORMAL,
+    /**
+     * New handshakes and {@link OperationPriority#BACKGROUND} operations are rejected.
+     */
+    SHEDDING,
+    /**
+     * Only {@link OperationPriority#ESSENTIAL} operations of the open sessions are admitted.
+     */
+    CRITICAL
+}
@@ -0,0 +1,196 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sealed, immutable index segment with compressed posting lists.
+ * <p>
+ * Besides the postings a segment keeps, per document, the conversation and the conversation version of the
+ * message, which is all that is needed to filter hits by access and to load the message back from the store.
+ * Documents are ordered by version within a segment, so walking the postings down returns the most recent messages
+ * of the segment first, whatever order they were indexed in.
+ */
+final class IndexSegment implements SegmentReader {
+    private final int baseDoc;
+    private final int tier;
+    private final int[] conversationHandles;
+    private final long[] versions;
+    private final Map<String, PostingList> postings;
+    private final long retainedBytes;
+
+    IndexSegment(int baseDoc, int tier, int[] conversationHandles, long[] versions, Map<String, PostingList> postings) {
+        this.baseDoc = baseDoc;
+        this.tier = tier;
+        this.conversationHandles = conversationHandles;
+        this.versions = versions;
+        this.postings = postings;
+        this.retainedBytes = postings.values().stream().mapToLong(PostingList::retainedBytes).sum()
+                + (long) conversationHandles.length * (Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Seal the documents of a mutable segment, reordering them by version.
+     *
+     * @param postings ascending document IDs relative to the segment, per term
+     */
+    static IndexSegment seal(int baseDoc, int[] conversationHandles, long[] versions, Map<String, int[]> postings) {
+        int[] newDocs = versionOrder(versions);
+        Map<String, PostingList> sealed = HashMap.newHashMap(postings.size());
+        for (Map.Entry<String, int[]> entry : postings.entrySet()) {
+            int[] docs = entry.getValue();
+            sealed.put(entry.getKey(), encode(docs, docs.length, newDocs));
+        }
+        return new IndexSegment(baseDoc, 0, reorder(conversationHandles, newDocs), reorder(versions, newDocs),
+                sealed);
+    }
+
+    /**
+     * Merge adjacent segments into one segment of the next tier.
+     *
+     * @param segments segments ordered by their document IDs, without gaps between them
+     */
+    static IndexSegment merge(List<IndexSegment> segments) {
+        IndexSegment first = segments.getFirst();
+        int docCount = segments.stream().mapToInt(IndexSegment::docCount).sum();
+        int[] conversationHandles = new int[docCount];
+        long[] versions = new long[docCount];
+        Map<String, Integer> termSizes = new HashMap<>();
+
+        int position = 0;
+        for (IndexSegment segment : segments) {
+            System.arraycopy(segment.conversationHandles, 0, conversationHandles, position, segment.docCount());
+            System.arraycopy(segment.versions, 0, versions, position, segment.docCount());
+            position += segment.docCount();
+            segment.postings.forEach((term, list) -> termSizes.merge(term, list.size(), Integer::sum));
+        }
+        // the version ranges of the merged segments overlap when messages were indexed out of order
+        int[] newDocs = versionOrder(versions);
+
+        Map<String, PostingList> postings = HashMap.newHashMap(termSizes.size());
+        int[] docs = new int[0];
+        for (Map.Entry<String, Integer> term : termSizes.entrySet()) {
+            if (docs.length < term.getValue()) {
+                docs = new int[Math.max(term.getValue(), docs.length * 2)];
+            }
+            int count = 0;
+            for (IndexSegment segment : segments) {
+                PostingList list = segment.postings.get(term.getKey());
+                if (list != null) {
+                    count = list.decodeTo(docs, count, segment.baseDoc - first.baseDoc);
+                }
+            }
+            postings.put(term.getKey(), encode(docs, count, newDocs));
+        }
+        return new IndexSegment(first.baseDoc, first.tier + 1, reorder(conversationHandles, newDocs),
+                reorder(versions, newDocs), postings);
+    }
+
+    /**
+     * @return the new position of every document once sorted by version, or null if they already are
+     */
+    private static int[] versionOrder(long[] versions) {
+        int unordered = 1;
+        while (unordered < versions.length && versions[unordered - 1] <= versions[unordered]) {
+            unordered++;
+        }
+        if (unordered >= versions.length) {
+            return null;
+        }
+        // a stable sort, mostly over runs that are already in order
+        Integer[] order = new Integer[versions.length];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingLong(doc -> versions[doc]));
+        int[] newDocs = new int[versions.length];
+        for (int i = 0; i < order.length; i++) {
+            newDocs[order[i]] = i;
+        }
+        return newDocs;
+    }
+
+    private static int[] reorder(int[] values, int[] newDocs) {
+        if (newDocs == null) {
+            return values;
+        }
+        int[] reordered = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            reordered[newDocs[i]] = values[i];
+        }
+        return reordered;
+    }
+
+    private static long[] reorder(long[] values, int[] newDocs) {
+        if (newDocs == null) {
+            return values;
+        }
+        long[] reordered = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            reordered[newDocs[i]] = values[i];
+        }
+        return reordered;
+    }
+
+    private static PostingList encode(int[] docs, int count, int[] newDocs) {
+        if (newDocs != null) {
+            for (int i = 0; i < count; i++) {
+                docs[i] = newDocs[docs[i]];
+            }
+            Arrays.sort(docs, 0, count);
+        }
+        return PostingList.encode(docs, count);
+    }
+
+    int tier() {
+        return tier;
+    }
+
+    long retainedBytes() {
+        return retainedBytes;
+    }
+
+    long maxVersion() {
+        return versions[versions.length - 1];
+    }
+
+    /**
+     * @return the highest document whose version is below the given one, or {@link PostingCursor#NO_MORE_DOCS}
+     */
+    int lastDocBefore(long version) {
+        int index = Arrays.binarySearch(versions, version);
+        // any of several equal versions may be found, step back to the first one
+        while (index > 0 && versions[index - 1] == version) {
+            index--;
+        }
+        int last = (index >= 0 ? index : -index - 1) - 1;
+        return last < 0 ? PostingCursor.NO_MORE_DOCS : baseDoc + last;
+    }
+
+    @Override
+    public int baseDoc() {
+        return baseDoc;
+    }
+
+    @Override
+    public int docCount() {
+        return conversationHandles.length;
+    }
+
+    @Override
+    public PostingCursor cursor(String term) {
+        PostingList list = postings.get(term);
+        return list == null ? null : list.cursor(baseDoc);
+    }
+
+    @Override
+    public int conversationHandle(int doc) {
+        return conversationHandles[doc - baseDoc];
+    }
+
+    @Override
+    public long version(int doc) {
+        return versions[doc - baseDoc];
+    }
+}
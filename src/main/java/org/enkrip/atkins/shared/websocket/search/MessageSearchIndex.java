@@ -0,0 +1,606 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+
+/**
+ * In-memory inverted index over the content of all stored messages, updated as messages are appended.
+ * <p>
+ * New documents go to a {@link MutableSegment}. Once it holds {@code segment-docs} documents it is sealed into a
+ * compressed {@link IndexSegment} in the background, and a tiered merge policy combines {@code merge-factor}
+ * segments of the same tier into one of the next tier, up to {@code max-merged-docs}. This keeps the number of
+ * segments logarithmic in the number of messages.
+ * <p>
+ * Results are ranked by message version, most recent first, whatever order the messages were indexed in: sealed
+ * segments keep their documents ordered by version and queries merge the segments by version. Every document is
+ * also indexed under a term of its conversation, so a query only ever walks the documents of the conversations it
+ * may return. Queries stop after examining {@code max-scanned-docs} candidates of the sealed segments and hand back a
+ * cursor to continue from, which bounds the latency of a single request however large the history grows; the
+ * unsealed segments hold at most a few times {@code segment-docs} documents and are always read in full.
+ * <p>
+ * Appended messages are tokenized on the appending thread and queued without taking the index lock, since messages
+ * are appended while their conversation is locked. An indexer thread adds the queued documents to the index, and a
+ * query adds whatever is still queued before it reads, so it sees every message appended before it started.
+ */
+@Component
+public class MessageSearchIndex implements ConversationListener, DisposableBean {
+
+    private static final int OUT_OF_BUDGET = -2;
+
+    private final Logger logger = LoggerFactory.getLogger(MessageSearchIndex.class);
+
+    private final int segmentDocs;
+    private final int mergeFactor;
+    private final int maxMergedDocs;
+    private final int maxScannedDocs;
+
+    private final Timer queryTimer;
+    private final Timer mergeTimer;
+    private final ExecutorService indexer;
+    private final ExecutorService merger;
+
+    private final Map<String, Integer> conversationHandles = new ConcurrentHashMap<>();
+    private volatile String[] handleConversationIds = new String[1024];
+
+    private final Queue<PendingDocument> pendingDocuments = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean indexing = new AtomicBoolean();
+
+    // guarded by this
+    private MutableSegment activeSegment = new MutableSegment(0);
+    private final Deque<MutableSegment> sealingSegments = new ArrayDeque<>();
+    // ordered by document IDs, replaced as a whole under this
+    private volatile List<IndexSegment> segments = List.of();
+
+    public MessageSearchIndex(@Value("${atkins.search.segment-docs:65536}") int segmentDocs,
+                              @Value("${atkins.search.merge-factor:8}") int mergeFactor,
+                              @Value("${atkins.search.max-merged-docs:16777216}") int maxMergedDocs,
+                              @Value("${atkins.search.max-scanned-docs:100000}") int maxScannedDocs,
+                              MeterRegistry meterRegistry) {
+        this.segmentDocs = segmentDocs;
+        this.mergeFactor = mergeFactor;
+        this.maxMergedDocs = maxMergedDocs;
+        this.maxScannedDocs = maxScannedDocs;
+
+        this.queryTimer = meterRegistry.timer("atkins.search.query");
+        this.mergeTimer = meterRegistry.timer("atkins.search.merge");
+        Gauge.builder("atkins.search.documents", this, MessageSearchIndex::documentCount)
+                .register(meterRegistry);
+        Gauge.builder("atkins.search.segments", this, index -> index.segments.size())
+                .register(meterRegistry);
+        Gauge.builder("atkins.search.retained", this, MessageSearchIndex::retainedBytes)
+                .baseUnit("bytes")
+                .description("Approximate heap retained by the sealed index segments")
+                .register(meterRegistry);
+
+        this.indexer = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+                .name("search-indexer")
+                .daemon()
+                .factory());
+        this.merger = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+                .name("search-index-merger")
+                .daemon()
+                .factory());
+    }
+
+    @Override
+    public void onMessageAppended(Conversation conversation, ChatMessage message) {
+        List<String> terms = SearchTokenizer.tokenize(message.getContent());
+        if (terms.isEmpty()) {
+            return;
+        }
+        pendingDocuments.add(new PendingDocument(message.getConversationId(), message.getVersion(), terms));
+        if (indexing.compareAndSet(false, true)) {
+            indexer.execute(this::indexPendingDocuments);
+        }
+    }
+
+    private void indexPendingDocuments() {
+        // cleared first, so a document queued while draining schedules the next run
+        indexing.set(false);
+        addPendingDocuments();
+    }
+
+    private void addPendingDocuments() {
+        boolean full;
+        synchronized (this) {
+            full = addQueuedDocuments();
+        }
+        if (full) {
+            merger.execute(this::sealAndMerge);
+        }
+    }
+
+    /**
+     * Add the queued documents to the active segment, only called while holding the index lock.
+     *
+     * @return whether a segment filled up and needs to be sealed
+     */
+    private boolean addQueuedDocuments() {
+        boolean full = false;
+        PendingDocument document;
+        while ((document = pendingDocuments.poll()) != null) {
+            int handle = intern(document.conversationId());
+            List<String> documentTerms = new ArrayList<>(document.terms().size() + 1);
+            documentTerms.addAll(document.terms());
+            documentTerms.add(conversationTerm(handle));
+            activeSegment.add(handle, document.version(), documentTerms);
+            if (activeSegment.docCount() >= segmentDocs) {
+                sealingSegments.addLast(activeSegment);
+                activeSegment = new MutableSegment(activeSegment.nextDoc());
+                full = true;
+            }
+        }
+        return full;
+    }
+
+    /**
+     * Find messages containing all terms of the query, most recent first.
+     *
+     * @param conversationIds only messages of these conversations are returned
+     * @param beforeCursor    only messages with a version below this cursor are returned, {@link Long#MAX_VALUE} for
+     *                        the first page
+     * @param limit           maximum number of hits
+     */
+    public SearchResult search(String query, Collection<String> conversationIds, long beforeCursor, int limit) {
+        List<String> terms = SearchTokenizer.tokenize(query);
+        // queued documents first, the conversations of some may not even have a handle yet
+        addPendingDocuments();
+        int[] allowedHandles = conversationIds.stream()
+                .map(conversationHandles::get)
+                .filter(Objects::nonNull)
+                .mapToInt(Integer::intValue)
+                .sorted()
+                .toArray();
+        if (terms.isEmpty() || allowedHandles.length == 0 || limit <= 0) {
+            return SearchResult.EMPTY;
+        }
+        return queryTimer.record(() -> search(terms, allowedHandles, beforeCursor, limit));
+    }
+
+    private SearchResult search(List<String> terms, int[] allowedHandles, long beforeCursor, int limit) {
+        List<String> conversationTerms = Arrays.stream(allowedHandles)
+                .mapToObj(MessageSearchIndex::conversationTerm)
+                .toList();
+        List<String> capturedTerms = new ArrayList<>(terms);
+        capturedTerms.addAll(conversationTerms);
+        List<SegmentReader> unsealed = new ArrayList<>();
+        List<IndexSegment> sealed;
+        synchronized (this) {
+            // captured together, a segment is never seen both while it is being sealed and once it was sealed
+            unsealed.add(activeSegment.reader(capturedTerms));
+            for (MutableSegment segment : sealingSegments) {
+                unsealed.add(segment.reader(capturedTerms));
+            }
+            sealed = segments;
+        }
+
+        Query query = new Query(terms, conversationTerms, beforeCursor);
+        PriorityQueue<Matches> heads = new PriorityQueue<>(Comparator.comparingLong(Matches::version).reversed());
+        for (SegmentReader reader : unsealed) {
+            Matches matches = query.collect(reader);
+            if (matches.hasMatch()) {
+                heads.add(matches);
+            }
+        }
+        // segments whose newest message is not newer than the best match yet are only opened once it is taken
+        List<IndexSegment> pending = sealed.stream()
+                .filter(segment -> segment.docCount() > 0 && segment.lastDocBefore(beforeCursor) >= 0)
+                .sorted(Comparator.comparingLong(IndexSegment::maxVersion).reversed())
+                .toList();
+
+        String[] conversationIds = handleConversationIds;
+        List<SearchHit> hits = new ArrayList<>(limit);
+        int next = 0;
+        while (true) {
+            while (next < pending.size()
+                    && (heads.isEmpty() || query.bound(pending.get(next)) > heads.peek().version())) {
+                SegmentMatches matches = query.open(pending.get(next++));
+                if (matches == null) {
+                    continue;
+                }
+                if (!matches.advance()) {
+                    return query.budgetExhausted(hits, heads, next < pending.size() ? pending.get(next) : null);
+                }
+                if (matches.hasMatch()) {
+                    heads.add(matches);
+                }
+            }
+            Matches top = heads.poll();
+            if (top == null) {
+                return new SearchResult(hits, false, 0);
+            }
+            hits.add(new SearchHit(conversationIds[top.conversationHandle()], top.version()));
+            if (hits.size() == limit) {
+                return new SearchResult(hits, true, top.version());
+            }
+            if (!top.advance()) {
+                return query.budgetExhausted(hits, heads, next < pending.size() ? pending.get(next) : null);
+            }
+            if (top.hasMatch()) {
+                heads.add(top);
+            }
+        }
+    }
+
+    /**
+     * @return cursors for all terms and the allowed conversations, ordered from the rarest to the most common, or
+     * null if a term is missing or none of the conversations has a document in the segment
+     */
+    private static PostingCursor[] cursors(SegmentReader reader, List<String> terms, List<String> conversationTerms) {
+        PostingCursor[] cursors = new PostingCursor[terms.size() + 1];
+        for (int i = 0; i < terms.size(); i++) {
+            cursors[i] = reader.cursor(terms.get(i));
+            if (cursors[i] == null) {
+                return null;
+            }
+        }
+        List<PostingCursor> conversations = new ArrayList<>();
+        for (String term : conversationTerms) {
+            PostingCursor cursor = reader.cursor(term);
+            if (cursor != null) {
+                conversations.add(cursor);
+            }
+        }
+        if (conversations.isEmpty()) {
+            return null;
+        }
+        cursors[terms.size()] = conversations.size() == 1 ? conversations.getFirst() : new UnionCursor(conversations);
+        Arrays.sort(cursors, (a, b) -> Integer.compare(a.cost(), b.cost()));
+        return cursors;
+    }
+
+    /**
+     * Walk the candidates of the rarest cursor down from the target until all other cursors agree on one.
+     *
+     * @param budget checked for every candidate, may stop the walk
+     * @return the matching document, {@link PostingCursor#NO_MORE_DOCS}, or {@link #OUT_OF_BUDGET}
+     */
+    private static int nextMatch(PostingCursor[] cursors, int target, IntPredicate budget) {
+        PostingCursor lead = cursors[0];
+        candidates:
+        while (true) {
+            int doc = lead.advanceTo(target);
+            if (doc == PostingCursor.NO_MORE_DOCS) {
+                return doc;
+            }
+            if (!budget.test(doc)) {
+                return OUT_OF_BUDGET;
+            }
+            // leapfrog: every other cursor must land on the same document, otherwise restart lower
+            for (int i = 1; i < cursors.length; i++) {
+                int other = cursors[i].advanceTo(doc);
+                if (other == PostingCursor.NO_MORE_DOCS) {
+                    return other;
+                }
+                if (other != doc) {
+                    target = other;
+                    continue candidates;
+                }
+            }
+            return doc;
+        }
+    }
+
+    static String conversationTerm(int handle) {
+        // the tokenizer only emits letters and digits, so this never matches a word of a message
+        return "\u0000" + handle;
+    }
+
+    /**
+     * The state of one query: its terms, the cursor it started from and the scan budget shared by all segments.
+     */
+    private final class Query {
+        private final List<String> terms;
+        private final List<String> conversationTerms;
+        private final long beforeCursor;
+        private int scanned;
+        // the version of the candidate that was reached when the budget ran out
+        private long exhaustedAt;
+
+        private Query(List<String> terms, List<String> conversationTerms, long beforeCursor) {
+            this.terms = terms;
+            this.conversationTerms = conversationTerms;
+            this.beforeCursor = beforeCursor;
+        }
+
+        /**
+         * Collect and sort all matches of an unsealed segment, whose documents are in the order they were added.
+         */
+        private Matches collect(SegmentReader reader) {
+            PostingCursor[] cursors = reader.docCount() == 0 ? null : cursors(reader, terms, conversationTerms);
+            if (cursors == null) {
+                return SortedMatches.NONE;
+            }
+            List<long[]> matches = new ArrayList<>();
+            int doc = nextMatch(cursors, reader.baseDoc() + reader.docCount() - 1, candidate -> true);
+            while (doc != PostingCursor.NO_MORE_DOCS) {
+                if (reader.version(doc) < beforeCursor) {
+                    matches.add(new long[]{reader.version(doc), reader.conversationHandle(doc)});
+                }
+                doc = nextMatch(cursors, doc - 1, candidate -> true);
+            }
+            matches.sort(Comparator.comparingLong((long[] match) -> match[0]).reversed());
+            return new SortedMatches(matches);
+        }
+
+        private SegmentMatches open(IndexSegment segment) {
+            PostingCursor[] cursors = cursors(segment, terms, conversationTerms);
+            return cursors == null ? null : new SegmentMatches(this, segment, cursors,
+                    segment.lastDocBefore(beforeCursor));
+        }
+
+        /**
+         * @return the highest version the segment may return for this query
+         */
+        private long bound(IndexSegment segment) {
+            return Math.min(segment.maxVersion(), beforeCursor - 1);
+        }
+
+        /**
+         * @return false once {@code max-scanned-docs} candidates were examined
+         */
+        private boolean scan(SegmentReader reader, int doc) {
+            if (scanned++ == maxScannedDocs) {
+                exhaustedAt = reader.version(doc);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * End the page with a cursor below every match that was returned and above every one that was not.
+         */
+        private SearchResult budgetExhausted(List<SearchHit> hits, PriorityQueue<Matches> heads,
+                                             IndexSegment nextPending) {
+            long highest = exhaustedAt;
+            if (!heads.isEmpty()) {
+                highest = Math.max(highest, heads.peek().version());
+            }
+            if (nextPending != null) {
+                highest = Math.max(highest, bound(nextPending));
+            }
+            return new SearchResult(hits, true, highest + 1);
+        }
+    }
+
+    /**
+     * Matches of one segment, taken from the most recent down.
+     */
+    private interface Matches {
+
+        boolean hasMatch();
+
+        long version();
+
+        int conversationHandle();
+
+        /**
+         * Move to the next match.
+         *
+         * @return false if the scan budget ran out first
+         */
+        boolean advance();
+    }
+
+    private static final class SortedMatches implements Matches {
+        static final SortedMatches NONE = new SortedMatches(List.of());
+
+        private final List<long[]> matches;
+        private int position;
+
+        private SortedMatches(List<long[]> matches) {
+            this.matches = matches;
+        }
+
+        @Override
+        public boolean hasMatch() {
+            return position < matches.size();
+        }
+
+        @Override
+        public long version() {
+            return matches.get(position)[0];
+        }
+
+        @Override
+        public int conversationHandle() {
+            return (int) matches.get(position)[1];
+        }
+
+        @Override
+        public boolean advance() {
+            position++;
+            return true;
+        }
+    }
+
+    /**
+     * Matches of a sealed segment, found lazily by walking its postings down from the highest document, which is
+     * the most recent one since sealed segments are ordered by version.
+     */
+    private static final class SegmentMatches implements Matches {
+        private final Query query;
+        private final IndexSegment segment;
+        private final PostingCursor[] cursors;
+        private int target;
+        private int doc = PostingCursor.NO_MORE_DOCS;
+
+        private SegmentMatches(Query query, IndexSegment segment, PostingCursor[] cursors, int target) {
+            this.query = query;
+            this.segment = segment;
+            this.cursors = cursors;
+            this.target = target;
+        }
+
+        @Override
+        public boolean hasMatch() {
+            return doc != PostingCursor.NO_MORE_DOCS;
+        }
+
+        @Override
+        public long version() {
+            return segment.version(doc);
+        }
+
+        @Override
+        public int conversationHandle() {
+            return segment.conversationHandle(doc);
+        }
+
+        @Override
+        public boolean advance() {
+            doc = PostingCursor.NO_MORE_DOCS;
+            if (target == PostingCursor.NO_MORE_DOCS) {
+                return true;
+            }
+            int match = nextMatch(cursors, target, candidate -> query.scan(segment, candidate));
+            if (match == OUT_OF_BUDGET) {
+                return false;
+            }
+            doc = match;
+            target = match == PostingCursor.NO_MORE_DOCS ? match : match - 1;
+            return true;
+        }
+    }
+
+    private void sealAndMerge() {
+        try {
+            while (true) {
+                MutableSegment full;
+                synchronized (this) {
+                    full = sealingSegments.peekFirst();
+                }
+                if (full == null) {
+                    break;
+                }
+                IndexSegment sealed = full.seal();
+                synchronized (this) {
+                    sealingSegments.removeFirst();
+                    List<IndexSegment> updated = new ArrayList<>(segments);
+                    updated.add(sealed);
+                    segments = List.copyOf(updated);
+                }
+            }
+            mergeSegments();
+        } catch (RuntimeException e) {
+            logger.error("Failed to maintain the search index segments", e);
+        }
+    }
+
+    /**
+     * Merge runs of {@code merge-factor} adjacent segments of the same tier, oldest first, until none is left.
+     * Only this single merger thread removes segments, so a run found outside the lock is still in place when the
+     * merged segment replaces it.
+     */
+    private void mergeSegments() {
+        while (true) {
+            List<IndexSegment> current = segments;
+            int start = findMergeRun(current);
+            if (start < 0) {
+                return;
+            }
+            List<IndexSegment> run = current.subList(start, start + mergeFactor);
+            IndexSegment merged = mergeTimer.record(() -> IndexSegment.merge(run));
+            synchronized (this) {
+                List<IndexSegment> updated = new ArrayList<>(segments);
+                updated.subList(start, start + mergeFactor).clear();
+                updated.add(start, merged);
+                segments = List.copyOf(updated);
+            }
+            logger.debug("Merged {} search index segments into {} documents of tier {}", mergeFactor,
+                    merged.docCount(), merged.tier());
+        }
+    }
+
+    private int findMergeRun(List<IndexSegment> current) {
+        for (int start = 0; start + mergeFactor <= current.size(); start++) {
+            int tier = current.get(start).tier();
+            long docs = 0;
+            int end = start;
+            while (end < start + mergeFactor && current.get(end).tier() == tier) {
+                docs += current.get(end).docCount();
+                end++;
+            }
+            if (end == start + mergeFactor && docs <= maxMergedDocs) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private int intern(String conversationId) {
+        Integer handle = conversationHandles.get(conversationId);
+        if (handle != null) {
+            return handle;
+        }
+        // only called while holding the index lock
+        int newHandle = conversationHandles.size();
+        String[] conversationIds = handleConversationIds;
+        if (newHandle == conversationIds.length) {
+            conversationIds = Arrays.copyOf(conversationIds, conversationIds.length * 2);
+        }
+        conversationIds[newHandle] = conversationId;
+        // publish the array before the map entry so a reader resolving the handle always sees it
+        handleConversationIds = conversationIds;
+        conversationHandles.put(conversationId, newHandle);
+        return newHandle;
+    }
+
+    private synchronized long documentCount() {
+        return activeSegment.nextDoc();
+    }
+
+    private long retainedBytes() {
+        return segments.stream().mapToLong(IndexSegment::retainedBytes).sum();
+    }
+
+    @Override
+    public void destroy() {
+        indexer.shutdownNow();
+        merger.shutdownNow();
+    }
+
+    private record PendingDocument(String conversationId, long version, List<String> terms) {
+    }
+
+    /**
+     * A matching message, identified by its conversation and the conversation version it was appended at.
+     */
+    public record SearchHit(String conversationId, long version) {
+    }
+
+    /**
+     * @param hasMore    whether the search stopped before examining all documents
+     * @param nextCursor the cursor to pass as {@code beforeCursor} to continue the search
+     */
+    public record SearchResult(List<SearchHit> hits, boolean hasMore, long nextCursor) {
+        static final SearchResult EMPTY = new SearchResult(List.of(), false, 0);
+    }
+}
@@ -0,0 +1,89 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.MessageType;
+import org.enkrip.atkins.proto.RPCRequestEnvelope;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.proto.SearchMessagesRequest;
+import org.enkrip.atkins.proto.SearchMessagesResponse;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+
+/**
+ * Full-text search over the messages of the conversations a user participates in.
+ */
+@Service
+public class MessageSearchService {
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 100;
+
+    private final WebSocketSessionService webSocketSessionService;
+    private final ConversationService conversationService;
+    private final CompactMessageStore messageStore;
+    private final MessageSearchIndex searchIndex;
+
+    public MessageSearchService(WebSocketSessionService webSocketSessionService,
+                                ConversationService conversationService, CompactMessageStore messageStore,
+                                MessageSearchIndex searchIndex) {
+        this.webSocketSessionService = webSocketSessionService;
+        this.conversationService = conversationService;
+        this.messageStore = messageStore;
+        this.searchIndex = searchIndex;
+    }
+
+    public void searchMessages(WebSocketSession session, RPCRequestEnvelope request) {
+        final String currentUser = webSocketSessionService.getCurrentUsername(session);
+
+        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setMessageType(MessageType.RESPONSE)
+                .setOperationType(MessageOperationType.SEARCH_MESSAGES)
+                .setSuccess(true)
+                .setSearchMessagesResponse(search(currentUser, request.getSearchMessagesRequest()))
+                .build();
+
+        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
+    }
+
+    /**
+     * Search the messages visible to a user, most recent first.
+     *
+     * @return the matching messages, empty if the user has no access to the requested conversation
+     */
+    public SearchMessagesResponse search(String currentUser, SearchMessagesRequest request) {
+        List<String> conversationIds;
+        if (request.hasConversationId()) {
+            Conversation conversation = conversationService.getUserConversation(request.getConversationId(),
+                    currentUser);
+            conversationIds = conversation == null ? List.of() : List.of(conversation.getConversationId());
+        } else {
+            conversationIds = conversationService.getUserConversations(currentUser).stream()
+                    .map(Conversation::getConversationId)
+                    .toList();
+        }
+
+        int limit = request.getLimit() > 0 ? Math.min(request.getLimit(), MAX_LIMIT) : DEFAULT_LIMIT;
+        long beforeCursor = request.hasBeforeCursor() ? request.getBeforeCursor() : Long.MAX_VALUE;
+        MessageSearchIndex.SearchResult result = searchIndex.search(request.getQuery(), conversationIds,
+                beforeCursor, limit);
+
+        SearchMessagesResponse.Builder response = SearchMessagesResponse.newBuilder()
+                .setHasMore(result.hasMore())
+                .setNextCursor(result.nextCursor());
+        for (MessageSearchIndex.SearchHit hit : result.hits()) {
+            ChatMessage message = messageStore.getMessage(hit.conversationId(), currentUser, hit.version());
+            if (message != null) {
+                response.addMessages(message);
+            }
+        }
+        return response.build();
+    }
+}
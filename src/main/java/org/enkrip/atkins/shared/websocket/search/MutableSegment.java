@@ -0,0 +1,140 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The segment currently receiving new documents, with plain int array postings in the order documents were added.
+ * Once it is full it is sealed into a compressed {@link IndexSegment}, ordered by version. Not thread safe, {@link MessageSearchIndex} guards it; sealing only reads,
+ * so it can run outside of that guard once the segment stopped receiving documents.
+ */
+final class MutableSegment {
+    private final int baseDoc;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private int[] conversationHandles = new int[1024];
+    private long[] versions = new long[1024];
+    private int docCount;
+
+    MutableSegment(int baseDoc) {
+        this.baseDoc = baseDoc;
+    }
+
+    int docCount() {
+        return docCount;
+    }
+
+    int nextDoc() {
+        return baseDoc + docCount;
+    }
+
+    /**
+     * @param terms distinct terms of the document
+     * @return the ID of the added document
+     */
+    int add(int conversationHandle, long version, Collection<String> terms) {
+        if (docCount == conversationHandles.length) {
+            conversationHandles = Arrays.copyOf(conversationHandles, docCount * 2);
+            versions = Arrays.copyOf(versions, docCount * 2);
+        }
+        conversationHandles[docCount] = conversationHandle;
+        versions[docCount] = version;
+        int doc = baseDoc + docCount++;
+        for (String term : terms) {
+            postings.computeIfAbsent(term, t -> new Postings()).add(doc);
+        }
+        return doc;
+    }
+
+    IndexSegment seal() {
+        Map<String, int[]> relativePostings = HashMap.newHashMap(postings.size());
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            Postings list = entry.getValue();
+            int[] relativeDocs = new int[list.size];
+            for (int i = 0; i < list.size; i++) {
+                relativeDocs[i] = list.docs[i] - baseDoc;
+            }
+            relativePostings.put(entry.getKey(), relativeDocs);
+        }
+        return IndexSegment.seal(baseDoc, Arrays.copyOf(conversationHandles, docCount),
+                Arrays.copyOf(versions, docCount), relativePostings);
+    }
+
+    /**
+     * Capture the current state for a query. Only the postings of the queried terms are copied, document
+     * metadata below the captured count is never written again and is shared.
+     */
+    SegmentReader reader(Collection<String> terms) {
+        Map<String, int[]> captured = HashMap.newHashMap(terms.size());
+        for (String term : terms) {
+            Postings list = postings.get(term);
+            if (list != null) {
+                captured.put(term, Arrays.copyOf(list.docs, list.size));
+            }
+        }
+        return new Reader(baseDoc, docCount, conversationHandles, versions, captured);
+    }
+
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int size;
+
+        private void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    private record Reader(int baseDoc, int docCount, int[] conversationHandles, long[] versions,
+                          Map<String, int[]> postings) implements SegmentReader {
+
+        @Override
+        public PostingCursor cursor(String term) {
+            int[] docs = postings.get(term);
+            return docs == null ? null : new ArrayCursor(docs);
+        }
+
+        @Override
+        public int conversationHandle(int doc) {
+            return conversationHandles[doc - baseDoc];
+        }
+
+        @Override
+        public long version(int doc) {
+            return versions[doc - baseDoc];
+        }
+    }
+
+    private static final class ArrayCursor implements PostingCursor {
+        private final int[] docs;
+        private int end;
+        private int current = UNPOSITIONED;
+
+        private ArrayCursor(int[] docs) {
+            this.docs = docs;
+            this.end = docs.length;
+        }
+
+        @Override
+        public int advanceTo(int target) {
+            if (current != UNPOSITIONED && current <= target) {
+                return current;
+            }
+            int index = Arrays.binarySearch(docs, 0, end, target);
+            // not found: the insertion point is the first larger ID, the one before it is the answer
+            end = index >= 0 ? index : -index - 2;
+            if (end < 0) {
+                return current = NO_MORE_DOCS;
+            }
+            return current = docs[end++];
+        }
+
+        @Override
+        public int cost() {
+            return docs.length;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+/**
+ * Walks the document IDs of a posting list from the newest to the oldest.
+ */
+interface PostingCursor {
+    int NO_MORE_DOCS = -1;
+    // a document ID that is never assigned, marks a cursor that was not advanced yet
+    int UNPOSITIONED = Integer.MAX_VALUE;
+
+    /**
+     * Move to the largest document ID that is less than or equal to the target. The cursor never moves back up, a
+     * target above the current document returns the current document.
+     *
+     * @return the document ID, or {@link #NO_MORE_DOCS} once the posting list is exhausted
+     */
+    int advanceTo(int target);
+
+    /**
+     * @return the number of documents in the posting list, used to pick the cheapest cursor to drive a query
+     */
+    int cost();
+}
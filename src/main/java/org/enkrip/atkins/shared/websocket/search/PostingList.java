@@ -0,0 +1,151 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, compressed list of ascending document IDs.
+ * <p>
+ * IDs are split into blocks of {@link #BLOCK_SIZE}. Each block stores its first ID followed by the gaps between
+ * consecutive IDs, all as unsigned varints, so dense postings of common terms take one or two bytes per document.
+ * The first ID of every block is also kept uncompressed, which lets a cursor skip whole blocks without decoding them.
+ */
+final class PostingList {
+    static final int BLOCK_SIZE = 128;
+
+    private final int size;
+    private final int[] blockFirstDocs;
+    private final int[] blockOffsets;
+    private final byte[] data;
+
+    private PostingList(int size, int[] blockFirstDocs, int[] blockOffsets, byte[] data) {
+        this.size = size;
+        this.blockFirstDocs = blockFirstDocs;
+        this.blockOffsets = blockOffsets;
+        this.data = data;
+    }
+
+    /**
+     * @param docs  ascending document IDs, relative to the segment they belong to
+     * @param count number of IDs to take from the array
+     */
+    static PostingList encode(int[] docs, int count) {
+        int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blockFirstDocs = new int[blocks];
+        int[] blockOffsets = new int[blocks];
+        byte[] data = new byte[Math.max(16, count * 2)];
+        int offset = 0;
+
+        for (int block = 0; block < blocks; block++) {
+            int start = block * BLOCK_SIZE;
+            int end = Math.min(count, start + BLOCK_SIZE);
+            blockFirstDocs[block] = docs[start];
+            blockOffsets[block] = offset;
+
+            int previous = 0;
+            for (int i = start; i < end; i++) {
+                if (data.length - offset < 5) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int value = docs[i] - previous;
+                while ((value & ~0x7F) != 0) {
+                    data[offset++] = (byte) ((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                data[offset++] = (byte) value;
+                previous = docs[i];
+            }
+        }
+        return new PostingList(count, blockFirstDocs, blockOffsets, Arrays.copyOf(data, offset));
+    }
+
+    int size() {
+        return size;
+    }
+
+    long retainedBytes() {
+        return data.length + (long) blockFirstDocs.length * Integer.BYTES * 2;
+    }
+
+    /**
+     * Decode all IDs into the target array, adding the given offset to each of them.
+     *
+     * @return the position after the last decoded ID
+     */
+    int decodeTo(int[] target, int position, int offset) {
+        int[] block = new int[BLOCK_SIZE];
+        for (int i = 0; i < blockFirstDocs.length; i++) {
+            int length = decodeBlock(i, block);
+            for (int j = 0; j < length; j++) {
+                target[position++] = block[j] + offset;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @param baseDoc added to every decoded ID, turns segment relative IDs into global ones
+     */
+    PostingCursor cursor(int baseDoc) {
+        return new Cursor(baseDoc);
+    }
+
+    private int decodeBlock(int block, int[] target) {
+        int length = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+        int offset = blockOffsets[block];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += value;
+            target[i] = previous;
+        }
+        return length;
+    }
+
+    private final class Cursor implements PostingCursor {
+        private final int baseDoc;
+        private final int[] decoded = new int[BLOCK_SIZE];
+        private int block = blockFirstDocs.length - 1;
+        private int decodedBlock = -1;
+        private int position;
+        private int current = UNPOSITIONED;
+
+        private Cursor(int baseDoc) {
+            this.baseDoc = baseDoc;
+        }
+
+        @Override
+        public int advanceTo(int target) {
+            if (current != UNPOSITIONED && current <= target) {
+                return current;
+            }
+            int relativeTarget = target - baseDoc;
+            while (block >= 0 && blockFirstDocs[block] > relativeTarget) {
+                block--;
+            }
+            if (block < 0) {
+                return current = NO_MORE_DOCS;
+            }
+            if (decodedBlock != block) {
+                position = decodeBlock(block, decoded) - 1;
+                decodedBlock = block;
+            }
+            // the first ID of the block is known to be at most the target
+            while (decoded[position] > relativeTarget) {
+                position--;
+            }
+            return current = decoded[position] + baseDoc;
+        }
+
+        @Override
+        public int cost() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits text into lower case terms on anything that is not a letter or a digit. Messages and queries go through
+ * the same tokenizer, so long terms are simply cut at {@link #MAX_TERM_LENGTH} on both sides.
+ */
+final class SearchTokenizer {
+    static final int MAX_TERM_LENGTH = 32;
+
+    private SearchTokenizer() {
+    }
+
+    /**
+     * @return the distinct terms of the text in order of appearance
+     */
+    static List<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (!term.isEmpty()) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        if (!term.isEmpty()) {
+            terms.add(term.toString());
+        }
+        return new ArrayList<>(terms);
+    }
+}
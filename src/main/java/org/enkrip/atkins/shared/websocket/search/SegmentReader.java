@@ -0,0 +1,20 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+/**
+ * Read access to the documents of one index segment, a contiguous range of document IDs.
+ */
+interface SegmentReader {
+
+    int baseDoc();
+
+    int docCount();
+
+    /**
+     * @return a cursor over the documents containing the term, or null if no document does
+     */
+    PostingCursor cursor(String term);
+
+    int conversationHandle(int doc);
+
+    long version(int doc);
+}
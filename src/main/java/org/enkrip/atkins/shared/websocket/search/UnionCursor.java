@@ -0,0 +1,30 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import java.util.List;
+
+/**
+ * Walks the documents of any of several posting lists, used to restrict a query to a set of conversations.
+ */
+final class UnionCursor implements PostingCursor {
+    private final PostingCursor[] cursors;
+    private final int cost;
+
+    UnionCursor(List<PostingCursor> cursors) {
+        this.cursors = cursors.toArray(PostingCursor[]::new);
+        this.cost = cursors.stream().mapToInt(PostingCursor::cost).sum();
+    }
+
+    @Override
+    public int advanceTo(int target) {
+        int doc = NO_MORE_DOCS;
+        for (PostingCursor cursor : cursors) {
+            doc = Math.max(doc, cursor.advanceTo(target));
+        }
+        return doc;
+    }
+
+    @Override
+    public int cost() {
+        return cost;
+    }
+}
@@ -0,0 +1,333 @@
+package org.enkrip.atkins.shared.websocket.store;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnsafeByteOperations;
+import org.enkrip.atkins.proto.AttachmentRef;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory message storage backed by one {@link ConversationMessageLog} per conversation.
+ * <p>
+ * {@link ChatMessage} protobuf objects are only materialized at the API boundary, when messages are read back for
+ * a specific viewer.
+ */
+@Component
+public class CompactMessageStore {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // messages of concurrent senders may be appended slightly out of timestamp order
+    private static final long APPEND_SKEW_NANOS = NANOS_PER_SECOND;
+
+    private final UserIdRegistry userIdRegistry;
+
+    // Maps conversationId to its messages
+    private final Map<String, ConversationMessageLog> conversationLogs = new ConcurrentHashMap<>();
+
+    public CompactMessageStore(UserIdRegistry userIdRegistry) {
+        this.userIdRegistry = userIdRegistry;
+    }
+
+    /**
+     * Append a message to its conversation. Messages restored from durable storage keep their sequence, new ones
+     * get the next sequence of the conversation.
+     *
+     * @return the sequence of the message in its conversation
+     */
+    public long append(ChatMessage chatMessage) {
+        ConversationMessageLog log = conversationLogs.computeIfAbsent(chatMessage.getConversationId(),
+                ConversationMessageLog::new);
+
+        UUID messageId = toUuid(chatMessage.getMessageId());
+        return log.append(
+                epochNanos(chatMessage.getTimestamp()),
+                messageId.getMostSignificantBits(),
+                messageId.getLeastSignificantBits(),
+                isCanonical(messageId, chatMessage.getMessageId()) ? null : chatMessage.getMessageId(),
+                userIdRegistry.intern(chatMessage.getSender().getUserId()),
+                chatMessage.getMessageTypeValue(),
+                chatMessage.getVersion(),
+                chatMessage.getSequence(),
+                chatMessage.getContentBytes().toByteArray(),
+                chatMessage.hasAttachment() ? chatMessage.getAttachment() : null
+        );
+    }
+
+    /**
+     * Materialize the messages of a conversation in append order.
+     *
+     * @param conversationId the conversation ID
+     * @param viewer         the user reading the messages, used to flag {@code my_message}
+     * @return messages of the conversation, or an empty list if nothing was stored yet
+     */
+    public List<ChatMessage> getMessages(String conversationId, String viewer) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return List.of();
+        }
+        return materialize(log, 0, log.size(), viewer);
+    }
+
+    /**
+     * Materialize the messages of a conversation that were appended after the given conversation version.
+     * Versions grow with the append order, so the first matching message is found with a binary search and
+     * older messages are never materialized.
+     */
+    public List<ChatMessage> getMessagesSince(String conversationId, String viewer, long sinceVersion) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return List.of();
+        }
+
+        int size = log.size();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (log.version(mid) <= sinceVersion) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return materialize(log, low, size, viewer);
+    }
+
+    /**
+     * Materialize the messages of a conversation following the given sequence, for a client catching up from the
+     * last message it has.
+     *
+     * @param afterSequence exclusive lower bound, 0 for the first messages
+     * @return up to {@code limit} messages in sequence order
+     */
+    public List<ChatMessage> getMessagesAfter(String conversationId, String viewer, long afterSequence, int limit) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return List.of();
+        }
+        int size = log.size();
+        int fromIndex = indexAfter(log, size, afterSequence);
+        return materialize(log, fromIndex, (int) Math.min(size, (long) fromIndex + limit), viewer);
+    }
+
+    /**
+     * Materialize the messages of a conversation preceding the given sequence, for paging back through history.
+     *
+     * @param beforeSequence exclusive upper bound, {@link Long#MAX_VALUE} for the most recent messages
+     * @return up to {@code limit} messages in sequence order
+     */
+    public List<ChatMessage> getMessagesBefore(String conversationId, String viewer, long beforeSequence, int limit) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return List.of();
+        }
+        int toIndex = indexAfter(log, log.size(), beforeSequence - 1);
+        return materialize(log, Math.max(0, toIndex - limit), toIndex, viewer);
+    }
+
+    /**
+     * Materialize the messages of a conversation sent before the given instant, for paging back through history by
+     * time. Timestamps follow the append order apart from the skew between concurrent senders, so the page ends where
+     * a binary search over the timestamps puts the instant; a message within that skew of it may fall on either side.
+     *
+     * @param beforeEpochNanos exclusive upper bound, {@link Long#MAX_VALUE} for the most recent messages
+     * @return up to {@code limit} messages in sequence order
+     */
+    public List<ChatMessage> getMessagesSentBefore(String conversationId, String viewer, long beforeEpochNanos,
+                                                   int limit) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return List.of();
+        }
+        int low = 0;
+        int high = log.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (log.epochNanos(mid) < beforeEpochNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return materialize(log, Math.max(0, low - limit), low, viewer);
+    }
+
+    /**
+     * @return index of the first entry with a sequence above the given one, or {@code size} if there is none
+     */
+    private static int indexAfter(ConversationMessageLog log, int size, long sequence) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (log.sequence(mid) <= sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Materialize the message that was appended at the given conversation version.
+     *
+     * @return the message, or null if the conversation has no message with this version
+     */
+    public ChatMessage getMessage(String conversationId, String viewer, long version) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return null;
+        }
+
+        int low = 0;
+        int high = log.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midVersion = log.version(mid);
+            if (midVersion < version) {
+                low = mid + 1;
+            } else if (midVersion > version) {
+                high = mid - 1;
+            } else {
+                return toMessage(log, mid, viewer);
+            }
+        }
+        return null;
+    }
+
+    private List<ChatMessage> materialize(ConversationMessageLog log, int fromIndex, int toIndex, String viewer) {
+        List<ChatMessage> messages = new ArrayList<>(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            messages.add(toMessage(log, i, viewer));
+        }
+        return messages;
+    }
+
+    /**
+     * Stream a range of messages of a conversation in append order without materializing them all at once.
+     *
+     * @param fromIndex index of the first message, inclusive
+     * @param toIndex   index of the last message, exclusive; capped to the number of stored messages
+     */
+    public void forEachMessage(String conversationId, String viewer, int fromIndex, int toIndex,
+                               Consumer<ChatMessage> consumer) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        if (log == null) {
+            return;
+        }
+
+        int end = Math.min(toIndex, log.size());
+        for (int i = Math.max(0, fromIndex); i < end; i++) {
+            consumer.accept(toMessage(log, i, viewer));
+        }
+    }
+
+    /**
+     * Check whether a message was recently appended to its conversation. A message with a sequence is looked up by
+     * it, otherwise only the tail of the log is searched, back to messages that are clearly older than the given one.
+     */
+    public boolean containsRecent(ChatMessage chatMessage) {
+        ConversationMessageLog log = conversationLogs.get(chatMessage.getConversationId());
+        if (log == null) {
+            return false;
+        }
+
+        UUID messageId = toUuid(chatMessage.getMessageId());
+        if (chatMessage.getSequence() > 0) {
+            int size = log.size();
+            int index = indexAfter(log, size, chatMessage.getSequence() - 1);
+            return index < size && log.sequence(index) == chatMessage.getSequence()
+                    && log.idHigh(index) == messageId.getMostSignificantBits()
+                    && log.idLow(index) == messageId.getLeastSignificantBits();
+        }
+        long oldest = epochNanos(chatMessage.getTimestamp()) - APPEND_SKEW_NANOS;
+        for (int i = log.size() - 1; i >= 0 && log.epochNanos(i) >= oldest; i--) {
+            if (log.idHigh(i) == messageId.getMostSignificantBits()
+                    && log.idLow(i) == messageId.getLeastSignificantBits()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMessageCount(String conversationId) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        return log == null ? 0 : log.size();
+    }
+
+    /**
+     * @return the sequence of the last message of a conversation, or 0 if nothing was stored yet
+     */
+    public long getLastSequence(String conversationId) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        return log == null ? 0 : log.lastSequence();
+    }
+
+    /**
+     * Approximate heap retained by the stored messages of a conversation, in bytes.
+     */
+    public long getRetainedBytes(String conversationId) {
+        ConversationMessageLog log = conversationLogs.get(conversationId);
+        return log == null ? 0 : log.retainedBytes();
+    }
+
+    ChatMessage toMessage(ConversationMessageLog log, int index, String viewer) {
+        String sender = userIdRegistry.resolve(log.senderHandle(index));
+        long epochNanos = log.epochNanos(index);
+
+        String foreignId = log.foreignId(index);
+        ChatMessage.Builder message = ChatMessage.newBuilder()
+                .setMessageId(foreignId != null ? foreignId : new UUID(log.idHigh(index), log.idLow(index)).toString())
+                .setConversationId(log.getConversationId())
+                .setSender(ChatUser.newBuilder().setUserId(sender).setDisplayName(sender))
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(Math.floorDiv(epochNanos, NANOS_PER_SECOND))
+                        .setNanos((int) Math.floorMod(epochNanos, NANOS_PER_SECOND))
+                )
+                .setMessageTypeValue(log.messageType(index))
+                // content arrays are never mutated after append, so they can back the ByteString directly
+                .setContentBytes(UnsafeByteOperations.unsafeWrap(log.content(index)))
+                .setMyMessage(sender.equals(viewer))
+                .setVersion(log.version(index))
+                .setSequence(log.sequence(index));
+        AttachmentRef attachment = log.attachment(index);
+        if (attachment != null) {
+            message.setAttachment(attachment);
+        }
+        return message.build();
+    }
+
+    private static long epochNanos(Timestamp timestamp) {
+        return timestamp.getSeconds() * NANOS_PER_SECOND + timestamp.getNanos();
+    }
+
+    private static UUID toUuid(String messageId) {
+        try {
+            UUID uuid = UUID.fromString(messageId);
+            if (isCanonical(uuid, messageId)) {
+                return uuid;
+            }
+        } catch (IllegalArgumentException e) {
+            // not a UUID at all
+        }
+        // foreign ids are folded into a stable name based UUID for matching, the log keeps the original
+        return UUID.nameUUIDFromBytes(messageId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return whether the id is the canonical form of the UUID, so that the UUID alone gives it back; upper case or
+     * unpadded forms are accepted by {@link UUID#fromString} but would not
+     */
+    private static boolean isCanonical(UUID uuid, String messageId) {
+        return messageId.length() == 36 && uuid.toString().equals(messageId);
+    }
+}
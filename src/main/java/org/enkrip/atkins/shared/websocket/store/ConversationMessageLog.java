@@ -0,0 +1,221 @@
+package org.enkrip.atkins.shared.websocket.store;
+
+import org.enkrip.atkins.proto.AttachmentRef;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only, column oriented message storage for a single conversation.
+ * <p>
+ * Messages are kept in segments of primitive arrays instead of retained protobuf objects: the timestamp as epoch
+ * nanos, the 128-bit message id as two longs, the sender as an interned user handle and the content as raw UTF-8
+ * bytes, plus the conversation version the message was appended at and its attachment reference, if any. Segments start small and double in size up to {@link #MAX_SEGMENT_CAPACITY} so that quiet conversations
+ * stay cheap while busy ones avoid large array copies. A single writer appends under the log monitor, readers are
+ * lock free and only see entries below the volatile {@link #size}.
+ * <p>
+ * Every entry also gets the next sequence of the conversation on append, so sequences grow strictly with the
+ * append order and can be binary searched like versions. Entries restored from durable storage keep theirs.
+ * <p>
+ * Message ids that are not UUIDs are stored as a name based UUID, so they can still be matched by the id columns,
+ * and the original id is kept in a side table that only exists for conversations having such ids.
+ */
+final class ConversationMessageLog {
+    private static final int FIRST_SEGMENT_CAPACITY = 8;
+    private static final int MAX_SEGMENT_SHIFT = 7;
+    static final int MAX_SEGMENT_CAPACITY = FIRST_SEGMENT_CAPACITY << MAX_SEGMENT_SHIFT;
+    private static final int CAPPED_SEGMENTS_START = FIRST_SEGMENT_CAPACITY * ((1 << MAX_SEGMENT_SHIFT) - 1);
+
+    // timestamp + message id + sender handle + message type + version + sequence + content and attachment references
+    private static final int SLOT_BYTES = Long.BYTES * 3 + Integer.BYTES + Byte.BYTES + Long.BYTES + Long.BYTES
+            + Integer.BYTES * 2;
+    private static final int ATTACHMENT_OVERHEAD_BYTES = 64;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int FOREIGN_ID_OVERHEAD_BYTES = 96;
+
+    private final String conversationId;
+    private volatile Segment[] segments = new Segment[4];
+    private volatile int size;
+    private volatile long retainedBytes;
+    private long lastSequence;
+    // original ids of the entries whose id is not a UUID, by index
+    private volatile Map<Integer, String> foreignIds;
+
+    ConversationMessageLog(String conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    String getConversationId() {
+        return conversationId;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @param sequence  the sequence of a restored entry, kept if it is newer than the last one; 0 to take the next one
+     * @param foreignId the original message id if it is not a UUID, null otherwise
+     * @return the sequence of the appended entry
+     */
+    synchronized long append(long epochNanos, long idHigh, long idLow, String foreignId, int senderHandle,
+                             int messageType, long version, long sequence, byte[] content, AttachmentRef attachment) {
+        int index = size;
+        int segmentIndex = segmentIndex(index);
+        Segment[] currentSegments = segments;
+        if (segmentIndex == currentSegments.length) {
+            Segment[] grown = new Segment[currentSegments.length * 2];
+            System.arraycopy(currentSegments, 0, grown, 0, currentSegments.length);
+            currentSegments = grown;
+        }
+        Segment segment = currentSegments[segmentIndex];
+        long addedBytes = alignedArrayBytes(content.length);
+        if (attachment != null) {
+            addedBytes += ATTACHMENT_OVERHEAD_BYTES + attachment.getSerializedSize();
+        }
+        if (foreignId != null) {
+            if (foreignIds == null) {
+                foreignIds = new ConcurrentHashMap<>();
+            }
+            foreignIds.put(index, foreignId);
+            addedBytes += FOREIGN_ID_OVERHEAD_BYTES + alignedArrayBytes(foreignId.length() * 2);
+        }
+        if (segment == null) {
+            int capacity = segmentCapacity(segmentIndex);
+            segment = new Segment(capacity);
+            currentSegments[segmentIndex] = segment;
+            addedBytes += (long) capacity * SLOT_BYTES + 8L * ARRAY_HEADER_BYTES;
+        }
+
+        int slot = index - segmentStart(segmentIndex);
+        segment.epochNanos[slot] = epochNanos;
+        segment.idHigh[slot] = idHigh;
+        segment.idLow[slot] = idLow;
+        segment.senderHandles[slot] = senderHandle;
+        segment.messageTypes[slot] = (byte) messageType;
+        segment.versions[slot] = version;
+        lastSequence = sequence > lastSequence ? sequence : lastSequence + 1;
+        segment.sequences[slot] = lastSequence;
+        segment.contents[slot] = content;
+        segment.attachments[slot] = attachment;
+
+        segments = currentSegments;
+        retainedBytes += addedBytes;
+        // volatile write publishes the slot to lock free readers
+        size = index + 1;
+        return lastSequence;
+    }
+
+    long epochNanos(int index) {
+        return segment(index).epochNanos[slot(index)];
+    }
+
+    long idHigh(int index) {
+        return segment(index).idHigh[slot(index)];
+    }
+
+    long idLow(int index) {
+        return segment(index).idLow[slot(index)];
+    }
+
+    /**
+     * @return the original id of an entry whose id is not a UUID, null for UUID ids
+     */
+    String foreignId(int index) {
+        segment(index);
+        Map<Integer, String> ids = foreignIds;
+        return ids == null ? null : ids.get(index);
+    }
+
+    int senderHandle(int index) {
+        return segment(index).senderHandles[slot(index)];
+    }
+
+    int messageType(int index) {
+        return segment(index).messageTypes[slot(index)];
+    }
+
+    long version(int index) {
+        return segment(index).versions[slot(index)];
+    }
+
+    long sequence(int index) {
+        return segment(index).sequences[slot(index)];
+    }
+
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    byte[] content(int index) {
+        return segment(index).contents[slot(index)];
+    }
+
+    /**
+     * @return the attachment reference, null for messages without attachment
+     */
+    AttachmentRef attachment(int index) {
+        return segment(index).attachments[slot(index)];
+    }
+
+    private Segment segment(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return segments[segmentIndex(index)];
+    }
+
+    private static int slot(int index) {
+        return index - segmentStart(segmentIndex(index));
+    }
+
+    static int segmentIndex(int index) {
+        if (index < CAPPED_SEGMENTS_START) {
+            return 31 - Integer.numberOfLeadingZeros(index / FIRST_SEGMENT_CAPACITY + 1);
+        }
+        return MAX_SEGMENT_SHIFT + (index - CAPPED_SEGMENTS_START) / MAX_SEGMENT_CAPACITY;
+    }
+
+    static int segmentStart(int segmentIndex) {
+        if (segmentIndex <= MAX_SEGMENT_SHIFT) {
+            return FIRST_SEGMENT_CAPACITY * ((1 << segmentIndex) - 1);
+        }
+        return CAPPED_SEGMENTS_START + (segmentIndex - MAX_SEGMENT_SHIFT) * MAX_SEGMENT_CAPACITY;
+    }
+
+    static int segmentCapacity(int segmentIndex) {
+        return FIRST_SEGMENT_CAPACITY << Math.min(segmentIndex, MAX_SEGMENT_SHIFT);
+    }
+
+    private static long alignedArrayBytes(int length) {
+        return (ARRAY_HEADER_BYTES + length + 7L) & ~7L;
+    }
+
+    private static final class Segment {
+        private final long[] epochNanos;
+        private final long[] idHigh;
+        private final long[] idLow;
+        private final int[] senderHandles;
+        private final byte[] messageTypes;
+        private final long[] versions;
+        private final long[] sequences;
+        private final byte[][] contents;
+        private final AttachmentRef[] attachments;
+
+        private Segment(int capacity) {
+            this.epochNanos = new long[capacity];
+            this.idHigh = new long[capacity];
+            this.idLow = new long[capacity];
+            this.senderHandles = new int[capacity];
+            this.messageTypes = new byte[capacity];
+            this.versions = new long[capacity];
+            this.sequences = new long[capacity];
+            this.contents = new byte[capacity][];
+            this.attachments = new AttachmentRef[capacity];
+        }
+    }
+}
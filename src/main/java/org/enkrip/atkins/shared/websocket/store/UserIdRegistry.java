@@ -0,0 +1,49 @@
+package org.enkrip.atkins.shared.websocket.store;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns user ids into dense int handles so stored messages can reference their sender with a primitive
+ * instead of holding a {@code ChatUser} per message.
+ */
+@Component
+public class UserIdRegistry {
+    private final Map<String, Integer> userIdHandles = new ConcurrentHashMap<>();
+    private volatile String[] handleUserIds = new String[64];
+    private int size;
+
+    public int intern(String userId) {
+        Integer handle = userIdHandles.get(userId);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (this) {
+            handle = userIdHandles.get(userId);
+            if (handle != null) {
+                return handle;
+            }
+            String[] userIds = handleUserIds;
+            if (size == userIds.length) {
+                userIds = Arrays.copyOf(userIds, userIds.length * 2);
+            }
+            int newHandle = size++;
+            userIds[newHandle] = userId;
+            // publish the array before the map entry so a reader resolving the handle always sees it
+            handleUserIds = userIds;
+            userIdHandles.put(userId, newHandle);
+            return newHandle;
+        }
+    }
+
+    public String resolve(int handle) {
+        return handleUserIds[handle];
+    }
+
+    public int size() {
+        return userIdHandles.size();
+    }
+}
@@ -0,0 +1,171 @@
+package org.enkrip.atkins.shared.websocket.timeline;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.enkrip.atkins.config.ScyllaConfig;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.TimelineEntry;
+import org.enkrip.atkins.shared.scylla.CqlIds;
+import org.enkrip.atkins.shared.scylla.PreparedStatementRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Persistent tier of the user timelines in the {@code user_timeline} table, one partition per user. Only used when
+ * a {@link CqlSession} is available, the in-memory rings work without it. Writes use the
+ * {@link ScyllaConfig#WRITE_PROFILE write profile}, reads are idempotent single partition reads on the
+ * {@link ScyllaConfig#HOT_READ_PROFILE hot read profile}.
+ * <p>
+ * {@code message_time} only has millisecond precision, the rest of the timestamp is kept in
+ * {@code message_time_nanos}. Reads compare full timestamps, so entries sharing a millisecond are neither skipped nor
+ * returned twice when a page ends between them.
+ */
+@Component
+public class TimelineRepository {
+    private static final String INSERT_ENTRY = "INSERT INTO user_timeline (user_id, message_time, "
+            + "message_time_nanos, room_id, message_id, sender, message_preview) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String ENTRY_COLUMNS = "SELECT message_time, message_time_nanos, room_id, message_id, "
+            + "sender, message_preview FROM user_timeline WHERE user_id = ? AND message_time ";
+    private static final String SELECT_ENTRIES_BEFORE = ENTRY_COLUMNS + "< ? LIMIT ?";
+    private static final String SELECT_ENTRIES_AT = ENTRY_COLUMNS + "= ?";
+    private static final Comparator<TimelineEntry> MOST_RECENT_FIRST = Comparator
+            .comparing(TimelineEntry::getTimestamp, Timestamps.comparator())
+            .thenComparing(TimelineEntry::getMessageId)
+            .reversed();
+
+    private static final int NANOS_PER_MILLI = 1_000_000;
+
+    private final Logger logger = LoggerFactory.getLogger(TimelineRepository.class);
+
+    private final ObjectProvider<PreparedStatementRegistry> preparedStatements;
+    private final Counter writeFailures;
+
+    public TimelineRepository(ObjectProvider<PreparedStatementRegistry> preparedStatements,
+                              MeterRegistry meterRegistry) {
+        this.preparedStatements = preparedStatements;
+        this.writeFailures = meterRegistry.counter("atkins.timeline.write.failures");
+    }
+
+    public boolean isAvailable() {
+        return preparedStatements.getIfAvailable() != null;
+    }
+
+    /**
+     * Write an entry to the timeline of a user in the background.
+     */
+    public void append(String userId, TimelineEntry entry) {
+        PreparedStatementRegistry statements = preparedStatements.getIfAvailable();
+        if (statements == null) {
+            return;
+        }
+        CqlSession session = statements.getSession();
+        statements.prepareAsync(INSERT_ENTRY)
+                .thenCompose(statement -> session.executeAsync(statement.bind(
+                                CqlIds.userUuid(userId),
+                                toInstant(entry.getTimestamp()),
+                                entry.getTimestamp().getNanos() % NANOS_PER_MILLI,
+                                CqlIds.toUuid(entry.getConversationId()),
+                                CqlIds.toUuid(entry.getMessageId()),
+                                entry.hasSender() ? ByteBuffer.wrap(entry.getSender().toByteArray()) : null,
+                                entry.getPreview())
+                        .setExecutionProfileName(ScyllaConfig.WRITE_PROFILE)
+                        // upserts of the same entry, safe to retry
+                        .setIdempotent(true)))
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        writeFailures.increment();
+                        logger.warn("Failed to persist timeline entry of {}: {}", userId, error.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Read the entries of a user older than the given timestamp, a single partition read.
+     *
+     * @param before exclusive upper bound, null for the most recent entries
+     *
+     * @return up to limit entries, most recent first; empty if the read failed
+     */
+    public List<TimelineEntry> findBefore(String userId, Timestamp before, int limit) {
+        PreparedStatementRegistry statements = preparedStatements.getIfAvailable();
+        if (statements == null) {
+            return List.of();
+        }
+        try {
+            Map<String, TimelineEntry> entries = new HashMap<>();
+            Instant upperBound = Instant.ofEpochMilli(Long.MAX_VALUE);
+            if (before != null) {
+                // the older entries of the millisecond the bound falls in
+                upperBound = toInstant(before);
+                for (TimelineEntry entry : read(statements, SELECT_ENTRIES_AT, CqlIds.userUuid(userId), upperBound)) {
+                    if (Timestamps.compare(entry.getTimestamp(), before) < 0) {
+                        entries.put(entry.getMessageId(), entry);
+                    }
+                }
+            }
+            List<TimelineEntry> older = read(statements, SELECT_ENTRIES_BEFORE, CqlIds.userUuid(userId), upperBound,
+                    limit);
+            older.forEach(entry -> entries.put(entry.getMessageId(), entry));
+            if (older.size() == limit) {
+                // rows of a millisecond are clustered by message ID, the page may have cut the last one anywhere
+                Instant last = toInstant(older.getLast().getTimestamp());
+                read(statements, SELECT_ENTRIES_AT, CqlIds.userUuid(userId), last)
+                        .forEach(entry -> entries.put(entry.getMessageId(), entry));
+            }
+            return entries.values().stream().sorted(MOST_RECENT_FIRST).limit(limit).toList();
+        } catch (DriverException | CompletionException e) {
+            logger.warn("Failed to read timeline of {}: {}", userId, e.getMessage());
+            return List.of();
+        }
+    }
+
+    private static List<TimelineEntry> read(PreparedStatementRegistry statements, String query, Object... values) {
+        List<TimelineEntry> entries = new ArrayList<>();
+        Iterable<Row> rows = statements.getSession().execute(statements.prepare(query)
+                .bind(values)
+                .setExecutionProfileName(ScyllaConfig.HOT_READ_PROFILE)
+                .setIdempotent(true));
+        for (Row row : rows) {
+            Instant messageTime = row.getInstant("message_time");
+            TimelineEntry.Builder entry = TimelineEntry.newBuilder()
+                    .setConversationId(String.valueOf(row.getUuid("room_id")))
+                    .setMessageId(String.valueOf(row.getUuid("message_id")))
+                    .setTimestamp(Timestamp.newBuilder()
+                            .setSeconds(messageTime.getEpochSecond())
+                            // entries written before the column existed have it unset, which reads as 0
+                            .setNanos(messageTime.getNano() + row.getInt("message_time_nanos")))
+                    .setPreview(String.valueOf(row.getString("message_preview")));
+            ByteBuffer sender = row.getByteBuffer("sender");
+            if (sender != null) {
+                try {
+                    entry.setSender(ChatUser.parseFrom(sender));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalStateException("Corrupt sender in timeline entry " + entry.getMessageId(), e);
+                }
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return Instant.ofEpochMilli(Timestamps.toMillis(timestamp));
+    }
+}
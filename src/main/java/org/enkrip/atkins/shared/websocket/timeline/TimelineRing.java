@@ -0,0 +1,78 @@
+package org.enkrip.atkins.shared.websocket.timeline;
+
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import org.enkrip.atkins.proto.TimelineEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed capacity ring of the most recent timeline entries of one user, ordered by timestamp. New entries normally
+ * arrive in order and are written over the oldest one in constant time; entries restored out of order at startup
+ * are moved into place.
+ */
+final class TimelineRing {
+    private final TimelineEntry[] entries;
+    private int head;
+    private int size;
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    TimelineRing(int capacity) {
+        this.entries = new TimelineEntry[capacity];
+    }
+
+    synchronized void add(TimelineEntry entry) {
+        lastAccessNanos = System.nanoTime();
+        int position = size;
+        while (position > 0 && Timestamps.compare(get(position - 1).getTimestamp(), entry.getTimestamp()) > 0) {
+            position--;
+        }
+        if (size == entries.length) {
+            if (position == 0) {
+                return; // older than everything that is kept
+            }
+            // drop the oldest entry
+            entries[head] = null;
+            head = (head + 1) % entries.length;
+            size--;
+            position--;
+        }
+        for (int i = size; i > position; i--) {
+            set(i, get(i - 1));
+        }
+        set(position, entry);
+        size++;
+    }
+
+    /**
+     * @param before only entries older than this timestamp are returned, null for the most recent ones
+     * @return up to limit entries, most recent first
+     */
+    synchronized List<TimelineEntry> getEntries(Timestamp before, int limit) {
+        lastAccessNanos = System.nanoTime();
+        List<TimelineEntry> result = new ArrayList<>(Math.min(limit, size));
+        for (int i = size - 1; i >= 0 && result.size() < limit; i--) {
+            TimelineEntry entry = get(i);
+            if (before == null || Timestamps.compare(entry.getTimestamp(), before) < 0) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return when an entry was last added or read
+     */
+    long lastAccessNanos() {
+        return lastAccessNanos;
+    }
+
+    private TimelineEntry get(int index) {
+        return entries[(head + index) % entries.length];
+    }
+
+    private void set(int index, TimelineEntry entry) {
+        entries[(head + index) % entries.length] = entry;
+    }
+}
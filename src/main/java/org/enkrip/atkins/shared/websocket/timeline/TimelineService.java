@@ -0,0 +1,54 @@
+package org.enkrip.atkins.shared.websocket.timeline;
+
+import org.enkrip.atkins.proto.GetTimelineRequest;
+import org.enkrip.atkins.proto.GetTimelineResponse;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.MessageType;
+import org.enkrip.atkins.proto.RPCRequestEnvelope;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Serves the {@link UserTimeline} of the current user.
+ */
+@Service
+public class TimelineService {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 200;
+
+    private final WebSocketSessionService webSocketSessionService;
+    private final UserTimeline userTimeline;
+
+    public TimelineService(WebSocketSessionService webSocketSessionService, UserTimeline userTimeline) {
+        this.webSocketSessionService = webSocketSessionService;
+        this.userTimeline = userTimeline;
+    }
+
+    public void getTimeline(WebSocketSession session, RPCRequestEnvelope request) {
+        final String currentUser = webSocketSessionService.getCurrentUsername(session);
+
+        RPCResponseEnvelope response = RPCResponseEnvelope.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setMessageType(MessageType.RESPONSE)
+                .setOperationType(MessageOperationType.GET_TIMELINE)
+                .setSuccess(true)
+                .setGetTimelineResponse(getTimeline(currentUser, request.getGetTimelineRequest()))
+                .build();
+
+        webSocketSessionService.sendMessage(currentUser, new BinaryMessage(response.toByteArray()));
+    }
+
+    public GetTimelineResponse getTimeline(String currentUser, GetTimelineRequest request) {
+        int limit = request.getLimit() > 0 ? Math.min(request.getLimit(), MAX_LIMIT) : DEFAULT_LIMIT;
+        UserTimeline.TimelinePage page = userTimeline.getTimeline(currentUser,
+                request.hasBefore() ? request.getBefore() : null, limit);
+
+        return GetTimelineResponse.newBuilder()
+                .addAllEntries(page.entries())
+                .setHasMore(page.hasMore())
+                .build();
+    }
+}
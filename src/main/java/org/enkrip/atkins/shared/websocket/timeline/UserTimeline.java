@@ -0,0 +1,200 @@
+package org.enkrip.atkins.shared.websocket.timeline;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.TimelineEntry;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * "Recent activity across all my conversations", maintained with fan-out on write: every stored message adds a
+ * preview entry to the timeline of each participant of its conversation.
+ * <p>
+ * Reads are served from a size-capped in-memory {@link TimelineRing} per user. When a {@link TimelineRepository}
+ * session is available the entries are also written to the {@code user_timeline} table, which serves pages older
+ * than what the ring holds with a single partition read.
+ * <p>
+ * The rings of users whose timeline was neither written nor read for {@code idle-timeout} are dropped, and beyond
+ * {@code max-users} rings the least recently used ones are. Their entries are read back from the table; without a
+ * session the timeline of a dropped user starts over with their next message.
+ */
+@Component
+public class UserTimeline implements ConversationListener, DisposableBean {
+    private final Logger logger = LoggerFactory.getLogger(UserTimeline.class);
+
+    private final int capacity;
+    private final int previewLength;
+    private final int maxUsers;
+    private final long idleTimeoutNanos;
+    private final TimelineRepository timelineRepository;
+
+    private final Map<String, TimelineRing> userTimelines = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+    private final Counter sizeEvictions;
+    private final Counter idleEvictions;
+
+    // messages replayed at startup were persisted when they were first sent
+    private volatile boolean persisting;
+
+    public UserTimeline(@Value("${atkins.timeline.capacity:200}") int capacity,
+                        @Value("${atkins.timeline.preview-length:100}") int previewLength,
+                        @Value("${atkins.timeline.max-users:100000}") int maxUsers,
+                        @Value("${atkins.timeline.idle-timeout:1h}") Duration idleTimeout,
+                        TimelineRepository timelineRepository,
+                        MeterRegistry meterRegistry) {
+        this.capacity = capacity;
+        this.previewLength = previewLength;
+        this.maxUsers = maxUsers;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.timelineRepository = timelineRepository;
+
+        this.sizeEvictions = meterRegistry.counter("atkins.timeline.evictions", "cause", "size");
+        this.idleEvictions = meterRegistry.counter("atkins.timeline.evictions", "cause", "idle");
+        Gauge.builder("atkins.timeline.users", userTimelines, Map::size)
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                .name("timeline-sweeper")
+                .daemon()
+                .factory());
+        long sweepMillis = Math.max(1, idleTimeout.toMillis() / 2);
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPersisting() {
+        persisting = true;
+    }
+
+    @Override
+    public void onMessageAppended(Conversation conversation, ChatMessage message) {
+        TimelineEntry entry = TimelineEntry.newBuilder()
+                .setConversationId(message.getConversationId())
+                .setMessageId(message.getMessageId())
+                .setSender(message.getSender())
+                .setTimestamp(message.getTimestamp())
+                .setPreview(preview(message.getContent()))
+                .build();
+
+        // the entry is immutable and shared by the timelines of all participants
+        for (ChatUser participant : conversation.getParticipantsList()) {
+            String userId = participant.getUserId();
+            userTimelines.computeIfAbsent(userId, u -> new TimelineRing(capacity)).add(entry);
+            if (persisting) {
+                timelineRepository.append(userId, entry);
+            }
+        }
+        if (userTimelines.size() > maxUsers) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        // one thread evicts for everyone, the others carry on above the limit for a moment
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, TimelineRing>> candidates = userTimelines.entrySet().stream()
+                    .sorted(Comparator.comparingLong(candidate -> candidate.getValue().lastAccessNanos()))
+                    .toList();
+            // evict down to 90% of the limit, so the next new user does not sort all rings again
+            int target = maxUsers - maxUsers / 10;
+            for (Map.Entry<String, TimelineRing> candidate : candidates) {
+                if (userTimelines.size() <= target) {
+                    break;
+                }
+                if (userTimelines.remove(candidate.getKey(), candidate.getValue())) {
+                    sizeEvictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void sweep() {
+        long now = System.nanoTime();
+        userTimelines.forEach((userId, ring) -> {
+            if (now - ring.lastAccessNanos() >= idleTimeoutNanos && userTimelines.remove(userId, ring)) {
+                idleEvictions.increment();
+            }
+        });
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to sweep the user timelines", e);
+        }
+    }
+
+    int userCount() {
+        return userTimelines.size();
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Get the timeline of a user, most recent first.
+     *
+     * @param before only entries older than this timestamp are returned, null for the most recent ones
+     */
+    public TimelinePage getTimeline(String userId, Timestamp before, int limit) {
+        if (userId == null || limit <= 0) {
+            return new TimelinePage(List.of(), false);
+        }
+
+        // one extra entry tells whether there is another page
+        TimelineRing ring = userTimelines.get(userId);
+        List<TimelineEntry> entries = new ArrayList<>(ring == null ? List.of() : ring.getEntries(before, limit + 1));
+        if (entries.size() <= limit && timelineRepository.isAvailable()) {
+            Timestamp olderThan = entries.isEmpty() ? before : entries.getLast().getTimestamp();
+            entries.addAll(timelineRepository.findBefore(userId, olderThan, limit + 1 - entries.size()));
+        }
+
+        boolean hasMore = entries.size() > limit;
+        return new TimelinePage(hasMore ? entries.subList(0, limit) : entries, hasMore);
+    }
+
+    private String preview(String content) {
+        if (content.length() <= previewLength) {
+            return content;
+        }
+        int end = previewLength;
+        if (Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        return content.substring(0, end);
+    }
+
+    public record TimelinePage(List<TimelineEntry> entries, boolean hasMore) {
+    }
+}
@@ -0,0 +1,566 @@
+package org.enkrip.atkins.shared.websocket.transfer;
+
+import com.google.protobuf.CodedOutputStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.JournalRecord;
+import org.enkrip.atkins.proto.TransferCheckpoint;
+import org.enkrip.atkins.proto.TransferManifest;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.enkrip.atkins.shared.websocket.journal.ConversationSnapshots;
+import org.enkrip.atkins.shared.websocket.overload.OverloadController;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Bulk export and import of the conversation state, to move conversations between nodes, from an in-memory
+ * deployment to one backed by Scylla, or to seed a test environment.
+ * <p>
+ * An export is a directory of segment files holding length-delimited {@link JournalRecord}s, each conversation
+ * followed by its messages, as in a {@link ConversationSnapshots snapshot}. Conversations are split into
+ * {@code ranges} by a hash of their ID and {@code threads} ranges are transferred at a time, one conversation at a
+ * time, so histories far larger than the heap can be moved. A range rolls over to a new segment at the first
+ * conversation boundary beyond {@code segment-size} and checkpoints its progress there: a transfer that was
+ * interrupted resumes after its last completed segments when it is started again. An export is complete once its
+ * manifest is written, and only complete exports are imported.
+ * <p>
+ * Imported records take the same path as a snapshot being loaded, so the journal and the Scylla history persist
+ * them like any other message, except that an imported conversation gets a new version of this node. A conversation
+ * that already exists here with other messages is rejected rather than merged, which would leave its version and
+ * last message behind its messages. Messages at or below the last sequence already stored for their conversation
+ * are skipped, which makes importing the same export again harmless. Both directions are paced at
+ * {@code max-records-per-second} and pause while the {@link OverloadController} sheds load.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.transfer", name = "enabled", havingValue = "true")
+public class ConversationTransfer implements DisposableBean {
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String EXPORT_CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String IMPORT_CHECKPOINT_SUFFIX = ".imported";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Logger logger = LoggerFactory.getLogger(ConversationTransfer.class);
+
+    private final Path exportDirectory;
+    private final Path importDirectory;
+    private final int rangeCount;
+    private final int threads;
+    private final long segmentSizeBytes;
+    private final ConversationService conversationService;
+    private final CompactMessageStore messageStore;
+    private final TransferThrottle throttle;
+    private final Map<Direction, Counter> transferredRecords;
+
+    // guarded by this
+    private Progress progress;
+    private Thread transferThread;
+
+    public ConversationTransfer(@Value("${atkins.transfer.export-directory:data/export}") Path exportDirectory,
+                                @Value("${atkins.transfer.import-directory:data/import}") Path importDirectory,
+                                @Value("${atkins.transfer.ranges:64}") int rangeCount,
+                                @Value("${atkins.transfer.threads:4}") int threads,
+                                @Value("${atkins.transfer.segment-size:256MB}") DataSize segmentSize,
+                                @Value("${atkins.transfer.max-records-per-second:0}") long maxRecordsPerSecond,
+                                @Value("${atkins.transfer.overload-pause:1s}") Duration overloadPause,
+                                ConversationService conversationService,
+                                CompactMessageStore messageStore,
+                                OverloadController overloadController,
+                                MeterRegistry meterRegistry) {
+        this.exportDirectory = exportDirectory;
+        this.importDirectory = importDirectory;
+        this.rangeCount = rangeCount;
+        this.threads = threads;
+        this.segmentSizeBytes = segmentSize.toBytes();
+        this.conversationService = conversationService;
+        this.messageStore = messageStore;
+        this.throttle = new TransferThrottle(maxRecordsPerSecond, overloadPause.toNanos(), overloadController,
+                meterRegistry.counter("atkins.transfer.overload.pauses"));
+        this.transferredRecords = Stream.of(Direction.values()).collect(Collectors.toMap(direction -> direction,
+                direction -> meterRegistry.counter("atkins.transfer.records", "direction",
+                        direction.name().toLowerCase())));
+    }
+
+    /**
+     * Start exporting to {@code export-directory}, resuming an interrupted export. Has no effect while a transfer
+     * is running.
+     */
+    public synchronized TransferStatus startExport() {
+        return start(Direction.EXPORT);
+    }
+
+    /**
+     * Start importing the complete export in {@code import-directory}, resuming an interrupted import. Has no
+     * effect while a transfer is running.
+     */
+    public synchronized TransferStatus startImport() {
+        return start(Direction.IMPORT);
+    }
+
+    public synchronized TransferStatus getStatus() {
+        return progress == null ? TransferStatus.IDLE : progress.toStatus();
+    }
+
+    private TransferStatus start(Direction direction) {
+        if (progress != null && progress.finishedNanos == 0) {
+            return progress.toStatus();
+        }
+        Progress started = new Progress(direction);
+        progress = started;
+        // taken before the thread starts, a transfer failing right away must still be reported as started
+        TransferStatus status = started.toStatus();
+        transferThread = Thread.ofPlatform()
+                .name("conversation-transfer")
+                .daemon()
+                .start(() -> run(started));
+        return status;
+    }
+
+    private void run(Progress progress) {
+        try {
+            if (progress.direction == Direction.EXPORT) {
+                export(progress);
+            } else {
+                importExport(progress);
+            }
+            TransferStatus status = progress.finish(null);
+            logger.info("{} of {} conversations and {} messages finished at {} records per second",
+                    progress.direction, status.conversations(), status.messages(),
+                    Math.round(status.recordsPerSecond()));
+        } catch (Exception e) {
+            progress.finish(e.getMessage());
+            logger.error("{} failed, starting it again resumes from the last checkpoints", progress.direction, e);
+        }
+    }
+
+    private void export(Progress progress) throws IOException {
+        Files.createDirectories(exportDirectory);
+        if (Files.exists(exportDirectory.resolve(MANIFEST_FILE))) {
+            // a complete export is replaced, only an incomplete one is resumed
+            clear(exportDirectory);
+        }
+
+        Map<Integer, List<String>> conversationIds = conversationService.getConversations().stream()
+                .map(Conversation::getConversationId)
+                .collect(Collectors.groupingBy(conversationId -> rangeOf(conversationId, rangeCount)));
+        progress.rangeCount = rangeCount;
+        runRanges(rangeCount, range -> exportRange(progress, range,
+                conversationIds.getOrDefault(range, List.of())));
+
+        long conversationCount = 0;
+        long messageCount = 0;
+        for (int range = 0; range < rangeCount; range++) {
+            TransferCheckpoint checkpoint = readCheckpoint(exportDirectory, range, EXPORT_CHECKPOINT_SUFFIX)
+                    .orElseThrow();
+            conversationCount += checkpoint.getConversationCount();
+            messageCount += checkpoint.getMessageCount();
+        }
+        writeAtomically(exportDirectory.resolve(MANIFEST_FILE), TransferManifest.newBuilder()
+                .setCreatedAtMillis(System.currentTimeMillis())
+                .setRangeCount(rangeCount)
+                .setConversationCount(conversationCount)
+                .setMessageCount(messageCount)
+                .build()
+                .toByteArray());
+    }
+
+    private void exportRange(Progress progress, int range, List<String> conversationIds) throws IOException {
+        TransferCheckpoint checkpoint = readCheckpoint(exportDirectory, range, EXPORT_CHECKPOINT_SUFFIX)
+                .orElse(TransferCheckpoint.newBuilder().setRange(range).setRangeCount(rangeCount).build());
+        if (checkpoint.getRangeCount() != rangeCount) {
+            throw new IOException("Export of range " + range + " was started with " + checkpoint.getRangeCount()
+                    + " ranges instead of " + rangeCount);
+        }
+        if (checkpoint.getComplete()) {
+            progress.completedRanges.incrementAndGet();
+            return;
+        }
+        deleteSegmentsFrom(range, checkpoint.getSegmentCount());
+
+        // conversations are exported in ID order, so the checkpoint tells which ones are done
+        List<String> pending = conversationIds.stream()
+                .filter(conversationId -> conversationId.compareTo(checkpoint.getLastConversationId()) > 0)
+                .sorted()
+                .toList();
+        TransferCheckpoint.Builder next = checkpoint.toBuilder();
+        SegmentWriter writer = null;
+        try {
+            for (String conversationId : pending) {
+                // count the messages before reading the conversation, as snapshots do
+                int messages = messageStore.getMessageCount(conversationId);
+                Conversation conversation = conversationService.getConversation(conversationId);
+                if (conversation == null) {
+                    continue;
+                }
+                if (writer == null) {
+                    writer = new SegmentWriter(segmentFile(exportDirectory, range, next.getSegmentCount()));
+                }
+                throttle.acquire();
+                writer.write(JournalRecord.newBuilder().setConversation(conversation).build());
+                progress.recordConversation();
+                writeMessages(progress, writer, conversationId, messages);
+                next.setLastConversationId(conversationId)
+                        .setConversationCount(next.getConversationCount() + 1)
+                        .setMessageCount(next.getMessageCount() + messages);
+
+                if (writer.size() >= segmentSizeBytes) {
+                    writer.close();
+                    writer = null;
+                    next.setSegmentCount(next.getSegmentCount() + 1);
+                    writeCheckpoint(exportDirectory, range, EXPORT_CHECKPOINT_SUFFIX, next.build());
+                }
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+                next.setSegmentCount(next.getSegmentCount() + 1);
+            }
+            writeCheckpoint(exportDirectory, range, EXPORT_CHECKPOINT_SUFFIX, next.setComplete(true).build());
+            progress.completedRanges.incrementAndGet();
+        } finally {
+            if (writer != null) {
+                writer.abandon();
+            }
+        }
+    }
+
+    private void writeMessages(Progress progress, SegmentWriter writer, String conversationId, int count)
+            throws IOException {
+        try {
+            messageStore.forEachMessage(conversationId, null, 0, count, message -> {
+                try {
+                    throttle.acquire();
+                    writer.write(JournalRecord.newBuilder().setMessage(message).build());
+                    progress.recordMessage();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void importExport(Progress progress) throws IOException {
+        TransferManifest manifest;
+        try (InputStream in = Files.newInputStream(importDirectory.resolve(MANIFEST_FILE))) {
+            manifest = TransferManifest.parseFrom(in);
+        } catch (NoSuchFileException e) {
+            throw new IOException("No complete export in " + importDirectory, e);
+        }
+        progress.rangeCount = manifest.getRangeCount();
+        runRanges(manifest.getRangeCount(), range -> importRange(progress, range));
+    }
+
+    private void importRange(Progress progress, int range) throws IOException {
+        int segmentCount = readCheckpoint(importDirectory, range, EXPORT_CHECKPOINT_SUFFIX)
+                .orElseThrow(() -> new IOException("Export checkpoint of range " + range + " is missing"))
+                .getSegmentCount();
+        TransferCheckpoint checkpoint = readCheckpoint(importDirectory, range, IMPORT_CHECKPOINT_SUFFIX)
+                .orElse(TransferCheckpoint.newBuilder().setRange(range).build());
+        TransferCheckpoint.Builder next = checkpoint.toBuilder();
+
+        for (int segment = checkpoint.getSegmentCount(); segment < segmentCount; segment++) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(segmentFile(importDirectory, range,
+                    segment)), BUFFER_SIZE)) {
+                // messages up to this sequence of the current conversation were imported before
+                long importedSequence = 0;
+                boolean rejected = false;
+                // the conversation whose messages are being imported, it changes once they are all in
+                String importing = null;
+                JournalRecord record;
+                while ((record = JournalRecord.parseDelimitedFrom(in)) != null) {
+                    throttle.acquire();
+                    if (record.getRecordCase() == JournalRecord.RecordCase.CONVERSATION) {
+                        Conversation conversation = record.getConversation();
+                        completeImport(importing);
+                        importing = null;
+                        rejected = !conversationService.importConversation(conversation)
+                                && !importedBefore(conversation);
+                        if (rejected) {
+                            logger.warn("Not importing conversation {}, it already exists with other messages",
+                                    conversation.getConversationId());
+                            progress.rejectedConversations.increment();
+                            continue;
+                        }
+                        importing = conversation.getConversationId();
+                        importedSequence = messageStore.getLastSequence(conversation.getConversationId());
+                        next.setConversationCount(next.getConversationCount() + 1);
+                        progress.recordConversation();
+                    } else if (record.getRecordCase() == JournalRecord.RecordCase.MESSAGE) {
+                        ChatMessage message = record.getMessage();
+                        if (rejected || message.getSequence() <= importedSequence
+                                || !conversationService.restoreStoredMessage(message)) {
+                            progress.skippedMessages.increment();
+                            continue;
+                        }
+                        next.setMessageCount(next.getMessageCount() + 1);
+                        progress.recordMessage();
+                    }
+                }
+                completeImport(importing);
+            }
+            next.setSegmentCount(segment + 1);
+            writeCheckpoint(importDirectory, range, IMPORT_CHECKPOINT_SUFFIX, next.build());
+        }
+        if (!checkpoint.getComplete()) {
+            writeCheckpoint(importDirectory, range, IMPORT_CHECKPOINT_SUFFIX, next.setComplete(true).build());
+        }
+        progress.completedRanges.incrementAndGet();
+    }
+
+    private void completeImport(String conversationId) {
+        if (conversationId != null) {
+            conversationService.completeImport(conversationId);
+        }
+    }
+
+    /**
+     * @return whether the existing conversation is the one an earlier run of the import added, which only differs
+     * from the exported one by its version as the import does not update it
+     */
+    private boolean importedBefore(Conversation conversation) {
+        Conversation existing = conversationService.getConversation(conversation.getConversationId());
+        return existing != null
+                && existing.toBuilder().setVersion(conversation.getVersion()).build().equals(conversation);
+    }
+
+    private void runRanges(int ranges, RangeTask task) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ranges), Thread.ofPlatform()
+                .name("conversation-transfer-range-", 0)
+                .factory());
+        try {
+            List<Future<?>> futures = new ArrayList<>(ranges);
+            for (int range = 0; range < ranges; range++) {
+                int current = range;
+                futures.add(executor.submit(() -> {
+                    task.run(current);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring conversation ranges", e);
+        } catch (Exception e) {
+            throw new IOException("Failed to transfer conversation ranges", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Optional<TransferCheckpoint> readCheckpoint(Path directory, int range, String suffix)
+            throws IOException {
+        Path file = directory.resolve(rangeName(range) + suffix);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            return Optional.of(TransferCheckpoint.parseFrom(in));
+        }
+    }
+
+    private void writeCheckpoint(Path directory, int range, String suffix, TransferCheckpoint checkpoint)
+            throws IOException {
+        writeAtomically(directory.resolve(rangeName(range) + suffix), checkpoint.toByteArray());
+    }
+
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        Files.write(temporary, content);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Delete the segments a range was writing when the export was interrupted.
+     */
+    private void deleteSegmentsFrom(int range, int firstSegment) throws IOException {
+        String prefix = rangeName(range) + "-";
+        try (Stream<Path> files = Files.list(exportDirectory)) {
+            for (Path file : files.filter(file -> file.getFileName().toString().startsWith(prefix)).toList()) {
+                int segment = Integer.parseInt(file.getFileName().toString().substring(prefix.length()));
+                if (segment >= firstSegment) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static void clear(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                FileSystemUtils.deleteRecursively(file);
+            }
+        }
+    }
+
+    private static int rangeOf(String conversationId, int ranges) {
+        return Math.floorMod(conversationId.hashCode(), ranges);
+    }
+
+    private static String rangeName(int range) {
+        return String.format("range-%03d", range);
+    }
+
+    private static Path segmentFile(Path directory, int range, int segment) {
+        return directory.resolve(String.format("%s-%05d", rangeName(range), segment));
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (transferThread != null) {
+            transferThread.interrupt();
+        }
+    }
+
+    public enum Direction {
+        EXPORT,
+        IMPORT
+    }
+
+    /**
+     * @param direction             null if no transfer was started yet
+     * @param rangeCount            hash ranges of the transfer, {@code completedRanges} of which are done
+     * @param conversations         conversations transferred by this run, a resumed transfer does not count earlier
+     *                              runs
+     * @param skippedMessages       imported messages that were already stored, or belong to an unknown or a
+     *                              rejected conversation
+     * @param rejectedConversations imported conversations that were not added, as one with the same ID already
+     *                              exists here with other messages
+     * @param recordsPerSecond      conversations and messages transferred per second since the start
+     * @param error                 why the transfer failed, null while running or if it succeeded
+     */
+    public record TransferStatus(Direction direction, boolean running, Instant startedAt, int completedRanges,
+                                 int rangeCount, long conversations, long messages, long skippedMessages,
+                                 long rejectedConversations, double recordsPerSecond, String error) {
+        static final TransferStatus IDLE = new TransferStatus(null, false, null, 0, 0, 0, 0, 0, 0, 0, null);
+    }
+
+    private final class Progress {
+        private final Direction direction;
+        private final Instant startedAt = Instant.now();
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger completedRanges = new AtomicInteger();
+        private final LongAdder conversations = new LongAdder();
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder skippedMessages = new LongAdder();
+        private final LongAdder rejectedConversations = new LongAdder();
+        private volatile int rangeCount;
+        private volatile long finishedNanos;
+        private volatile String error;
+
+        private Progress(Direction direction) {
+            this.direction = direction;
+        }
+
+        private TransferStatus finish(String error) {
+            this.error = error;
+            this.finishedNanos = System.nanoTime();
+            return toStatus();
+        }
+
+        private void recordConversation() {
+            conversations.increment();
+            transferredRecords.get(direction).increment();
+        }
+
+        private void recordMessage() {
+            messages.increment();
+            transferredRecords.get(direction).increment();
+        }
+
+        private TransferStatus toStatus() {
+            long finished = finishedNanos;
+            long elapsedNanos = (finished == 0 ? System.nanoTime() : finished) - startNanos;
+            long records = conversations.sum() + messages.sum();
+            double recordsPerSecond = elapsedNanos == 0 ? 0
+                    : records / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+            return new TransferStatus(direction, finished == 0, startedAt, completedRanges.get(), rangeCount,
+                    conversations.sum(), messages.sum(), skippedMessages.sum(), rejectedConversations.sum(),
+                    recordsPerSecond, error);
+        }
+    }
+
+    /**
+     * Writes one segment file, forced to disk before its checkpoint is written.
+     */
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private final OutputStream out;
+        private long size;
+
+        private SegmentWriter(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        }
+
+        private void write(JournalRecord record) throws IOException {
+            int recordSize = record.getSerializedSize();
+            record.writeDelimitedTo(out);
+            size += CodedOutputStream.computeUInt32SizeNoTag(recordSize) + recordSize;
+        }
+
+        private long size() {
+            return size;
+        }
+
+        private void close() throws IOException {
+            out.flush();
+            channel.force(false);
+            out.close();
+        }
+
+        private void abandon() {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // the segment is deleted when the export resumes
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RangeTask {
+        void run(int range) throws IOException;
+    }
+}
@@ -0,0 +1,32 @@
+package org.enkrip.atkins.shared.websocket.transfer;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code /actuator/import}: GET reports the progress of the current transfer, POST starts importing the export in
+ * {@code import-directory}. Only served on the management port.
+ */
+@Component
+@ConditionalOnProperty(prefix = "atkins.transfer", name = "enabled", havingValue = "true")
+@Endpoint(id = "import")
+public class ImportEndpoint {
+    private final ConversationTransfer conversationTransfer;
+
+    public ImportEndpoint(ConversationTransfer conversationTransfer) {
+        this.conversationTransfer = conversationTransfer;
+    }
+
+    @ReadOperation
+    public ConversationTransfer.TransferStatus status() {
+        return conversationTransfer.getStatus();
+    }
+
+    @WriteOperation
+    public ConversationTransfer.TransferStatus importExport() {
+        return conversationTransfer.startImport();
+    }
+}
@@ -0,0 +1,64 @@
+package org.enkrip.atkins.shared.websocket.transfer;
+
+import io.micrometer.core.instrument.Counter;
+import org.enkrip.atkins.shared.websocket.overload.OverloadController;
+import org.enkrip.atkins.shared.websocket.overload.OverloadLevel;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the records of a transfer, shared by all of its threads: records are spread evenly at
+ * {@code max-records-per-second}, and nothing is transferred while the {@link OverloadController} sheds load.
+ */
+final class TransferThrottle {
+    private final long nanosPerRecord;
+    private final long overloadPauseNanos;
+    private final OverloadController overloadController;
+    private final Counter pauses;
+    // the time from which the next record may be transferred
+    private final AtomicLong next = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param maxRecordsPerSecond 0 for no limit
+     */
+    TransferThrottle(long maxRecordsPerSecond, long overloadPauseNanos, OverloadController overloadController,
+                     Counter pauses) {
+        this.nanosPerRecord = maxRecordsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRecordsPerSecond : 0;
+        this.overloadPauseNanos = overloadPauseNanos;
+        this.overloadController = overloadController;
+        this.pauses = pauses;
+    }
+
+    /**
+     * Wait until a record may be transferred.
+     */
+    void acquire() throws InterruptedIOException {
+        while (overloadController.getStatus().level() != OverloadLevel.NORMAL) {
+            pauses.increment();
+            park(overloadPauseNanos);
+        }
+        if (nanosPerRecord == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        // an idle throttle does not build up a burst, the reservation starts no earlier than now
+        long start = next.getAndAccumulate(nanosPerRecord, (current, interval) -> Math.max(current, now) + interval);
+        long wait = Math.max(start, now) - now;
+        if (wait > 0) {
+            park(wait);
+        }
+    }
+
+    private static void park(long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while throttling the transfer");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.enkrip.atkins.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntToLongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Minimal harness for the {@code *Benchmark} classes, which only run with {@code mvn test -Pbenchmark}.
+ * <p>
+ * Time is measured over a number of rounds after warm-up rounds that let the JIT compile the measured code, and the
+ * median round is reported, so a collection or a compilation landing in one round does not skew the result. Memory
+ * is the heap still used after a full collection while the measured structure is reachable, compared to before it
+ * was built. These are repeatable comparisons on one machine, not a substitute for JMH.
+ */
+public final class Benchmark {
+    private final String title;
+    private final List<String> rows = new ArrayList<>();
+
+    public Benchmark(String title) {
+        this.title = title;
+    }
+
+    /**
+     * Time an operation.
+     *
+     * @param round runs one round of the operation, given the round number, and returns the number of operations it
+     *              ran
+     * @return the median time of one operation, in nanoseconds
+     */
+    public double time(String name, int warmupRounds, int rounds, IntToLongFunction round) {
+        for (int i = 0; i < warmupRounds; i++) {
+            consume(round.applyAsLong(i));
+        }
+        double[] nanosPerOperation = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            long operations = round.applyAsLong(warmupRounds + i);
+            nanosPerOperation[i] = (double) (System.nanoTime() - start) / Math.max(1, operations);
+        }
+        Arrays.sort(nanosPerOperation);
+        double median = nanosPerOperation[rounds / 2];
+        rows.add(String.format(Locale.ROOT, "%-48s %14.1f ns/op %16.0f ops/s  (min %.1f, max %.1f)", name, median,
+                1e9 / median, nanosPerOperation[0], nanosPerOperation[rounds - 1]));
+        return median;
+    }
+
+    /**
+     * Measure the heap retained by a structure.
+     *
+     * @param elements how many elements the structure holds, to report the bytes per element
+     * @return the retained bytes
+     */
+    public long retained(String name, long elements, Supplier<?> structure) {
+        long before = usedAfterGc();
+        Object built = structure.get();
+        long after = usedAfterGc();
+        consume(built.hashCode());
+        long retained = Math.max(0, after - before);
+        rows.add(String.format(Locale.ROOT, "%-48s %14d bytes %16.1f bytes/element", name, retained,
+                (double) retained / Math.max(1, elements)));
+        return retained;
+    }
+
+    /**
+     * Record a derived figure, such as the ratio of two measurements.
+     */
+    public void note(String name, String value) {
+        rows.add(String.format(Locale.ROOT, "%-48s %14s", name, value));
+    }
+
+    /**
+     * Print the results, the surefire report of the benchmark keeps them.
+     */
+    public void report() {
+        StringBuilder report = new StringBuilder("== ").append(title).append(" ==").append(System.lineSeparator());
+        rows.forEach(row -> report.append(row).append(System.lineSeparator()));
+        System.out.print(report);
+    }
+
+    private static long usedAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // a couple of collections, as finalization and reference processing may release more on the second one
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static volatile long sink;
+
+    /**
+     * Keep a result alive, so the JIT cannot drop the code that computed it.
+     */
+    public static void consume(long value) {
+        sink += value;
+    }
+}
@@ -0,0 +1,165 @@
+package org.enkrip.atkins.shared.mapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonFormat;
+import org.enkrip.atkins.benchmark.Benchmark;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatMessageType;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.GetListOfConversationsResponse;
+import org.enkrip.atkins.shared.websocket.dto.ChatMessageDto;
+import org.enkrip.atkins.shared.websocket.dto.ChatUserDto;
+import org.enkrip.atkins.shared.websocket.dto.ConversationDto;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Serializing a conversation list: the DTO copy written by Jackson that the endpoints used to return, the
+ * {@link ProtobufJsonWriter} that replaced it, the canonical protobuf JSON mapping and the protobuf binary format.
+ */
+class ProtobufJsonWriterBenchmark {
+    private static final int CONVERSATIONS = 50;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 30;
+    private static final int LISTS_PER_ROUND = 200;
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Test
+    void conversationList() throws IOException {
+        List<Conversation> conversations = new ArrayList<>();
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            conversations.add(conversation(i));
+        }
+        Benchmark benchmark = new Benchmark("conversation list of " + CONVERSATIONS + " conversations");
+        JsonFormat.Printer printer = JsonFormat.printer().alwaysPrintFieldsWithNoPresence()
+                .omittingInsignificantWhitespace();
+
+        double dto = benchmark.time("DTO copy + Jackson", WARMUP_ROUNDS, ROUNDS, round -> rounds(() -> {
+            List<ConversationDto> dtos = conversations.stream().map(ProtobufJsonWriterBenchmark::toDto).toList();
+            return objectMapper.writeValueAsBytes(dtos).length;
+        }));
+        double writer = benchmark.time("ProtobufJsonWriter", WARMUP_ROUNDS, ROUNDS, round -> rounds(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+            ProtobufJsonWriter.array(conversations).writeTo(out);
+            return out.size();
+        }));
+        benchmark.time("JsonFormat (canonical mapping)", WARMUP_ROUNDS, ROUNDS, round -> rounds(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+            Writer writerOut = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writerOut.write('[');
+            for (int i = 0; i < conversations.size(); i++) {
+                if (i > 0) {
+                    writerOut.write(',');
+                }
+                printer.appendTo(conversations.get(i), writerOut);
+            }
+            writerOut.write(']');
+            writerOut.flush();
+            return out.size();
+        }));
+        benchmark.time("protobuf binary", WARMUP_ROUNDS, ROUNDS, round -> rounds(() ->
+                GetListOfConversationsResponse.newBuilder().addAllConversations(conversations).build()
+                        .toByteArray().length));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        ProtobufJsonWriter.array(conversations).writeTo(json);
+        benchmark.note("ProtobufJsonWriter / DTO copy time", String.format(Locale.ROOT, "%.2f", writer / dto));
+        benchmark.note("JSON bytes", Integer.toString(json.size()));
+        benchmark.note("protobuf bytes", Integer.toString(GetListOfConversationsResponse.newBuilder()
+                .addAllConversations(conversations).build().getSerializedSize()));
+        benchmark.report();
+    }
+
+    private static long rounds(IoSupplier operation) {
+        try {
+            long bytes = 0;
+            for (int i = 0; i < LISTS_PER_ROUND; i++) {
+                bytes += operation.get();
+            }
+            Benchmark.consume(bytes);
+            return LISTS_PER_ROUND;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Conversation conversation(int index) {
+        ChatUser alice = ChatUser.newBuilder().setUserId("alice").setDisplayName("Alice").build();
+        ChatUser other = ChatUser.newBuilder().setUserId("user-" + index).setDisplayName("User " + index).build();
+        Timestamp timestamp = Timestamp.newBuilder().setSeconds(1_758_000_000L + index).setNanos(index * 1000).build();
+        return Conversation.newBuilder()
+                .setConversationId(UUID.nameUUIDFromBytes(("conversation-" + index).getBytes()).toString())
+                .addParticipants(alice)
+                .addParticipants(other)
+                .setLastUpdatedTimestamp(timestamp)
+                .setVersion(index * 10)
+                .setLastMessage(ChatMessage.newBuilder()
+                        .setMessageId(UUID.nameUUIDFromBytes(("message-" + index).getBytes()).toString())
+                        .setConversationId("conversation-" + index)
+                        .setSender(other)
+                        .setTimestamp(timestamp)
+                        .setMessageType(ChatMessageType.TEXT)
+                        .setContent("the last message of conversation " + index)
+                        .setVersion(index * 10)
+                        .setSequence(index + 1))
+                .build();
+    }
+
+    private static ConversationDto toDto(Conversation conversation) {
+        ConversationDto dto = new ConversationDto();
+        dto.setConversationId(conversation.getConversationId());
+        dto.setParticipants(conversation.getParticipantsList().stream().map(ProtobufJsonWriterBenchmark::toDto)
+                .toList());
+        dto.setLastUpdatedTimestamp(toInstant(conversation.getLastUpdatedTimestamp()));
+        dto.setVersion(conversation.getVersion());
+        dto.setUnreadCount(conversation.getUnreadCount());
+        if (conversation.hasLastMessage()) {
+            ChatMessage message = conversation.getLastMessage();
+            ChatMessageDto messageDto = new ChatMessageDto();
+            messageDto.setMessageId(message.getMessageId());
+            messageDto.setConversationId(message.getConversationId());
+            messageDto.setSender(toDto(message.getSender()));
+            messageDto.setTimestamp(toInstant(message.getTimestamp()));
+            messageDto.setMessageType(message.getMessageType().name());
+            messageDto.setContent(message.getContent());
+            messageDto.setMyMessage(message.getMyMessage());
+            messageDto.setVersion(message.getVersion());
+            messageDto.setSequence(message.getSequence());
+            dto.setLastMessage(messageDto);
+        }
+        return dto;
+    }
+
+    private static ChatUserDto toDto(ChatUser user) {
+        ChatUserDto dto = new ChatUserDto();
+        dto.setUserId(user.getUserId());
+        dto.setUsername(user.getUsername());
+        dto.setDisplayName(user.hasDisplayName() ? user.getDisplayName() : null);
+        dto.setAvatarUrl(user.hasAvatarUrl() ? user.getAvatarUrl() : null);
+        return dto;
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos());
+    }
+
+    @FunctionalInterface
+    private interface IoSupplier {
+        int get() throws IOException;
+    }
+}
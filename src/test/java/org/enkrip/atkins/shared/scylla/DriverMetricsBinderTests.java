@@ -0,0 +1,45 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.metrics.Metrics;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DriverMetricsBinderTests {
+
+    @Test
+    void exportsSessionAndNodeMetricsAsTheyComeAndGo() {
+        MetricRegistry driverRegistry = new MetricRegistry();
+        Metrics metrics = mock(Metrics.class);
+        when(metrics.getRegistry()).thenReturn(driverRegistry);
+        CqlSession session = mock(CqlSession.class);
+        when(session.getMetrics()).thenReturn(Optional.of(metrics));
+
+        driverRegistry.timer("atkins.cql-requests").update(4, TimeUnit.MILLISECONDS);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        new DriverMetricsBinder(session, "atkins").bindTo(meterRegistry);
+
+        FunctionTimer requests = meterRegistry.get("atkins.scylla.cql-requests").functionTimer();
+        assertEquals(1, requests.count());
+
+        // node metrics are registered once the driver connects to a node
+        driverRegistry.counter("atkins.nodes.10_0_0_1:9042.pool.in-flight").inc(3);
+        assertEquals(3, meterRegistry.get("atkins.scylla.pool.in-flight")
+                .tag("node", "10_0_0_1:9042")
+                .gauge()
+                .value());
+
+        driverRegistry.remove("atkins.nodes.10_0_0_1:9042.pool.in-flight");
+        assertNull(meterRegistry.find("atkins.scylla.pool.in-flight").gauge());
+    }
+}
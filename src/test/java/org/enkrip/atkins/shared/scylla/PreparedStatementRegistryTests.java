@@ -0,0 +1,52 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PreparedStatementRegistryTests {
+    private static final String QUERY = "SELECT * FROM user_timeline WHERE user_id = ?";
+
+    @Test
+    void preparesEachQueryOnce() {
+        CqlSession session = mock(CqlSession.class);
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        CompletableFuture<PreparedStatement> preparation = new CompletableFuture<>();
+        when(session.prepareAsync(QUERY)).thenReturn(preparation);
+
+        PreparedStatementRegistry registry = new PreparedStatementRegistry(session);
+        // callers arriving while the statement is being prepared share the preparation
+        CompletableFuture<PreparedStatement> first = registry.prepareAsync(QUERY).toCompletableFuture();
+        CompletableFuture<PreparedStatement> second = registry.prepareAsync(QUERY).toCompletableFuture();
+        preparation.complete(prepared);
+
+        assertSame(prepared, first.join());
+        assertSame(prepared, second.join());
+        assertSame(prepared, registry.prepare(QUERY));
+        verify(session, times(1)).prepareAsync(QUERY);
+    }
+
+    @Test
+    void retriesFailedPreparation() {
+        CqlSession session = mock(CqlSession.class);
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(session.prepareAsync(QUERY))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("no host available")))
+                .thenReturn(CompletableFuture.completedFuture(prepared));
+
+        PreparedStatementRegistry registry = new PreparedStatementRegistry(session);
+        assertThrows(CompletionException.class, () -> registry.prepare(QUERY));
+        assertSame(prepared, registry.prepare(QUERY));
+        verify(session, times(2)).prepareAsync(QUERY);
+    }
+}
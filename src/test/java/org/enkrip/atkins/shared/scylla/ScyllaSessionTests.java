@@ -0,0 +1,194 @@
+package org.enkrip.atkins.shared.scylla;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.protobuf.util.Timestamps;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.config.ScyllaConfig;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.TimelineEntry;
+import org.enkrip.atkins.shared.websocket.history.BucketGranularity;
+import org.enkrip.atkins.shared.websocket.history.MessageHistoryRepository;
+import org.enkrip.atkins.shared.websocket.timeline.TimelineRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.boot.autoconfigure.cassandra.CassandraProperties;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs against a real Scylla node, for example a local {@code docker run -p 9042:9042 scylladb/scylla}, given with
+ * {@code -Datkins.test.scylla=127.0.0.1:9042}. Every run works in a keyspace of its own, dropped afterwards.
+ */
+@EnabledIfSystemProperty(named = "atkins.test.scylla", matches = ".+")
+class ScyllaSessionTests {
+    private static final Pattern CREATE_TABLE = Pattern.compile("CREATE TABLE IF NOT EXISTS (\\w+)");
+
+    private final String contactPoint = System.getProperty("atkins.test.scylla");
+    private final String datacenter = System.getProperty("atkins.test.scylla.datacenter", "datacenter1");
+    private final String keyspace = "atkins_test_" + UUID.randomUUID().toString().replace("-", "");
+
+    private CqlSession session;
+
+    @BeforeEach
+    void createKeyspace() {
+        try (CqlSession bootstrap = bootstrap()) {
+            bootstrap.execute("CREATE KEYSPACE " + keyspace
+                    + " WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}");
+        }
+        CassandraProperties properties = new CassandraProperties();
+        properties.setContactPoints(List.of(contactPoint));
+        properties.setKeyspaceName(keyspace);
+        properties.setLocalDatacenter(datacenter);
+        session = new ScyllaConfig().cqlSession(properties, "LOCAL_ONE", Duration.ofSeconds(2), Duration.ofMillis(50),
+                1, "LOCAL_ONE", Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    void dropKeyspace() {
+        if (session != null) {
+            session.close();
+        }
+        try (CqlSession bootstrap = bootstrap()) {
+            bootstrap.execute("DROP KEYSPACE IF EXISTS " + keyspace);
+        }
+    }
+
+    @Test
+    void createsTheSchemaBeforeTheSessionIsHandedOut() {
+        Set<String> expected = CqlSchema.readStatements().stream()
+                .map(CREATE_TABLE::matcher)
+                .filter(Matcher::find)
+                .map(matcher -> matcher.group(1))
+                .collect(Collectors.toSet());
+        Set<String> tables = session.execute("SELECT table_name FROM system_schema.tables WHERE keyspace_name = ?",
+                        keyspace).all().stream()
+                .map(row -> row.getString("table_name"))
+                .collect(Collectors.toSet());
+        assertTrue(tables.containsAll(expected), () -> "missing tables, found " + tables);
+
+        // applying the script again, as every restart does, changes nothing
+        CqlSchema.apply(session);
+        assertEquals(tables, session.execute("SELECT table_name FROM system_schema.tables WHERE keyspace_name = ?",
+                        keyspace).all().stream()
+                .map(row -> row.getString("table_name"))
+                .collect(Collectors.toSet()));
+    }
+
+    @Test
+    void addsTheColumnsMissingFromATableCreatedBeforeThem() {
+        session.execute("ALTER TABLE room_time_buckets DROP message_rate");
+        session.execute("ALTER TABLE user_timeline DROP sender");
+
+        CqlSchema.apply(session);
+        assertTrue(columns("room_time_buckets").contains("message_rate"));
+        assertTrue(columns("user_timeline").contains("sender"));
+    }
+
+    @Test
+    void writesAndReadsTheTimelineThroughPreparedStatements() throws InterruptedException {
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        beans.addBean("preparedStatementRegistry", new PreparedStatementRegistry(session));
+        TimelineRepository repository = new TimelineRepository(beans.getBeanProvider(PreparedStatementRegistry.class),
+                new SimpleMeterRegistry());
+
+        ChatUser sender = ChatUser.newBuilder().setUserId("alice").setDisplayName("Alice").build();
+        for (int i = 0; i < 3; i++) {
+            repository.append("bob", TimelineEntry.newBuilder()
+                    .setConversationId(UUID.randomUUID().toString())
+                    .setMessageId(new UUID(0, i).toString())
+                    .setSender(sender)
+                    // within one millisecond
+                    .setTimestamp(Timestamps.fromNanos(1_758_000_000_000_000_000L + i * 1000))
+                    .setPreview("entry " + i)
+                    .build());
+        }
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (countRows() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+
+        List<TimelineEntry> first = repository.findBefore("bob", null, 2);
+        assertEquals(List.of(new UUID(0, 2).toString(), new UUID(0, 1).toString()),
+                first.stream().map(TimelineEntry::getMessageId).toList());
+        assertEquals(sender, first.getFirst().getSender());
+        List<TimelineEntry> rest = repository.findBefore("bob", first.getLast().getTimestamp(), 2);
+        assertEquals(List.of(new UUID(0, 0).toString()), rest.stream().map(TimelineEntry::getMessageId).toList());
+    }
+
+    @Test
+    void pagesTheHistoryWithoutSkippingMessagesOfTheSameMillisecond() throws InterruptedException {
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        beans.addBean("preparedStatementRegistry", new PreparedStatementRegistry(session));
+        MessageHistoryRepository repository = new MessageHistoryRepository(10_000, 50_000, BucketGranularity.HOUR,
+                4, 64, beans.getBeanProvider(PreparedStatementRegistry.class), new SimpleMeterRegistry());
+        repository.startPersisting();
+
+        String conversationId = UUID.randomUUID().toString();
+        long millis = 1_758_000_000_000L;
+        // one message a millisecond earlier, then two within the same millisecond
+        for (int i = 0; i < 3; i++) {
+            repository.onMessageAppended(Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                    .setMessageId(new UUID(0, i).toString())
+                    .setConversationId(conversationId)
+                    .setSender(ChatUser.newBuilder().setUserId("alice"))
+                    .setTimestamp(Timestamps.fromNanos((i == 0 ? millis - 1 : millis) * 1_000_000 + i * 1000))
+                    .setContent("message " + i)
+                    .build());
+        }
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (repository.findBefore(conversationId, "alice", null, 10).messages().size() < 3
+                && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // a page of one ends within the millisecond, the next page starts below it, so the page takes it whole
+        MessageHistoryRepository.HistoryPage first = repository.findBefore(conversationId, "alice", null, 1);
+        assertEquals(Set.of(new UUID(0, 1).toString(), new UUID(0, 2).toString()),
+                first.messages().stream().map(ChatMessage::getMessageId).collect(Collectors.toSet()));
+        assertTrue(first.hasMore());
+        MessageHistoryRepository.HistoryPage rest = repository.findBefore(conversationId, "alice",
+                Instant.ofEpochMilli(Timestamps.toMillis(first.messages().getLast().getTimestamp())), 1);
+        assertEquals(List.of(new UUID(0, 0).toString()),
+                rest.messages().stream().map(ChatMessage::getMessageId).toList());
+        assertFalse(rest.hasMore());
+    }
+
+    private long countRows() {
+        Row row = session.execute("SELECT COUNT(*) FROM user_timeline WHERE user_id = ?", CqlIds.userUuid("bob"))
+                .one();
+        return row == null ? 0 : row.getLong(0);
+    }
+
+    private Set<String> columns(String table) {
+        return session.execute("SELECT column_name FROM system_schema.columns"
+                        + " WHERE keyspace_name = ? AND table_name = ?", keyspace, table).all().stream()
+                .map(row -> row.getString("column_name"))
+                .collect(Collectors.toSet());
+    }
+
+    private CqlSession bootstrap() {
+        String[] hostAndPort = contactPoint.split(":");
+        return CqlSession.builder()
+                .addContactPoint(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])))
+                .withLocalDatacenter(datacenter)
+                .build();
+    }
+}
@@ -0,0 +1,229 @@
+package org.enkrip.atkins.shared.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.GetListOfConversationsResponse;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.dto.ChatMessageDto;
+import org.enkrip.atkins.shared.websocket.dto.ChatUserDto;
+import org.enkrip.atkins.shared.websocket.dto.ConversationDto;
+import org.enkrip.atkins.shared.websocket.engine.DirectConversationEngine;
+import org.enkrip.atkins.shared.websocket.history.MessageHistoryService;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.enkrip.atkins.shared.websocket.idempotency.IdempotencyCache;
+import org.enkrip.atkins.shared.websocket.search.MessageSearchService;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.enkrip.atkins.shared.websocket.store.UserIdRegistry;
+import org.enkrip.atkins.shared.websocket.timeline.TimelineService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class ChatRestControllerTests {
+    // the DTOs as Spring's default ObjectMapper wrote them, before the endpoints streamed protobuf messages
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @TempDir
+    Path directory;
+
+    private ConversationService conversationService;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        WebSocketSessionService sessionService = new WebSocketSessionService(Duration.ofSeconds(1),
+                DataSize.ofKilobytes(64), new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+        conversationService = new ConversationService(sessionService,
+                new CompactMessageStore(new UserIdRegistry()),
+                new AttachmentStore(directory.resolve("attachments"), DataSize.ofMegabytes(1), Duration.ofHours(1),
+                        256, 10_000_000, meterRegistry),
+                new IdempotencyCache(Duration.ofMinutes(10), 1000, meterRegistry),
+                new DirectConversationEngine(),
+                new ConversationListCache(DataSize.ofMegabytes(1), Duration.ofHours(1), meterRegistry),
+                new StaticListableBeanFactory().getBeanProvider(ConversationListener.class));
+
+        WebSocketSessionService currentUser = mock(WebSocketSessionService.class);
+        when(currentUser.getCurrentUsername(any(HttpServletRequest.class))).thenReturn("alice");
+        mockMvc = MockMvcBuilders.standaloneSetup(new ChatRestController(currentUser, conversationService,
+                mock(MessageSearchService.class), mock(TimelineService.class), mock(MessageHistoryService.class)))
+                .build();
+
+        conversationService.restoreConversation(conversation("with-message", "bob"));
+        conversationService.restoreConversation(conversation("without-message", "carol"));
+        conversationService.restoreMessage(message("with-message", "hello"));
+    }
+
+    @Test
+    void conversationsKeepTheJsonShapeOfTheDtos() throws Exception {
+        JsonNode conversations = json(get("/api/chat/conversations"));
+        assertEquals(2, conversations.size());
+        for (JsonNode conversation : conversations) {
+            assertSameFields(new ConversationDto(), conversation);
+            assertSameFields(new ChatUserDto(), conversation.get("participants").get(0));
+            assertTrue(conversation.get("version").isIntegralNumber());
+            if (conversation.get("conversationId").asText().equals("without-message")) {
+                assertTrue(conversation.get("lastMessage").isNull());
+                // optional fields that are not set are null rather than missing
+                assertTrue(conversation.get("participants").get(0).get("displayName").isNull());
+            } else {
+                JsonNode lastMessage = conversation.get("lastMessage");
+                assertSameFields(new ChatMessageDto(), lastMessage);
+                assertTrue(lastMessage.get("sequence").isIntegralNumber());
+                assertEquals(1, lastMessage.get("sequence").asLong());
+                assertEquals("2025-09-16T05:20:00.005Z", lastMessage.get("timestamp").asText());
+                assertEquals("TEXT", lastMessage.get("messageType").asText());
+            }
+        }
+        // served from the list cache the second time, with the same bytes
+        assertEquals(conversations, json(get("/api/chat/conversations")));
+        assertEquals(conversations, json(get("/api/chat/conversations").param("sinceVersion", "0")));
+    }
+
+    @Test
+    void messagesKeepTheJsonShapeOfTheDtos() throws Exception {
+        JsonNode messages = json(get("/api/chat/conversations/with-message/messages"));
+        assertEquals(1, messages.size());
+        assertSameFields(new ChatMessageDto(), messages.get(0));
+        assertSameFields(new ChatUserDto(), messages.get(0).get("sender"));
+        assertEquals("hello", messages.get(0).get("content").asText());
+        assertTrue(messages.get(0).get("myMessage").asBoolean());
+        assertTrue(messages.get(0).get("attachment").isNull());
+    }
+
+    @Test
+    void servesProtobufOnlyWhenAskedFor() throws Exception {
+        MvcResult started = mockMvc.perform(get("/api/chat/conversations").header("Accept",
+                        "application/x-protobuf"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/x-protobuf"))
+                .andReturn();
+        GetListOfConversationsResponse response = GetListOfConversationsResponse.parseFrom(
+                result.getResponse().getContentAsByteArray());
+        assertEquals(conversationService.getUserConversations("alice"), Set.copyOf(response.getConversationsList()));
+    }
+
+    @Test
+    void answersConversationsWithNotModifiedUntilTheUserVersionChanges() throws Exception {
+        MvcResult first = dispatch(get("/api/chat/conversations"));
+        String etag = first.getResponse().getHeader("ETag");
+        assertEquals("\"" + conversationService.getUserVersion("alice") + "-json\"", etag);
+
+        mockMvc.perform(get("/api/chat/conversations").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag));
+        // the protobuf representation has its own tag for the same version
+        mockMvc.perform(get("/api/chat/conversations").header("If-None-Match", etag)
+                        .header("Accept", "application/x-protobuf"))
+                .andExpect(request().asyncStarted());
+
+        conversationService.restoreMessage(message("without-message", "second"));
+        MvcResult changed = dispatch(get("/api/chat/conversations").header("If-None-Match", etag));
+        assertNotEquals(etag, changed.getResponse().getHeader("ETag"));
+        mockMvc.perform(get("/api/chat/conversations")
+                        .header("If-None-Match", changed.getResponse().getHeader("ETag")))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void answersMessagesWithNotModifiedUntilTheConversationVersionChanges() throws Exception {
+        String path = "/api/chat/conversations/with-message/messages";
+        String etag = dispatch(get(path)).getResponse().getHeader("ETag");
+        assertEquals("\"" + conversationService.getConversation("with-message").getVersion() + "-json\"", etag);
+        mockMvc.perform(get(path).header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        // a message in another conversation leaves this one's tag alone
+        conversationService.restoreMessage(message("without-message", "elsewhere"));
+        mockMvc.perform(get(path).header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        conversationService.restoreMessage(message("with-message", "again"));
+        MvcResult changed = dispatch(get(path).header("If-None-Match", etag));
+        assertNotEquals(etag, changed.getResponse().getHeader("ETag"));
+        assertEquals(2, objectMapper.readTree(changed.getResponse().getContentAsByteArray()).size());
+    }
+
+    private MvcResult dispatch(RequestBuilder requestBuilder) throws Exception {
+        MvcResult started = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        return mockMvc.perform(asyncDispatch(started)).andExpect(status().isOk()).andReturn();
+    }
+
+    private JsonNode json(RequestBuilder requestBuilder) throws Exception {
+        MvcResult started = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/json"))
+                .andReturn();
+        return objectMapper.readTree(result.getResponse().getContentAsByteArray());
+    }
+
+    private void assertSameFields(Object dto, JsonNode json) {
+        assertEquals(fieldNames(objectMapper.valueToTree(dto)), fieldNames(json));
+    }
+
+    private static Set<String> fieldNames(JsonNode json) {
+        Set<String> names = new TreeSet<>();
+        for (Iterator<String> it = json.fieldNames(); it.hasNext(); ) {
+            names.add(it.next());
+        }
+        return names;
+    }
+
+    private static ChatMessage message(String conversationId, String content) {
+        return ChatMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId("alice").setDisplayName("alice"))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L).setNanos(5_000_000))
+                .setContent(content)
+                .build();
+    }
+
+    private static Conversation conversation(String conversationId, String participant) {
+        return Conversation.newBuilder()
+                .setConversationId(conversationId)
+                .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                .addParticipants(ChatUser.newBuilder().setUserId(participant))
+                .build();
+    }
+}
@@ -0,0 +1,164 @@
+package org.enkrip.atkins.shared.websocket;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.MessageType;
+import org.enkrip.atkins.proto.RPCRequestEnvelope;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.proto.SendConversationMessageRequest;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
+import org.enkrip.atkins.shared.websocket.engine.DirectConversationEngine;
+import org.enkrip.atkins.shared.websocket.idempotency.IdempotencyCache;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.enkrip.atkins.shared.websocket.store.UserIdRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ConversationServiceTests {
+
+    @TempDir
+    Path directory;
+
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    private final List<RPCResponseEnvelope> responses = new ArrayList<>();
+    private ConversationService conversationService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        WebSocketSessionService sessionService = mock(WebSocketSessionService.class);
+        when(sessionService.getCurrentUsername(session)).thenReturn("alice");
+        when(sessionService.sendMessage(eq("alice"), any())).thenAnswer(invocation -> {
+            BinaryMessage message = invocation.getArgument(1);
+            responses.add(RPCResponseEnvelope.parseFrom(message.getPayload()));
+            return 1;
+        });
+        conversationService = newConversationService(sessionService, new CompactMessageStore(new UserIdRegistry()));
+    }
+
+    @Test
+    void retriesRejectedMessagesInsteadOfReplayingTheRejection() {
+        RPCRequestEnvelope request = RPCRequestEnvelope.newBuilder()
+                .setRequestId("request-1")
+                .setMessageType(MessageType.REQUEST)
+                .setOperationType(MessageOperationType.SEND_CONVERSATION_MESSAGE)
+                .setSendConversationMessageRequest(SendConversationMessageRequest.newBuilder()
+                        .setConversationId("conversation")
+                        .setContent("hello"))
+                .build();
+
+        conversationService.sendConversationMessage(session, request);
+        assertFalse(responses.getLast().getSuccess());
+        assertEquals("Conversation does not exist", responses.getLast().getErrorMessage());
+
+        // the retry is validated again once the conversation exists
+        conversationService.restoreConversation(Conversation.newBuilder()
+                .setConversationId("conversation")
+                .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                .addParticipants(ChatUser.newBuilder().setUserId("bob"))
+                .build());
+        conversationService.sendConversationMessage(session, request);
+        RPCResponseEnvelope sent = responses.getLast();
+        assertTrue(sent.hasSendConversationMessageResponse());
+
+        // and a successful send is replayed rather than stored twice
+        conversationService.sendConversationMessage(session, request);
+        assertEquals(sent, responses.getLast());
+        assertEquals(1, conversationService.getConversationMessages("conversation", "alice").size());
+    }
+
+    @Test
+    void movesTheUserVersionOnWhenAnOlderChangeReachesTheListLast() throws Exception {
+        CountDownLatch appending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // holds the first conversation's message between taking its version and updating the lists
+        CompactMessageStore messageStore = new CompactMessageStore(new UserIdRegistry()) {
+            @Override
+            public long append(ChatMessage chatMessage) {
+                if (chatMessage.getConversationId().equals("first")) {
+                    appending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.append(chatMessage);
+            }
+        };
+        ConversationService service = newConversationService(mock(WebSocketSessionService.class), messageStore);
+        service.restoreConversation(conversation("first"));
+        service.restoreConversation(conversation("second"));
+
+        Thread older = Thread.ofPlatform().start(() -> service.restoreMessage(message("first")));
+        appending.await();
+        service.restoreMessage(message("second"));
+        long version = service.getUserVersion("alice");
+        byte[] cached = service.getConversationList("alice", ConversationListCache.Format.PROTOBUF);
+
+        release.countDown();
+        older.join();
+        assertTrue(service.getUserVersion("alice") > version);
+        assertFalse(Arrays.equals(cached, service.getConversationList("alice",
+                ConversationListCache.Format.PROTOBUF)));
+        // the next conversation version is still newer than the user version
+        service.restoreMessage(message("second"));
+        assertEquals(service.getConversation("second").getVersion(), service.getUserVersion("alice"));
+    }
+
+    private static Conversation conversation(String conversationId) {
+        return Conversation.newBuilder()
+                .setConversationId(conversationId)
+                .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                .addParticipants(ChatUser.newBuilder().setUserId("bob"))
+                .build();
+    }
+
+    private static ChatMessage message(String conversationId) {
+        return ChatMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId("alice"))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L))
+                .setContent("hello")
+                .build();
+    }
+
+    private ConversationService newConversationService(WebSocketSessionService sessionService,
+                                                       CompactMessageStore messageStore) throws IOException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        return new ConversationService(sessionService, messageStore,
+                new AttachmentStore(directory.resolve("attachments"), DataSize.ofMegabytes(1), Duration.ofHours(1),
+                        256, 10_000_000, meterRegistry),
+                new IdempotencyCache(Duration.ofMinutes(10), 1000, meterRegistry),
+                new DirectConversationEngine(),
+                new ConversationListCache(DataSize.ofMegabytes(1), Duration.ofHours(1), meterRegistry),
+                new StaticListableBeanFactory().getBeanProvider(ConversationListener.class));
+    }
+}
@@ -0,0 +1,142 @@
+package org.enkrip.atkins.shared.websocket.attachment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.AttachmentRef;
+import org.enkrip.atkins.proto.AttachmentUploadStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AttachmentStoreTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesChunkedUploadsAndDeduplicatesContent() throws Exception {
+        AttachmentStore store = newStore();
+        byte[] content = new byte[100_000];
+        Arrays.fill(content, (byte) 'x');
+
+        AttachmentUploadStatus upload = store.createUpload("alice", "notes.txt", "text/plain", content.length);
+        // the client went away after 10 bytes of the first chunk
+        AttachmentUploadStatus status = store.append(upload.getUploadId(), "alice", 0, 60_000,
+                new ByteArrayInputStream(content, 0, 10));
+        assertEquals(10, status.getOffset());
+        assertNull(store.getUpload(upload.getUploadId(), "bob"));
+        assertThrows(IllegalStateException.class, () -> store.append(upload.getUploadId(), "alice", 0, 10,
+                new ByteArrayInputStream(content)));
+
+        status = store.append(upload.getUploadId(), "alice", 10, 60_000,
+                new ByteArrayInputStream(content, 10, 60_000));
+        status = store.append(upload.getUploadId(), "alice", status.getOffset(), content.length - status.getOffset(),
+                new ByteArrayInputStream(content, (int) status.getOffset(), content.length));
+        AttachmentRef attachment = status.getAttachment();
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)),
+                attachment.getAttachmentId());
+        assertEquals("notes.txt", attachment.getFileName());
+        assertFalse(attachment.getHasThumbnail());
+        assertArrayEquals(content, Files.readAllBytes(store.blobPath(attachment.getAttachmentId())));
+
+        AttachmentUploadStatus copy = store.createUpload("bob", "copy.txt", "text/plain", content.length);
+        AttachmentRef copied = store.append(copy.getUploadId(), "bob", 0, content.length,
+                new ByteArrayInputStream(content)).getAttachment();
+        assertEquals(attachment.getAttachmentId(), copied.getAttachmentId());
+        assertEquals("copy.txt", copied.getFileName());
+        try (var blobs = Files.walk(directory.resolve("uploads"))) {
+            assertEquals(1, blobs.count(), "only the uploads directory itself is left");
+        }
+        store.destroy();
+    }
+
+    @Test
+    void generatesThumbnailsOfImages() throws Exception {
+        AttachmentStore store = newStore();
+        byte[] image = png(1024, 512);
+
+        AttachmentUploadStatus upload = store.createUpload("alice", "photo.png", "image/png", image.length);
+        AttachmentRef attachment = store.append(upload.getUploadId(), "alice", 0, image.length,
+                new ByteArrayInputStream(image)).getAttachment();
+        assertTrue(attachment.getHasThumbnail());
+
+        Path thumbnail = store.thumbnailPath(attachment.getAttachmentId());
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!Files.exists(thumbnail) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        BufferedImage decoded = ImageIO.read(thumbnail.toFile());
+        assertEquals(256, decoded.getWidth());
+        assertEquals(128, decoded.getHeight());
+        assertTrue(store.isRasterImage(attachment.getAttachmentId(), "image/png"));
+        assertFalse(store.isRasterImage(attachment.getAttachmentId(), "image/gif"));
+        store.destroy();
+    }
+
+    @Test
+    void onlyDescribesRasterImagesThatHaveAThumbnail() throws Exception {
+        AttachmentStore store = newStore();
+        byte[] svg = "<svg xmlns=\"http://www.w3.org/2000/svg\"><script>alert(1)</script></svg>"
+                .getBytes(StandardCharsets.UTF_8);
+
+        AttachmentUploadStatus upload = store.createUpload("alice", "logo.svg", "image/svg+xml", svg.length);
+        AttachmentRef attachment = store.append(upload.getUploadId(), "alice", 0, svg.length,
+                new ByteArrayInputStream(svg)).getAttachment();
+        assertFalse(attachment.getHasThumbnail());
+        assertFalse(Files.exists(store.thumbnailPath(attachment.getAttachmentId())));
+        assertFalse(store.isRasterImage(attachment.getAttachmentId(), "image/svg+xml"));
+        // the declared type alone does not make it an image
+        assertFalse(store.isRasterImage(attachment.getAttachmentId(), "image/png"));
+        store.destroy();
+    }
+
+    @Test
+    void discardsAbandonedAndExpiredUploads() throws Exception {
+        Path abandoned = Files.createDirectories(directory.resolve("uploads")).resolve("abandoned.tmp");
+        Files.write(abandoned, new byte[10]);
+        AttachmentStore store = new AttachmentStore(directory, DataSize.ofMegabytes(1), Duration.ofMillis(50), 256,
+                10_000_000, new SimpleMeterRegistry());
+        assertFalse(Files.exists(abandoned));
+
+        AttachmentUploadStatus upload = store.createUpload("alice", "notes.txt", "text/plain", 100);
+        store.append(upload.getUploadId(), "alice", 0, 10, new ByteArrayInputStream(new byte[10]));
+        Thread.sleep(100);
+        store.sweep();
+        assertNull(store.getUpload(upload.getUploadId(), "alice"));
+        try (var files = Files.list(directory.resolve("uploads"))) {
+            assertEquals(0, files.count());
+        }
+        store.destroy();
+    }
+
+    private AttachmentStore newStore() throws IOException {
+        return new AttachmentStore(directory, DataSize.ofMegabytes(1), Duration.ofHours(1), 256, 10_000_000,
+                new SimpleMeterRegistry());
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,72 @@
+package org.enkrip.atkins.shared.websocket.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.enkrip.atkins.shared.websocket.cache.ConversationListCache.Format.JSON;
+import static org.enkrip.atkins.shared.websocket.cache.ConversationListCache.Format.PROTOBUF;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConversationListCacheTests {
+
+    @Test
+    void servesAListUntilTheUserVersionChanges() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ConversationListCache cache = new ConversationListCache(DataSize.ofMegabytes(1), Duration.ofHours(1),
+                meterRegistry);
+        AtomicInteger builds = new AtomicInteger();
+
+        assertArrayEquals(new byte[]{1}, cache.get("alice", PROTOBUF, 1, () -> build(builds, 1)));
+        assertArrayEquals(new byte[]{1}, cache.get("alice", PROTOBUF, 1, () -> build(builds, 9)));
+        cache.get("alice", JSON, 1, () -> build(builds, 2));
+        assertEquals(2, builds.get());
+
+        // a newer version is never answered with an older list
+        assertArrayEquals(new byte[]{3}, cache.get("alice", PROTOBUF, 2, () -> build(builds, 3)));
+        // and a request that read an older version does not replace a newer list
+        cache.get("alice", PROTOBUF, 1, () -> build(builds, 4));
+        assertArrayEquals(new byte[]{3}, cache.get("alice", PROTOBUF, 2, () -> build(builds, 5)));
+
+        cache.invalidate("alice");
+        assertEquals(0, cache.getCachedBytes());
+        assertArrayEquals(new byte[]{6}, cache.get("alice", PROTOBUF, 2, () -> build(builds, 6)));
+        assertEquals(2, meterRegistry.get("atkins.list.cache.requests").tag("result", "hit").counter().count());
+        cache.destroy();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedListsAndIdleOnes() throws Exception {
+        ConversationListCache cache = new ConversationListCache(DataSize.ofBytes(300), Duration.ofMillis(200),
+                new SimpleMeterRegistry());
+        cache.get("alice", PROTOBUF, 1, () -> new byte[100]);
+        Thread.sleep(2);
+        cache.get("bob", PROTOBUF, 1, () -> new byte[100]);
+        Thread.sleep(2);
+        cache.get("carol", PROTOBUF, 1, () -> new byte[100]);
+        Thread.sleep(2);
+        // reading alice makes bob the least recently used
+        cache.get("alice", PROTOBUF, 1, () -> new byte[0]);
+        cache.get("dave", PROTOBUF, 1, () -> new byte[100]);
+
+        assertEquals(200, cache.getCachedBytes());
+        AtomicInteger builds = new AtomicInteger();
+        cache.get("bob", PROTOBUF, 1, () -> build(builds, 1));
+        cache.get("alice", PROTOBUF, 1, () -> build(builds, 2));
+        assertEquals(1, builds.get());
+
+        Thread.sleep(250);
+        cache.sweep();
+        assertEquals(0, cache.getCachedBytes());
+        cache.destroy();
+    }
+
+    private static byte[] build(AtomicInteger builds, int value) {
+        builds.incrementAndGet();
+        return new byte[]{(byte) value};
+    }
+}
@@ -0,0 +1,85 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.benchmark.Benchmark;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * CPU time and size of message notifications sent uncompressed, compressed without a dictionary and compressed with a
+ * dictionary trained on redacted frames, each encoded by the sender and decoded again as the client would.
+ */
+class FrameCompressionBenchmark {
+    private static final int FRAMES = 1_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 30;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void notifications() throws Exception {
+        CompressionDictionaries dictionaries = new CompressionDictionaries(directory, 3, DataSize.ofKilobytes(16),
+                DataSize.ofKilobytes(256));
+        Random random = new Random(1);
+        while (dictionaries.current() == null) {
+            dictionaries.sample(ByteBuffer.wrap(FrameCompressionTests.notification(random).toByteArray()));
+        }
+        List<byte[]> payloads = new ArrayList<>(FRAMES);
+        long rawBytes = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] payload = FrameCompressionTests.notification(random).toByteArray();
+            payloads.add(payload);
+            rawBytes += payload.length;
+        }
+
+        Benchmark benchmark = new Benchmark(FRAMES + " notifications of " + rawBytes / FRAMES + " bytes on average");
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        try (FrameCompressor uncompressed = new FrameCompressor(null, 3, Integer.MAX_VALUE, 1 << 20, meterRegistry);
+             FrameCompressor plain = new FrameCompressor(null, 3, 0, 1 << 20, meterRegistry);
+             FrameCompressor trained = new FrameCompressor(dictionaries.current(), 3, 0, 1 << 20, meterRegistry)) {
+            double none = benchmark.time("uncompressed", WARMUP_ROUNDS, ROUNDS, round -> roundTrip(uncompressed,
+                    payloads));
+            double withoutDictionary = benchmark.time("zstd without dictionary", WARMUP_ROUNDS, ROUNDS, round ->
+                    roundTrip(plain, payloads));
+            double withDictionary = benchmark.time("zstd with redacted dictionary", WARMUP_ROUNDS, ROUNDS, round ->
+                    roundTrip(trained, payloads));
+
+            benchmark.note("dictionary / no dictionary time",
+                    String.format(Locale.ROOT, "%.2f", withDictionary / withoutDictionary));
+            benchmark.note("dictionary - uncompressed, ns per frame",
+                    String.format(Locale.ROOT, "%.0f", withDictionary - none));
+            benchmark.note("bytes without dictionary / raw",
+                    String.format(Locale.ROOT, "%.2f", (double) encodedBytes(plain, payloads) / rawBytes));
+            benchmark.note("bytes with dictionary / raw",
+                    String.format(Locale.ROOT, "%.2f", (double) encodedBytes(trained, payloads) / rawBytes));
+        }
+        benchmark.report();
+        dictionaries.destroy();
+    }
+
+    private static long roundTrip(FrameCompressor compressor, List<byte[]> payloads) {
+        long bytes = 0;
+        for (byte[] payload : payloads) {
+            bytes += compressor.decode(compressor.encode(ByteBuffer.wrap(payload))).remaining();
+        }
+        Benchmark.consume(bytes);
+        return payloads.size();
+    }
+
+    private static long encodedBytes(FrameCompressor compressor, List<byte[]> payloads) {
+        long bytes = 0;
+        for (byte[] payload : payloads) {
+            bytes += compressor.encode(ByteBuffer.wrap(payload)).remaining();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,178 @@
+package org.enkrip.atkins.shared.websocket.compression;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatMessageType;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.MessageType;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.proto.ReceiveConversationMessageNotification;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCompressionTests {
+    private static final String[] WORDS = {"hey", "are", "we", "still", "on", "for", "lunch", "tomorrow", "sure",
+            "the", "deploy", "is", "done", "can", "you", "review", "my", "pull", "request", "thanks", "ok", "see",
+            "meeting", "moved", "to", "three", "pm"};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void trainsDictionaryFromSampledFramesAndReloadsIt() throws Exception {
+        CompressionDictionaries dictionaries = newDictionaries();
+        Random random = new Random(1);
+        while (dictionaries.current() == null) {
+            dictionaries.sample(ByteBuffer.wrap(notification(random).toByteArray()));
+        }
+        long id = dictionaries.current().id();
+        assertTrue(id != 0);
+        dictionaries.destroy();
+
+        CompressionDictionaries reloaded = newDictionaries();
+        assertEquals(id, reloaded.current().id());
+        assertNotNull(reloaded.get(id));
+        reloaded.destroy();
+    }
+
+    @Test
+    void trainsOnRedactedFramesOnly() throws Exception {
+        Files.write(directory.resolve("dictionary-42.zdict"), "trained on the private text".getBytes());
+        CompressionDictionaries dictionaries = newDictionaries();
+        assertFalse(Files.exists(directory.resolve("dictionary-42.zdict")));
+
+        Random random = new Random(3);
+        while (dictionaries.current() == null) {
+            RPCResponseEnvelope notification = notification(random);
+            ChatMessage message = notification.getReceiveConversationMessageNotification().getMessage();
+            ChatMessage secret = message.toBuilder().setContent("the launch code is 0451 " + message.getContent())
+                    .build();
+            dictionaries.sample(ByteBuffer.wrap(notification.toBuilder()
+                    .setReceiveConversationMessageNotification(ReceiveConversationMessageNotification.newBuilder()
+                            .setMessage(secret))
+                    .build().toByteArray()));
+        }
+        String content = new String(dictionaries.current().content(), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("launch"), "message text in the dictionary");
+        assertFalse(content.contains("user-"), "user IDs in the dictionary");
+        dictionaries.destroy();
+    }
+
+    @Test
+    void rejectsMalformedCompressedFrames() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        try (FrameCompressor compressor = new FrameCompressor(null, 3, 0, 1 << 20, meterRegistry)) {
+            ByteBuffer frame = compressor.encode(ByteBuffer.wrap(new byte[4096]));
+            byte[] corrupt = new byte[frame.remaining()];
+            frame.get(corrupt);
+            // keep the flag and the frame header with its content size, garble the blocks
+            for (int i = 4; i < corrupt.length; i++) {
+                corrupt[i] = (byte) 0xa5;
+            }
+            assertThrows(IllegalArgumentException.class, () -> compressor.decode(ByteBuffer.wrap(corrupt)));
+        }
+    }
+
+    /**
+     * A dictionary trained on redacted traffic still beats per-frame compression without one on small
+     * notifications, which barely shrink on their own. {@code FrameCompressionBenchmark} measures the time it takes.
+     */
+    @Test
+    void dictionaryShrinksSmallEnvelopes() throws Exception {
+        CompressionDictionaries dictionaries = newDictionaries();
+        Random random = new Random(2);
+        while (dictionaries.current() == null) {
+            dictionaries.sample(ByteBuffer.wrap(notification(random).toByteArray()));
+        }
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        try (FrameCompressor plain = new FrameCompressor(null, 3, 0, 1 << 20, meterRegistry);
+             FrameCompressor trained = new FrameCompressor(dictionaries.current(), 3, 0, 1 << 20, meterRegistry)) {
+            long rawBytes = 0;
+            long plainBytes = 0;
+            long trainedBytes = 0;
+            for (int i = 0; i < 1000; i++) {
+                byte[] payload = notification(random).toByteArray();
+                ByteBuffer plainFrame = plain.encode(ByteBuffer.wrap(payload));
+                ByteBuffer trainedFrame = trained.encode(ByteBuffer.wrap(payload));
+                rawBytes += payload.length;
+                plainBytes += plainFrame.remaining();
+                trainedBytes += trainedFrame.remaining();
+
+                assertEquals(FrameCompressor.ZSTD, trainedFrame.get(trainedFrame.position()));
+                assertEquals(ByteBuffer.wrap(payload), plain.decode(plainFrame));
+                assertEquals(ByteBuffer.wrap(payload), trained.decode(trainedFrame));
+            }
+            assertTrue(plainBytes <= rawBytes + 1000, "plain " + plainBytes + " raw " + rawBytes);
+            // without the text and IDs of the traffic, the dictionary mostly saves the envelope structure
+            assertTrue(trainedBytes * 10 < rawBytes * 9, "trained " + trainedBytes + " raw " + rawBytes);
+            assertTrue(trainedBytes < plainBytes, "trained " + trainedBytes + " plain " + plainBytes);
+        }
+        dictionaries.destroy();
+    }
+
+    @Test
+    void sendsSmallFramesUncompressedAndRejectsOversizedFrames() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FrameCompressor compressor = new FrameCompressor(null, 3, 64, 1024, meterRegistry);
+        ByteBuffer frame = compressor.encode(ByteBuffer.wrap("short".getBytes()));
+        assertEquals(FrameCompressor.UNCOMPRESSED, frame.get(0));
+        assertEquals(ByteBuffer.wrap("short".getBytes()), compressor.decode(frame));
+
+        FrameCompressor sender = new FrameCompressor(null, 3, 0, 1 << 20, meterRegistry);
+        ByteBuffer large = sender.encode(ByteBuffer.wrap(new byte[4096]));
+        assertEquals(FrameCompressor.ZSTD, large.get(0));
+        assertThrows(IllegalArgumentException.class, () -> compressor.decode(large));
+
+        compressor.close();
+        sender.close();
+        assertEquals(FrameCompressor.UNCOMPRESSED, sender.encode(ByteBuffer.wrap(new byte[4096])).get(0));
+    }
+
+    private CompressionDictionaries newDictionaries() throws Exception {
+        return new CompressionDictionaries(directory, 3, DataSize.ofKilobytes(8), DataSize.ofKilobytes(256));
+    }
+
+    static RPCResponseEnvelope notification(Random random) {
+        int sender = random.nextInt(50);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0, words = 2 + random.nextInt(10); i < words; i++) {
+            content.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        ChatMessage message = ChatMessage.newBuilder()
+                .setMessageId(new UUID(random.nextLong(), random.nextLong()).toString())
+                .setConversationId(new UUID(0, random.nextInt(20)).toString())
+                .setSender(ChatUser.newBuilder()
+                        .setUserId("user-" + sender)
+                        .setUsername("user-" + sender))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_790_000_000L + random.nextInt(86_400)))
+                .setMessageType(ChatMessageType.TEXT)
+                .setContent(content.toString())
+                .setVersion(random.nextInt(1000))
+                .build();
+        return RPCResponseEnvelope.newBuilder()
+                .setRequestId(new UUID(random.nextLong(), random.nextLong()).toString())
+                .setMessageType(MessageType.NOTIFICATION)
+                .setOperationType(MessageOperationType.RECEIVE_CONVERSATION_MESSAGE)
+                .setSuccess(true)
+                .setReceiveConversationMessageNotification(ReceiveConversationMessageNotification.newBuilder()
+                        .setMessage(message))
+                .build();
+    }
+}
@@ -0,0 +1,74 @@
+package org.enkrip.atkins.shared.websocket.drain;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.proto.RPCResponseEnvelope;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConnectionDrainerTests {
+
+    @Test
+    void notifiesThenClosesEverySession() throws Exception {
+        WebSocketSessionService sessionService = new WebSocketSessionService(Duration.ofSeconds(1),
+                DataSize.ofKilobytes(64), new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+        WebSocketSession alice = openSession(sessionService, "alice");
+        WebSocketSession bob = openSession(sessionService, "bob");
+
+        ConnectionDrainer drainer = new ConnectionDrainer(1000, Duration.ofSeconds(1), Duration.ofSeconds(2),
+                Duration.ofSeconds(4), sessionService, mock(ApplicationEventPublisher.class), new SimpleMeterRegistry());
+        assertTrue(drainer.drain().draining());
+
+        for (WebSocketSession session : new WebSocketSession[]{alice, bob}) {
+            verify(session, timeout(5000)).close(CloseStatus.SERVICE_RESTARTED);
+
+            ArgumentCaptor<BinaryMessage> sent = ArgumentCaptor.forClass(BinaryMessage.class);
+            verify(session).sendMessage(sent.capture());
+            RPCResponseEnvelope notification = RPCResponseEnvelope.parseFrom(sent.getValue().getPayload());
+            assertEquals(MessageOperationType.RECONNECT, notification.getOperationType());
+            int retryAfter = notification.getReconnectNotification().getRetryAfterMillis();
+            assertTrue(retryAfter >= 2000 && retryAfter <= 4000, "retry after " + retryAfter);
+        }
+        assertEquals(2, drainer.getStatus().closedSessions());
+        drainer.destroy();
+    }
+
+    private static WebSocketSession openSession(WebSocketSessionService sessionService, String username)
+            throws Exception {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME, "http-" + username);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Username", username);
+
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("ws-" + username);
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        when(session.isOpen()).thenReturn(true);
+        sessionService.afterConnectionEstablished(session);
+        return session;
+    }
+}
@@ -0,0 +1,103 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.benchmark.Benchmark;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput and tail latency of the {@link ShardedConversationEngine} compared to the
+ * {@link DirectConversationEngine}, for commands that update a per-conversation counter from a growing number of
+ * submitting threads. The latency is that of the last round, from submitting a command to its completion.
+ */
+class ConversationEngineBenchmark {
+    private static final int COMMANDS_PER_THREAD = 20_000;
+    private static final int CONVERSATIONS = 256;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    @Test
+    void throughputAndTailLatency() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Benchmark benchmark = new Benchmark("conversation engines, " + COMMANDS_PER_THREAD
+                + " commands per thread over " + CONVERSATIONS + " conversations");
+        for (int threads = 1; threads <= Math.min(64, 4 * cores); threads *= 4) {
+            int submitters = threads;
+            long[] directP99 = new long[1];
+            benchmark.time("direct, " + threads + " threads", WARMUP_ROUNDS, ROUNDS, round -> {
+                directP99[0] = run(new DirectConversationEngine(), submitters);
+                return (long) submitters * COMMANDS_PER_THREAD;
+            });
+            ShardedConversationEngine sharded = new ShardedConversationEngine(Math.min(threads, cores), 4096, 64,
+                    1000, new SimpleMeterRegistry());
+            long[] shardedP99 = new long[1];
+            benchmark.time("sharded, " + threads + " threads", WARMUP_ROUNDS, ROUNDS, round -> {
+                shardedP99[0] = run(sharded, submitters);
+                return (long) submitters * COMMANDS_PER_THREAD;
+            });
+            sharded.destroy();
+            benchmark.note("p99 direct / sharded, " + threads + " threads", String.format(Locale.ROOT,
+                    "%d / %d us", directP99[0], shardedP99[0]));
+        }
+        benchmark.report();
+    }
+
+    /**
+     * @return the 99th percentile of the time from submitting a command to its completion, in microseconds
+     */
+    private static long run(ConversationEngine engine, int threads) {
+        // stands in for the conversation maps a command updates
+        Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+        long[][] latencies = new long[threads][COMMANDS_PER_THREAD];
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                CompletableFuture<?>[] pending = new CompletableFuture<?>[COMMANDS_PER_THREAD];
+                for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                    String conversationId = "conversation-" + ((thread * 31 + i) % CONVERSATIONS);
+                    long submitted = System.nanoTime();
+                    int index = i;
+                    pending[i] = engine.execute(conversationId, () -> versions
+                                    .computeIfAbsent(conversationId, id -> new AtomicLong())
+                                    .incrementAndGet())
+                            .thenRun(() -> latencies[thread][index] = System.nanoTime() - submitted);
+                }
+                CompletableFuture.allOf(pending).join();
+            }));
+        }
+        start.countDown();
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        assertEquals((long) threads * COMMANDS_PER_THREAD,
+                versions.values().stream().mapToLong(AtomicLong::get).sum());
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return TimeUnit.NANOSECONDS.toMicros(all[(int) (all.length * 0.99)]);
+    }
+}
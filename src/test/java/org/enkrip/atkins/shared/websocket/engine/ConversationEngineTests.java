@@ -0,0 +1,115 @@
+package org.enkrip.atkins.shared.websocket.engine;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConversationEngineTests {
+
+    @Test
+    void appliesTheCommandsOfAConversationInSubmissionOrder() throws Exception {
+        ShardedConversationEngine engine = newEngine(4, 64);
+        // plain lists, each one is only ever written by the shard thread of its conversation
+        Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+        int producers = 8;
+        int commands = 5_000;
+
+        List<Thread> threads = new ArrayList<>();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            String conversationId = "conversation-" + p;
+            applied.put(conversationId, new ArrayList<>());
+            List<CompletableFuture<Integer>> own = new ArrayList<>();
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < commands; i++) {
+                    int value = i;
+                    own.add(engine.execute(conversationId, () -> {
+                        applied.get(conversationId).add(value);
+                        return value;
+                    }));
+                }
+                synchronized (results) {
+                    results.addAll(own);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+
+        assertEquals(producers * commands, results.size());
+        for (List<Integer> values : applied.values()) {
+            assertEquals(commands, values.size());
+            for (int i = 0; i < commands; i++) {
+                assertEquals(i, values.get(i));
+            }
+        }
+        engine.destroy();
+    }
+
+    @Test
+    void backsOffWhileTheRingIsFullAndFailsOnlyTheFailingCommand() throws Exception {
+        ShardedConversationEngine engine = newEngine(1, 4);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.execute("c", () -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return 0;
+        });
+        blocked.await();
+
+        CompletableFuture<Integer> failing = engine.execute("c", () -> {
+            throw new IllegalArgumentException("rejected");
+        });
+        for (int i = 1; i <= 3; i++) {
+            int value = i;
+            engine.execute("c", () -> value);
+        }
+        // the ring is full, this caller waits for the shard to make room
+        CompletableFuture<CompletableFuture<Integer>> waiting = CompletableFuture.supplyAsync(() ->
+                engine.execute("c", () -> 4));
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        release.countDown();
+        assertEquals(4, waiting.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        ExecutionException failed = assertThrows(ExecutionException.class, failing::get);
+        assertInstanceOf(IllegalArgumentException.class, failed.getCause());
+        engine.destroy();
+    }
+
+    @Test
+    void rejectsCommandsOnceDestroyed() throws Exception {
+        ShardedConversationEngine engine = newEngine(2, 16);
+        assertEquals(1, engine.execute("c", () -> 1).get(5, TimeUnit.SECONDS));
+        engine.destroy();
+
+        CompletableFuture<Integer> rejected = engine.execute("c", () -> 2);
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, failed.getCause());
+    }
+
+    private static ShardedConversationEngine newEngine(int shards, int ringSize) {
+        return new ShardedConversationEngine(shards, ringSize, 64, 1000, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,104 @@
+package org.enkrip.atkins.shared.websocket.heartbeat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IdleSessionReaperTests {
+
+    @Test
+    void pingsQuietSessionsAndReapsTheOnesThatStopAnswering() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        WebSocketSessionService sessionService = new WebSocketSessionService(Duration.ofSeconds(1),
+                DataSize.ofKilobytes(64), new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+        IdleSessionReaper reaper = new IdleSessionReaper(Duration.ofMillis(100), Duration.ofMillis(300),
+                Duration.ofMillis(10), 64, 2, sessionService, meterRegistry);
+
+        // alice answers every ping with a pong, bob's connection is half-open, carol's fails on send and dave's
+        // send buffer is over its limit
+        WebSocketSession alice = openSession(sessionService, reaper, "alice");
+        doAnswer(invocation -> {
+            reaper.touch(alice);
+            return null;
+        }).when(alice).sendMessage(any(PingMessage.class));
+        WebSocketSession bob = openSession(sessionService, reaper, "bob");
+        WebSocketSession carol = openSession(sessionService, reaper, "carol");
+        doThrow(new IOException("Broken pipe")).when(carol).sendMessage(any(PingMessage.class));
+        WebSocketSession dave = openSession(sessionService, reaper, "dave");
+        doThrow(new SessionLimitExceededException("Send buffer exceeded", CloseStatus.SESSION_NOT_RELIABLE))
+                .when(dave).sendMessage(any(PingMessage.class));
+
+        verify(bob, timeout(5000)).close(argThat(status -> status.getCode() == CloseStatus.SESSION_NOT_RELIABLE
+                .getCode()));
+        verify(carol, timeout(5000)).close(any(CloseStatus.class));
+        verify(dave, timeout(5000)).close(any(CloseStatus.class));
+        verify(bob, timeout(5000).atLeastOnce()).sendMessage(any(PingMessage.class));
+
+        // reaped sessions are gone from the registries before the container reports them closed
+        assertNull(sessionService.getOpenSession("ws-bob"));
+        assertNull(sessionService.getOpenSession("ws-carol"));
+        assertNull(sessionService.getOpenSession("ws-dave"));
+        assertEquals(0, sessionService.sendMessage("bob", new PingMessage()));
+        sessionService.afterConnectionClosed(bob, CloseStatus.NO_CLOSE_FRAME);
+
+        Thread.sleep(500);
+        verify(alice, never()).close(any(CloseStatus.class));
+        assertNotNull(sessionService.getOpenSession("ws-alice"));
+        assertEquals(1, reaper.getWatchedSessionCount());
+        assertEquals(1, meterRegistry.get("atkins.heartbeat.reaped").tag("cause", "idle").counter().count());
+        assertEquals(2, meterRegistry.get("atkins.heartbeat.reaped").tag("cause", "ping-failed").counter()
+                .count());
+        assertTrue(meterRegistry.get("atkins.heartbeat.pings").counter().count() >= 3);
+
+        reaper.unregister(alice);
+        assertEquals(0, reaper.getWatchedSessionCount());
+        reaper.destroy();
+    }
+
+    private static WebSocketSession openSession(WebSocketSessionService sessionService, IdleSessionReaper reaper,
+                                                String username) throws Exception {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME, "http-" + username);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Username", username);
+
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("ws-" + username);
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        when(session.isOpen()).thenReturn(true);
+        sessionService.afterConnectionEstablished(session);
+        reaper.register(session);
+        return session;
+    }
+}
@@ -0,0 +1,88 @@
+package org.enkrip.atkins.shared.websocket.history;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeBucketAllocatorTests {
+    private static final long HOUR = Duration.ofHours(1).toMillis();
+
+    @Test
+    void widensBucketsOfQuietConversations() {
+        TimeBucketAllocator allocator = new TimeBucketAllocator(1000, 5000, BucketGranularity.HOUR);
+
+        TimeBucketAllocator.Assignment first = allocator.assign("quiet", 0);
+        assertTrue(first.opened());
+        assertEquals(BucketGranularity.HOUR, first.bucket().granularity());
+
+        // a handful of messages a day fits a month into a single partition
+        TimeBucketAllocator.Assignment next = allocator.assign("quiet", 5 * HOUR);
+        assertTrue(next.opened());
+        assertEquals(BucketGranularity.MONTH, next.bucket().granularity());
+        assertFalse(allocator.assign("quiet", 20 * 24 * HOUR).opened());
+    }
+
+    @Test
+    void narrowsAndCapsBucketsOfBusyConversations() {
+        TimeBucketAllocator allocator = new TimeBucketAllocator(1000, 5000, BucketGranularity.HOUR);
+
+        // 10 messages per second
+        long time = 0;
+        int opened = 0;
+        TimeBucket bucket = null;
+        for (int i = 0; i < 20_000; i++, time += 100) {
+            TimeBucketAllocator.Assignment assignment = allocator.assign("busy", time);
+            if (assignment.opened()) {
+                opened++;
+                bucket = assignment.bucket();
+            }
+        }
+        // even the finest granularity would exceed the cap, so every bucket is closed at 5000 messages
+        assertEquals(BucketGranularity.TEN_MINUTES, bucket.granularity());
+        assertEquals(4, opened);
+        assertEquals(15_000 * 100L, bucket.startMillis());
+    }
+
+    @Test
+    void keepsLateMessagesInTheBucketCoveringTheirTime() {
+        TimeBucketAllocator allocator = new TimeBucketAllocator(1000, 2, BucketGranularity.HOUR);
+
+        TimeBucket first = allocator.assign("late", 1000).bucket();
+        allocator.assign("late", 2000);
+        TimeBucketAllocator.Assignment second = allocator.assign("late", 3000);
+        assertTrue(second.opened());
+        // a concurrent sender stamped its message before the second bucket was opened
+        TimeBucketAllocator.Assignment late = allocator.assign("late", 2500);
+        assertFalse(late.opened());
+        assertEquals(first, late.bucket());
+        // a full bucket still takes a message at its start rather than opening one after it
+        allocator.assign("late", 3100);
+        assertEquals(second.bucket(), allocator.assign("late", 3000).bucket());
+    }
+
+    @Test
+    void continuesTheRestoredBucketWithItsRate() {
+        TimeBucketAllocator allocator = new TimeBucketAllocator(1000, 5000, BucketGranularity.HOUR);
+        TimeBucket latest = new TimeBucket(0, BucketGranularity.DAY);
+        allocator.restore("restarted", latest, 0.001);
+        assertTrue(allocator.isKnown("restarted"));
+
+        assertEquals(new TimeBucketAllocator.Assignment(latest, false, 0.001), allocator.assign("restarted", HOUR));
+        // the learned rate carries over into the granularity of the next bucket, a fresh start would pick a month
+        TimeBucketAllocator.Assignment next = allocator.assign("restarted", 2 * 24 * HOUR);
+        assertTrue(next.opened());
+        assertEquals(BucketGranularity.WEEK, next.bucket().granularity());
+        assertFalse(allocator.isKnown("other"));
+    }
+
+    @Test
+    void picksCoarsestGranularityWithinTarget() {
+        assertEquals(BucketGranularity.MONTH, BucketGranularity.forRate(0, 1000));
+        assertEquals(BucketGranularity.DAY, BucketGranularity.forRate(0.01, 1000));
+        assertEquals(BucketGranularity.TEN_MINUTES, BucketGranularity.forRate(100, 1000));
+    }
+}
@@ -0,0 +1,139 @@
+package org.enkrip.atkins.shared.websocket.hotspot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HotspotTrackerTests {
+
+    @Test
+    void findsTheHeavyHittersOfASkewedStreamWithinTheErrorBounds() {
+        SpaceSavingCounter counter = new SpaceSavingCounter(50);
+        Map<String, Long> exact = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            // a few hot rooms on top of a long tail of quiet ones
+            String key = random.nextInt(10) < 3 ? "hot-" + random.nextInt(5) : "quiet-" + random.nextInt(10_000);
+            long weight = 1 + random.nextInt(3);
+            counter.add(key, weight);
+            exact.merge(key, weight, Long::sum);
+        }
+
+        List<SpaceSavingCounter.HeavyHitter> top = counter.top(5);
+        assertEquals(5, top.size());
+        for (SpaceSavingCounter.HeavyHitter hitter : top) {
+            assertTrue(hitter.key().startsWith("hot-"), hitter.key());
+            long actual = exact.get(hitter.key());
+            assertTrue(hitter.count() >= actual);
+            assertTrue(hitter.count() - hitter.error() <= actual);
+        }
+        assertTrue(top.get(0).count() >= top.get(4).count());
+        assertEquals(exact.values().stream().mapToLong(Long::longValue).sum(), counter.total());
+    }
+
+    @Test
+    void decayFollowsRecentLoadAndDropsIdleKeys() {
+        SpaceSavingCounter counter = new SpaceSavingCounter(4);
+        counter.add("old", 8);
+        counter.add("idle", 1);
+        counter.decay(0.5);
+        counter.add("new", 6);
+
+        List<SpaceSavingCounter.HeavyHitter> top = counter.top(10);
+        assertEquals(List.of("new", "old"), top.stream().map(SpaceSavingCounter.HeavyHitter::key).toList());
+        assertEquals(4, top.get(1).count());
+
+        // the heap still picks the least counted key once all counters are taken
+        counter.add("a", 3);
+        counter.add("b", 7);
+        counter.add("c", 2);
+        assertEquals(List.of("b", "new", "c", "old"),
+                counter.top(10).stream().map(SpaceSavingCounter.HeavyHitter::key).toList());
+        assertEquals(3, counter.top(10).get(2).error());
+    }
+
+    @Test
+    void tracksConversationsUsersAndDeliveriesAsGauges() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        // an interval of an hour keeps the scheduler out of the way, the test ticks explicitly
+        HotspotTracker tracker = new HotspotTracker(100, Duration.ofDays(1000), Duration.ofHours(1), 2,
+                meterRegistry);
+        Conversation conversation = Conversation.getDefaultInstance();
+
+        // restored messages only count towards the retained bytes
+        tracker.onMessageAppended(conversation, message("room-1", "alice", "restored"));
+        tracker.startTracking();
+        for (int i = 0; i < 3; i++) {
+            tracker.onMessageAppended(conversation, message("room-1", "alice", "hello"));
+        }
+        tracker.onMessageAppended(conversation, message("room-2", "bob", "hi"));
+        tracker.recordDelivery("bob", 300);
+        tracker.recordDelivery("carol", 100);
+        tracker.recordDelivery("dave", 10);
+
+        Map<String, HotspotTracker.Hotspots> hotspots = tracker.getHotspots(10);
+        assertEquals("room-1", hotspots.get(HotspotTracker.CONVERSATION_MESSAGES).top().getFirst().key());
+        assertEquals(3, hotspots.get(HotspotTracker.CONVERSATION_MESSAGES).top().getFirst().count());
+        assertEquals(3, hotspots.get(HotspotTracker.USER_SENDS).top().getFirst().count());
+        assertEquals(8 + 3 * 5, hotspots.get(HotspotTracker.CONVERSATION_BYTES).top().getFirst().count());
+        assertEquals(410, hotspots.get(HotspotTracker.USER_DELIVERED_BYTES).total());
+
+        tracker.tick();
+        assertEquals(300, meterRegistry.get("atkins.hotspots." + HotspotTracker.USER_DELIVERED_BYTES)
+                .tag("key", "bob").gauge().value(), 1);
+        // only the top of each signal is published
+        assertEquals(2, meterRegistry.find("atkins.hotspots." + HotspotTracker.USER_DELIVERED_BYTES)
+                .gauges().size());
+        tracker.destroy();
+    }
+
+    @Test
+    void mergesWhatManyThreadsRecordedBeforeReading() throws InterruptedException {
+        HotspotTracker tracker = new HotspotTracker(100, Duration.ofDays(1000), Duration.ofHours(1), 2,
+                new SimpleMeterRegistry());
+        tracker.startTracking();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    tracker.onMessageAppended(Conversation.getDefaultInstance(),
+                            message("room-" + i % 10, "alice", "hi"));
+                    tracker.recordDelivery("bob", 2);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<String, HotspotTracker.Hotspots> hotspots = tracker.getHotspots(10);
+        assertEquals(8000, hotspots.get(HotspotTracker.CONVERSATION_MESSAGES).total());
+        assertTrue(hotspots.get(HotspotTracker.CONVERSATION_MESSAGES).top().stream()
+                .allMatch(hitter -> hitter.count() == 800 && hitter.error() == 0));
+        assertEquals(List.of(new SpaceSavingCounter.HeavyHitter("alice", 8000, 0)),
+                hotspots.get(HotspotTracker.USER_SENDS).top());
+        assertEquals(16000, hotspots.get(HotspotTracker.USER_DELIVERED_BYTES).total());
+        assertEquals(8000 * 2, hotspots.get(HotspotTracker.CONVERSATION_BYTES).total());
+        tracker.destroy();
+    }
+
+    private static ChatMessage message(String conversationId, String sender, String content) {
+        return ChatMessage.newBuilder()
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId(sender))
+                .setContent(content)
+                .build();
+    }
+}
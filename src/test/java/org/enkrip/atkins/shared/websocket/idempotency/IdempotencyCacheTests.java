@@ -0,0 +1,78 @@
+package org.enkrip.atkins.shared.websocket.idempotency;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IdempotencyCacheTests {
+
+    @Test
+    void replaysTheFirstResponsePerUserAndRequest() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(Duration.ofMinutes(10), 1000, new SimpleMeterRegistry());
+        AtomicInteger runs = new AtomicInteger();
+
+        byte[] first = cache.execute("alice", "r1", () -> completedFuture(new byte[]{(byte) runs.incrementAndGet()})).get();
+        byte[] retry = cache.execute("alice", "r1", () -> completedFuture(new byte[]{(byte) runs.incrementAndGet()})).get();
+        assertArrayEquals(first, retry);
+        assertEquals(1, runs.get());
+
+        cache.execute("bob", "r1", () -> completedFuture(new byte[]{(byte) runs.incrementAndGet()})).get();
+        cache.execute("alice", "", () -> completedFuture(new byte[]{(byte) runs.incrementAndGet()})).get();
+        cache.execute("alice", "", () -> completedFuture(new byte[]{(byte) runs.incrementAndGet()})).get();
+        assertEquals(4, runs.get());
+    }
+
+    @Test
+    void retryWhileRunningWaitsForTheSameResponse() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(Duration.ofMinutes(10), 1000, new SimpleMeterRegistry());
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<CompletableFuture<byte[]>> first = CompletableFuture.supplyAsync(() ->
+                cache.execute("alice", "r1", () -> {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return completedFuture(new byte[]{1});
+                }));
+        running.await();
+        CompletableFuture<byte[]> retry = cache.execute("alice", "r1", () -> completedFuture(new byte[]{2}));
+        assertFalse(retry.isDone());
+
+        release.countDown();
+        assertArrayEquals(new byte[]{1}, retry.get());
+        assertArrayEquals(new byte[]{1}, first.get().get());
+    }
+
+    @Test
+    void forgetsFailedAttemptsAndOldGenerations() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(Duration.ofMinutes(10), 4, new SimpleMeterRegistry());
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> cache.execute("alice", "r1", () ->
+                CompletableFuture.<byte[]>failedFuture(new IllegalStateException("store failed"))).get());
+        assertInstanceOf(IllegalStateException.class, failed.getCause());
+        assertArrayEquals(new byte[]{1}, cache.execute("alice", "r1", () -> completedFuture(new byte[]{1})).get());
+
+        // two entries per generation, r1 survives one rotation but not two
+        cache.execute("alice", "r2", () -> completedFuture(new byte[]{2}));
+        cache.execute("alice", "r3", () -> completedFuture(new byte[]{3}));
+        assertArrayEquals(new byte[]{1}, cache.execute("alice", "r1", () -> completedFuture(new byte[]{9})).get());
+        cache.execute("alice", "r4", () -> completedFuture(new byte[]{4}));
+        cache.execute("alice", "r5", () -> completedFuture(new byte[]{5}));
+        assertArrayEquals(new byte[]{9}, cache.execute("alice", "r1", () -> completedFuture(new byte[]{9})).get());
+    }
+}
@@ -0,0 +1,184 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.engine.DirectConversationEngine;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.enkrip.atkins.shared.websocket.idempotency.IdempotencyCache;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.enkrip.atkins.shared.websocket.store.UserIdRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationRecoveryTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversSnapshotAndJournalTailWithTheirVersions() throws Exception {
+        Node first = new Node();
+        for (int i = 0; i < 3; i++) {
+            first.conversationService.restoreConversation(conversation("conversation-" + i));
+        }
+        for (int m = 0; m < 30; m++) {
+            first.conversationService.restoreMessage(message("conversation-" + m % 3, m));
+        }
+        first.snapshots.write();
+        // the tail is only in the journal, and the next start must not replay what the snapshot covers
+        for (int m = 30; m < 40; m++) {
+            first.conversationService.restoreMessage(message("conversation-" + m % 3, m));
+        }
+        first.journal.destroy();
+
+        Node second = new Node();
+        assertEquals(3, second.conversationService.getConversations().size());
+        for (int i = 0; i < 3; i++) {
+            String conversationId = "conversation-" + i;
+            assertEquals(first.conversationService.getConversation(conversationId),
+                    second.conversationService.getConversation(conversationId));
+            assertEquals(first.messageStore.getMessages(conversationId, "alice"),
+                    second.messageStore.getMessages(conversationId, "alice"));
+        }
+        assertEquals(first.conversationService.getUserVersion("alice"),
+                second.conversationService.getUserVersion("alice"));
+
+        // stopping writes a final snapshot and checkpoints the journal, so the next start replays nothing
+        second.conversationService.restoreMessage(message("conversation-0", 40));
+        second.snapshots.stop();
+        second.journal.destroy();
+        MessageJournal tail = new MessageJournal(directory.resolve("journal"), DataSize.ofKilobytes(4),
+                FsyncPolicy.NONE, Duration.ofMillis(100), 2, new SimpleMeterRegistry());
+        assertEquals(0, tail.replay(record -> {
+        }));
+        tail.destroy();
+        Node third = new Node();
+        assertEquals(second.messageStore.getMessages("conversation-0", "alice"),
+                third.messageStore.getMessages("conversation-0", "alice"));
+        third.journal.destroy();
+    }
+
+    @Test
+    void snapshotWaitsForTheConversationsBeingRegistered() throws Exception {
+        CountDownLatch journaled = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        Node first = new Node(new ConversationListener() {
+            @Override
+            public void onConversationStarted(Conversation conversation) {
+                // the journal announced it first, the conversation is not in the service yet
+                journaled.countDown();
+                try {
+                    released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread registration = Thread.ofPlatform()
+                .start(() -> first.conversationService.restoreConversation(conversation("conversation-0")));
+        assertTrue(journaled.await(10, TimeUnit.SECONDS));
+        Thread snapshot = Thread.ofPlatform().start(() -> {
+            try {
+                first.snapshots.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        while (snapshot.isAlive() && snapshot.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        released.countDown();
+        registration.join();
+        snapshot.join();
+        first.conversationService.restoreMessage(message("conversation-0", 0));
+        first.journal.destroy();
+
+        // either the snapshot covers the conversation or its journal record is replayed, never neither
+        Node second = new Node();
+        assertEquals(first.conversationService.getConversation("conversation-0"),
+                second.conversationService.getConversation("conversation-0"));
+        assertEquals(first.messageStore.getMessages("conversation-0", "alice"),
+                second.messageStore.getMessages("conversation-0", "alice"));
+        second.journal.destroy();
+    }
+
+    private static Conversation conversation(String conversationId) {
+        return Conversation.newBuilder()
+                .setConversationId(conversationId)
+                .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                .addParticipants(ChatUser.newBuilder().setUserId("bob"))
+                .build();
+    }
+
+    private static ChatMessage message(String conversationId, int id) {
+        return ChatMessage.newBuilder()
+                .setMessageId(new UUID(id, id).toString())
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId("alice").setDisplayName("alice"))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L + id))
+                .setContent("message " + id)
+                .build();
+    }
+
+    private final class Node {
+        private final CompactMessageStore messageStore = new CompactMessageStore(new UserIdRegistry());
+        private final MessageJournal journal;
+        private final ConversationService conversationService;
+        private final ConversationSnapshots snapshots;
+
+        private Node(ConversationListener... conversationListeners) throws Exception {
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            this.journal = new MessageJournal(directory.resolve("journal"), DataSize.ofKilobytes(4),
+                    FsyncPolicy.NONE, Duration.ofMillis(100), 2, meterRegistry);
+            StaticListableBeanFactory listeners = new StaticListableBeanFactory();
+            listeners.addBean("messageJournal", journal);
+            for (int i = 0; i < conversationListeners.length; i++) {
+                listeners.addBean("conversationListener" + i, conversationListeners[i]);
+            }
+
+            WebSocketSessionService sessionService = new WebSocketSessionService(Duration.ofSeconds(1),
+                    DataSize.ofKilobytes(64), new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                    new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+            this.conversationService = new ConversationService(sessionService, messageStore,
+                    new AttachmentStore(directory.resolve("attachments"), DataSize.ofMegabytes(1),
+                            Duration.ofHours(1), 256, 10_000_000, meterRegistry),
+                    new IdempotencyCache(Duration.ofMinutes(10), 1000, meterRegistry),
+                    new DirectConversationEngine(),
+                    new ConversationListCache(DataSize.ofMegabytes(1), Duration.ofHours(1), meterRegistry),
+                    listeners.getBeanProvider(ConversationListener.class));
+            StaticListableBeanFactory journals = new StaticListableBeanFactory();
+            journals.addBean("messageJournal", journal);
+            this.snapshots = new ConversationSnapshots(directory.resolve("snapshot"), Duration.ofHours(1), 2,
+                    conversationService, messageStore, journals.getBeanProvider(MessageJournal.class), meterRegistry);
+            StaticListableBeanFactory snapshotBeans = new StaticListableBeanFactory();
+            snapshotBeans.addBean("conversationSnapshots", snapshots);
+
+            new ConversationRecovery(snapshotBeans.getBeanProvider(ConversationSnapshots.class),
+                    journals.getBeanProvider(MessageJournal.class), conversationService, meterRegistry)
+                    .afterSingletonsInstantiated();
+            snapshots.start();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.enkrip.atkins.shared.websocket.journal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.JournalRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageJournalTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRecordsInAppendOrderAcrossSegments() throws IOException {
+        List<JournalRecord> appended = new ArrayList<>();
+        MessageJournal journal = journal(DataSize.ofBytes(512));
+        assertEquals(0, journal.replay(appended::add));
+        appended.add(conversationRecord());
+        for (int i = 0; i < 100; i++) {
+            appended.add(messageRecord(i));
+        }
+        appended.forEach(journal::append);
+        long position = journal.currentPosition();
+        journal.destroy();
+
+        List<Path> segments = JournalSegment.list(directory);
+        assertTrue(segments.size() > 10, "small segments roll over");
+        assertEquals(0, JournalSegment.basePosition(segments.getFirst()));
+
+        MessageJournal reopened = journal(DataSize.ofBytes(512));
+        List<JournalRecord> replayed = new ArrayList<>();
+        assertEquals(appended.size(), reopened.replay(replayed::add));
+        assertEquals(appended, replayed);
+        // appending continues in the last segment, right after its last record
+        assertEquals(position, reopened.currentPosition());
+        reopened.destroy();
+    }
+
+    @Test
+    void truncatesTornTailAndAppendsAfterTheLastValidRecord() throws IOException {
+        MessageJournal journal = journal(DataSize.ofKilobytes(64));
+        journal.replay(record -> {
+        });
+        for (int i = 0; i < 10; i++) {
+            journal.append(messageRecord(i));
+        }
+        int validEnd = (int) journal.currentPosition();
+        journal.destroy();
+
+        // a record torn by a crash: checksum and part of the payload written, but not its length yet
+        byte[] garbage = new byte[600];
+        Arrays.fill(garbage, (byte) 0x5a);
+        try (FileChannel channel = FileChannel.open(JournalSegment.list(directory).getLast(),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(garbage), validEnd + Integer.BYTES);
+        }
+
+        MessageJournal reopened = journal(DataSize.ofKilobytes(64));
+        assertEquals(10, reopened.replay(record -> {
+        }));
+        assertEquals(validEnd, reopened.currentPosition());
+        // a short record is appended over the torn one, its leftovers must not be read as the next record
+        JournalRecord next = messageRecord(10);
+        reopened.append(next);
+        reopened.destroy();
+
+        JournalSegment.ReadResult read = JournalSegment.read(JournalSegment.list(directory).getLast(), 0);
+        assertFalse(read.torn());
+        assertEquals(11, read.records().size());
+        assertEquals(next, read.records().getLast());
+
+        // a damaged record with a length header is dropped along with everything after it
+        try (FileChannel channel = FileChannel.open(JournalSegment.list(directory).getLast(),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 100), read.validEnd());
+            channel.write(ByteBuffer.wrap(garbage, 0, 100), read.validEnd() + JournalSegment.HEADER_BYTES);
+        }
+        assertTrue(JournalSegment.read(JournalSegment.list(directory).getLast(), 0).torn());
+        List<JournalRecord> replayed = new ArrayList<>();
+        MessageJournal recovered = journal(DataSize.ofKilobytes(64));
+        assertEquals(11, recovered.replay(replayed::add));
+        assertEquals(next, replayed.getLast());
+        recovered.destroy();
+        assertFalse(JournalSegment.read(JournalSegment.list(directory).getLast(), 0).torn());
+    }
+
+    @Test
+    void groupPolicyWaitsForDurabilityOnceTheConversationIsUnlocked() throws IOException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MessageJournal journal = new MessageJournal(directory, DataSize.ofKilobytes(64), FsyncPolicy.GROUP,
+                Duration.ofMillis(100), 2, meterRegistry);
+        journal.replay(record -> {
+        });
+        Conversation conversation = conversationRecord().getConversation();
+        journal.onConversationStarted(conversation);
+        journal.onMessageAppended(conversation, messageRecord(0).getMessage());
+        assertEquals(0, meterRegistry.timer("atkins.journal.fsync").count(), "not forced while locked");
+
+        // both records of the conversation share one fsync, a later wait finds them durable already
+        journal.onConversationUnlocked();
+        journal.onConversationUnlocked();
+        assertEquals(1, meterRegistry.timer("atkins.journal.fsync").count());
+        journal.destroy();
+    }
+
+    private MessageJournal journal(DataSize segmentSize) throws IOException {
+        return new MessageJournal(directory, segmentSize, FsyncPolicy.NONE, Duration.ofMillis(100), 2,
+                new SimpleMeterRegistry());
+    }
+
+    private static JournalRecord conversationRecord() {
+        return JournalRecord.newBuilder()
+                .setConversation(Conversation.newBuilder()
+                        .setConversationId("conversation")
+                        .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                        .addParticipants(ChatUser.newBuilder().setUserId("bob")))
+                .build();
+    }
+
+    private static JournalRecord messageRecord(int index) {
+        return JournalRecord.newBuilder()
+                .setMessage(ChatMessage.newBuilder()
+                        .setMessageId("message-" + index)
+                        .setConversationId("conversation")
+                        .setSender(ChatUser.newBuilder().setUserId("alice"))
+                        .setContent("message " + index)
+                        .setSequence(index + 1))
+                .build();
+    }
+}
@@ -0,0 +1,240 @@
+package org.enkrip.atkins.shared.websocket.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.client.HttpClient;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReactorNettyWebSocketServerTests {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final EchoHandler handler = new EchoHandler();
+    private final AtomicBoolean rejecting = new AtomicBoolean();
+    private final ReactorNettyWebSocketServer server = new ReactorNettyWebSocketServer(handler,
+            List.of(new RejectingInterceptor(rejecting)), "/websocket/chat", "127.0.0.1", 0, 2, 4, 64 * 1024,
+            64 * 1024);
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    @Test
+    void servesFramesThroughTheSpringHandler() throws Exception {
+        server.start();
+        String echoed = client()
+                .headers(headers -> headers.set("X-Username", "alice"))
+                .websocket()
+                .uri("/websocket/chat?compression=none")
+                .handle((inbound, outbound) -> outbound
+                        .sendObject(Mono.just(new BinaryWebSocketFrame(Unpooled.wrappedBuffer("hello".getBytes()))))
+                        .then()
+                        .thenMany(inbound.receive().asString(StandardCharsets.UTF_8).take(1)))
+                .blockFirst(TIMEOUT);
+        assertEquals("hello", echoed);
+
+        WebSocketSession session = handler.established.poll(10, TimeUnit.SECONDS);
+        assertNotNull(session);
+        assertEquals("alice", session.getHandshakeHeaders().getFirst("X-Username"));
+        assertEquals("/websocket/chat", session.getUri().getPath());
+        assertNotNull(session.getAttributes().get(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME));
+        assertNotNull(handler.closed.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void closesFromTheServerSide() throws Exception {
+        server.start();
+        BlockingQueue<Integer> closeCodes = new LinkedBlockingQueue<>();
+        client().websocket()
+                .uri("/websocket/chat")
+                .handle((inbound, outbound) -> inbound.receiveCloseStatus()
+                        .doOnNext(status -> closeCodes.add(status.code())))
+                .subscribe();
+
+        WebSocketSession session = handler.established.poll(10, TimeUnit.SECONDS);
+        assertNotNull(session);
+        session.close(CloseStatus.SERVICE_RESTARTED);
+        assertEquals(CloseStatus.SERVICE_RESTARTED, handler.closed.poll(10, TimeUnit.SECONDS));
+        assertEquals(CloseStatus.SERVICE_RESTARTED.getCode(), closeCodes.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsHandshakesThroughTheInterceptors() {
+        server.start();
+        rejecting.set(true);
+        Throwable error = client().websocket()
+                .uri("/websocket/chat")
+                .handle((inbound, outbound) -> inbound.receive().then())
+                .then()
+                .materialize()
+                .block(TIMEOUT)
+                .getThrowable();
+        assertTrue(error instanceof WebSocketClientHandshakeException, String.valueOf(error));
+        assertEquals(503, ((WebSocketClientHandshakeException) error).response().status().code());
+        assertEquals("7", ((WebSocketClientHandshakeException) error).response().headers()
+                .get(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    void holdsManyConnectionsOnFewThreads() throws Exception {
+        server.start();
+        int connections = 500;
+        AtomicInteger echoed = new AtomicInteger();
+        Sinks.Empty<Void> release = Sinks.empty();
+        Disposable clients = Flux.range(0, connections)
+                .flatMap(i -> client().websocket()
+                        .uri("/websocket/chat")
+                        .handle((inbound, outbound) -> outbound
+                                .sendObject(Mono.just(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{1}))))
+                                .then()
+                                // cancelling the inbound frames would close the connection, so every connection
+                                // stays open until all of them were served
+                                .thenMany(inbound.receive()
+                                        .doOnNext(buffer -> echoed.incrementAndGet())
+                                        .takeUntilOther(release.asMono()))), connections)
+                .subscribe();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (echoed.get() < connections && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertEquals(connections, echoed.get());
+            assertEquals(connections, handler.open.size());
+
+            // one acceptor and two event loops for the I/O, and the four handler threads
+            Set<String> threads = Thread.getAllStackTraces().keySet().stream()
+                    .map(Thread::getName)
+                    .filter(name -> name.startsWith("netty-websocket-"))
+                    .collect(Collectors.toSet());
+            assertTrue(threads.stream().filter(name -> !name.startsWith("netty-websocket-handler")).count() <= 3,
+                    threads.toString());
+            assertTrue(handler.threads.size() <= 4, handler.threads.toString());
+        } finally {
+            release.tryEmitEmpty();
+            clients.dispose();
+        }
+    }
+
+    @Test
+    void listensOnlyBetweenRecoveryAndTheFinalSnapshot() {
+        List<String> events = new ArrayList<>();
+        try (GenericApplicationContext context = new GenericApplicationContext()) {
+            context.registerBean(ReactorNettyWebSocketServer.class, () -> server);
+            // stand in for ConversationRecovery and the final snapshot of ConversationSnapshots
+            context.registerBean("recovery", SmartInitializingSingleton.class, () -> () ->
+                    events.add("recovered, listening: " + server.isRunning()));
+            context.registerBean("snapshots", SmartLifecycle.class, () -> new SmartLifecycle() {
+                private boolean running;
+
+                @Override
+                public void start() {
+                    running = true;
+                }
+
+                @Override
+                public void stop() {
+                    events.add("final snapshot, listening: " + server.isRunning());
+                    running = false;
+                }
+
+                @Override
+                public boolean isRunning() {
+                    return running;
+                }
+
+                @Override
+                public int getPhase() {
+                    return SmartLifecycle.DEFAULT_PHASE - 4096;
+                }
+            });
+            context.refresh();
+            assertTrue(server.isRunning());
+        }
+        assertEquals(List.of("recovered, listening: false", "final snapshot, listening: false"), events);
+    }
+
+    private HttpClient client() {
+        return HttpClient.create().baseUrl("ws://127.0.0.1:" + server.getPort());
+    }
+
+    static class EchoHandler extends BinaryWebSocketHandler {
+        final BlockingQueue<WebSocketSession> established = new LinkedBlockingQueue<>();
+        final BlockingQueue<CloseStatus> closed = new LinkedBlockingQueue<>();
+        final Map<String, WebSocketSession> open = new ConcurrentHashMap<>();
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) {
+            open.put(session.getId(), session);
+            established.add(session);
+        }
+
+        @Override
+        protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+            threads.add(Thread.currentThread().getName());
+            session.sendMessage(new BinaryMessage(message.getPayload()));
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+            open.remove(session.getId());
+            closed.add(status);
+        }
+    }
+
+    record RejectingInterceptor(AtomicBoolean rejecting) implements HandshakeInterceptor {
+        @Override
+        public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                       WebSocketHandler wsHandler, Map<String, Object> attributes) {
+            if (rejecting.get()) {
+                response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+                response.getHeaders().set(HttpHeaders.RETRY_AFTER, "7");
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                   WebSocketHandler wsHandler, Exception exception) {
+        }
+    }
+}
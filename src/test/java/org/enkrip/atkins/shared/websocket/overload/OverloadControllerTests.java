@@ -0,0 +1,129 @@
+package org.enkrip.atkins.shared.websocket.overload;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.MessageOperationType;
+import org.enkrip.atkins.shared.websocket.TransportSendQueue;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class OverloadControllerTests {
+
+    @Test
+    void shedsLowPriorityOperationsFirstAndRecoversWithHysteresis() {
+        OverloadController controller = newController(100);
+
+        // 10 ms per RPC against a 1 ms target, smoothed over a few intervals
+        for (int interval = 0; interval < 10; interval++) {
+            handle(controller, MessageOperationType.SEND_CONVERSATION_MESSAGE, 10_000_000);
+            controller.evaluate();
+        }
+        assertEquals(OverloadLevel.CRITICAL, controller.getStatus().level());
+        assertFalse(controller.admitHandshake());
+        assertFalse(controller.admit(MessageOperationType.GET_LIST_OF_CONVERSATIONS));
+        assertFalse(controller.admit(MessageOperationType.SEARCH_MESSAGES));
+        assertTrue(controller.admit(MessageOperationType.SEND_CONVERSATION_MESSAGE));
+        controller.complete(System.nanoTime());
+
+        // idle intervals decay the latency until the node steps down, one level at a time
+        OverloadLevel previous = OverloadLevel.CRITICAL;
+        boolean sawShedding = false;
+        for (int interval = 0; interval < 50 && previous != OverloadLevel.NORMAL; interval++) {
+            controller.evaluate();
+            OverloadController.OverloadStatus status = controller.getStatus();
+            if (status.level() == OverloadLevel.SHEDDING) {
+                sawShedding = true;
+                assertTrue(status.pressure() < 1.5 * 0.8);
+                assertTrue(controller.admit(MessageOperationType.SEARCH_MESSAGES));
+                controller.complete(System.nanoTime());
+                assertFalse(controller.admit(MessageOperationType.TYPING_INDICATOR));
+            }
+            if (status.level() == OverloadLevel.NORMAL) {
+                assertTrue(status.pressure() < 0.8);
+            }
+            previous = status.level();
+        }
+        assertTrue(sawShedding);
+        assertEquals(OverloadLevel.NORMAL, previous);
+        assertTrue(controller.admitHandshake());
+        assertTrue(controller.admit(MessageOperationType.GET_LIST_OF_CONVERSATIONS));
+        controller.destroy();
+    }
+
+    @Test
+    void onlyEssentialOperationsPassTheInFlightLimit() {
+        OverloadController controller = newController(2);
+
+        assertTrue(controller.admit(MessageOperationType.GET_TIMELINE));
+        assertTrue(controller.admit(MessageOperationType.GET_TIMELINE));
+        assertFalse(controller.admit(MessageOperationType.GET_TIMELINE));
+        assertTrue(controller.admit(MessageOperationType.SEND_CONVERSATION_MESSAGE));
+
+        controller.complete(System.nanoTime());
+        controller.complete(System.nanoTime());
+        assertTrue(controller.admit(MessageOperationType.GET_TIMELINE));
+        controller.destroy();
+    }
+
+    @Test
+    void countsTheFramesQueuedByTheTransport() throws IOException {
+        WebSocketSessionService sessionService = newSessionService();
+        OverloadController controller = newController(100, sessionService);
+        WebSocketSession session = mock(WebSocketSession.class,
+                withSettings().extraInterfaces(TransportSendQueue.class));
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME, "http-session");
+        when(session.getId()).thenReturn("session");
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.getHandshakeHeaders()).thenReturn(new HttpHeaders());
+        sessionService.afterConnectionEstablished(session);
+
+        // the send decorator has nothing buffered, the backlog is all in the transport's queue
+        when(((TransportSendQueue) session).getQueuedBytes()).thenReturn(DataSize.ofMegabytes(128).toBytes());
+        assertEquals(DataSize.ofMegabytes(128).toBytes(),
+                WebSocketSessionService.getQueuedBytes(sessionService.getOpenSession("session")));
+        controller.evaluate();
+        assertEquals(OverloadLevel.CRITICAL, controller.getStatus().level());
+        assertFalse(controller.admitHandshake());
+        controller.destroy();
+    }
+
+    private static void handle(OverloadController controller, MessageOperationType operationType, long nanos) {
+        assertTrue(controller.admit(operationType));
+        controller.complete(System.nanoTime() - nanos);
+    }
+
+    private static OverloadController newController(int maxInFlight) {
+        return newController(maxInFlight, newSessionService());
+    }
+
+    private static WebSocketSessionService newSessionService() {
+        return new WebSocketSessionService(Duration.ofSeconds(1), DataSize.ofKilobytes(64),
+                new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+    }
+
+    private static OverloadController newController(int maxInFlight, WebSocketSessionService sessionService) {
+        // an interval of an hour keeps the scheduler out of the way, the tests evaluate explicitly
+        return new OverloadController(true, Duration.ofMillis(1), maxInFlight, DataSize.ofMegabytes(64), 2.0, 1.5,
+                0.8, 0.3, Duration.ofHours(1), Duration.ofSeconds(5), sessionService, new SimpleMeterRegistry());
+    }
+}
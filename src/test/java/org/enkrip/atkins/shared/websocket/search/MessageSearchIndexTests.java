@@ -0,0 +1,191 @@
+package org.enkrip.atkins.shared.websocket.search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.Conversation;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageSearchIndexTests {
+
+    @Test
+    void postingCursorSkipsToLargestDocumentAtOrBelowTarget() {
+        int[] docs = new int[1000];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = i * 3;
+        }
+        PostingCursor cursor = PostingList.encode(docs, docs.length).cursor(10);
+
+        assertEquals(2997 + 10, cursor.advanceTo(Integer.MAX_VALUE));
+        assertEquals(1500 + 10, cursor.advanceTo(1512));
+        // a cursor never moves back up
+        assertEquals(1500 + 10, cursor.advanceTo(2000));
+        assertEquals(10, cursor.advanceTo(12));
+        assertEquals(PostingCursor.NO_MORE_DOCS, cursor.advanceTo(9));
+    }
+
+    @Test
+    void findsMostRecentMessagesOfAllowedConversationsAcrossSegments() {
+        // tiny segments so that sealing and merging are exercised
+        MessageSearchIndex index = new MessageSearchIndex(16, 2, 1 << 20, 100_000, new SimpleMeterRegistry());
+        try {
+            for (int version = 1; version <= 1000; version++) {
+                String conversationId = version % 2 == 0 ? "even" : "odd";
+                String content = "Hello, world #" + version + (version % 10 == 0 ? " round number" : "");
+                index.onMessageAppended(Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                        .setConversationId(conversationId)
+                        .setContent(content)
+                        .setVersion(version)
+                        .build());
+            }
+
+            List<Long> versions = new ArrayList<>();
+            long cursor = Long.MAX_VALUE;
+            MessageSearchIndex.SearchResult result;
+            do {
+                result = index.search("WORLD hello", Set.of("even"), cursor, 7);
+                result.hits().forEach(hit -> versions.add(hit.version()));
+                cursor = result.nextCursor();
+            } while (result.hasMore());
+
+            assertEquals(500, versions.size());
+            for (int i = 0; i < versions.size(); i++) {
+                assertEquals(1000 - i * 2L, versions.get(i));
+            }
+
+            MessageSearchIndex.SearchResult rounds = index.search("round hello", Set.of("even", "odd"),
+                    Long.MAX_VALUE, 200);
+            assertEquals(100, rounds.hits().size());
+            assertEquals(1000, rounds.hits().getFirst().version());
+            assertFalse(rounds.hasMore());
+
+            assertTrue(index.search("round", Set.of("unknown"), Long.MAX_VALUE, 10).hits().isEmpty());
+            assertTrue(index.search("missing", Set.of("even"), Long.MAX_VALUE, 10).hits().isEmpty());
+        } finally {
+            index.destroy();
+        }
+    }
+
+    @Test
+    void ranksByVersionWhenMessagesAreIndexedOutOfOrder() {
+        // as after a parallel snapshot load: versions arrive shuffled across many segments
+        MessageSearchIndex index = new MessageSearchIndex(16, 2, 1 << 20, 100_000, new SimpleMeterRegistry());
+        try {
+            List<Integer> order = new ArrayList<>();
+            for (int version = 1; version <= 1000; version++) {
+                order.add(version);
+            }
+            Collections.shuffle(order, new Random(42));
+            for (int version : order) {
+                index.onMessageAppended(Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                        .setConversationId(version % 3 == 0 ? "other" : "mine")
+                        .setContent("hello #" + version)
+                        .setVersion(version)
+                        .build());
+            }
+
+            List<Long> versions = new ArrayList<>();
+            long cursor = Long.MAX_VALUE;
+            MessageSearchIndex.SearchResult result;
+            do {
+                result = index.search("hello", Set.of("mine"), cursor, 9);
+                result.hits().forEach(hit -> versions.add(hit.version()));
+                cursor = result.nextCursor();
+            } while (result.hasMore());
+
+            List<Long> expected = new ArrayList<>();
+            for (long version = 1000; version >= 1; version--) {
+                if (version % 3 != 0) {
+                    expected.add(version);
+                }
+            }
+            assertEquals(expected, versions);
+        } finally {
+            index.destroy();
+        }
+    }
+
+    @Test
+    void filtersByConversationBeforePaginating() {
+        MessageSearchIndex index = new MessageSearchIndex(64, 4, 1 << 20, 10, new SimpleMeterRegistry());
+        try {
+            for (int version = 1; version <= 100; version++) {
+                index.onMessageAppended(Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                        .setConversationId(version == 1 ? "mine" : "other")
+                        .setContent("needle")
+                        .setVersion(version)
+                        .build());
+            }
+
+            // the messages of other conversations are never examined, so they cannot use up the scan budget
+            MessageSearchIndex.SearchResult result = index.search("needle", Set.of("mine"), Long.MAX_VALUE, 10);
+            assertEquals(List.of(new MessageSearchIndex.SearchHit("mine", 1)), result.hits());
+            assertFalse(result.hasMore());
+        } finally {
+            index.destroy();
+        }
+    }
+
+    @Test
+    void appendsWithoutWaitingForTheIndexLock() throws Exception {
+        MessageSearchIndex index = new MessageSearchIndex(64, 4, 1 << 20, 100_000, new SimpleMeterRegistry());
+        try {
+            // messages are appended while their conversation is locked, a query or merge must not hold them up
+            synchronized (index) {
+                Thread append = Thread.ofPlatform().start(() -> index.onMessageAppended(
+                        Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                                .setConversationId("mine")
+                                .setContent("needle")
+                                .setVersion(1)
+                                .build()));
+                assertTrue(append.join(Duration.ofSeconds(10)));
+            }
+            // a query sees the message whether or not the indexer thread got to it yet
+            assertEquals(List.of(new MessageSearchIndex.SearchHit("mine", 1)),
+                    index.search("needle", Set.of("mine"), Long.MAX_VALUE, 10).hits());
+        } finally {
+            index.destroy();
+        }
+    }
+
+    @Test
+    void stopsAfterScanBudgetWithCursorToContinue() throws InterruptedException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MessageSearchIndex index = new MessageSearchIndex(16, 4, 1 << 20, 10, meterRegistry);
+        try {
+            for (int version = 1; version <= 96; version++) {
+                index.onMessageAppended(Conversation.getDefaultInstance(), ChatMessage.newBuilder()
+                        .setConversationId("mine")
+                        .setContent(version == 1 ? "alpha beta" : version % 2 == 0 ? "alpha" : "beta")
+                        .setVersion(version)
+                        .build());
+            }
+            // the budget applies to sealed segments: six of them, four merged into one
+            while (meterRegistry.get("atkins.search.segments").gauge().value() != 3) {
+                Thread.sleep(10);
+            }
+
+            // each of the 48 documents with the rarer term is a candidate, only the oldest one matches both terms
+            MessageSearchIndex.SearchResult result = index.search("alpha beta", Set.of("mine"), Long.MAX_VALUE, 10);
+            int pages = 1;
+            while (result.hits().isEmpty() && result.hasMore()) {
+                result = index.search("alpha beta", Set.of("mine"), result.nextCursor(), 10);
+                pages++;
+            }
+            assertEquals(List.of(new MessageSearchIndex.SearchHit("mine", 1)), result.hits());
+            assertEquals(5, pages);
+        } finally {
+            index.destroy();
+        }
+    }
+}
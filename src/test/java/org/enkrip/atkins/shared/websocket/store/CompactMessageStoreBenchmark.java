@@ -0,0 +1,66 @@
+package org.enkrip.atkins.shared.websocket.store;
+
+import com.google.protobuf.Timestamp;
+import org.enkrip.atkins.benchmark.Benchmark;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatMessageType;
+import org.enkrip.atkins.proto.ChatUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Heap retained by {@link CompactMessageStore} compared to keeping the {@link ChatMessage} objects, as the message
+ * map did before, for the same short text messages spread over a number of conversations.
+ */
+class CompactMessageStoreBenchmark {
+    private static final int CONVERSATIONS = 1_000;
+    private static final int MESSAGES_PER_CONVERSATION = 200;
+    private static final String[] SENDERS = {"alice", "bob", "carol", "dave"};
+
+    @Test
+    void retainedHeap() {
+        Benchmark benchmark = new Benchmark("message store, " + CONVERSATIONS + " x " + MESSAGES_PER_CONVERSATION
+                + " messages");
+        long messages = (long) CONVERSATIONS * MESSAGES_PER_CONVERSATION;
+
+        long protobuf = benchmark.retained("List<ChatMessage> per conversation", messages, () -> {
+            List<List<ChatMessage>> conversations = new ArrayList<>(CONVERSATIONS);
+            for (int c = 0; c < CONVERSATIONS; c++) {
+                List<ChatMessage> conversation = new ArrayList<>();
+                for (int m = 0; m < MESSAGES_PER_CONVERSATION; m++) {
+                    conversation.add(message(c, m));
+                }
+                conversations.add(conversation);
+            }
+            return conversations;
+        });
+        long compact = benchmark.retained("CompactMessageStore", messages, () -> {
+            CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+            for (int c = 0; c < CONVERSATIONS; c++) {
+                for (int m = 0; m < MESSAGES_PER_CONVERSATION; m++) {
+                    store.append(message(c, m));
+                }
+            }
+            return store;
+        });
+        benchmark.note("compact / protobuf", String.format(Locale.ROOT, "%.2f", (double) compact / protobuf));
+        benchmark.report();
+    }
+
+    private static ChatMessage message(int conversation, int index) {
+        String sender = SENDERS[index % SENDERS.length];
+        return ChatMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setConversationId(new UUID(0, conversation).toString())
+                .setSender(ChatUser.newBuilder().setUserId(sender).setDisplayName(sender))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L + index).setNanos(index * 1000))
+                .setMessageType(ChatMessageType.TEXT)
+                .setContent("message number " + index + " of the conversation")
+                .setVersion(index + 1)
+                .build();
+    }
+}
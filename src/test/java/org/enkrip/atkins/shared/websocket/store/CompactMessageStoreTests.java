@@ -0,0 +1,171 @@
+package org.enkrip.atkins.shared.websocket.store;
+
+import com.google.protobuf.Timestamp;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatMessageType;
+import org.enkrip.atkins.proto.ChatUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactMessageStoreTests {
+
+    @Test
+    void segmentLayoutCoversEveryIndexOnce() {
+        int expectedStart = 0;
+        for (int segment = 0; segment < 12; segment++) {
+            assertEquals(expectedStart, ConversationMessageLog.segmentStart(segment));
+            int capacity = ConversationMessageLog.segmentCapacity(segment);
+            assertEquals(segment, ConversationMessageLog.segmentIndex(expectedStart));
+            assertEquals(segment, ConversationMessageLog.segmentIndex(expectedStart + capacity - 1));
+            expectedStart += capacity;
+        }
+    }
+
+    @Test
+    void roundTripsMessagesInAppendOrder() {
+        CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+        String conversationId = UUID.randomUUID().toString();
+
+        int count = ConversationMessageLog.MAX_SEGMENT_CAPACITY * 3;
+        for (int i = 0; i < count; i++) {
+            String sender = i % 2 == 0 ? "alice" : "bob";
+            store.append(ChatMessage.newBuilder()
+                    .setMessageId(new UUID(i, -i).toString())
+                    .setConversationId(conversationId)
+                    .setSender(ChatUser.newBuilder().setUserId(sender).setDisplayName(sender))
+                    // every message shares the same timestamp, none of them may be dropped
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L).setNanos(123_456_789))
+                    .setMessageType(ChatMessageType.TEXT)
+                    .setContent("hello éè " + i)
+                    .build());
+        }
+
+        List<ChatMessage> messages = store.getMessages(conversationId, "alice");
+        assertEquals(count, messages.size());
+        for (int i = 0; i < count; i++) {
+            ChatMessage message = messages.get(i);
+            assertEquals(new UUID(i, -i).toString(), message.getMessageId());
+            assertEquals(conversationId, message.getConversationId());
+            assertEquals("hello éè " + i, message.getContent());
+            assertEquals(1_758_000_000L, message.getTimestamp().getSeconds());
+            assertEquals(123_456_789, message.getTimestamp().getNanos());
+            assertEquals(i % 2 == 0, message.getMyMessage());
+            assertEquals(i + 1, message.getSequence());
+        }
+        assertTrue(store.getRetainedBytes(conversationId) > 0);
+        assertFalse(store.getMessages("unknown", "alice").iterator().hasNext());
+    }
+
+    @Test
+    void returnsOnlyMessagesNewerThanVersion() {
+        CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+        String conversationId = UUID.randomUUID().toString();
+
+        for (int version = 2; version <= 200; version += 2) {
+            store.append(ChatMessage.newBuilder()
+                    .setMessageId(UUID.randomUUID().toString())
+                    .setConversationId(conversationId)
+                    .setSender(ChatUser.newBuilder().setUserId("alice").setDisplayName("alice"))
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L + version))
+                    .setContent("message " + version)
+                    .setVersion(version)
+                    .build());
+        }
+
+        List<ChatMessage> messages = store.getMessagesSince(conversationId, "bob", 101);
+        assertEquals(50, messages.size());
+        assertEquals(102, messages.getFirst().getVersion());
+        assertEquals("message 200", messages.getLast().getContent());
+        assertEquals(100, store.getMessagesSince(conversationId, "bob", 0).size());
+        assertTrue(store.getMessagesSince(conversationId, "bob", 200).isEmpty());
+    }
+
+    @Test
+    void pagesBySequenceAndKeepsRestoredSequences() {
+        CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+        String conversationId = UUID.randomUUID().toString();
+
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, store.append(message(conversationId, i, 0)));
+        }
+        // restored messages keep their sequence, later ones continue after it
+        ChatMessage restored = message(conversationId, 1000, 500);
+        assertEquals(500, store.append(restored));
+        assertEquals(501, store.append(message(conversationId, 1001, 0)));
+        assertEquals(502, store.append(message(conversationId, 1002, 42)));
+
+        List<ChatMessage> after = store.getMessagesAfter(conversationId, "bob", 95, 10);
+        assertEquals(List.of(96L, 97L, 98L, 99L, 100L, 500L, 501L, 502L),
+                after.stream().map(ChatMessage::getSequence).toList());
+        assertEquals(3, store.getMessagesAfter(conversationId, "bob", 0, 3).getLast().getSequence());
+        assertTrue(store.getMessagesAfter(conversationId, "bob", 502, 10).isEmpty());
+
+        List<ChatMessage> before = store.getMessagesBefore(conversationId, "bob", 500, 3);
+        assertEquals(List.of(98L, 99L, 100L), before.stream().map(ChatMessage::getSequence).toList());
+        assertEquals(502, store.getMessagesBefore(conversationId, "bob", Long.MAX_VALUE, 1).getFirst().getSequence());
+        assertTrue(store.getMessagesBefore(conversationId, "bob", 1, 10).isEmpty());
+
+        assertTrue(store.containsRecent(restored));
+        assertFalse(store.containsRecent(message(conversationId, 1000, 499)));
+    }
+
+    @Test
+    void pagesBySendTimeWithoutReadingTheWholeConversation() {
+        CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+        String conversationId = UUID.randomUUID().toString();
+        for (int i = 0; i < 100; i++) {
+            // two messages per second
+            store.append(message(conversationId, i, 0).toBuilder()
+                    .setTimestamp(Timestamp.newBuilder()
+                            .setSeconds(1_758_000_000L + i / 2)
+                            .setNanos(i % 2 * 500_000_000))
+                    .build());
+        }
+        long second = 1_000_000_000L;
+
+        List<ChatMessage> page = store.getMessagesSentBefore(conversationId, "bob", (1_758_000_000L + 10) * second, 3);
+        assertEquals(List.of(18L, 19L, 20L), page.stream().map(ChatMessage::getSequence).toList());
+        // the bound is exclusive at full precision
+        assertEquals(List.of(21L), store.getMessagesSentBefore(conversationId, "bob",
+                (1_758_000_000L + 10) * second + 1, 1).stream().map(ChatMessage::getSequence).toList());
+        assertEquals(100, store.getMessagesSentBefore(conversationId, "bob", Long.MAX_VALUE, 1).getFirst()
+                .getSequence());
+        assertEquals(2, store.getMessagesSentBefore(conversationId, "bob", 1_758_000_001L * second, 10).size());
+        assertTrue(store.getMessagesSentBefore(conversationId, "bob", 1_758_000_000L * second, 10).isEmpty());
+    }
+
+    @Test
+    void keepsMessageIdsThatAreNotCanonicalUuids() {
+        CompactMessageStore store = new CompactMessageStore(new UserIdRegistry());
+        String conversationId = UUID.randomUUID().toString();
+        UUID uuid = UUID.randomUUID();
+        List<String> messageIds = List.of(uuid.toString(), "msg-42", uuid.toString().toUpperCase(), "1-2-3-4-5", "");
+
+        for (String messageId : messageIds) {
+            store.append(message(conversationId, 0, 0).toBuilder().setMessageId(messageId).build());
+        }
+
+        List<ChatMessage> messages = store.getMessages(conversationId, "alice");
+        assertEquals(messageIds, messages.stream().map(ChatMessage::getMessageId).toList());
+        assertTrue(store.containsRecent(message(conversationId, 0, 0).toBuilder().setMessageId("msg-42").build()));
+        assertTrue(store.containsRecent(messages.get(3)));
+        assertFalse(store.containsRecent(message(conversationId, 0, 0).toBuilder().setMessageId("msg-43").build()));
+    }
+
+    private static ChatMessage message(String conversationId, int id, long sequence) {
+        return ChatMessage.newBuilder()
+                .setMessageId(new UUID(id, id).toString())
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId("alice").setDisplayName("alice"))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L))
+                .setContent("message " + id)
+                .setSequence(sequence)
+                .build();
+    }
+}
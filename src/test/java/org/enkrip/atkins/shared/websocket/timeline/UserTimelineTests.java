@@ -0,0 +1,213 @@
+package org.enkrip.atkins.shared.websocket.timeline;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.proto.TimelineEntry;
+import org.enkrip.atkins.shared.scylla.PreparedStatementRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UserTimelineTests {
+    private static final Conversation CONVERSATION = Conversation.newBuilder()
+            .setConversationId("alice-bob")
+            .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+            .addParticipants(ChatUser.newBuilder().setUserId("bob"))
+            .build();
+
+    @Test
+    void keepsMostRecentEntriesOfEveryParticipantInOrder() {
+        UserTimeline timeline = timeline(10, 1000, Duration.ofHours(1), withoutSession());
+        // restored messages may arrive in any order
+        for (int second : new int[]{5, 1, 20, 3, 12, 7, 15, 2, 9, 18, 11, 4, 16, 6, 19, 8, 14, 10, 17, 13}) {
+            timeline.onMessageAppended(CONVERSATION, message("message-" + second, Timestamps.fromSeconds(second)));
+        }
+
+        UserTimeline.TimelinePage first = timeline.getTimeline("bob", null, 4);
+        assertEquals(List.of("message-20", "message-19", "message-18", "message-17"), messageIds(first.entries()));
+        assertEquals("messa", first.entries().getFirst().getPreview());
+        assertTrue(first.hasMore());
+
+        UserTimeline.TimelinePage last = timeline.getTimeline("alice", Timestamps.fromSeconds(14), 10);
+        assertEquals(List.of("message-13", "message-12", "message-11"), messageIds(last.entries()));
+        assertFalse(last.hasMore());
+        assertTrue(timeline.getTimeline("carol", null, 10).entries().isEmpty());
+        timeline.destroy();
+    }
+
+    @Test
+    void pagesThroughEntriesSharingAMillisecondInTheTable() {
+        TimelineTable table = new TimelineTable();
+        UserTimeline timeline = timeline(2, 1000, Duration.ofHours(1), table.repository());
+        timeline.startPersisting();
+        List<String> expected = new ArrayList<>();
+        // seven entries within one millisecond, the table clusters them by message ID rather than by time
+        for (int i = 0; i < 7; i++) {
+            UUID messageId = UUID.randomUUID();
+            timeline.onMessageAppended(CONVERSATION, message(messageId.toString(),
+                    Timestamps.fromNanos(1_758_000_000_000_000_000L + i * 1000)));
+            expected.addFirst(messageId.toString());
+        }
+        timeline.onMessageAppended(CONVERSATION, message(new UUID(0, 1).toString(),
+                Timestamps.fromMillis(1_757_999_999_999L)));
+        expected.add(new UUID(0, 1).toString());
+
+        List<TimelineEntry> entries = new ArrayList<>();
+        Timestamp before = null;
+        UserTimeline.TimelinePage page;
+        do {
+            page = timeline.getTimeline("bob", before, 3);
+            entries.addAll(page.entries());
+            before = page.entries().getLast().getTimestamp();
+        } while (page.hasMore());
+
+        assertEquals(expected, messageIds(entries));
+        // the entries read back from the table keep their sender and their full timestamp
+        assertTrue(entries.stream().allMatch(entry -> entry.getSender().getUserId().equals("alice")));
+        assertEquals(Timestamps.fromNanos(1_758_000_000_000_000_000L), entries.get(6).getTimestamp());
+        timeline.destroy();
+    }
+
+    @Test
+    void dropsIdleAndLeastRecentlyUsedTimelines() throws InterruptedException {
+        UserTimeline timeline = timeline(10, 10, Duration.ofMillis(100), withoutSession());
+        for (int i = 0; i < 12; i++) {
+            Conversation conversation = Conversation.newBuilder()
+                    .setConversationId("conversation-" + i)
+                    .addParticipants(ChatUser.newBuilder().setUserId("user-" + i))
+                    .build();
+            timeline.onMessageAppended(conversation, message("message-" + i, Timestamps.fromSeconds(i)));
+        }
+        // past the limit the least recently used timelines are dropped down to 90% of it, then user-11 is added
+        assertEquals(10, timeline.userCount());
+        assertTrue(timeline.getTimeline("user-0", null, 10).entries().isEmpty());
+        assertEquals(1, timeline.getTimeline("user-11", null, 10).entries().size());
+
+        Thread.sleep(150);
+        timeline.sweep();
+        assertEquals(0, timeline.userCount());
+        timeline.destroy();
+    }
+
+    private static UserTimeline timeline(int capacity, int maxUsers, Duration idleTimeout,
+                                         TimelineRepository repository) {
+        return new UserTimeline(capacity, 5, maxUsers, idleTimeout, repository, new SimpleMeterRegistry());
+    }
+
+    private static TimelineRepository withoutSession() {
+        return new TimelineRepository(new StaticListableBeanFactory().getBeanProvider(PreparedStatementRegistry.class),
+                new SimpleMeterRegistry());
+    }
+
+    private static ChatMessage message(String messageId, Timestamp timestamp) {
+        return ChatMessage.newBuilder()
+                .setMessageId(messageId)
+                .setConversationId("alice-bob")
+                .setSender(ChatUser.newBuilder().setUserId("alice"))
+                .setTimestamp(timestamp)
+                .setContent("message " + messageId)
+                .build();
+    }
+
+    private static List<String> messageIds(List<TimelineEntry> entries) {
+        return entries.stream().map(TimelineEntry::getMessageId).toList();
+    }
+
+    /**
+     * The {@code user_timeline} table of a single user, behind a mocked session: rows are ordered by their
+     * millisecond {@code message_time} descending, then by message ID.
+     */
+    private static final class TimelineTable {
+        private final List<Object[]> rows = new ArrayList<>();
+        private final Map<Statement<?>, Object[]> bound = new IdentityHashMap<>();
+        private final Map<Statement<?>, String> queries = new IdentityHashMap<>();
+
+        private TimelineRepository repository() {
+            CqlSession session = mock(CqlSession.class);
+            when(session.prepareAsync(anyString())).thenAnswer(prepare -> {
+                String query = prepare.getArgument(0);
+                PreparedStatement prepared = mock(PreparedStatement.class);
+                when(prepared.bind(any(Object[].class))).thenAnswer(bind -> {
+                    BoundStatement statement = mock(BoundStatement.class, Answers.RETURNS_SELF);
+                    bound.put(statement, bind.getArguments());
+                    queries.put(statement, query);
+                    return statement;
+                });
+                return CompletableFuture.completedFuture(prepared);
+            });
+            when(session.executeAsync(any(Statement.class))).thenAnswer(execute -> {
+                rows.add(bound.get(execute.<Statement<?>>getArgument(0)));
+                return CompletableFuture.completedFuture(mock(AsyncResultSet.class));
+            });
+            when(session.execute(any(Statement.class))).thenAnswer(execute -> {
+                Statement<?> statement = execute.getArgument(0);
+                List<Row> selected = select(queries.get(statement), bound.get(statement));
+                ResultSet resultSet = mock(ResultSet.class);
+                when(resultSet.iterator()).thenReturn(selected.iterator());
+                return resultSet;
+            });
+            return new TimelineRepository(registry(session), new SimpleMeterRegistry());
+        }
+
+        private List<Row> select(String query, Object[] values) {
+            Instant time = (Instant) values[1];
+            boolean before = query.contains("message_time < ?");
+            return rows.stream()
+                    .filter(row -> before ? ((Instant) row[1]).isBefore(time) : row[1].equals(time))
+                    .sorted(Comparator.comparing((Object[] row) -> (Instant) row[1]).reversed()
+                            .thenComparing(row -> (UUID) row[4]))
+                    .limit(before ? (int) values[2] : Long.MAX_VALUE)
+                    .map(TimelineTable::row)
+                    .toList();
+        }
+
+        private static Row row(Object[] values) {
+            Row row = mock(Row.class);
+            when(row.getInstant("message_time")).thenReturn((Instant) values[1]);
+            when(row.getInt("message_time_nanos")).thenReturn((int) values[2]);
+            when(row.getUuid("room_id")).thenReturn((UUID) values[3]);
+            when(row.getUuid("message_id")).thenReturn((UUID) values[4]);
+            when(row.getByteBuffer("sender")).thenReturn(((ByteBuffer) values[5]).duplicate());
+            when(row.getString("message_preview")).thenReturn((String) values[6]);
+            return row;
+        }
+
+        private static ObjectProvider<PreparedStatementRegistry> registry(
+                CqlSession session) {
+            StaticListableBeanFactory beans = new StaticListableBeanFactory();
+            beans.addBean("preparedStatementRegistry", new PreparedStatementRegistry(session));
+            return beans.getBeanProvider(PreparedStatementRegistry.class);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.enkrip.atkins.shared.websocket.transfer;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.enkrip.atkins.proto.ChatMessage;
+import org.enkrip.atkins.proto.ChatUser;
+import org.enkrip.atkins.proto.Conversation;
+import org.enkrip.atkins.shared.websocket.ConversationListener;
+import org.enkrip.atkins.shared.websocket.ConversationService;
+import org.enkrip.atkins.shared.websocket.WebSocketSessionService;
+import org.enkrip.atkins.shared.websocket.attachment.AttachmentStore;
+import org.enkrip.atkins.shared.websocket.cache.ConversationListCache;
+import org.enkrip.atkins.shared.websocket.compression.FrameCompression;
+import org.enkrip.atkins.shared.websocket.engine.DirectConversationEngine;
+import org.enkrip.atkins.shared.websocket.hotspot.HotspotTracker;
+import org.enkrip.atkins.shared.websocket.idempotency.IdempotencyCache;
+import org.enkrip.atkins.shared.websocket.overload.OverloadController;
+import org.enkrip.atkins.shared.websocket.store.CompactMessageStore;
+import org.enkrip.atkins.shared.websocket.store.UserIdRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationTransferTests {
+    private static final int CONVERSATIONS = 20;
+    private static final int MESSAGES = 5;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void exportsAndImportsEveryConversationInSegmentedRanges() throws Exception {
+        Node source = populatedSource();
+
+        ConversationTransfer.TransferStatus exported = await(source.transfer(DataSize.ofBytes(512)).startExport(),
+                source);
+        assertNull(exported.error());
+        assertEquals(4, exported.completedRanges());
+        assertEquals(CONVERSATIONS, exported.conversations());
+        assertEquals(CONVERSATIONS * MESSAGES, exported.messages());
+        // small segments make every range roll over several times
+        try (Stream<Path> files = Files.list(directory.resolve("export"))) {
+            assertTrue(files.filter(file -> file.getFileName().toString().matches("range-\\d{3}-\\d{5}"))
+                    .count() > 4);
+        }
+
+        Node target = new Node(directory.resolve("target"));
+        Files.move(directory.resolve("export"), directory.resolve("import"));
+        ConversationTransfer transfer = target.transfer(DataSize.ofMegabytes(1));
+        ConversationTransfer.TransferStatus imported = await(transfer.startImport(), target);
+        assertNull(imported.error());
+        assertEquals(CONVERSATIONS, imported.conversations());
+        assertEquals(CONVERSATIONS * MESSAGES, imported.messages());
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            String conversationId = "conversation-" + i;
+            assertNotNull(target.conversationService.getUserConversation(conversationId, "user-" + i));
+            assertEquals(source.messageStore.getMessages(conversationId, "alice"),
+                    target.messageStore.getMessages(conversationId, "alice"));
+        }
+
+        // completed ranges are not imported again
+        assertEquals(0, await(transfer.startImport(), target).messages());
+        // and without checkpoints, the messages already stored are skipped instead of duplicated
+        try (Stream<Path> files = Files.list(directory.resolve("import"))) {
+            for (Path checkpoint : files.filter(file -> file.toString().endsWith(".imported")).toList()) {
+                Files.delete(checkpoint);
+            }
+        }
+        ConversationTransfer.TransferStatus repeated = await(transfer.startImport(), target);
+        assertEquals(0, repeated.messages());
+        assertEquals(CONVERSATIONS * MESSAGES, repeated.skippedMessages());
+        assertEquals(MESSAGES, target.messageStore.getMessageCount("conversation-0"));
+    }
+
+    @Test
+    void importsNextToLiveDataWithoutMergingHistories() throws Exception {
+        Node source = populatedSource();
+        assertNull(await(source.transfer(DataSize.ofMegabytes(1)).startExport(), source).error());
+        Files.move(directory.resolve("export"), directory.resolve("import"));
+
+        // the target has its own conversation-0, and versions far beyond the ones of the source
+        Node target = new Node(directory.resolve("target"));
+        target.conversationService.restoreConversation(conversation("conversation-0", "user-0"));
+        target.conversationService.restoreConversation(conversation("local", "bob"));
+        for (int m = 0; m < 100; m++) {
+            target.conversationService.restoreMessage(message(m == 0 ? "conversation-0" : "local", 10_000 + m));
+        }
+        Conversation live = target.conversationService.getConversation("conversation-0");
+        long userVersion = target.conversationService.getUserVersion("alice");
+
+        ConversationTransfer.TransferStatus imported = await(target.transfer(DataSize.ofMegabytes(1)).startImport(),
+                target);
+        assertNull(imported.error());
+        assertEquals(CONVERSATIONS - 1, imported.conversations());
+        assertEquals(1, imported.rejectedConversations());
+        assertEquals(MESSAGES, imported.skippedMessages());
+        assertEquals(live, target.conversationService.getConversation("conversation-0"));
+        assertEquals(1, target.messageStore.getMessageCount("conversation-0"));
+
+        // the imported conversations are new to the participants, whatever their versions were on the source
+        assertTrue(target.conversationService.getUserVersion("alice") > userVersion);
+        assertEquals(CONVERSATIONS - 1,
+                target.conversationService.getUserConversationsSince("alice", userVersion).size());
+        Conversation conversation = target.conversationService.getConversation("conversation-1");
+        assertEquals(source.conversationService.getConversation("conversation-1").getLastMessage(),
+                conversation.getLastMessage());
+        assertTrue(conversation.getVersion() > userVersion);
+        // and a message sent to one of them afterwards is newer than its imported messages
+        target.conversationService.restoreMessage(message("conversation-1", 20_000));
+        assertTrue(target.conversationService.getConversation("conversation-1").getLastMessage().getVersion()
+                > conversation.getVersion());
+    }
+
+    @Test
+    void movesTheVersionsOnOnceTheMessagesOfAConversationAreImported() throws Exception {
+        Node source = populatedSource();
+        assertNull(await(source.transfer(DataSize.ofMegabytes(1)).startExport(), source).error());
+        Files.move(directory.resolve("export"), directory.resolve("import"));
+
+        // what a participant polling the conversation sees while its messages are imported
+        List<Long> versionsWhileImporting = new CopyOnWriteArrayList<>();
+        Node target = new Node(directory.resolve("target"), new ConversationListener() {
+            @Override
+            public void onMessageAppended(Conversation conversation, ChatMessage message) {
+                if (conversation.getConversationId().equals("conversation-1")) {
+                    versionsWhileImporting.add(conversation.getVersion());
+                }
+            }
+        });
+        assertNull(await(target.transfer(DataSize.ofMegabytes(1)).startImport(), target).error());
+
+        assertEquals(MESSAGES, versionsWhileImporting.size());
+        long seen = versionsWhileImporting.stream().mapToLong(Long::longValue).max().orElseThrow();
+        Conversation imported = target.conversationService.getConversation("conversation-1");
+        assertTrue(imported.getVersion() > seen);
+        assertTrue(target.conversationService.getUserVersion("user-1") >= imported.getVersion());
+        assertEquals(List.of(imported), List.copyOf(target.conversationService.getUserConversations("user-1")));
+    }
+
+    @Test
+    void refusesToImportAnIncompleteExport() throws Exception {
+        Node target = new Node(directory.resolve("target"));
+        Files.createDirectories(directory.resolve("import"));
+        ConversationTransfer.TransferStatus status = await(target.transfer(DataSize.ofMegabytes(1)).startImport(),
+                target);
+        assertNotNull(status.error());
+        assertEquals(0, status.conversations());
+    }
+
+    private ConversationTransfer.TransferStatus await(ConversationTransfer.TransferStatus started, Node node)
+            throws InterruptedException {
+        assertTrue(started.running());
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        ConversationTransfer.TransferStatus status = node.lastTransfer.getStatus();
+        while (status.running() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            status = node.lastTransfer.getStatus();
+        }
+        assertFalse(status.running());
+        return status;
+    }
+
+    private Node populatedSource() throws Exception {
+        Node source = new Node(directory.resolve("source"));
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            String conversationId = "conversation-" + i;
+            source.conversationService.restoreConversation(conversation(conversationId, "user-" + i));
+            for (int m = 0; m < MESSAGES; m++) {
+                source.conversationService.restoreMessage(message(conversationId, i * MESSAGES + m));
+            }
+        }
+        return source;
+    }
+
+    private static Conversation conversation(String conversationId, String participant) {
+        return Conversation.newBuilder()
+                .setConversationId(conversationId)
+                .addParticipants(ChatUser.newBuilder().setUserId("alice"))
+                .addParticipants(ChatUser.newBuilder().setUserId(participant))
+                .build();
+    }
+
+    private static ChatMessage message(String conversationId, int id) {
+        return ChatMessage.newBuilder()
+                .setMessageId(new UUID(id, id).toString())
+                .setConversationId(conversationId)
+                .setSender(ChatUser.newBuilder().setUserId("alice").setDisplayName("alice"))
+                .setTimestamp(Timestamp.newBuilder().setSeconds(1_758_000_000L + id))
+                .setContent("message " + id)
+                .build();
+    }
+
+    private final class Node {
+        private final CompactMessageStore messageStore = new CompactMessageStore(new UserIdRegistry());
+        private final ConversationService conversationService;
+        private final OverloadController overloadController;
+        private ConversationTransfer lastTransfer;
+
+        private Node(Path data, ConversationListener... conversationListeners) throws Exception {
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            StaticListableBeanFactory listeners = new StaticListableBeanFactory();
+            for (int i = 0; i < conversationListeners.length; i++) {
+                listeners.addBean("conversationListener" + i, conversationListeners[i]);
+            }
+            WebSocketSessionService sessionService = new WebSocketSessionService(Duration.ofSeconds(1),
+                    DataSize.ofKilobytes(64), new StaticListableBeanFactory().getBeanProvider(FrameCompression.class),
+                    new StaticListableBeanFactory().getBeanProvider(HotspotTracker.class));
+            this.conversationService = new ConversationService(sessionService, messageStore,
+                    new AttachmentStore(data.resolve("attachments"), DataSize.ofMegabytes(1), Duration.ofHours(1),
+                            256, 10_000_000, meterRegistry),
+                    new IdempotencyCache(Duration.ofMinutes(10), 1000, meterRegistry),
+                    new DirectConversationEngine(),
+                    new ConversationListCache(DataSize.ofMegabytes(1), Duration.ofHours(1), meterRegistry),
+                    listeners.getBeanProvider(ConversationListener.class));
+            // disabled, so the transfer is never paused
+            this.overloadController = new OverloadController(false, Duration.ofMillis(250), 512,
+                    DataSize.ofMegabytes(64), 0.85, 1.5, 0.8, 0.3, Duration.ofHours(1), Duration.ofSeconds(5),
+                    sessionService, meterRegistry);
+        }
+
+        private ConversationTransfer transfer(DataSize segmentSize) {
+            lastTransfer = new ConversationTransfer(directory.resolve("export"), directory.resolve("import"), 4, 2,
+                    segmentSize, 0, Duration.ofMillis(100), conversationService, messageStore, overloadController,
+                    new SimpleMeterRegistry());
+            return lastTransfer;
+        }
+    }
+}